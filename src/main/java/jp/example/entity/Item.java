@@ -17,4 +17,5 @@ public class Item {
 	public boolean faceAuth;
 	public long companyId;
 	public LocalDate createdDate;
+	public long version;
 }
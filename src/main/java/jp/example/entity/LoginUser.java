@@ -1,5 +1,7 @@
 package jp.example.entity;
 
+import java.io.Serializable;
+
 import lombok.Data;
 
 /** 
@@ -7,7 +9,7 @@ import lombok.Data;
  * @author New Gradle Project Wizard (c) Pleiades MIT
  */
 @Data
-public class LoginUser {
+public class LoginUser implements Serializable {
 	
 	public long id;
 	public String username;
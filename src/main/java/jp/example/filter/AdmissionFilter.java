@@ -0,0 +1,264 @@
+package jp.example.filter;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.http.HttpFilter;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpSession;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 流入制御 (アドミッションコントロール) フィルターです。
+ * <pre>
+ * 検索文字列の onkeyup ごとの件数取得や、入力中の検証など、キー入力ごとに呼び出される API (keyup) が集中しても、
+ * 登録や更新などの通常のリクエスト (interactive) の処理が妨げられないように、受け付ける前に制限します。
+ * 制限を超えたリクエストは後続の処理 (CSRF、トランザクション、DB 接続) を行わずに、すぐに HTTP 429 を返します。
+ * keyup の 429 にはレスポンスヘッダー X-Admission: keyup を付けます。クライアントの axios インターセプターは、
+ * keyup の 429 のうち同じ API の最新のリクエストは少し待って再送し、それより前のリクエストは無視します。
+ * keyup 以外の 429 (登録や更新など) は、通常のエラーとしてメッセージを表示します。
+ *
+ * ・同時実行数: keyup と interactive の種別ごとに、全体の同時実行数を制限 (非同期の場合は完了まで)
+ * ・レート: keyup はセッションごと (セッションが無い場合は IP アドレスごと) のトークンバケットで制限
+ * ・後勝ち: 同じセッション、同じパスの keyup は最新のリクエストのみを有効とし、それより前のリクエストが
+ *   returnsAsync の DB 専用スレッドの待機中の場合は、実行せずに HTTP 429 を返す (isSuperseded)。
+ *   最新のリクエストがレートや同時実行数で拒否された場合も、それより前のリクエストは無効になり、
+ *   最新のリクエストはクライアントが再送するため、最後のキー入力の結果が表示されます。
+ * ・セッションごとの状態は、アイドル時間を超えたものを定期的に削除します。上限件数に達している場合、新しいセッションの
+ *   状態は保持せずにレートを制限しません (同時実行数のみで制限)。
+ *
+ * web.xml の init-param で以下を指定できます (省略時はデフォルト値)。
+ *
+ * keyupPaths              keyup の Servlet パス (カンマ区切り、デフォルト: なし)
+ * keyupRatePerSecond      keyup のセッションごとの 1 秒あたりの許可数 (デフォルト: 10)
+ * keyupBurst              keyup のセッションごとの連続許可数 (バケットの容量、デフォルト: 20)
+ * keyupConcurrency        keyup 全体の同時実行数 (デフォルト: 4、AutoTransactionFilter の asyncThreads より少なくする)
+ * interactiveConcurrency  interactive 全体の同時実行数 (デフォルト: 200、コンテナーの maxThreads 程度)
+ *
+ * SSE (Accept: text/event-stream) の接続は長時間継続するため、同時実行数の対象外です (EventStreamHub で制限)。
+ * </pre>
+ * @author New Gradle Project Wizard (c) Pleiades MIT
+ */
+@Slf4j
+public class AdmissionFilter extends HttpFilter {
+
+	//-------------------------------------------------------------------------
+	// Filter から使用する static メソッド
+	//-------------------------------------------------------------------------
+
+	/**
+	 * リクエストが同じセッション、同じパスの新しい keyup リクエストにより無効になっているか判定します。
+	 * @param req HTTP サーブレットリクエスト
+	 * @return 無効になっている場合は true (keyup 以外や、このフィルターを経由しない場合は常に false)
+	 */
+	static boolean isSuperseded(HttpServletRequest req) {
+		Ticket ticket = (Ticket) req.getAttribute(TICKET);
+		return ticket != null && ticket.latest.get() != ticket.sequence;
+	}
+
+	/**
+	 * HTTP 429 を返します (後続の処理は行わない)。
+	 * @param res HTTP サーブレットレスポンス
+	 * @param isKeyup keyup の場合は true (クライアントが後勝ちで再送するか判定するためのヘッダーを追加)
+	 */
+	static void reject(HttpServletResponse res, boolean isKeyup) {
+		rejectedCount.increment();
+		res.setHeader("Retry-After", "1");
+		if (isKeyup) res.setHeader(ADMISSION_HEADER, "keyup");
+		res.setStatus(SC_TOO_MANY_REQUESTS);
+	}
+
+	/**
+	 * 拒否件数 (累計) を取得します。
+	 * @return 拒否件数
+	 */
+	public static long rejectedCount() {
+		return rejectedCount.sum();
+	}
+
+	//-------------------------------------------------------------------------
+	// Servlet フィルター処理
+	//-------------------------------------------------------------------------
+
+	private static final int SC_TOO_MANY_REQUESTS = 429;
+	private static final String ADMISSION_HEADER = "X-Admission";
+	private static final String TICKET = AdmissionFilter.class.getName() + ".TICKET";
+	private static final int MAX_CLIENTS = 100_000;
+	private static final long IDLE_NANOS = TimeUnit.MINUTES.toNanos(5);
+	private static final long SWEEP_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+	private static final LongAdder rejectedCount = new LongAdder();
+
+	private Set<String> keyupPaths;
+	private long emissionNanos;
+	private long burstToleranceNanos;
+	private Semaphore keyupPermits;
+	private Semaphore interactivePermits;
+	private final Map<String, Client> clients = new ConcurrentHashMap<>();
+	private final LongSupplier nanoClock;
+	private ScheduledExecutorService clientSweeper;
+
+	/**
+	 * フィルターを作成します。
+	 */
+	public AdmissionFilter() {
+		this(System::nanoTime);
+	}
+
+	/**
+	 * 現在時刻の取得を指定してフィルターを作成します (テストでレートの補充やアイドル時間を検証する場合に使用)。
+	 * @param nanoClock 現在時刻 (System#nanoTime と同じ単位)
+	 */
+	AdmissionFilter(LongSupplier nanoClock) {
+		this.nanoClock = nanoClock;
+	}
+
+	/** keyup の受付順序 (同じセッション、同じパスで最新の sequence のみが有効) */
+	private record Ticket(AtomicLong latest, long sequence) {}
+
+	/**
+	 * セッションまたは IP アドレスごとの状態です。
+	 * <pre>
+	 * トークンバケットは GCRA (Generic Cell Rate Algorithm) 形式で、理論到着時刻 (tat) の 1 つの値のみを
+	 * CAS で更新します (ロックなし)。tat が現在時刻より連続許可数分以上先の場合は、トークンが無い状態です。
+	 * </pre>
+	 */
+	private static class Client {
+
+		private final AtomicLong tat;
+		private final Map<String, AtomicLong> latestByPath = new ConcurrentHashMap<>();
+		private volatile long lastAccessNanos;
+
+		Client(long now) {
+			this.tat = new AtomicLong(now);
+			this.lastAccessNanos = now;
+		}
+	}
+
+	/**
+	 * 制限値の設定。
+	 */
+	@Override
+	public void init() {
+		keyupPaths = Set.of(StringUtils.split(StringUtils.defaultString(getInitParameter("keyupPaths")), ", \n\t"));
+		double ratePerSecond = NumberUtils.toDouble(getInitParameter("keyupRatePerSecond"), 10);
+		int burst = NumberUtils.toInt(getInitParameter("keyupBurst"), 20);
+		emissionNanos = (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond);
+		burstToleranceNanos = emissionNanos * (burst - 1);
+		keyupPermits = new Semaphore(NumberUtils.toInt(getInitParameter("keyupConcurrency"), 4));
+		interactivePermits = new Semaphore(NumberUtils.toInt(getInitParameter("interactiveConcurrency"), 200));
+		log.info("流入制御 keyup {} {}/秒 (連続 {}) 同時 {}、interactive 同時 {}", keyupPaths, ratePerSecond, burst,
+				keyupPermits.availablePermits(), interactivePermits.availablePermits());
+		clientSweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "admission-client-sweeper");
+			thread.setDaemon(true);
+			return thread;
+		});
+		clientSweeper.scheduleWithFixedDelay(this::sweepIdleClients, SWEEP_INTERVAL_MILLIS, SWEEP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+	}
+	
+	/** アイドル状態削除スレッドの終了 */
+	@Override
+	public void destroy() {
+		if (clientSweeper != null) clientSweeper.shutdownNow();
+	}
+
+	@Override @SneakyThrows
+	protected void doFilter(HttpServletRequest req, HttpServletResponse res, FilterChain chain) {
+
+		// css js など、SSE は対象外
+		if (!RequestRoute.of(req).runs(RequestRoute.Stage.ADMISSION)) {
+			super.doFilter(req, res, chain);
+			return;
+		}
+
+		boolean isKeyup = keyupPaths.contains(req.getServletPath());
+		if (isKeyup) {
+			// 拒否する場合も先に受付順序を進め、待機中の前のリクエストを無効にする (最新はクライアントが再送)
+			Client client = client(req);
+			AtomicLong latest = client.latestByPath.computeIfAbsent(req.getServletPath(), k -> new AtomicLong());
+			req.setAttribute(TICKET, new Ticket(latest, latest.incrementAndGet()));
+			if (!tryConsume(client)) {
+				log.debug("流入制御 レート超過 {}", req.getServletPath());
+				reject(res, true);
+				return;
+			}
+		}
+
+		Semaphore permits = isKeyup ? keyupPermits : interactivePermits;
+		if (!permits.tryAcquire()) {
+			log.debug("流入制御 同時実行数超過 {}", req.getServletPath());
+			reject(res, isKeyup);
+			return;
+		}
+		try {
+			super.doFilter(req, res, chain);
+		} finally {
+			if (req.isAsyncStarted()) {
+				req.getAsyncContext().addListener(new AsyncListener() {
+					@Override public void onComplete(AsyncEvent event) {
+						permits.release();
+					}
+					@Override public void onTimeout(AsyncEvent event) {}
+					@Override public void onError(AsyncEvent event) {}
+					@Override public void onStartAsync(AsyncEvent event) {}
+				});
+			} else {
+				permits.release();
+			}
+		}
+	}
+
+	/** セッション (無い場合は IP アドレス) ごとの状態を取得 (上限に達している場合は保持しない一時的な状態) */
+	private Client client(HttpServletRequest req) {
+		HttpSession session = req.getSession(false);
+		String key = session == null ? "ip:" + req.getRemoteAddr() : session.getId();
+		long now = nanoClock.getAsLong();
+		Client client = clients.get(key);
+		if (client == null) {
+			// 上限の判定は概算 (同時に追加された分だけ超える場合がある)、削除は clientSweeper で定期的に実行
+			client = clients.size() >= MAX_CLIENTS ? new Client(now) : clients.computeIfAbsent(key, k -> new Client(now));
+		}
+		client.lastAccessNanos = now;
+		return client;
+	}
+	
+	/** @return 保持しているセッションまたは IP アドレスごとの状態の件数 */
+	int clientCount() {
+		return clients.size();
+	}
+	
+	/** アイドル時間を超えた状態を削除 (リクエストスレッドではなく clientSweeper で定期的に実行) */
+	void sweepIdleClients() {
+		long now = nanoClock.getAsLong();
+		int size = clients.size();
+		clients.values().removeIf(c -> now - c.lastAccessNanos > IDLE_NANOS);
+		log.debug("流入制御 アイドル状態削除 {} → {} 件", size, clients.size());
+	}
+
+	/** トークンバケットからトークンを 1 つ取得 (GCRA) */
+	private boolean tryConsume(Client client) {
+		long now = nanoClock.getAsLong();
+		while (true) {
+			long tat = client.tat.get();
+			long start = tat - now > 0 ? tat : now; // nanoTime は負の場合があるため差で比較
+			if (start - now > burstToleranceNanos) return false;
+			if (client.tat.compareAndSet(tat, start + emissionNanos)) return true;
+		}
+	}
+}
@@ -3,11 +3,17 @@ package jp.example.filter;
 import static java.lang.String.*;
 import static jp.example.filter.RequestContextFilter.*;
 
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.PrintWriter;
-import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
 import java.util.Map;
-import java.util.UUID;
+import java.util.Objects;
+import java.util.Set;
+import java.util.regex.Pattern;
 
 import org.apache.commons.lang3.StringUtils;
 
@@ -32,6 +38,8 @@ import lombok.extern.slf4j.Slf4j;
  * 
  * 1. Java コードや特別なタグ指定なしで、自動的に jsp と html に meta や form の hidden を埋め込み、Cookie にもセット。
  * 2. 画面遷移ごとにトークンが新しく生成されるため、同期トークンとしても機能する。
+ *    ・AutoFlashFilter の flashStore が cookie の場合は、セッションを変更しないように、トークンはセッションではなく
+ *      署名付き Cookie の状態にセッション ID のハッシュとともに保存 (他のセッションで発行された Cookie のトークンは無効)。
  *    ・AJAX アクセスの場合はトークンを更新しないため、AJAX 後の画面からの post でトークンエラーは発生しない。
  *    ・画面遷移と AJAX の順序が保証されない並行リクエストがある場合の動作は不定。
  * 3. ブラウザの戻るボタンでエラーにならずにブラウザ標準の操作が可能 (Chrome のような bfcache 無効化対応ブラウザのみ)。
@@ -55,7 +63,7 @@ import lombok.extern.slf4j.Slf4j;
  * 
  * また、アップロード用の multipart post form の場合は、hidden が getParameter で取得できないため、action 属性に
  * クエリー文字列として指定する必要がありますが、今のところ、自動埋め込みには対応していません。
- * 下記のようにセッション属性値 ${_csrf} を明示的に指定してください。
+ * 下記のように属性値 ${_csrf} を明示的に指定してください。
  * 
  *     form タグ
  *     action="/upload?_csrf=${_csrf}" method="post" enctype="multipart/form-data"
@@ -68,14 +76,42 @@ public class AutoCsrfFilter extends HttpFilter {
 
 	/** CSRF トークンのセッション、Cookie、リクエストパラメーターの name */
 	private static final String _csrf = "_csrf";
+	
+	/** Cookie の状態に保存するトークンの発行先セッション (セッション ID のハッシュ) */
+	private static final String _csrfSession = "_csrfSession";
+	
+	/** トークンチェック対象の HTTP メソッド */
+	private static final Set<String> TOKEN_CHECK_METHODS = Set.of("POST", "PUT", "DELETE", "PATCH");
+	
+	/**
+	 * トークン生成用の乱数 (スレッドごとの DRBG)。
+	 * UUID.randomUUID の JVM 共通 SecureRandom や、Linux のデフォルトの NativePRNG は、インスタンスを分けても
+	 * 全インスタンス共通のロックで競合するため、インスタンスごとに独立した DRBG をスレッドごとに使用します。
+	 */
+	private static final ThreadLocal<SecureRandom> secureRandom = ThreadLocal.withInitial(AutoCsrfFilter::newSecureRandom);
+	
+	@SneakyThrows
+	private static SecureRandom newSecureRandom() {
+		return SecureRandom.getInstance("DRBG");
+	}
+	
+	/**
+	 * CSRF トークンを生成します。
+	 * @return 128 ビットの乱数を URL セーフ Base64 (パディング無し) にした 22 文字の文字列
+	 */
+	protected static String generateToken() {
+		byte[] bytes = new byte[16];
+		secureRandom.get().nextBytes(bytes);
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+	}
 
 	@Override @SneakyThrows
 	protected void doFilter(HttpServletRequest req, HttpServletResponse res, FilterChain chain) {
 		
 		// css js などを除外 (html や jsp は除外しない、ドットを含む Servlet マッピングはサポートしない)
-		String uri = req.getRequestURI();
-		boolean isHtml = StringUtils.endsWithAny(uri, ".jsp", ".html"); // .jsp は FORWARD 時
-		if (!isHtml && uri.contains(".")) {
+		RequestRoute route = RequestRoute.of(req);
+		boolean isHtml = route.type() == RequestRoute.Type.HTML || route.type() == RequestRoute.Type.JSP; // JSP は FORWARD 時
+		if (!route.runs(RequestRoute.Stage.CSRF)) {
 			super.doFilter(req, res, chain);
 			return;
 		}
@@ -85,9 +121,9 @@ public class AutoCsrfFilter extends HttpFilter {
 			if (isAjax()) {
 				res.sendError(HttpServletResponse.SC_FORBIDDEN);
 			} else {
-				// トップへリダイレクト (AutoFlashFilter で使えるフラッシュ属性 MESSAGE をセットしておく)
+				// トップへリダイレクト (AutoFlashFilter で使えるフラッシュ属性 MESSAGE をセッションまたは Cookie に保存しておく)
 				String message = req.isSecure() ? "セッションが切れました。" : "CSRF トークンが不正です。";
-				req.getSession().setAttribute("FLASH", Map.of("MESSAGE", message));
+				AutoFlashFilter.saveFlashMessage(req, res, message);
 				res.sendRedirect(req.getContextPath());
 				// 同期トークンチェックとしても機能する (bfcache 無効化により、戻るボタンからの送信は正常に機能する) ため、
 				// 二重送信やリロード多重送信も検出できるが、事後検出ではユーザビリティが悪いため、事前に
@@ -98,22 +134,12 @@ public class AutoCsrfFilter extends HttpFilter {
 		
 		// [REQUEST, FORWARD] トークン埋め込み (html 直接アクセス、Servlet からの jsp フォワード)
 		// ここで想定する文字列パターンに一致しない場合は、JSP に ${_csrf} を指定する必要がある
+		// レスポンス全体をバッファリングせずに、書き込まれる文字を逐次走査して埋め込む (チャンク転送)
 		if (isHtml) {
-			StringResponseWrapper resWrapper = new StringResponseWrapper(res);
+			String csrfToken = Objects.toString(req.getAttribute(_csrf), (String) req.getSession().getAttribute(_csrf));
+			CsrfInjectResponseWrapper resWrapper = new CsrfInjectResponseWrapper(res, csrfToken);
 			super.doFilter(req, resWrapper, chain);
-			String csrfToken = (String) req.getSession().getAttribute(_csrf);
-			String html = resWrapper.getString()
-				
-				// meta タグ追加 (単一)
-				.replaceFirst("(?i)(<head>)", format("""
-					$1\n<meta name="_csrf" content="%s">""", csrfToken))
-					
-				// form post 内に hidden 追加 (複数)
-				.replaceAll("(?is)([ \t]*)(<form[^>]+method=\"post[^>]+>)", format("""
-					$1$2\n$1\t<input type="hidden" name="_csrf" value="%s">""", csrfToken));
-					
-			res.setContentLength(html.getBytes(resWrapper.getCharacterEncoding()).length);
-			res.getWriter().print(html);
+			resWrapper.finish();
 		} else {
 			super.doFilter(req, res, chain);
 		}
@@ -121,14 +147,21 @@ public class AutoCsrfFilter extends HttpFilter {
 
 	/**
 	 * POST 時のトークンをチェックします。
+	 * <pre>
+	 * フィルターインスタンスでの排他はせず、トークンはセッション単位で保持します (セッション属性はスレッドセーフ)。
+	 * 同一セッションの並行リクエストでは後勝ちとなり、Cookie にはこのリクエストで確定したトークンを書き込みます。
+	 * </pre>
 	 * @return トークンが一致しない場合は true
 	 */
-	synchronized protected boolean notMatchToken(HttpServletRequest req, HttpServletResponse res) {
+	protected boolean notMatchToken(HttpServletRequest req, HttpServletResponse res) {
 		
 		// トークンチェック (リクエスト、ヘッダー、Cookie は標準的な名前を使用)
+		// フラッシュを Cookie に保存する場合は、Cookie の状態のトークン (このセッションで発行したもののみ)
 		HttpSession session = req.getSession();
-		if (req.getMethod().matches("(POST|PUT|DELETE|PATCH)")) {
-			String sesCsrf = (String) session.getAttribute(_csrf);
+		Map<String, Object> state = AutoFlashFilter.requestState(req);
+		String sesCsrf = state == null ? (String) session.getAttribute(_csrf)
+				: sessionHash(session).equals(state.get(_csrfSession)) ? (String) state.get(_csrf) : null;
+		if (TOKEN_CHECK_METHODS.contains(req.getMethod())) {
 			String reqCsrf = StringUtils.firstNonEmpty(
 				req.getParameter(_csrf), 		// form hidden "_csrf" → フォームサブミットやフォームベースの AJAX
 				req.getHeader("X-CSRF-TOKEN"),	// meta "_csrf" → jQuery からの AJAX 送信でよく使われる名前
@@ -140,17 +173,26 @@ public class AutoCsrfFilter extends HttpFilter {
 			}
 		}
 		
-		// 画面遷移の場合はトークンを生成し直し
-		if (!isAjax() || session.getAttribute(_csrf) == null) {
-			session.setAttribute(_csrf, UUID.randomUUID().toString());
+		// 画面遷移の場合はトークンを生成し直し (AJAX の場合はセッションのトークンを維持)
+		// フラッシュを Cookie に保存する場合は、セッションを変更せずに Cookie の状態に保存
+		if (sesCsrf == null || !isAjax()) {
+			sesCsrf = generateToken();
+			if (state == null) {
+				session.setAttribute(_csrf, sesCsrf);
+			} else {
+				state.put(_csrf, sesCsrf);
+				state.put(_csrfSession, sessionHash(session));
+				AutoFlashFilter.writeStateCookie(req, res, state);
+			}
 		}
+		req.setAttribute(_csrf, sesCsrf); // 埋め込みと JSP の ${_csrf} で使用
 		
 		// AJAX 参照用 Cookie 書き込み
 		// * Secure: isSecure で判定。localhost では無視される。プロキシ経由は x-forwarded-proto が必要。
 		// * SameSite: Strict (送信は同一サイトのみ)。ブラウザのデフォルトは Lax (別サイトから GET 可能、POST 不可)。
 		// * HttpOnly: 指定なし。JavaScript から参照可能にするために指定しない。
 		res.addHeader("Set-Cookie", format("XSRF-TOKEN=%s;%sSameSite=Strict;", 
-				session.getAttribute(_csrf), req.isSecure() ? " Secure;" : ""));
+				sesCsrf, req.isSecure() ? " Secure;" : ""));
 		
 		// Cache-Control no-store で bfcache 無効化 (ブラウザの種類やバージョンに依存)
 		// * ブラウザ戻るボタンでできるだけエラーにならないようにする
@@ -159,45 +201,252 @@ public class AutoCsrfFilter extends HttpFilter {
 		// * 更新 → ブラウザ戻るボタン → 更新: 不正ではなく再修正できる
 		// * 二重送信やリロードによる POST 多重送信はトークンエラーとなる
 		// * 戻るボタン後のサブミットをエラーにしたい場合は、下記の bfcache を無効化しないようにする
+		// * ETag を返す AJAX の GET は AutoFlashFilter#checkNotModified で private, no-cache に上書き (それ以外は no-store)
 		res.setHeader("Cache-Control", "max-age=0, must-revalidate, no-cache, no-store, private, post-check=0, pre-check=0");
 		res.setDateHeader ("Expires", 0); // プロキシサーバのキャシュ抑止
 		return false; // 正常
 	}
 	
+	/** セッション ID のハッシュ (Cookie の状態にセッション ID を平文で保存しないため) */
+	@SneakyThrows
+	private static String sessionHash(HttpSession session) {
+		byte[] hash = MessageDigest.getInstance("SHA-256").digest(session.getId().getBytes(StandardCharsets.US_ASCII));
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(hash);
+	}
+	
 	/**
-	 * レスポンス処理後にコンテンツを文字列として取得するための HTTP レスポンスラッパークラスです。
+	 * レスポンスへの書き込みを逐次走査して CSRF トークンを埋め込む HTTP レスポンスラッパークラスです。
+	 * <pre>
+	 * 埋め込みにより長さが変わるため Content-Length は無視し、コンテナーのチャンク転送に任せます。
+	 * jsp は getWriter (文字)、html は DefaultServlet から getOutputStream (バイト) で書き込まれます。
+	 * バイトの場合も、対象のタグと埋め込む文字列は ASCII のため、1 バイトを 1 文字として走査します。
+	 * </pre>
 	 */
-	private static class StringResponseWrapper extends HttpServletResponseWrapper {
+	private static class CsrfInjectResponseWrapper extends HttpServletResponseWrapper {
 		
-		private final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-		private final PrintWriter printWriter = new PrintWriter(byteArrayOutputStream);
+		private final CsrfInjector injector;
+		private PrintWriter printWriter;
+		private ServletOutputStream outputStream;
 		
-		public StringResponseWrapper(HttpServletResponse res) {
+		public CsrfInjectResponseWrapper(HttpServletResponse res, String csrfToken) {
 			super(res);
+			injector = new CsrfInjector(csrfToken);
 		}
 		
-		public String getString() throws UnsupportedEncodingException {
-			printWriter.flush();
-			return byteArrayOutputStream.toString(getCharacterEncoding());
+		/** 走査中のタグ候補を書き出します (フィルターチェーン終了後に呼び出し) */
+		public void finish() throws IOException {
+			injector.finish();
 		}
 		
-		@Override public PrintWriter getWriter() { // jsp
+		@Override public PrintWriter getWriter() throws IOException { // jsp
+			if (printWriter == null) {
+				injector.out = super.getWriter();
+				printWriter = new PrintWriter(injector);
+			}
 			return printWriter;
 		}
 		
-		@Override public ServletOutputStream getOutputStream() { // html
-			return new ServletOutputStream() {
-				
-				@Override public void write(int b) {
-					byteArrayOutputStream.write(b);
-				}
-				@Override public void setWriteListener(WriteListener writeListener) {
-					throw new UnsupportedOperationException("このメソッドは拡張子が jsp、html の場合は使用できません。");
+		@Override public ServletOutputStream getOutputStream() throws IOException { // html
+			if (outputStream == null) {
+				ServletOutputStream out = super.getOutputStream();
+				injector.out = new Writer() {
+					private final byte[] bytes = new byte[8192];
+					@Override public void write(char[] cbuf, int off, int len) throws IOException {
+						while (len > 0) {
+							int n = Math.min(len, bytes.length);
+							for (int i = 0; i < n; i++) bytes[i] = (byte) cbuf[off + i];
+							out.write(bytes, 0, n);
+							off += n;
+							len -= n;
+						}
+					}
+					@Override public void flush() throws IOException {
+						out.flush();
+					}
+					@Override public void close() throws IOException {
+						out.close();
+					}
+				};
+				outputStream = new ServletOutputStream() {
+					private final char[] chars = new char[8192];
+					@Override public void write(int b) throws IOException {
+						injector.write(b & 0xFF);
+					}
+					@Override public void write(byte[] b, int off, int len) throws IOException {
+						while (len > 0) {
+							int n = Math.min(len, chars.length);
+							for (int i = 0; i < n; i++) chars[i] = (char) (b[off + i] & 0xFF);
+							injector.write(chars, 0, n);
+							off += n;
+							len -= n;
+						}
+					}
+					@Override public void flush() throws IOException {
+						injector.flush();
+					}
+					@Override public void close() throws IOException {
+						injector.close();
+					}
+					@Override public void setWriteListener(WriteListener writeListener) {
+						out.setWriteListener(writeListener);
+					}
+					@Override public boolean isReady() {
+						return out.isReady();
+					}
+				};
+			}
+			return outputStream;
+		}
+		
+		@Override public void setContentLength(int len) {
+			// 埋め込みで長さが変わるため無視
+		}
+		
+		@Override public void setContentLengthLong(long len) {
+			// 埋め込みで長さが変わるため無視
+		}
+		
+		@Override public void setHeader(String name, String value) {
+			if (!"Content-Length".equalsIgnoreCase(name)) super.setHeader(name, value);
+		}
+		
+		@Override public void addHeader(String name, String value) {
+			if (!"Content-Length".equalsIgnoreCase(name)) super.addHeader(name, value);
+		}
+		
+		@Override public void resetBuffer() {
+			super.resetBuffer();
+			injector.reset();
+		}
+		
+		@Override public void reset() {
+			super.reset();
+			injector.reset();
+		}
+	}
+	
+	/**
+	 * 書き込まれる HTML を逐次走査し、CSRF トークンの meta と hidden を埋め込んで下位に書き込む Writer です。
+	 * <pre>
+	 * "&lt;head" または "&lt;form" で始まるタグ候補のみを閉じ括弧までバッファリングし、それ以外は即時に書き込みます。
+	 * 
+	 * &lt;head&gt;                         直後に meta を追加 (最初の 1 つのみ)
+	 * &lt;form ... method="post" ...&gt;   直後に form タグと同じインデント + タブで hidden を追加 (すべて)
+	 * </pre>
+	 */
+	private static class CsrfInjector extends Writer {
+		
+		private static final Pattern FORM_POST_PATTERN = Pattern.compile("(?is)<form[^>]+method=\"post[^>]+>");
+		private static final int MAX_TAG_LENGTH = 4096;
+		
+		private final String metaTag;
+		private final String hiddenInput;
+		private final StringBuilder tag = new StringBuilder();
+		private final StringBuilder indent = new StringBuilder();
+		private boolean isHeadInjected;
+		private Writer out;
+		
+		public CsrfInjector(String csrfToken) {
+			metaTag = format("""
+				\n<meta name="_csrf" content="%s">""", csrfToken);
+			hiddenInput = format("""
+				\t<input type="hidden" name="_csrf" value="%s">""", csrfToken);
+		}
+		
+		@Override public void write(char[] cbuf, int off, int len) throws IOException {
+			int start = off;
+			int end = off + len;
+			for (int i = off; i < end; i++) {
+				char c = cbuf[i];
+				if (tag.length() == 0) {
+					if (c == '<') {
+						pass(cbuf, start, i);
+						tag.append(c);
+						start = i + 1;
+					}
+					continue;
 				}
-				@Override public boolean isReady() {
-					return false;
+				tag.append(c);
+				if (c == '>') {
+					writeTag();
+					start = i + 1;
+				} else if (!isTagCandidate()) {
+					// タグ候補ではない: 現在の文字を除いてそのまま書き込み、現在の文字は通常の文字として再走査
+					tag.setLength(tag.length() - 1);
+					writeTagAsIs();
+					start = i--;
 				}
-			};
+			}
+			if (tag.length() == 0) {
+				pass(cbuf, start, end);
+			}
+		}
+		
+		@Override public void flush() throws IOException {
+			out.flush();
+		}
+		
+		@Override public void close() throws IOException {
+			finish();
+			out.close();
+		}
+		
+		/** 走査途中のタグ候補をそのまま書き込み */
+		public void finish() throws IOException {
+			if (out != null && tag.length() > 0) {
+				writeTagAsIs();
+			}
+		}
+		
+		/** レスポンスのバッファリセット時に走査状態を破棄 */
+		public void reset() {
+			tag.setLength(0);
+			indent.setLength(0);
+			isHeadInjected = false;
+		}
+		
+		private void pass(char[] cbuf, int from, int to) throws IOException {
+			if (from == to) return;
+			out.write(cbuf, from, to - from);
+			int blankStart = to;
+			while (blankStart > from && (cbuf[blankStart - 1] == ' ' || cbuf[blankStart - 1] == '\t')) {
+				blankStart--;
+			}
+			if (blankStart > from) indent.setLength(0); // 空白以外があればインデントをリセット
+			indent.append(cbuf, blankStart, to - blankStart);
+		}
+		
+		private boolean isTagCandidate() {
+			int length = tag.length();
+			return length <= MAX_TAG_LENGTH && (startsWithIgnoreCase("<head", length) || startsWithIgnoreCase("<form", length));
+		}
+		
+		private boolean startsWithIgnoreCase(String prefix, int length) {
+			for (int i = 1; i < Math.min(length, prefix.length()); i++) {
+				if (Character.toLowerCase(tag.charAt(i)) != prefix.charAt(i)) return false;
+			}
+			return true;
+		}
+		
+		private void writeTag() throws IOException {
+			String tagString = tag.toString();
+			out.write(tagString);
+			if (!isHeadInjected && tagString.equalsIgnoreCase("<head>")) {
+				out.write(metaTag);
+				isHeadInjected = true;
+			} else if (FORM_POST_PATTERN.matcher(tagString).matches()) {
+				out.write("\n");
+				out.write(indent.toString());
+				out.write(hiddenInput);
+			}
+			tag.setLength(0);
+			indent.setLength(0);
+		}
+		
+		private void writeTagAsIs() throws IOException {
+			out.write(tag.toString());
+			tag.setLength(0);
+			indent.setLength(0);
 		}
 	}
 }
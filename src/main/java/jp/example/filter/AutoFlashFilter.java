@@ -2,22 +2,41 @@ package jp.example.filter;
 
 import static jp.example.filter.RequestContextFilter.*;
 
-import java.util.Collections;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
 import jakarta.servlet.FilterChain;
+import jakarta.servlet.http.Cookie;
 import jakarta.servlet.http.HttpFilter;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletRequestWrapper;
 import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpSession;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.commons.lang3.time.StopWatch;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
 
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
@@ -48,6 +67,19 @@ import lombok.extern.slf4j.Slf4j;
  * 
  * 4. 例外が再スローされ、上位フィルターの AutoTransactionFilter でロールバック。
  * 
+ * フラッシュと画面遷移の状態 (APP_ERROR_FORWARD_PATH、SYS_ERROR_REDIRECT_URL、saveState で保存した値) は、
+ * デフォルトではセッションに保存します。web.xml の init-param flashStore に cookie を指定すると、
+ * HMAC 署名付きの Cookie (_flash) に保存し、セッションには書き込みません (クラスタのセッションレプリケーション対策)。
+ * 
+ *    ・Cookie の値: Base64URL(json) + "." + 発行日時 (エポック秒) + "." + Base64URL(HMAC-SHA256)、改ざんされた Cookie は無視
+ *    ・署名鍵: init-param flashSecret (クラスタの全ノードで同じ値を指定、省略時は起動ごとのランダム値)
+ *    ・有効期間: 発行から init-param flashMaxAgeSeconds 秒 (セッションのタイムアウトと同様に、期限切れの Cookie は無視)。
+ *      有効期間の半分を過ぎた Cookie は、値が変わらない場合もリクエストごとに発行し直します (操作中は期限切れにならない)
+ *    ・サイズ: 3072 文字まで。超える場合はフラッシュを MESSAGE のみに縮小し、それでも超える場合は保存しない
+ *    ・フラッシュの値は json に変換されるため、リダイレクト先では Map や List になる (JSP の EL では同じように参照可能)
+ *    ・状態はリクエスト開始時にリクエスト属性にセットされるため、$() や EL で参照可能
+ *    ・AutoCsrfFilter の CSRF エラー時のフラッシュと、画面遷移ごとに生成する CSRF トークンも Cookie に保存
+ * 
  * </pre>
  * @author New Gradle Project Wizard (c) Pleiades MIT
  */
@@ -61,10 +93,10 @@ public class AutoFlashFilter extends HttpFilter {
 	/** リクエスト属性名: 画面に表示するメッセージ (Servlet でセット、エラー時は例外メッセージがセットされる) */
 	public static final String MESSAGE = "MESSAGE";
 
-	/** セッション属性名: アプリエラー時のフォワード先パス (デフォルトは表示元、Servlet で変更可能) */
+	/** 状態名: アプリエラー時のフォワード先パス (デフォルトは表示元、saveState で変更可能) */
 	public static final String APP_ERROR_FORWARD_PATH = "APP_ERROR_FORWARD_PATH";
 	
-	/** セッション属性名: システムエラー時のリダイレクト先 URL (デフォルトは最後のリダイレクト先、Servlet で変更可能) */
+	/** 状態名: システムエラー時のリダイレクト先 URL (デフォルトは最後のリダイレクト先、saveState で変更可能) */
 	public static final String SYS_ERROR_REDIRECT_URL = "SYS_ERROR_REDIRECT_URL";
 	
 	/**
@@ -89,7 +121,7 @@ public class AutoFlashFilter extends HttpFilter {
 	 *    "/{ctx}/item/abc"   ../other/a.jsp    /WEB-INF/jsp/other/a.jsp
 	 * 
 	 * 2. AutoCsrfFilter を使用している場合は、meta と form input hidden に name="_csrf" として CSRF トークンが埋め込み。
-	 * 3. フォワード先パスをセッション属性 APP_ERROR_FORWARD_PATH に保存 (アプリエラー時の自動フォワード先として使用)。
+	 * 3. フォワード先パスを状態 APP_ERROR_FORWARD_PATH に保存 (アプリエラー時の自動フォワード先として使用、変更時のみ)。
 	 * 4. 後続処理をスキップするために、正常にレスポンスがコミットされたことを示す定数 SUCCESS_RESPONSE_COMMITTED スロー。
 	 * </pre>
 	 * @param jspPath JSP パス
@@ -100,8 +132,8 @@ public class AutoFlashFilter extends HttpFilter {
 		String uriDir = req.getRequestURI().replaceFirst("^/[^/]+(.*?)[^/]*$", "$1");
 		String path = "/WEB-INF/jsp" + (jspPath.startsWith("/") ? jspPath : uriDir + jspPath);
 		log.debug("フォワード {} (getRequestURI[{}] uriDir[{}] jspPath[{}])", path, req.getRequestURI(), uriDir, jspPath);
+		saveState(APP_ERROR_FORWARD_PATH, path); // Cookie の場合はコミット前に保存
 		req.getRequestDispatcher(path).forward(req, RequestContextFilter.response());
-		req.getSession().setAttribute(APP_ERROR_FORWARD_PATH, path);
 		throw SUCCESS_RESPONSE_COMMITTED;
 	}
 	
@@ -120,8 +152,8 @@ public class AutoFlashFilter extends HttpFilter {
 	 * 
 	 * 1. 指定した flashMessage をリクエスト属性 MESSAGE にセット (使用しない場合は null を指定)。
 	 * 2. 指定した redirectUrl (null の場合はコンテキストルート) をリダイレクト先としてレスポンスにセット。
-	 * 3. リダイレクト先 URL をセッション属性 SYS_ERROR_REDIRECT_URL に保存 (システムエラー時の自動リダイレクト先)。
-	 * 4. このフィルター以降で追加されたリクエスト属性をフラッシュ属性としてセッションに保存 (リダイレクト先で復元)。
+	 * 3. リダイレクト先 URL を状態 SYS_ERROR_REDIRECT_URL に保存 (システムエラー時の自動リダイレクト先)。
+	 * 4. このフィルター以降で追加されたリクエスト属性をフラッシュ属性としてセッションまたは Cookie に保存 (リダイレクト先で復元)。
 	 * 5. 後続処理をスキップするために、正常にレスポンスがコミットされたことを示す定数 SUCCESS_RESPONSE_COMMITTED スロー。
 	 * </pre>
 	 * @param redirectUrl リダイレクト先 URL
@@ -133,16 +165,90 @@ public class AutoFlashFilter extends HttpFilter {
 		req.setAttribute(MESSAGE, flashMessage);
 		String url = Objects.toString(redirectUrl, req.getContextPath());
 		log.debug("リダイレクト {} (引数[{}])", url, redirectUrl);
-		RequestContextFilter.response().sendRedirect(url);
-		req.getSession().setAttribute(SYS_ERROR_REDIRECT_URL, url);
-		req.getSession().setAttribute(FLASH, req.getAttribute(FLASH));
+		HttpServletResponse res = RequestContextFilter.response();
+		Map<String, Object> state = stateOf(req);
+		if (state == null) {
+			req.getSession().setAttribute(SYS_ERROR_REDIRECT_URL, url);
+			req.getSession().setAttribute(FLASH, req.getAttribute(FLASH));
+		} else {
+			state.put(SYS_ERROR_REDIRECT_URL, url);
+			putFlash(state, req.getAttribute(FLASH));
+			writeStateCookie(req, res, state); // sendRedirect 後はヘッダーを追加できないため先に保存
+		}
+		res.sendRedirect(url);
 		throw SUCCESS_RESPONSE_COMMITTED;
 	}
 	
+	/**
+	 * 画面遷移の状態 (PRG のリダイレクト先やログイン後の遷移先 URL など) を保存します。
+	 * <pre>
+	 * 保存した値は次回以降のリクエストで、$() や JSP の EL で参照できます。
+	 * init-param flashStore が cookie の場合は署名付き Cookie、それ以外の場合はセッションに保存します。
+	 * どちらの場合も、値が変わらない場合は書き込みません (参照のみの画面遷移でセッションを変更しない)。
+	 * Cookie の場合はレスポンスヘッダーに追加するため、フォワードやリダイレクトの前に呼び出してください。
+	 * </pre>
+	 * @param name 状態名
+	 * @param value 値 (null の場合は削除)
+	 */
+	public static void saveState(String name, String value) {
+		HttpServletRequest req = RequestContextFilter.request();
+		Map<String, Object> state = stateOf(req);
+		if (state == null) {
+			HttpSession session = req.getSession();
+			if (!Objects.equals(session.getAttribute(name), value)) session.setAttribute(name, value);
+			return;
+		}
+		if (Objects.equals(state.get(name), value)) return;
+		if (value == null) {
+			state.remove(name);
+		} else {
+			state.put(name, value);
+		}
+		writeStateCookie(req, RequestContextFilter.response(), state);
+	}
+	
+	/**
+	 * 参照するテーブルが変更されていない場合は、HTTP 304 (Not Modified) を返却します (条件付き GET)。
+	 * <pre>
+	 * returns や returnsAsync の前に呼び出すことで、変更が無い場合は SQL を実行せずに返却を終了できます。
+	 * 
+	 * 1. テーブルバージョン (AutoTransactionFilter#tableVersion) から ETag を作成。
+	 *    ブラウザのキャッシュは URL (クエリ文字列を含む) ごとのため、ETag には URL を含めません。
+	 *    テーブルバージョンはノード内のメモリから取得するため、ここでは DB に接続しません。
+	 *    テーブルバージョンはプライマリの値のため、続く返却内容もレプリカではなくプライマリから読み取ります
+	 *    (AutoTransactionFilter#usePrimary、レプリカの遅延による古い内容を新しい ETag でキャッシュさせない)。
+	 *    この API はレプリカに分散されませんが、変更が無い場合の 304 では DB に接続しません。
+	 * 2. ETag と Cache-Control: private, no-cache (ブラウザにキャッシュし、使用時は毎回再検証) をレスポンスにセット。
+	 *    AutoCsrfFilter がセットした no-store は、ETag を返すこの API のみ上書きします。
+	 * 3. リクエストの If-None-Match が ETag と一致する場合は 304 とし、SUCCESS_RESPONSE_COMMITTED をスロー。
+	 *    一致しない場合は何もしません (続けて returns や returnsAsync で返却)。
+	 * 
+	 * 返却内容が指定したテーブル以外 (ログインユーザーや現在日時など) に依存する API には使用しないでください。
+	 * </pre>
+	 * @param tableNames 返却内容が参照するテーブル名
+	 */
+	public static void checkNotModified(String... tableNames) {
+		HttpServletRequest req = RequestContextFilter.request();
+		HttpServletResponse res = RequestContextFilter.response();
+		String eTag = Stream.of(tableNames).map(tableName -> Long.toHexString(AutoTransactionFilter.tableVersion(tableName)))
+				.collect(Collectors.joining("-", "W/\"", "\""));
+		AutoTransactionFilter.usePrimary();
+		res.setHeader("ETag", eTag);
+		res.setHeader("Cache-Control", "private, no-cache");
+		String ifNoneMatch = req.getHeader("If-None-Match");
+		if (ifNoneMatch != null && Stream.of(ifNoneMatch.split(",")).map(String::trim)
+				.anyMatch(tag -> tag.equals("*") || tag.replaceFirst("^W/", "").equals(eTag.substring(2)))) {
+			res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			log.debug("変更なし 304 {}", eTag);
+			throw SUCCESS_RESPONSE_COMMITTED;
+		}
+	}
+	
 	/**
 	 * REST API の戻り値をクライアントに返却します。
 	 * <pre>
-	 * 1. 引数の型が CharSequence の場合は文字列、それ以外の場合は json 文字列に変換し、レスポンスに書き込み。
+	 * 1. 引数の型が CharSequence の場合は文字列、それ以外の場合は json に変換し、レスポンスに書き込み。
+	 *    json は文字列を経由せずにレスポンスの OutputStream に直接書き込みます (型ごとのシリアライザーは解決済みを再利用)。
 	 * 2. 後続処理をスキップするために、正常にレスポンスがコミットされたことを示す定数 SUCCESS_RESPONSE_COMMITTED スロー。
 	 * </pre>
 	 * @param resObject 返却する Java オブジェクト。null の場合はレスポンスに何も書き込まない。
@@ -151,12 +257,83 @@ public class AutoFlashFilter extends HttpFilter {
 	public static void returns(Object resObject) {
 		if (resObject == null) throw SUCCESS_RESPONSE_COMMITTED;
 		HttpServletResponse res = RequestContextFilter.response();
-		if (!(resObject instanceof CharSequence)) {
+		if (resObject instanceof CharSequence) {
+			res.getWriter().print(resObject);
+			log.debug("戻り値 {}", resObject);
+		} else {
 			res.setContentType("application/json");
-			resObject = jsonMapper.writeValueAsString(resObject);
+			jsonWriters.get(resObject.getClass()).writeValue(res.getOutputStream(), resObject);
+			if (log.isDebugEnabled()) {
+				log.debug("戻り値 {}", jsonMapper.writeValueAsString(resObject)); // デバッグ時のみ文字列化
+			}
+		}
+		throw SUCCESS_RESPONSE_COMMITTED;
+	}
+	
+	/**
+	 * REST API の戻り値として、ストリームの要素を 1 行 1 json (NDJSON) でクライアントに逐次返却します。
+	 * <pre>
+	 * 1. Content-Type を application/x-ndjson とし、要素を取得するごとに json に変換してレスポンスに書き込み。
+	 *    (全件をメモリに保持せず、JDBC カーソルの進行に合わせてコンテナーのバッファ単位でチャンク転送)
+	 * 2. ストリームをクローズ (JDBC の ResultSet などを解放)。
+	 * 3. 後続処理をスキップするために、正常にレスポンスがコミットされたことを示す定数 SUCCESS_RESPONSE_COMMITTED スロー。
+	 * </pre>
+	 * @param resStream 返却する Java オブジェクトのストリーム
+	 */
+	@SneakyThrows
+	public static void returnsStream(Stream<?> resStream) {
+		HttpServletResponse res = RequestContextFilter.response();
+		res.setContentType("application/x-ndjson");
+		long count = 0;
+		try (resStream; JsonGenerator generator = jsonMapper.createGenerator(res.getOutputStream())) {
+			generator.setRootValueSeparator(null);
+			generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+			for (Iterator<?> it = resStream.iterator(); it.hasNext();) {
+				Object resObject = it.next();
+				jsonWriters.get(resObject.getClass()).writeValue(generator, resObject);
+				generator.writeRaw('\n');
+				count++;
+			}
+		}
+		log.debug("戻り値 NDJSON {} 件", count);
+		throw SUCCESS_RESPONSE_COMMITTED;
+	}
+	
+	/**
+	 * REST API の戻り値を DB 専用スレッドで非同期に取得して、クライアントに返却します。
+	 * <pre>
+	 * 1. リクエストを非同期モード (AsyncContext) にして resTask を DB 専用スレッドプールで実行し、コンテナーのスレッドをすぐに解放。
+	 *    スレッド数は接続プールと同じ (AutoTransactionFilter の init-param asyncThreads) のため、
+	 *    HTTP 接続数が増えても接続プールの待機ではなく、スレッドプールのキューで待機します。
+	 * 2. resTask は同期と同じリクエストコンテキストで実行され、dao() のトランザクション、$()、returns、returnsStream を使用可能。
+	 *    戻り値は returns と同様に返却 (null の場合は書き込みなし) し、例外は同期と同様にメッセージを書き込んでロールバック。
+	 * 3. AJAX 以外、asyncSupported 指定の無い Servlet、AutoTransactionFilter を経由しない場合は、同期で実行。
+	 * 4. スレッドプールのキューが上限の場合は、resTask を実行せずに HTTP 503 (Retry-After)。
+	 *    待機中に同じセッションの新しい keyup リクエストを受け付けた場合は、resTask を実行せずに HTTP 429 (AdmissionFilter)。
+	 * 5. 後続処理をスキップするために、正常にレスポンスがコミットされたことを示す定数 SUCCESS_RESPONSE_COMMITTED スロー。
+	 * </pre>
+	 * @param resTask 返却する Java オブジェクトを取得する処理
+	 */
+	@SneakyThrows
+	public static void returnsAsync(Callable<?> resTask) {
+		HttpServletRequest req = RequestContextFilter.request();
+		HttpServletResponse res = RequestContextFilter.response();
+		if (!req.isAsyncSupported() || !isAjax() || RequestContextFilter.current().transaction() == null) {
+			returns(resTask.call());
 		}
-		res.getWriter().print(resObject);
-		log.debug("戻り値 {}", resObject);
+		AutoTransactionFilter.executeAsync(() -> {
+			if (AdmissionFilter.isSuperseded(req)) {
+				AdmissionFilter.reject(res, true); // 後勝ち: 新しいリクエストがあるため DB にアクセスせずに終了
+				return;
+			}
+			try {
+				returns(resTask.call());
+			} catch (Throwable e) {
+				if (e == SUCCESS_RESPONSE_COMMITTED) return;
+				handleException(req, res, e);
+				throw e; // AutoTransactionFilter のタスクでロールバック
+			}
+		});
 		throw SUCCESS_RESPONSE_COMMITTED;
 	}
 	
@@ -178,30 +355,96 @@ public class AutoFlashFilter extends HttpFilter {
 	//-------------------------------------------------------------------------
 	
 	protected static final String FLASH = "FLASH";
+	protected static final String STATE = AutoFlashFilter.class.getName() + ".STATE";
+	protected static final String STATE_ISSUED_AT = AutoFlashFilter.class.getName() + ".STATE_ISSUED_AT";
+	protected static final String STATE_COOKIE = "_flash";
+	protected static final int MAX_STATE_COOKIE_LENGTH = 3072;
+	private static volatile byte[] stateSecret; // Cookie 保存時の署名鍵 (セッション保存の場合は null)
+	private static volatile long stateMaxAgeSeconds = 1800;
 	protected static final RuntimeException SUCCESS_RESPONSE_COMMITTED = new RuntimeException();
 	protected static final ObjectMapper jsonMapper = new ObjectMapper();
 	
+	/** 型ごとのシリアライザーを解決済みの ObjectWriter (型ごとに初回のみ作成) */
+	protected static final ClassValue<ObjectWriter> jsonWriters = new ClassValue<>() {
+		@Override protected ObjectWriter computeValue(Class<?> type) {
+			return jsonMapper.writerFor(type)
+					.without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE)
+					.without(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+		}
+	};
+	
+	/**
+	 * json 変換する型のシリアライザーの事前作成と、フラッシュの保存先の設定。
+	 * <pre>
+	 * web.xml の init-param で以下を指定できます (省略時はデフォルト値)。
+	 * 
+	 * jsonTypes    カンマ区切りで指定したクラスのシリアライザーを起動時に解決
+	 *              (指定しない型も初回の返却時に解決され、以降は再利用されます)
+	 * flashStore   フラッシュと画面遷移の状態の保存先 session または cookie (デフォルト: session)
+	 * flashSecret  cookie の場合の HMAC 署名鍵 (デフォルト: 起動ごとのランダム値、クラスタでは全ノードに同じ値を指定)
+	 * flashMaxAgeSeconds  cookie の場合の有効期間 (デフォルト: 1800 秒、セッションのタイムアウトと合わせる)
+	 * </pre>
+	 */
 	@Override @SneakyThrows
+	public void init() {
+		for (String className : StringUtils.split(StringUtils.defaultString(getInitParameter("jsonTypes")), ", \n\t")) {
+			jsonWriters.get(Class.forName(className));
+		}
+		stateMaxAgeSeconds = NumberUtils.toLong(getInitParameter("flashMaxAgeSeconds"), 1800);
+		if (!"cookie".equals(getInitParameter("flashStore"))) {
+			stateSecret = null;
+			return;
+		}
+		String secret = getInitParameter("flashSecret");
+		if (StringUtils.isBlank(secret)) {
+			byte[] randomSecret = new byte[32];
+			new SecureRandom().nextBytes(randomSecret);
+			stateSecret = randomSecret;
+			log.warn("flashSecret が未指定のため、ランダムな署名鍵を使用します (再起動や他のノードでは Cookie が無効)。");
+		} else {
+			stateSecret = secret.getBytes(StandardCharsets.UTF_8);
+		}
+		log.info("フラッシュと画面遷移の状態を署名付き Cookie {} に保存します。", STATE_COOKIE);
+	}
+	
+	@Override @SneakyThrows @SuppressWarnings("unchecked")
 	protected void doFilter(HttpServletRequest req, HttpServletResponse res, FilterChain chain) {
 		
 		// css js など拡張子があるリクエストはこのフィルター処理対象外
-		if (req.getRequestURI().contains(".")) {
+		if (!RequestRoute.of(req).runs(RequestRoute.Stage.FLASH)) {
 			super.doFilter(req, res, chain); 
 			return;
 		}
 		
 		StopWatch stopWatch = StopWatch.createStarted();
 		try {
+			// Cookie 保存の場合は状態を復元 (saveState で使用するため AJAX の場合も復元)
+			Map<String, Object> state = requestState(req);
+			if (state != null && !state.isEmpty() && isRefreshRequired(req)) writeStateCookie(req, res, state);
+			
 			// フラッシュは画面の機能のため AJAX の場合はフラッシュを復元・削除しない (例外ハンドリングは必要)
 			if (isAjax()) {
 				super.doFilter(req, res, chain); // AJAX Servlet 呼び出し
 				return;
 			}
 			
-			// フラッシュをセッションから復元し、セッションから削除
-			Map<String, Object> sessionFlash = $(FLASH, Collections::emptyMap);
-			sessionFlash.forEach(req::setAttribute);
-			req.getSession().removeAttribute(FLASH);
+			// フラッシュをセッションから復元し、セッションから削除 (フラッシュがある場合のみ書き込み)
+			HttpSession session = req.getSession(false);
+			Map<String, Object> sessionFlash = session == null ? null : (Map<String, Object>) session.getAttribute(FLASH);
+			if (sessionFlash != null) {
+				sessionFlash.forEach(req::setAttribute);
+				session.removeAttribute(FLASH);
+			}
+			
+			// Cookie の状態をリクエスト属性にセットし、フラッシュは復元して Cookie から削除
+			if (state != null) {
+				Map<String, Object> cookieFlash = (Map<String, Object>) state.remove(FLASH);
+				state.forEach(req::setAttribute);
+				if (cookieFlash != null) {
+					cookieFlash.forEach(req::setAttribute);
+					writeStateCookie(req, res, state);
+				}
+			}
 			
 			// リクエスト属性追加時に、一時フラッシュに追加するリクエストラッパー作成 (redirect 時にセッションに移動)
 			Map<String, Object> tempFlash = new HashMap<>();
@@ -216,8 +459,8 @@ public class AutoFlashFilter extends HttpFilter {
 					tempFlash.remove(name);
 				}
 			};
-			RequestContextFilter.set(flashReqWrapper, res);
-			super.doFilter(flashReqWrapper, res, chain); // 画面 Servlet 呼び出し
+			RequestContextFilter.runWith(RequestContextFilter.current().withRequest(flashReqWrapper, res),
+					() -> super.doFilter(flashReqWrapper, res, chain)); // 画面 Servlet 呼び出し
 			
 		} catch (Throwable e) {
 			if (e == SUCCESS_RESPONSE_COMMITTED) {
@@ -227,13 +470,26 @@ public class AutoFlashFilter extends HttpFilter {
 			throw e; // 再スローする (上位フィルターでロールバックなどを制御できるようにするため)
 			
 		} finally {
-			log.debug("処理時間 {}ms [{}] {} {}", stopWatch.getTime(), req.getMethod(), getQueryUri(), $(MESSAGE, ""));
+			if (req.isAsyncStarted()) {
+				// returnsAsync の DB 専用スレッドで処理中のため、このスレッドではリクエストを参照せずに完了時にログ出力
+				req.getAsyncContext().addListener(new AsyncListener() {
+					@Override public void onComplete(AsyncEvent event) {
+						log.debug("処理時間 {}ms [{}] {} {} (非同期)", stopWatch.getTime(), req.getMethod(), queryUri(req),
+								Objects.toString(req.getAttribute(MESSAGE), ""));
+					}
+					@Override public void onTimeout(AsyncEvent event) {}
+					@Override public void onError(AsyncEvent event) {}
+					@Override public void onStartAsync(AsyncEvent event) {}
+				});
+			} else {
+				log.debug("処理時間 {}ms [{}] {} {}", stopWatch.getTime(), req.getMethod(), getQueryUri(), $(MESSAGE, ""));
+			}
 		}
 	}
 	
-	/** Servlet で発生したすべての例外を処理 */
+	/** Servlet で発生したすべての例外を処理 (returnsAsync の DB 専用スレッドからも呼び出し) */
 	@SneakyThrows
-	protected void handleException(HttpServletRequest req, HttpServletResponse res, Throwable e) {
+	protected static void handleException(HttpServletRequest req, HttpServletResponse res, Throwable e) {
 		
 		// IllegalStateException インスタンスと Error クラスはアプリエラー扱い (スタックトレースログを出さない)
 		Throwable cause = ExceptionUtils.getRootCause(e);
@@ -247,6 +503,7 @@ public class AutoFlashFilter extends HttpFilter {
 			}
 		}
 		req.setAttribute(MESSAGE, message); // jsp や html から参照可能にする (finally でも使用)
+		req.setAttribute(Metrics.ERROR, cause.getClass().getName()); // リクエストのエラー件数に計上
 		
 		// AJAX リクエスト時のエラー (アプリエラー、システムエラー両方) → メッセージ文字列を返す
 		if (isAjax()) {
@@ -273,7 +530,163 @@ public class AutoFlashFilter extends HttpFilter {
 			res.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
 			return;
 		}
+		Map<String, Object> state = stateOf(req);
+		if (state == null) {
+			req.getSession().setAttribute(FLASH, Map.of(MESSAGE, message));
+		} else {
+			putFlash(state, Map.of(MESSAGE, message));
+			writeStateCookie(req, res, state);
+		}
 		res.sendRedirect(redirectUrl);
-		req.getSession().setAttribute(FLASH, Map.of(MESSAGE, message));
+	}
+	
+	//-------------------------------------------------------------------------
+	// 署名付き Cookie による状態の保存 (init-param flashStore=cookie)
+	//-------------------------------------------------------------------------
+	
+	/**
+	 * フラッシュと画面遷移の状態を署名付き Cookie に保存するか判定します (init-param flashStore が cookie)。
+	 * @return Cookie に保存する場合は true
+	 */
+	static boolean isStateCookie() {
+		return stateSecret != null;
+	}
+	
+	/**
+	 * このフィルターより前のフィルターから、リダイレクト先で表示するフラッシュメッセージを保存します。
+	 * Cookie 保存の場合はセッションに書き込まず、リクエストの Cookie の状態に追加してレスポンスに書き込みます。
+	 * @param req HTTP サーブレットリクエスト
+	 * @param res HTTP サーブレットレスポンス (Cookie の場合はリダイレクト前に呼び出し)
+	 * @param message メッセージ
+	 */
+	static void saveFlashMessage(HttpServletRequest req, HttpServletResponse res, String message) {
+		if (!isStateCookie()) {
+			req.getSession().setAttribute(FLASH, Map.of(MESSAGE, message));
+			return;
+		}
+		Map<String, Object> state = requestState(req);
+		putFlash(state, Map.of(MESSAGE, message));
+		writeStateCookie(req, res, state);
+	}
+	
+	/**
+	 * Cookie に保存した状態を取得します (リクエストで初回の呼び出し時に Cookie から復元し、リクエスト属性に保持)。
+	 * このフィルターより前のフィルター (AutoCsrfFilter) で変更した状態も、このフィルターで同じ Map として使用します。
+	 * @param req HTTP サーブレットリクエスト
+	 * @return 状態 (Cookie が無い場合や無効な場合は空)。Cookie 保存でない場合は null。
+	 */
+	static Map<String, Object> requestState(HttpServletRequest req) {
+		if (stateSecret == null) return null;
+		Map<String, Object> state = stateOf(req);
+		if (state == null) {
+			state = readStateCookie(req);
+			req.setAttribute(STATE, state);
+		}
+		return state;
+	}
+	
+	/** 有効期間の半分を過ぎた Cookie か判定 (このリクエストで書き込み済みの場合は false) */
+	private static boolean isRefreshRequired(HttpServletRequest req) {
+		Object issuedAt = req.getAttribute(STATE_ISSUED_AT);
+		return issuedAt instanceof Long seconds && nowSeconds() - seconds > stateMaxAgeSeconds / 2;
+	}
+	
+	/** リクエストの状態 (Cookie 保存でない場合や、このフィルターを経由していない場合は null) */
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> stateOf(HttpServletRequest req) {
+		return (Map<String, Object>) req.getAttribute(STATE);
+	}
+	
+	/** フラッシュ属性を json 変換可能な値 (Map、List、文字列など) にして状態にセット (変換できない属性は除外) */
+	private static void putFlash(Map<String, Object> state, Object flash) {
+		if (!(flash instanceof Map<?, ?> flashMap) || flashMap.isEmpty()) return;
+		Map<String, Object> jsonFlash = new HashMap<>();
+		flashMap.forEach((name, value) -> {
+			try {
+				jsonFlash.put((String) name, jsonMapper.convertValue(value, Object.class));
+			} catch (IllegalArgumentException e) {
+				log.debug("json に変換できないためフラッシュから除外 {} {}", name, e.toString());
+			}
+		});
+		state.put(FLASH, jsonFlash);
+	}
+	
+	/** 状態を Cookie から復元 (Cookie が無い場合や署名が不正な場合、有効期間を過ぎた場合は空) */
+	private static Map<String, Object> readStateCookie(HttpServletRequest req) {
+		Cookie[] cookies = req.getCookies();
+		if (cookies != null) {
+			for (Cookie cookie : cookies) {
+				if (!cookie.getName().equals(STATE_COOKIE)) continue;
+				String value = cookie.getValue();
+				int dot = value.lastIndexOf('.');
+				if (dot == -1 || !MessageDigest.isEqual(sign(value.substring(0, dot)).getBytes(StandardCharsets.US_ASCII),
+						value.substring(dot + 1).getBytes(StandardCharsets.US_ASCII))) {
+					log.debug("署名が不正なため Cookie {} を無視します。", STATE_COOKIE);
+					break;
+				}
+				String signed = value.substring(0, dot); // 状態 + "." + 発行日時
+				long issuedAt = NumberUtils.toLong(StringUtils.substringAfterLast(signed, "."), -1);
+				long age = nowSeconds() - issuedAt;
+				if (issuedAt == -1 || age > stateMaxAgeSeconds || age < -60) { // 時刻のずれはノード間の 60 秒まで許容
+					log.debug("有効期間外のため Cookie {} を無視します。 {} 秒経過", STATE_COOKIE, age);
+					break;
+				}
+				try {
+					Map<String, Object> state = jsonMapper.readValue(
+							Base64.getUrlDecoder().decode(StringUtils.substringBeforeLast(signed, ".")),
+							new TypeReference<HashMap<String, Object>>() {});
+					req.setAttribute(STATE_ISSUED_AT, issuedAt);
+					return state;
+				} catch (Exception e) {
+					log.debug("Cookie {} を復元できません。 {}", STATE_COOKIE, e.toString());
+					break;
+				}
+			}
+		}
+		return new HashMap<>();
+	}
+	
+	/** 状態を署名付き Cookie としてレスポンスに追加 (同じリクエストで複数回追加した場合はブラウザが最後の値で上書き) */
+	@SneakyThrows
+	static void writeStateCookie(HttpServletRequest req, HttpServletResponse res, Map<String, Object> state) {
+		long issuedAt = nowSeconds();
+		String value = encodeState(state, issuedAt);
+		if (value.length() > MAX_STATE_COOKIE_LENGTH && state.get(FLASH) instanceof Map<?, ?> flash) {
+			log.warn("Cookie {} のサイズ超過のため、フラッシュを MESSAGE のみに縮小します。 {} 文字", STATE_COOKIE, value.length());
+			Map<String, Object> reducedState = new HashMap<>(state);
+			reducedState.remove(FLASH);
+			if (flash.get(MESSAGE) != null) reducedState.put(FLASH, Map.of(MESSAGE, flash.get(MESSAGE)));
+			value = encodeState(reducedState, issuedAt);
+		}
+		if (value.length() > MAX_STATE_COOKIE_LENGTH) {
+			log.warn("Cookie {} のサイズ超過のため保存しません。 {} 文字 {}", STATE_COOKIE, value.length(), state.keySet());
+			return;
+		}
+		Cookie cookie = new Cookie(STATE_COOKIE, value);
+		cookie.setPath(StringUtils.defaultIfEmpty(req.getContextPath(), "/"));
+		cookie.setHttpOnly(true);
+		cookie.setSecure(req.isSecure());
+		cookie.setAttribute("SameSite", "Lax");
+		cookie.setMaxAge(state.isEmpty() ? 0 : -1); // ブラウザ終了まで (空の場合は削除、有効期間は発行日時で判定)
+		res.addCookie(cookie);
+		req.setAttribute(STATE_ISSUED_AT, issuedAt);
+	}
+	
+	/** 状態と発行日時 (エポック秒) を署名した Cookie の値 */
+	@SneakyThrows
+	static String encodeState(Map<String, Object> state, long issuedAt) {
+		String signed = Base64.getUrlEncoder().withoutPadding().encodeToString(jsonMapper.writeValueAsBytes(state)) + "." + issuedAt;
+		return signed + "." + sign(signed);
+	}
+	
+	private static long nowSeconds() {
+		return System.currentTimeMillis() / 1000;
+	}
+	
+	@SneakyThrows
+	private static String sign(String payload) {
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(stateSecret, "HmacSHA256"));
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(mac.doFinal(payload.getBytes(StandardCharsets.US_ASCII)));
 	}
 }
@@ -2,12 +2,33 @@ package jp.example.filter;
 
 import static org.apache.commons.lang3.function.Failable.*;
 
+import java.sql.Connection;
 import java.sql.DriverManager;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
 
 import javax.naming.InitialContext;
+import javax.naming.NamingException;
 import javax.sql.DataSource;
 
+import org.apache.commons.lang3.math.NumberUtils;
+
+import jakarta.servlet.AsyncContext;
 import jakarta.servlet.FilterChain;
 import jakarta.servlet.http.HttpFilter;
 import jakarta.servlet.http.HttpServletRequest;
@@ -15,13 +36,17 @@ import jakarta.servlet.http.HttpServletResponse;
 import jp.co.future.uroborosql.SqlAgent;
 import jp.co.future.uroborosql.UroboroSQL;
 import jp.co.future.uroborosql.config.SqlConfig;
+import jp.co.future.uroborosql.filter.SqlFilterManager;
+import jp.co.future.uroborosql.filter.SqlFilterManagerImpl;
+import lombok.Data;
+import lombok.RequiredArgsConstructor;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 
 /**
  * 自動トランザクションフィルターです。
  * <pre>
- * スレッドローカルを使用した一般的なデータベーストランザクションのテンプレート実装です。
+ * リクエストコンテキスト (RequestContextFilter) を使用した一般的なデータベーストランザクションのテンプレート実装です。
  * このフィルターでは uroboroSQL を使用して、データベースの初期データロード、トランザクションを制御します。
  * </pre>
  * @author New Gradle Project Wizard (c) Pleiades MIT
@@ -47,44 +72,437 @@ public class AutoTransactionFilter extends HttpFilter {
 	 * 
 	 * AutoTransactionFilter の制御
 	 * 
+	 * ・SqlAgent (DB 接続) はリクエスト内で最初に dao() を呼び出した時点で取得されます。
+	 * ・dao() を呼び出さないリクエストでは、接続プールからの接続取得、コミット、ロールバックは行われません。
+	 * ・GET リクエストは冪等 (更新しない) として読み取り専用の接続 (setReadOnly) を使用し、コミットしません。
+	 *   context.xml に jdbc/replica が定義されている場合は、レプリカに接続します (接続できない場合はプライマリ)。
+	 *   ETag を返す API (AutoFlashFilter#checkNotModified) は、usePrimary によりプライマリに接続します。
+	 *   ETag の API はレプリカに分散されませんが、変更が無い場合は 304 で DB に接続しないため、プライマリへの読み取りは
+	 *   変更後の初回のみです (レプリカの遅延で古い内容を新しい ETag でキャッシュさせないことを優先)。
 	 * ・Servlet の処理が正常に終了した場合はコミット、例外が発生した場合はロールバックされます。
 	 * ・ロールバックは、JTA や Spring のデフォルトと異なり単純にすべての例外が対象です。
-	 * ・必要に応じて dao().commit() や dao().rollback() でマニュアル制御できます。
+	 * ・必要に応じて commit() や rollback() でマニュアル制御できます (dao() の commit、rollback ではコミット後処理は実行されません)。
 	 * ・トランザクション境界内に JSP も含まれているため、JSP EL から参照するフォームモデル内でも利用可能です。 
 	 *   (分散モデルが不要な Web 単一層アーキテクチャ向け)
+	 * ・AutoFlashFilter#returnsAsync で非同期にした場合は、DB 専用スレッドでの処理終了時にコミット、ロールバックされます。
 	 * 
 	 * </pre>
 	 * @return SqlAgent
 	 */
 	public static SqlAgent dao() {
-		return daoThreadLocal.get();
+		Transaction transaction = currentTransaction();
+		return transaction == null ? null : transaction.agent();
+	}
+	
+	/**
+	 * 現在のトランザクションがコミットされた後に実行する処理を登録します。<br>
+	 * キャッシュの無効化など、コミット前に他のリクエストから参照されると不整合になる処理に使用します。
+	 * ロールバックされた場合は実行されません。トランザクション外 (リクエスト外) の場合は即時に実行します。
+	 * @param action コミット後に実行する処理 (例外はログ出力のみ)
+	 */
+	public static void afterCommit(Runnable action) {
+		Transaction transaction = currentTransaction();
+		if (transaction == null) {
+			action.run();
+		} else {
+			transaction.afterCommitActions.add(action);
+		}
+	}
+	
+	/**
+	 * 現在のトランザクションをコミットし、それまでに登録されたコミット後処理 (afterCommit) を実行します。
+	 * <pre>
+	 * 大量データを分割してコミットする場合など、リクエストの途中でコミットする場合に dao().commit() の代わりに使用します。
+	 * 実行したコミット後処理は削除され、以降に登録された処理はリクエスト終了時 (または次の commit) に実行されます。
+	 * 読み取り専用 (GET) の場合はコミットせずに、コミット後処理のみ実行します。
+	 * </pre>
+	 */
+	public static void commit() {
+		Transaction transaction = currentTransaction();
+		if (transaction != null) transaction.commit();
+	}
+	
+	/**
+	 * 現在のトランザクションをロールバックし、それまでに登録されたコミット後処理 (afterCommit) を破棄します。
+	 * リクエストの途中でロールバックして処理を続ける場合に dao().rollback() の代わりに使用します。
+	 */
+	public static void rollback() {
+		Transaction transaction = currentTransaction();
+		if (transaction != null) transaction.rollback();
+	}
+	
+	/**
+	 * プライマリの DAO を取得します。
+	 * <pre>
+	 * 更新系のリクエストや、レプリカを使用しない場合は dao() と同じです。
+	 * GET でレプリカに接続済みの場合は、このトランザクション用にプライマリの読み取り専用接続を別に取得します
+	 * (トランザクション終了時にクローズ)。未接続の場合は、以降の dao() もプライマリを使用します。
+	 * テーブルバージョンを付けて保持するキャッシュの構築など、レプリカの遅延による古いデータを読み取らない場合に使用します。
+	 * </pre>
+	 * @return プライマリの SqlAgent
+	 */
+	public static SqlAgent primaryDao() {
+		Transaction transaction = currentTransaction();
+		return transaction == null ? null : transaction.primaryAgent();
+	}
+	
+	/**
+	 * 現在のトランザクションの読み取りに、レプリカではなくプライマリを使用します。
+	 * <pre>
+	 * レプリカはプライマリより遅れる場合があるため、プライマリのテーブルバージョン (tableVersion) と組み合わせて
+	 * 返却内容を識別する ETag (AutoFlashFilter#checkNotModified) などでは、古い内容を新しいバージョンで返さないように
+	 * プライマリから読み取ります。dao() の呼び出し前に呼び出してください。
+	 * レプリカに接続済みの場合は接続を閉じ、次の dao() でプライマリの読み取り専用接続を取得します。
+	 * </pre>
+	 */
+	public static void usePrimary() {
+		Transaction transaction = currentTransaction();
+		if (transaction != null) transaction.usePrimary();
+	}
+	
+	/**
+	 * テーブルの変更を記録します (テーブルバージョンを増加)。
+	 * <pre>
+	 * table_version はコミット後に更新するため、ロールバックされた場合は増加しません。
+	 * コミット後にノード内のバージョンに反映し、他のノードでの変更は init-param tableVersionPollMillis ごとに反映します。
+	 * ETag (AutoFlashFilter#checkNotModified) など、テーブルの変更有無の判定に使用します。
+	 * </pre>
+	 * @param tableNames 変更したテーブル名 (table_version に行が必要)
+	 */
+	public static void touchTables(String... tableNames) {
+		for (String tableName : tableNames) {
+			touchTable(tableName, version -> {});
+		}
 	}
 	
+	/**
+	 * テーブルの変更を記録し、コミット後に変更後のテーブルバージョンで処理を実行します (1 テーブルの touchTables)。
+	 * <pre>
+	 * table_version の行ロックをトランザクションの間保持しないように (同じテーブルを変更するリクエストが直列化されるため)、
+	 * トランザクション中はノード内で変更回数のみを記録し、コミット直後に同じ接続で table_version を更新してコミットします。
+	 * コミットとバージョンの更新はノード内で排他するため、このノードでの変更は、コミットした順に連続したバージョンになります。
+	 * コミット後にバージョンを付けてキャッシュを差分更新する場合に使用します (ItemNameIndex など)。
+	 * バージョンの更新に失敗した場合 (コミット後の接続断など) は、WARN ログを出力して afterCommitAction を実行しません。
+	 * </pre>
+	 * @param tableName 変更したテーブル名 (table_version に行が必要)
+	 * @param afterCommitAction このトランザクションでの変更後のテーブルバージョンを受け取るコミット後処理
+	 */
+	public static void touchTable(String tableName, LongConsumer afterCommitAction) {
+		currentTransaction().touchedTables.computeIfAbsent(tableName, k -> new ArrayList<>()).add(afterCommitAction);
+	}
+	
+	/**
+	 * テーブルバージョンを取得します (ノード内のメモリから取得し、SQL は実行しません)。
+	 * @param tableName テーブル名
+	 * @return テーブルバージョン (table_version に行が無い場合は 0)
+	 */
+	public static long tableVersion(String tableName) {
+		AtomicLong version = tableVersions.get(tableName);
+		return version == null ? 0 : version.get();
+	}
+	
+	/**
+	 * トランザクション制御対象のリクエスト数と、そのうち実際に DB を使用したリクエスト数を取得します。
+	 * @return トランザクション統計
+	 */
+	public static TransactionStats transactionStats() {
+		return new TransactionStats(requestCount.sum(), dbUsedCount.sum(), 
+				asyncExecutor.getQueue().size(), asyncExecutor.getActiveCount(), asyncRejectedCount.sum());
+	}
+	
+	/**
+	 * トランザクション統計です。
+	 * @param requestCount トランザクション制御対象のリクエスト数
+	 * @param dbUsedCount dao() を呼び出して DB 接続を取得したリクエスト数
+	 * @param asyncQueueDepth 非同期 DB スレッドプールの待機数
+	 * @param asyncActiveCount 非同期 DB スレッドプールの実行中スレッド数
+	 * @param asyncRejectedCount 非同期 DB スレッドプールが満杯で拒否 (HTTP 503) したリクエスト数
+	 */
+	public record TransactionStats(
+		long requestCount,
+		long dbUsedCount,
+		int asyncQueueDepth,
+		int asyncActiveCount,
+		long asyncRejectedCount
+	) {}
+	
 	//-------------------------------------------------------------------------
 	// Servlet フィルター処理
 	//-------------------------------------------------------------------------
 	
-	private static final ThreadLocal<SqlAgent> daoThreadLocal = new ThreadLocal<>();
+	private static final LongAdder requestCount = new LongAdder();
+	private static final LongAdder dbUsedCount = new LongAdder();
+	private static final LongAdder asyncRejectedCount = new LongAdder();
+	private static volatile ThreadPoolExecutor asyncExecutor = createAsyncExecutor(1, 16);
+	private static final Map<String, AtomicLong> tableVersions = new ConcurrentHashMap<>();
+	private static final ReentrantLock touchLock = new ReentrantLock(); // コミットとテーブルバージョンの更新の順序を一致
+	private ScheduledExecutorService tableVersionPoller;
 	private SqlConfig daoConfig;
+	private SqlConfig replicaDaoConfig;
+	
+	/** RequestContextFilter のリクエストコンテキストから現在のトランザクションを取得 */
+	private static Transaction currentTransaction() {
+		RequestContextFilter.RequestContext context = RequestContextFilter.current();
+		return context == null ? null : context.transaction();
+	}
+	
+	/**
+	 * リクエスト単位のトランザクションです。SqlAgent は dao() の初回呼び出し時に作成します。
+	 * 読み取り専用の場合はレプリカ (未定義または接続できない場合はプライマリ) の読み取り専用接続を使用します。
+	 */
+	@RequiredArgsConstructor
+	static class Transaction {
+		
+		private final SqlConfig daoConfig;
+		private final SqlConfig replicaDaoConfig;
+		private final boolean isReadOnly;
+		private final List<Runnable> afterCommitActions = new ArrayList<>();
+		private final Map<String, List<LongConsumer>> touchedTables = new LinkedHashMap<>();
+		private SqlAgent agent;
+		private SqlAgent primaryAgent; // レプリカに接続済みの場合の、プライマリの読み取り専用接続
+		private boolean isPrimaryReadOnly;
+		private boolean isPrimaryRequired;
+		private boolean isAsync;
+		
+		SqlAgent agent() {
+			if (agent == null) {
+				if (isReadOnly) {
+					agent = readOnlyAgent();
+				} else {
+					agent = daoConfig.agent();
+					connect(agent);
+				}
+			}
+			return agent;
+		}
+		
+		@SneakyThrows
+		SqlAgent primaryAgent() {
+			if (agent == null) isPrimaryRequired = true;
+			if (agent == null || !isReadOnly || isPrimaryReadOnly) return agent();
+			if (primaryAgent == null) {
+				SqlAgent newAgent = daoConfig.agent();
+				try {
+					connect(newAgent).setReadOnly(true);
+				} catch (Exception e) {
+					newAgent.close();
+					throw e;
+				}
+				primaryAgent = newAgent;
+			}
+			return primaryAgent;
+		}
+		
+		/** 読み取り専用でもプライマリを使用 (レプリカに接続済みの場合は閉じて、次回の agent でプライマリに接続) */
+		@SneakyThrows
+		void usePrimary() {
+			isPrimaryRequired = true;
+			if (agent != null && isReadOnly && !isPrimaryReadOnly) {
+				agent.close();
+				agent = null;
+			}
+		}
+		
+		@SneakyThrows
+		private SqlAgent readOnlyAgent() {
+			if (replicaDaoConfig != null && !isPrimaryRequired) {
+				SqlAgent replicaAgent = replicaDaoConfig.agent();
+				try {
+					connect(replicaAgent).setReadOnly(true);
+					return replicaAgent;
+				} catch (Exception e) {
+					replicaAgent.close();
+					log.warn("レプリカに接続できないため、プライマリを使用します。 {}", e.toString());
+				}
+			}
+			SqlAgent primaryAgent = daoConfig.agent();
+			connect(primaryAgent).setReadOnly(true);
+			isPrimaryReadOnly = true;
+			return primaryAgent;
+		}
+		
+		/** 接続プールから接続を取得 (待機時間を計測) */
+		private static Connection connect(SqlAgent agent) {
+			long startNanos = System.nanoTime();
+			try {
+				return agent.getConnection();
+			} finally {
+				Metrics.DB_CONNECTION.histogram().recordSince(startNanos);
+			}
+		}
+		
+		boolean isUsed() {
+			return agent != null;
+		}
+		
+		void commit() {
+			List<Runnable> actions = new ArrayList<>();
+			if (agent != null && !isReadOnly) {
+				if (touchedTables.isEmpty()) {
+					agent.commit();
+				} else {
+					commitAndTouchTables(actions);
+				}
+			}
+			touchedTables.clear();
+			actions.addAll(afterCommitActions);
+			afterCommitActions.clear();
+			for (Runnable action : actions) {
+				try {
+					action.run();
+				} catch (RuntimeException e) {
+					log.warn("コミット後処理エラー", e);
+				}
+			}
+		}
+		
+		/** コミットして、変更したテーブルのバージョンを変更回数分増加 (コミット後処理に、変更ごとのバージョンで追加) */
+		private void commitAndTouchTables(List<Runnable> actions) {
+			Map<String, Long> versions = new LinkedHashMap<>();
+			touchLock.lock();
+			try {
+				agent.commit();
+				try {
+					touchedTables.forEach((tableName, tableActions) -> {
+						agent.updateWith("UPDATE table_version SET version = version + /*count*/1 WHERE table_name = /*tableName*/''")
+							.param("count", tableActions.size()).param("tableName", tableName).count();
+						versions.put(tableName, agent.queryWith("SELECT version FROM table_version WHERE table_name = /*tableName*/''")
+							.param("tableName", tableName).one(long.class));
+					});
+					agent.commit();
+				} catch (RuntimeException e) {
+					agent.rollback();
+					log.warn("テーブルバージョンの更新に失敗しました (変更はコミット済み)。 {}", touchedTables.keySet(), e);
+					return;
+				}
+			} finally {
+				touchLock.unlock();
+			}
+			versions.forEach((tableName, version) -> {
+				updateTableVersion(tableName, version);
+				List<LongConsumer> tableActions = touchedTables.get(tableName);
+				long firstVersion = version - tableActions.size() + 1;
+				for (int i = 0; i < tableActions.size(); i++) {
+					long touchedVersion = firstVersion + i;
+					LongConsumer action = tableActions.get(i);
+					actions.add(() -> action.accept(touchedVersion));
+				}
+			});
+		}
+		
+		void rollback() {
+			touchedTables.clear();
+			afterCommitActions.clear();
+			if (agent != null) agent.rollback();
+		}
+		
+		void close() {
+			try {
+				if (agent != null) close(agent, isPrimaryReadOnly);
+			} finally {
+				if (primaryAgent != null) close(primaryAgent, true);
+			}
+		}
+		
+		@SneakyThrows
+		private static void close(SqlAgent agent, boolean isPrimaryReadOnly) {
+			try {
+				// プライマリの接続は更新でも共有されるため、プールに戻す前に読み取り専用を解除
+				if (isPrimaryReadOnly) agent.getConnection().setReadOnly(false);
+			} finally {
+				agent.close();
+			}
+		}
+	}
 
-	/** データベース接続設定と初期データロード */
+	/**
+	 * 現在のリクエストを非同期モードにして、指定した処理を DB 専用スレッドプールで実行します。
+	 * <pre>
+	 * 処理は現在のリクエストコンテキスト (リクエスト、レスポンス、トランザクション) で実行され、
+	 * 正常終了でコミット、例外でロールバックした後に AsyncContext を完了します (例外は再スローしない)。
+	 * 呼び出し元のコンテナースレッドは、このメソッドから戻った後、すぐに解放されます。
+	 * スレッドプールのキューが上限の場合は、処理を実行せずに HTTP 503 (Retry-After) で完了します。
+	 * </pre>
+	 * @param task DB 専用スレッドで実行する処理 (例外ハンドリング済みであること)
+	 */
+	static void executeAsync(RequestContextFilter.ContextAction task) {
+		RequestContextFilter.RequestContext context = RequestContextFilter.current();
+		Transaction transaction = context.transaction();
+		AsyncContext asyncContext = context.req().startAsync();
+		transaction.isAsync = true; // コミット、クローズをフィルターからタスク終了時に移動
+		try {
+			asyncExecutor.execute(() -> RequestContextFilter.runWith(context, () -> {
+				try {
+					task.run();
+					transaction.commit();
+				} catch (Throwable e) {
+					transaction.rollback();
+				} finally {
+					end(transaction, context.req());
+					complete(asyncContext);
+				}
+			}));
+		} catch (RejectedExecutionException e) {
+			transaction.isAsync = false;
+			asyncRejectedCount.increment();
+			log.warn("非同期 DB スレッドプール混雑のため拒否 {}", transactionStats());
+			context.res().setHeader("Retry-After", "1");
+			context.res().setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			complete(asyncContext);
+		}
+	}
+	
+	/**
+	 * データベース接続設定と初期データロード。
+	 * <pre>
+	 * web.xml の init-param で以下を指定できます (省略時はデフォルト値)。
+	 * 
+	 * asyncThreads    非同期 DB スレッド数 (デフォルト: 8、context.xml の接続プール maxTotal と合わせる)
+	 * asyncQueueSize  待機キューの上限 (デフォルト: スレッド数 × 16、超えた場合は HTTP 503)
+	 * slowQueryMillis スロークエリとして WARN ログ出力する SQL 実行時間 (デフォルト: 500 ミリ秒)
+	 * tableVersionPollMillis  他のノードでのテーブルバージョンの変更を取り込む間隔 (デフォルト: 1000 ミリ秒)
+	 * </pre>
+	 */
 	@Override @SneakyThrows
 	public void init() {
+		int threads = NumberUtils.toInt(getInitParameter("asyncThreads"), 8);
+		int queueSize = NumberUtils.toInt(getInitParameter("asyncQueueSize"), threads * 16);
+		asyncExecutor.shutdown();
+		asyncExecutor = createAsyncExecutor(threads, queueSize);
+		log.info("非同期 DB スレッドプール設定 (threads={} queueSize={})", threads, queueSize);
+		long slowQueryMillis = NumberUtils.toLong(getInitParameter("slowQueryMillis"), 500);
 		try {
 			DataSource dataSource = (DataSource) new InitialContext().lookup("java:comp/env/jdbc/main"); // context.xml
-			daoConfig = UroboroSQL.builder(dataSource).build();
+			daoConfig = UroboroSQL.builder(dataSource).setSqlFilterManager(createSqlFilterManager(slowQueryMillis)).build();
 			try (SqlAgent dao = daoConfig.agent()) {
 				dao.update("create_table").count(); // ファイル実行 src/main/resources/sql/create_table.sql
 			}
+			loadTableVersions();
+			long pollMillis = NumberUtils.toLong(getInitParameter("tableVersionPollMillis"), 1000);
+			tableVersionPoller = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "table-version-poller");
+				thread.setDaemon(true);
+				return thread;
+			});
+			tableVersionPoller.scheduleWithFixedDelay(this::loadTableVersions, pollMillis, pollMillis, TimeUnit.MILLISECONDS);
+			try {
+				DataSource replicaDataSource = (DataSource) new InitialContext().lookup("java:comp/env/jdbc/replica");
+				replicaDaoConfig = UroboroSQL.builder(replicaDataSource).setSqlFilterManager(createSqlFilterManager(slowQueryMillis)).build();
+				log.info("GET リクエストの参照先としてレプリカ jdbc/replica を使用します。");
+			} catch (NamingException e) {
+				// レプリカ未定義 (GET もプライマリの読み取り専用接続を使用)
+			}
 		} catch (Exception e) {
 			log.error("{} 初期化エラー", getClass().getSimpleName(), e);
 			throw e;
 		}
 	}
 	
-	/** JDBC ドライバー破棄 (無くても問題ないが Tomcat 警告抑止のため) */
+	/** 非同期 DB スレッドプールの終了と JDBC ドライバー破棄 (ドライバーは無くても問題ないが Tomcat 警告抑止のため) */
 	@Override
 	public void destroy() {
+		asyncExecutor.shutdownNow();
+		if (tableVersionPoller != null) tableVersionPoller.shutdownNow();
 		Collections.list(DriverManager.getDrivers()).forEach(asConsumer(DriverManager::deregisterDriver));
 	}
 	
@@ -93,25 +511,87 @@ public class AutoTransactionFilter extends HttpFilter {
 	protected void doFilter(HttpServletRequest req, HttpServletResponse res, FilterChain chain) {
 		
 		// html css js などを除外 (ドットを含む Servlet マッピングはサポートしない)
-		if (req.getRequestURI().contains(".")) {
+		if (!RequestRoute.of(req).runs(RequestRoute.Stage.TRANSACTION)) {
 			super.doFilter(req, res, chain);
 			return;
 		}
 		
-		// トランザクション制御ブロック
-		try (SqlAgent dao = daoConfig.agent()) {
-			try {
-				daoThreadLocal.set(dao);
-				super.doFilter(req, res, chain); // 次のフィルター呼び出し
-				dao.commit();
-				
-			} catch (Throwable e) {
-				dao.rollback();
-				// 再スローしない (次のフィルターで例外ハンドリングが必須)
-				
-			} finally {
-				daoThreadLocal.remove();
+		// トランザクション制御ブロック (SqlAgent は dao() 呼び出し時に遅延取得、GET は読み取り専用)
+		boolean isReadOnly = req.getMethod().equals("GET");
+		Transaction transaction = new Transaction(daoConfig, replicaDaoConfig, isReadOnly);
+		RequestContextFilter.RequestContext context = RequestContextFilter.current();
+		context = context == null ? new RequestContextFilter.RequestContext(req, res, transaction) : context.withTransaction(transaction);
+		try {
+			RequestContextFilter.runWith(context, () -> super.doFilter(req, res, chain)); // 次のフィルター呼び出し
+			if (transaction.isAsync) return; // 非同期の場合はタスク終了時にコミット
+			transaction.commit();
+			
+		} catch (Throwable e) {
+			if (transaction.isAsync) return; // 非同期の場合はタスク側で制御
+			transaction.rollback();
+			// 再スローしない (次のフィルターで例外ハンドリングが必須)
+			
+		} finally {
+			if (!transaction.isAsync) end(transaction, req);
+		}
+	}
+	
+	/** トランザクション終了 (接続をプールに返却して統計を更新) */
+	private static void end(Transaction transaction, HttpServletRequest req) {
+		try {
+			transaction.close();
+		} finally {
+			requestCount.increment();
+			if (transaction.isUsed()) dbUsedCount.increment();
+			log.debug("DB 使用 {} {}", transaction.isUsed(), req.getRequestURI());
+		}
+	}
+	
+	/** 非同期処理の完了 (タイムアウトなどでコンテナーにより完了済みの場合は無視) */
+	private static void complete(AsyncContext asyncContext) {
+		try {
+			asyncContext.complete();
+		} catch (IllegalStateException e) {
+			log.debug("非同期処理は完了済みです。 {}", e.toString());
+		}
+	}
+	
+	/** テーブルバージョンの行です。 */
+	@Data
+	public static class TableVersion {
+		public String tableName;
+		public long version;
+	}
+	
+	/** テーブルバージョンを DB から読み込み (他のノードでの変更の反映、失敗した場合は次回に再実行) */
+	private void loadTableVersions() {
+		try (SqlAgent agent = daoConfig.agent()) {
+			for (TableVersion row : agent.query(TableVersion.class).collect()) {
+				updateTableVersion(row.tableName, row.version);
 			}
+		} catch (Exception e) {
+			log.warn("テーブルバージョンの読み込みに失敗しました。 {}", e.toString());
 		}
 	}
+	
+	/** ノード内のテーブルバージョンを更新 (大きい場合のみ、単調増加) */
+	private static void updateTableVersion(String tableName, long version) {
+		tableVersions.computeIfAbsent(tableName, k -> new AtomicLong()).accumulateAndGet(version, Math::max);
+	}
+	
+	private static SqlFilterManager createSqlFilterManager(long slowQueryMillis) {
+		SqlFilterManagerImpl sqlFilterManager = new SqlFilterManagerImpl();
+		sqlFilterManager.addSqlFilter(new SqlMetricsFilter(slowQueryMillis));
+		SqlMetricsFilter.setJdbcSlowQueryMillis(slowQueryMillis);
+		return sqlFilterManager;
+	}
+	
+	private static ThreadPoolExecutor createAsyncExecutor(int threads, int queueSize) {
+		AtomicInteger threadNumber = new AtomicInteger();
+		return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize), r -> {
+			Thread thread = new Thread(r, "db-async-" + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
 }
@@ -0,0 +1,273 @@
+package jp.example.filter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Server-Sent Events (text/event-stream) の配信ハブです。
+ * <pre>
+ * subscribe でリクエストを非同期モード (AsyncContext) にして購読者として登録し、publish したイベントを
+ * すべての購読者にファンアウトします。購読中の接続はコンテナーのスレッドを保持しないため、待機中の接続が
+ * 数千あってもスレッド数は増えません。
+ *
+ * ・配信: 全ハブ共通の 1 スレッドで、購読者ごとのキューに追加し、ノンブロッキング I/O (WriteListener) で書き込み
+ *   (書き込めない接続はコンテナーから onWritePossible で通知されるまで待機し、スレッドをブロックしない)
+ * ・背圧: 未送信のイベントが MAX_QUEUED_EVENTS を超えた購読者は切断 (ブラウザの EventSource が自動で再接続)
+ * ・再接続: 直近 REPLAY_EVENTS 件のイベントを保持し、Last-Event-ID 以降を再送。
+ *   保持範囲外や再起動後の場合は reset イベントを送信 (クライアントは再検索)
+ * ・死活監視: HEARTBEAT_SECONDS ごとにコメント行を送信 (プロキシのアイドル切断の防止、切断済み接続の検出)
+ *
+ * イベントはノード内のみに配信されます。複数ノード構成では、他のノードでの変更は配信されません。
+ * EventSource はカスタムヘッダーを送信できないため、Accept: text/event-stream のリクエストは AJAX として扱われます。
+ * </pre>
+ * @author New Gradle Project Wizard (c) Pleiades MIT
+ */
+@Slf4j
+public class EventStreamHub {
+
+	/** 購読者ごとの未送信イベントの上限 (超えた場合は切断) */
+	public static final int MAX_QUEUED_EVENTS = 256;
+
+	/** 再接続時に再送するために保持するイベント件数 */
+	public static final int REPLAY_EVENTS = 256;
+
+	/** ハブごとの最大購読者数 (超えた場合は HTTP 503) */
+	public static final int MAX_SUBSCRIBERS = 10_000;
+
+	private static final long HEARTBEAT_SECONDS = 25;
+	private static final long TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(30); // 超えた場合は切断してクライアントが再接続
+	private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.UTF_8);
+	private static final ObjectMapper jsonMapper = new ObjectMapper();
+
+	/** 配信スレッド (購読者の集合と再送用イベントは、このスレッドのみが操作するためロック不要) */
+	private static final ScheduledExecutorService dispatcher = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "event-stream-dispatcher");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final String name;
+	private final String bootId = Long.toString(System.currentTimeMillis(), 36); // 再起動前のイベント id を判別
+	private final Set<Subscriber> subscribers = new HashSet<>();
+	private final Deque<Event> recentEvents = new ArrayDeque<>();
+	private final AtomicInteger subscriberCount = new AtomicInteger();
+	private long lastSequence;
+
+	/** 送信済みのイベント (再送用) */
+	private record Event(long sequence, byte[] frame) {}
+
+	/**
+	 * ハブを作成します。
+	 * @param name ハブ名 (ログ出力用)
+	 */
+	public EventStreamHub(String name) {
+		this.name = name;
+		dispatcher.scheduleWithFixedDelay(this::heartbeat, HEARTBEAT_SECONDS, HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * リクエストを非同期モードにして、イベントの購読を開始します (呼び出し後はすぐに Servlet から戻る)。
+	 * <pre>
+	 * asyncSupported の Servlet から呼び出してください。購読者数が上限の場合は HTTP 503 (Retry-After) を返します。
+	 * </pre>
+	 * @param req HTTP サーブレットリクエスト
+	 * @param res HTTP サーブレットレスポンス
+	 */
+	@SneakyThrows
+	public void subscribe(HttpServletRequest req, HttpServletResponse res) {
+		if (subscriberCount.incrementAndGet() > MAX_SUBSCRIBERS) {
+			subscriberCount.decrementAndGet();
+			res.setHeader("Retry-After", "10");
+			res.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			return;
+		}
+		res.setContentType("text/event-stream");
+		res.setCharacterEncoding("UTF-8");
+		res.setHeader("Cache-Control", "no-cache");
+		res.setHeader("X-Accel-Buffering", "no"); // nginx のバッファリング抑止
+		AsyncContext asyncContext = req.startAsync();
+		asyncContext.setTimeout(TIMEOUT_MILLIS);
+		Subscriber subscriber = new Subscriber(asyncContext, res.getOutputStream());
+		asyncContext.addListener(subscriber);
+		subscriber.out.setWriteListener(subscriber); // ノンブロッキング I/O に切り替え (書き込みは isReady の場合のみ)
+		String lastEventId = req.getHeader("Last-Event-ID");
+		dispatcher.execute(() -> {
+			subscriber.offer("retry: 3000\n\n".getBytes(StandardCharsets.UTF_8));
+			if (lastEventId != null) replay(subscriber, lastEventId);
+			subscribers.add(subscriber);
+		});
+	}
+
+	/**
+	 * イベントをすべての購読者に配信します (呼び出し元のスレッドでは json 変換のみ行い、送信を待機しない)。
+	 * @param type イベント名 (EventSource#addEventListener で指定する名前)
+	 * @param data データ (json に変換、null の場合は空)
+	 */
+	@SneakyThrows
+	public void publish(String type, Object data) {
+		String json = data == null ? "" : jsonMapper.writeValueAsString(data); // 改行を含まない json
+		dispatcher.execute(() -> {
+			long sequence = ++lastSequence;
+			byte[] frame = ("id: " + bootId + "-" + sequence + "\nevent: " + type + "\ndata: " + json + "\n\n")
+					.getBytes(StandardCharsets.UTF_8);
+			recentEvents.addLast(new Event(sequence, frame));
+			if (recentEvents.size() > REPLAY_EVENTS) recentEvents.removeFirst();
+			subscribers.removeIf(subscriber -> !subscriber.offer(frame));
+		});
+	}
+
+	/** @return 購読者数 */
+	public int subscriberCount() {
+		return subscriberCount.get();
+	}
+
+	/** Last-Event-ID 以降のイベントを再送 (再送できない場合は reset) */
+	private void replay(Subscriber subscriber, String lastEventId) {
+		long lastSeen = -1;
+		if (lastEventId.startsWith(bootId + "-")) {
+			lastSeen = NumberUtils.toLong(StringUtils.substringAfter(lastEventId, "-"), -1);
+		}
+		long oldest = recentEvents.isEmpty() ? lastSequence + 1 : recentEvents.peekFirst().sequence();
+		if (lastSeen < oldest - 1 || lastSeen > lastSequence) {
+			subscriber.offer(("id: " + bootId + "-" + lastSequence + "\nevent: reset\ndata: \n\n").getBytes(StandardCharsets.UTF_8));
+			return;
+		}
+		for (Event event : recentEvents) {
+			if (event.sequence() > lastSeen) subscriber.offer(event.frame());
+		}
+	}
+
+	private void heartbeat() {
+		subscribers.removeIf(subscriber -> !subscriber.offer(HEARTBEAT));
+	}
+
+	/**
+	 * 購読者 (1 つの SSE 接続) です。
+	 * 書き込みは配信スレッドと、コンテナーの onWritePossible から同時に要求されるため、要求回数のカウンターで
+	 * 1 スレッドのみが書き込み、書き込み中の要求は書き込み中のスレッドが引き継ぎます (ロックなし)。
+	 */
+	private class Subscriber implements WriteListener, AsyncListener {
+
+		private final AsyncContext asyncContext;
+		private final ServletOutputStream out;
+		private final Queue<byte[]> queue = new ConcurrentLinkedQueue<>();
+		private final AtomicInteger queuedCount = new AtomicInteger();
+		private final AtomicInteger drainRequests = new AtomicInteger();
+		private volatile boolean isClosed;
+
+		Subscriber(AsyncContext asyncContext, ServletOutputStream out) {
+			this.asyncContext = asyncContext;
+			this.out = out;
+		}
+
+		/** キューに追加して送信 (切断済み、または未送信の上限を超えた場合は切断して false) */
+		boolean offer(byte[] frame) {
+			if (isClosed) return false;
+			if (queuedCount.incrementAndGet() > MAX_QUEUED_EVENTS) {
+				log.debug("イベント配信 {} 送信が遅い購読者を切断", name);
+				close();
+				return false;
+			}
+			queue.add(frame);
+			drain();
+			return true;
+		}
+
+		void drain() {
+			if (drainRequests.getAndIncrement() != 0) return; // 書き込み中のスレッドが引き継ぐ
+			int requests = 1;
+			do {
+				try {
+					writeQueued();
+				} catch (IOException | RuntimeException e) {
+					log.debug("イベント配信 {} 書き込みエラー {}", name, e.toString());
+					close();
+				}
+				requests = drainRequests.addAndGet(-requests);
+			} while (requests != 0);
+		}
+
+		/** 書き込み可能な間、キューのイベントを書き込んでフラッシュ (書き込めなくなった場合は onWritePossible で再開) */
+		private void writeQueued() throws IOException {
+			boolean isPending = false;
+			while (!isClosed && out.isReady()) {
+				byte[] frame = queue.poll();
+				if (frame == null) {
+					if (!isPending) return;
+					out.flush();
+					isPending = false;
+					continue;
+				}
+				queuedCount.decrementAndGet();
+				out.write(frame);
+				isPending = true;
+			}
+		}
+
+		void close() {
+			if (isClosed) return;
+			isClosed = true;
+			queue.clear();
+			try {
+				asyncContext.complete();
+			} catch (IllegalStateException e) {
+				// 完了済み
+			}
+		}
+
+		@Override
+		public void onWritePossible() {
+			drain();
+		}
+
+		@Override
+		public void onError(Throwable t) {
+			close();
+		}
+
+		@Override
+		public void onComplete(AsyncEvent event) {
+			isClosed = true;
+			subscriberCount.decrementAndGet();
+			dispatcher.execute(() -> subscribers.remove(this));
+		}
+
+		@Override
+		public void onTimeout(AsyncEvent event) {
+			close();
+		}
+
+		@Override
+		public void onError(AsyncEvent event) {
+			close();
+		}
+
+		@Override
+		public void onStartAsync(AsyncEvent event) {}
+	}
+}
@@ -0,0 +1,249 @@
+package jp.example.filter;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.InitialContext;
+import javax.sql.DataSource;
+
+import org.apache.commons.lang3.StringUtils;
+
+import jakarta.servlet.FilterConfig;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * JDBC のセッションストアです (SessionStore の参照実装)。
+ * <pre>
+ * create_table.sql の app_session (セッション単位のバージョンと日時) と、
+ * app_session_attribute (属性単位のシリアライズ済みの値) に保存します。
+ * 業務のトランザクションとは別の接続で、保存ごとにコミットします (業務のロールバックの影響を受けない)。
+ *
+ * RequestContextFilter の init-param で以下を指定できます (省略時はデフォルト値)。
+ *
+ * sessionDataSource  JNDI 名 (デフォルト: java:comp/env/jdbc/main、複数ノードでは共有 DB を指定)
+ *
+ * タイムアウトしたセッションは 1 分ごとにバックグラウンドで削除します。
+ * ローカルのインメモリ H2 はノード間で共有されないため、動作確認用です。
+ * </pre>
+ * @author New Gradle Project Wizard (c) Pleiades MIT
+ */
+@Slf4j
+public class JdbcSessionStore implements SessionStore {
+
+	private DataSource dataSource;
+	private ScheduledExecutorService cleaner;
+
+	/** RequestContextFilter の init-param sessionStore から作成 (データソースは init で JNDI から取得) */
+	public JdbcSessionStore() {
+	}
+
+	/** データソースを指定して作成 (テスト用、init を呼び出さない場合はタイムアウトしたセッションを削除しない) */
+	JdbcSessionStore(DataSource dataSource) {
+		this.dataSource = dataSource;
+	}
+
+	@Override @SneakyThrows
+	public void init(FilterConfig filterConfig) {
+		String jndiName = StringUtils.defaultIfBlank(filterConfig.getInitParameter("sessionDataSource"), "java:comp/env/jdbc/main");
+		dataSource = (DataSource) new InitialContext().lookup(jndiName);
+		cleaner = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "session-cleaner");
+			thread.setDaemon(true);
+			return thread;
+		});
+		cleaner.scheduleWithFixedDelay(this::deleteExpired, 1, 1, TimeUnit.MINUTES);
+		log.info("セッションを JDBC ストア {} に保存します。", jndiName);
+	}
+
+	@Override
+	public void destroy() {
+		if (cleaner != null) cleaner.shutdownNow();
+	}
+
+	@Override @SneakyThrows
+	public long version(String id) {
+		try (Connection conn = dataSource.getConnection();
+				PreparedStatement ps = conn.prepareStatement(
+					"SELECT version FROM app_session WHERE id = ? AND expiry_time > ?")) {
+			ps.setString(1, id);
+			ps.setLong(2, System.currentTimeMillis());
+			try (ResultSet rs = ps.executeQuery()) {
+				return rs.next() ? rs.getLong(1) : -1;
+			}
+		}
+	}
+
+	@Override @SneakyThrows
+	public StoredSession load(String id) {
+		try (Connection conn = dataSource.getConnection()) {
+			StoredSession session;
+			try (PreparedStatement ps = conn.prepareStatement(
+					"SELECT version, creation_time, last_accessed_time, max_inactive_interval FROM app_session " +
+					"WHERE id = ? AND expiry_time > ?")) {
+				ps.setString(1, id);
+				ps.setLong(2, System.currentTimeMillis());
+				try (ResultSet rs = ps.executeQuery()) {
+					if (!rs.next()) return null;
+					session = new StoredSession(rs.getLong(1), rs.getLong(2), rs.getLong(3), rs.getInt(4), new HashMap<>());
+				}
+			}
+			try (PreparedStatement ps = conn.prepareStatement(
+					"SELECT attribute_name, attribute_value FROM app_session_attribute WHERE session_id = ?")) {
+				ps.setString(1, id);
+				try (ResultSet rs = ps.executeQuery()) {
+					while (rs.next()) {
+						session.attributes().put(rs.getString(1), rs.getBytes(2));
+					}
+				}
+			}
+			return session;
+		}
+	}
+
+	@Override @SneakyThrows
+	public long save(String id, long creationTime, long lastAccessedTime, int maxInactiveInterval,
+			Map<String, byte[]> changedAttributes, Set<String> removedNames) {
+		try (Connection conn = dataSource.getConnection()) {
+			conn.setAutoCommit(false);
+			try {
+				long version = saveSession(conn, id, creationTime, lastAccessedTime, maxInactiveInterval);
+				saveAttributes(conn, id, changedAttributes, removedNames);
+				conn.commit();
+				return version;
+			} catch (Exception e) {
+				conn.rollback();
+				throw e;
+			}
+		}
+	}
+
+	/** セッション行を更新 (無い場合は作成) して、保存後のバージョンを取得 */
+	private long saveSession(Connection conn, String id, long creationTime, long lastAccessedTime, int maxInactiveInterval)
+			throws Exception {
+		try (PreparedStatement ps = conn.prepareStatement(
+				"UPDATE app_session SET version = version + 1, last_accessed_time = ?, max_inactive_interval = ?, " +
+				"expiry_time = ? WHERE id = ?")) {
+			ps.setLong(1, lastAccessedTime);
+			ps.setInt(2, maxInactiveInterval);
+			ps.setLong(3, expiryTime(lastAccessedTime, maxInactiveInterval));
+			ps.setString(4, id);
+			if (ps.executeUpdate() == 0) {
+				try (PreparedStatement insert = conn.prepareStatement(
+						"INSERT INTO app_session (id, version, creation_time, last_accessed_time, max_inactive_interval, " +
+						"expiry_time) VALUES (?, 1, ?, ?, ?, ?)")) {
+					insert.setString(1, id);
+					insert.setLong(2, creationTime);
+					insert.setLong(3, lastAccessedTime);
+					insert.setInt(4, maxInactiveInterval);
+					insert.setLong(5, expiryTime(lastAccessedTime, maxInactiveInterval));
+					insert.executeUpdate();
+					return 1;
+				}
+			}
+		}
+		try (PreparedStatement ps = conn.prepareStatement("SELECT version FROM app_session WHERE id = ?")) {
+			ps.setString(1, id);
+			try (ResultSet rs = ps.executeQuery()) {
+				rs.next();
+				return rs.getLong(1);
+			}
+		}
+	}
+
+	/** 変更された属性は削除して追加、削除された属性は削除 (JDBC バッチで各 SQL 1 回のラウンドトリップ) */
+	private void saveAttributes(Connection conn, String id, Map<String, byte[]> changedAttributes, Set<String> removedNames)
+			throws Exception {
+		if (changedAttributes.isEmpty() && removedNames.isEmpty()) return;
+		try (PreparedStatement ps = conn.prepareStatement(
+				"DELETE FROM app_session_attribute WHERE session_id = ? AND attribute_name = ?")) {
+			for (String name : changedAttributes.keySet()) {
+				ps.setString(1, id);
+				ps.setString(2, name);
+				ps.addBatch();
+			}
+			for (String name : removedNames) {
+				ps.setString(1, id);
+				ps.setString(2, name);
+				ps.addBatch();
+			}
+			ps.executeBatch();
+		}
+		if (changedAttributes.isEmpty()) return;
+		try (PreparedStatement ps = conn.prepareStatement(
+				"INSERT INTO app_session_attribute (session_id, attribute_name, attribute_value) VALUES (?, ?, ?)")) {
+			for (Map.Entry<String, byte[]> attribute : changedAttributes.entrySet()) {
+				ps.setString(1, id);
+				ps.setString(2, attribute.getKey());
+				ps.setBytes(3, attribute.getValue());
+				ps.addBatch();
+			}
+			ps.executeBatch();
+		}
+	}
+
+	@Override @SneakyThrows
+	public void touch(String id, long lastAccessedTime, int maxInactiveInterval) {
+		try (Connection conn = dataSource.getConnection();
+				PreparedStatement ps = conn.prepareStatement(
+					"UPDATE app_session SET last_accessed_time = ?, max_inactive_interval = ?, expiry_time = ? WHERE id = ?")) {
+			ps.setLong(1, lastAccessedTime);
+			ps.setInt(2, maxInactiveInterval);
+			ps.setLong(3, expiryTime(lastAccessedTime, maxInactiveInterval));
+			ps.setString(4, id);
+			ps.executeUpdate();
+		}
+	}
+
+	@Override @SneakyThrows
+	public void delete(String id) {
+		try (Connection conn = dataSource.getConnection()) {
+			conn.setAutoCommit(false);
+			try (PreparedStatement attributes = conn.prepareStatement("DELETE FROM app_session_attribute WHERE session_id = ?");
+					PreparedStatement session = conn.prepareStatement("DELETE FROM app_session WHERE id = ?")) {
+				attributes.setString(1, id);
+				attributes.executeUpdate();
+				session.setString(1, id);
+				session.executeUpdate();
+				conn.commit();
+			} catch (Exception e) {
+				conn.rollback();
+				throw e;
+			}
+		}
+	}
+
+	/** タイムアウトしたセッションを削除 (バックグラウンドスレッド) */
+	private void deleteExpired() {
+		try (Connection conn = dataSource.getConnection()) {
+			conn.setAutoCommit(false);
+			long now = System.currentTimeMillis();
+			try (PreparedStatement attributes = conn.prepareStatement(
+						"DELETE FROM app_session_attribute WHERE session_id IN (SELECT id FROM app_session WHERE expiry_time <= ?)");
+					PreparedStatement sessions = conn.prepareStatement("DELETE FROM app_session WHERE expiry_time <= ?")) {
+				attributes.setLong(1, now);
+				attributes.executeUpdate();
+				sessions.setLong(1, now);
+				int count = sessions.executeUpdate();
+				conn.commit();
+				if (count > 0) log.debug("タイムアウトしたセッションを削除 {} 件", count);
+			} catch (Exception e) {
+				conn.rollback();
+				throw e;
+			}
+		} catch (Exception e) {
+			log.warn("タイムアウトしたセッションの削除に失敗しました。", e); // 次回に再実行
+		}
+	}
+
+	private static long expiryTime(long lastAccessedTime, int maxInactiveInterval) {
+		return maxInactiveInterval <= 0 ? Long.MAX_VALUE : lastAccessedTime + maxInactiveInterval * 1000L;
+	}
+}
@@ -0,0 +1,119 @@
+package jp.example.filter;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ロックフリーのレイテンシヒストグラムです。
+ * <pre>
+ * HdrHistogram と同じ考え方の対数線形バケット (2 のべき乗ごとに 16 分割、相対誤差 約 6%) に、
+ * ナノ秒の処理時間を AtomicLongArray でカウントします。記録はロックせず、メモリ使用量は固定 (約 5KB) です。
+ * パーセンタイルはバケットの中央値で近似し、集計中の記録は次回の集計に反映されます。
+ * </pre>
+ * @author New Gradle Project Wizard (c) Pleiades MIT
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int MAX_EXPONENT = 42; // 2^42 ナノ秒 (約 73 分) 以上は最後のバケット
+	private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sumNanos = new LongAdder();
+	private final LongAdder errorCount = new LongAdder();
+	private final AtomicLong maxNanos = new AtomicLong();
+
+	/**
+	 * 処理時間を記録します。
+	 * @param nanos 処理時間 (ナノ秒)
+	 */
+	public void record(long nanos) {
+		long value = Math.max(0, nanos);
+		buckets.incrementAndGet(indexOf(value));
+		count.increment();
+		sumNanos.add(value);
+		if (value > maxNanos.get()) maxNanos.accumulateAndGet(value, Math::max);
+	}
+
+	/**
+	 * 処理時間をエラー有無とともに記録します。
+	 * @param nanos 処理時間 (ナノ秒)
+	 * @param isError エラーの場合は true
+	 */
+	public void record(long nanos, boolean isError) {
+		record(nanos);
+		if (isError) errorCount.increment();
+	}
+
+	/**
+	 * 指定した開始時刻 (System.nanoTime) から現在までの処理時間を記録します。
+	 * @param startNanos 開始時刻
+	 */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	/** @return 記録件数 */
+	public long count() {
+		return count.sum();
+	}
+
+	/** @return 処理時間の合計 (ナノ秒) */
+	public long sumNanos() {
+		return sumNanos.sum();
+	}
+
+	/** @return エラー件数 */
+	public long errorCount() {
+		return errorCount.sum();
+	}
+
+	/** @return 最大処理時間 (ナノ秒) */
+	public long maxNanos() {
+		return maxNanos.get();
+	}
+
+	/**
+	 * パーセンタイルの処理時間を取得します。
+	 * @param quantile 0.0 〜 1.0 (p99 は 0.99)
+	 * @return 処理時間 (ナノ秒、記録が無い場合は 0)
+	 */
+	public long percentileNanos(double quantile) {
+		long[] counts = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+			total += counts[i];
+		}
+		if (total == 0) return 0;
+		long rank = Math.max(1, (long) Math.ceil(quantile * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank) return Math.min(middleOf(i), maxNanos.get());
+		}
+		return maxNanos.get();
+	}
+
+	/** 値からバケット位置を算出 (16 未満はそのまま、以降は指数ごとに 16 分割) */
+	private static int indexOf(long value) {
+		if (value < SUB_BUCKETS) return (int) value;
+		int exponent = Math.min(63 - Long.numberOfLeadingZeros(value), MAX_EXPONENT);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		if (value >= 1L << (MAX_EXPONENT + 1)) subBucket = SUB_BUCKETS - 1;
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/** バケットの中央値 */
+	private static long middleOf(int index) {
+		if (index < SUB_BUCKETS) return index;
+		int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		int subBucket = index % SUB_BUCKETS;
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+		long lower = (1L << exponent) + subBucket * width;
+		return lower + width / 2;
+	}
+}
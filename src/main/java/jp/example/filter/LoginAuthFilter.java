@@ -5,6 +5,21 @@ import static jp.example.filter.AutoTransactionFilter.*;
 import static jp.example.filter.RequestContextFilter.*;
 
 import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.beanutils.BeanUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 
 import jakarta.servlet.FilterChain;
 import jakarta.servlet.http.HttpFilter;
@@ -14,6 +29,7 @@ import jakarta.servlet.http.HttpSession;
 
 import de.mkammerer.argon2.Argon2;
 import de.mkammerer.argon2.Argon2Factory;
+import de.mkammerer.argon2.Argon2Helper;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 
@@ -46,21 +62,75 @@ public class LoginAuthFilter extends HttpFilter {
 	 * レインボー攻撃対策としてソルト、ペッパーを付加してハッシュ化します。
 	 * username をソルトとして使用するため、username を変更した場合は、パスワードを再設定する必要があります。
 	 * サイドチャネル攻撃耐性を持つ Argon2 (2015 年ハッシュコンペ優勝) を使用します。
-	 * ハッシュ化は 10 回反復、メモリ 64MB 使用、CPU 論理コア数で並列実行します。
+	 * ハッシュ化はメモリ 64MB 使用、並列度 1 で、反復回数は起動時に目標時間 (hashTargetMillis) から算出します。
+	 * リクエストスレッドではなく、スレッド数とキュー上限を持つ専用のハッシュ化スレッドプールで実行します。
+	 * https でない場合はハッシュ化しないため、スレッドプールも使用しません。
 	 * </pre>
 	 * @param isSecure https の場合は true を指定 (プロキシ経由は x-forwarded-proto が必要)
 	 * @param salt ソルト (username)
 	 * @param password パスワード
 	 * @return ハッシュ化したパスワード (isSecure が false の場合は引数のまま)
+	 * @throws RejectedExecutionException ハッシュ化スレッドプールのキューが上限に達している場合
 	 */
 	public static String hashPassword(boolean isSecure, String salt, String password) {
-		final String pepper = LoginAuthFilter.class.getSimpleName();
-		byte[] data = (salt + password + pepper).getBytes(StandardCharsets.UTF_8);
-		String hash = argon2.hash(10, 65536, getRuntime().availableProcessors(), data);
+		if (!isSecure) return password;
+		String hash = executeHash(() -> argon2.hash(hashIterations, HASH_MEMORY_KB, HASH_PARALLELISM, toHashData(salt, password)));
 		log.debug("パスワードハッシュ (length={}) {}", hash.length(), hash);
-		return isSecure ? hash : password;
+		return hash;
+	}
+	
+	/**
+	 * パスワードを検証します。
+	 * <pre>
+	 * https の場合は、DB に保存されたハッシュ (反復回数などのパラメーターを含む) で Argon2 の検証を行います。
+	 * 開発環境など https でない場合は、平文のまま比較します。検証はハッシュ化と同じスレッドプールで実行します。
+	 * </pre>
+	 * @param isSecure https の場合は true を指定 (プロキシ経由は x-forwarded-proto が必要)
+	 * @param salt ソルト (username)
+	 * @param password 入力されたパスワード
+	 * @param hashedPassword DB に保存されているパスワード (isSecure が false の場合は平文)
+	 * @return 一致する場合は true
+	 * @throws RejectedExecutionException ハッシュ化スレッドプールのキューが上限に達している場合
+	 */
+	public static boolean verifyPassword(boolean isSecure, String salt, String password, String hashedPassword) {
+		if (hashedPassword == null || password == null) return false;
+		if (!isSecure) return hashedPassword.equals(password);
+		return executeHash(() -> argon2.verify(hashedPassword, toHashData(salt, password)));
 	}
 	
+	/**
+	 * ハッシュ化スレッドプールとログインの統計を取得します。
+	 * @return ハッシュ化スレッドプールとログインの統計
+	 */
+	public static HashStats hashStats() {
+		return new HashStats(hashExecutor.getQueue().size(), hashExecutor.getActiveCount(), hashRejectedCount.sum(),
+				hashIterations, hashCount.sum(), hashNanos.sum(), loginCount.sum(), loginNanos.sum(), loginMaxNanos.get());
+	}
+	
+	/**
+	 * ハッシュ化スレッドプールとログインの統計です。
+	 * @param queueDepth キューで待機中のハッシュ化数
+	 * @param activeCount 実行中のハッシュ化数
+	 * @param rejectedCount キュー上限により拒否した数
+	 * @param iterations 起動時に算出したハッシュ化の反復回数
+	 * @param hashCount ハッシュ化と検証の実行数
+	 * @param hashNanos ハッシュ化と検証の合計時間 (ナノ秒、キュー待機を除く)
+	 * @param loginCount ログイン処理数
+	 * @param loginNanos ログイン処理の合計時間 (ナノ秒、キュー待機を含む)
+	 * @param loginMaxNanos ログイン処理の最大時間 (ナノ秒)
+	 */
+	public record HashStats(
+		int queueDepth,
+		int activeCount,
+		long rejectedCount,
+		int iterations,
+		long hashCount,
+		long hashNanos,
+		long loginCount,
+		long loginNanos,
+		long loginMaxNanos
+	) {}
+	
 	//-------------------------------------------------------------------------
 	// Servlet フィルター処理
 	//-------------------------------------------------------------------------
@@ -68,10 +138,59 @@ public class LoginAuthFilter extends HttpFilter {
 	private static final String USER = "USER";
 	private static final String LOGIN_SAVED_URL = "LOGIN_SAVED_URL";
 	private static final Argon2 argon2 = Argon2Factory.create();
+	private static final int HASH_MEMORY_KB = 65536;
+	private static final int HASH_PARALLELISM = 1;
+	
+	private static final LongAdder hashCount = new LongAdder();
+	private static final LongAdder hashNanos = new LongAdder();
+	private static final LongAdder hashRejectedCount = new LongAdder();
+	private static final LongAdder loginCount = new LongAdder();
+	private static final LongAdder loginNanos = new LongAdder();
+	private static final AtomicLong loginMaxNanos = new AtomicLong();
+	private static volatile int hashIterations = 10;
+	private static volatile String dummyHash; // ユーザーが存在しない場合の検証用 (存在する場合と処理時間を揃える)
+	private static volatile ThreadPoolExecutor hashExecutor = createHashExecutor(1, 4);
+	
+	/**
+	 * ハッシュ化スレッドプールの作成と反復回数の算出。
+	 * <pre>
+	 * web.xml の init-param で以下を指定できます (省略時はデフォルト値)。
+	 * 
+	 * hashThreads       ハッシュ化スレッド数 (デフォルト: CPU 論理コア数の半分、メモリ使用量は 64MB × スレッド数)
+	 * hashQueueSize     待機キューの上限 (デフォルト: スレッド数 × 4、超えた場合は HTTP 503)
+	 * hashTargetMillis  1 回のハッシュ化の目標時間 (デフォルト: 500、反復回数の算出に使用)
+	 * </pre>
+	 */
+	@Override
+	public void init() {
+		int threads = NumberUtils.toInt(getInitParameter("hashThreads"), Math.max(1, getRuntime().availableProcessors() / 2));
+		int queueSize = NumberUtils.toInt(getInitParameter("hashQueueSize"), threads * 4);
+		long targetMillis = NumberUtils.toLong(getInitParameter("hashTargetMillis"), 500);
+		hashExecutor.shutdown();
+		hashExecutor = createHashExecutor(threads, queueSize);
+		hashIterations = Math.max(2, Argon2Helper.findIterations(argon2, targetMillis, HASH_MEMORY_KB, HASH_PARALLELISM));
+		dummyHash = argon2.hash(hashIterations, HASH_MEMORY_KB, HASH_PARALLELISM, toHashData("", generateDummyPassword()));
+		log.info("パスワードハッシュ設定 (threads={} queueSize={} targetMillis={} iterations={})", 
+				threads, queueSize, targetMillis, hashIterations);
+	}
+	
+	/** ハッシュ化スレッドプールの終了 */
+	@Override
+	public void destroy() {
+		hashExecutor.shutdownNow();
+	}
 
 	@Override @SneakyThrows
 	protected void doFilter(HttpServletRequest req, HttpServletResponse res, FilterChain chain) {
+		if (!RequestRoute.of(req).runs(RequestRoute.Stage.AUTH)) {
+			super.doFilter(req, res, chain);
+			return;
+		}
 		String path = req.getRequestURI().substring(req.getContextPath().length());
+		if (path.equals("/metrics") || path.equals("/metrics/sql")) { // 内部ネットワークからのメトリクス収集 (アクセス元は MetricsServlet でチェック)
+			super.doFilter(req, res, chain);
+			return;
+		}
 		HttpSession session = req.getSession();
 
 		if (path.equals("/logout")) {
@@ -90,7 +209,7 @@ public class LoginAuthFilter extends HttpFilter {
 			res.sendError(HttpServletResponse.SC_UNAUTHORIZED);
 		} else {
 			if (req.getMethod().equals("GET")) {
-				session.setAttribute(LOGIN_SAVED_URL, getQueryUri());
+				AutoFlashFilter.saveState(LOGIN_SAVED_URL, getQueryUri()); // flashStore=cookie の場合は Cookie
 			}
 			req.getRequestDispatcher("/WEB-INF/jsp/login.jsp").forward(req, res);
 		}
@@ -101,11 +220,34 @@ public class LoginAuthFilter extends HttpFilter {
 		String username = req.getParameter("username");
 		String password = req.getParameter("password");
 		
-		Object user = dao()
+		long startNanos = System.nanoTime();
+		Object user;
+		try {
+			Object found = dao()
 				.query(Class.forName(getInitParameter("userEntityClass")))
 				.equal("username", username)
-				.equal("password", hashPassword(req.isSecure(), username, password))
-				.first().orElse(null);
+				.first()
+				.orElse(null);
+			
+			// ユーザーが存在しない場合もダミーのハッシュで検証し、処理時間からユーザー名の存在を推測されないようにする
+			String hashedPassword = found == null ? dummyHash : getPassword(found);
+			boolean isVerified = verifyPassword(req.isSecure(), username, password, hashedPassword);
+			user = found != null && isVerified ? found : null;
+			
+		} catch (RejectedExecutionException e) {
+			// ハッシュ化が混雑している場合は、リクエストスレッドを占有しないように即時に 503 を返す
+			log.warn("パスワードハッシュ混雑のためログイン拒否 {}", hashStats());
+			res.setHeader("Retry-After", "1");
+			res.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			return;
+			
+		} finally {
+			long elapsedNanos = System.nanoTime() - startNanos;
+			loginCount.increment();
+			loginNanos.add(elapsedNanos);
+			loginMaxNanos.accumulateAndGet(elapsedNanos, Math::max);
+			log.debug("ログイン処理時間 {}ms (queueDepth={})", elapsedNanos / 1_000_000, hashExecutor.getQueue().size());
+		}
 		
 		if (user == null) {
 			req.setAttribute("MESSAGE", "正しいログイン情報を入力してください。");
@@ -116,4 +258,56 @@ public class LoginAuthFilter extends HttpFilter {
 			res.sendRedirect($(LOGIN_SAVED_URL, req::getContextPath));
 		}
 	}
+	
+	@SneakyThrows
+	private static String getPassword(Object user) {
+		return BeanUtils.getProperty(user, "password");
+	}
+	
+	private static String generateDummyPassword() {
+		byte[] bytes = new byte[16];
+		new SecureRandom().nextBytes(bytes);
+		return HexFormat.of().formatHex(bytes);
+	}
+	
+	private static byte[] toHashData(String salt, String password) {
+		final String pepper = LoginAuthFilter.class.getSimpleName();
+		return (salt + password + pepper).getBytes(StandardCharsets.UTF_8);
+	}
+	
+	private static ThreadPoolExecutor createHashExecutor(int threads, int queueSize) {
+		AtomicInteger threadNumber = new AtomicInteger();
+		return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize), r -> {
+			Thread thread = new Thread(r, "argon2-hash-" + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+	
+	/** ハッシュ化スレッドプールで実行して結果を待機 (キュー上限の場合は RejectedExecutionException) */
+	@SneakyThrows
+	private static <T> T executeHash(Callable<T> hashTask) {
+		Future<T> future;
+		try {
+			future = hashExecutor.submit(() -> {
+				long startNanos = System.nanoTime();
+				try {
+					return hashTask.call();
+				} finally {
+					long elapsedNanos = System.nanoTime() - startNanos;
+					hashCount.increment();
+					hashNanos.add(elapsedNanos);
+					Metrics.HASH.histogram().record(elapsedNanos);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			hashRejectedCount.increment();
+			throw e;
+		}
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			throw e.getCause();
+		}
+	}
 }
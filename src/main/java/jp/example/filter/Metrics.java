@@ -0,0 +1,168 @@
+package jp.example.filter;
+
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import lombok.SneakyThrows;
+
+/**
+ * アプリ内のレイテンシメトリクスです。
+ * <pre>
+ * メトリクスごとに 1 つのラベル (Servlet パス、フィルター名など) の値別に LatencyHistogram を保持し、
+ * Prometheus のテキスト形式 (summary: quantile 0.5 0.95 0.99、_sum、_count、エラー件数) で出力します。
+ * スループットは Prometheus 側で rate(xxx_count[1m]) として算出してください。
+ *
+ * 存在しない URL などでラベル値が増え続けないように、メトリクスごとのラベル値は MAX_SERIES 個までとし、
+ * 超えた場合は "other" に集約します。
+ * </pre>
+ * @author New Gradle Project Wizard (c) Pleiades MIT
+ */
+public class Metrics {
+
+	/** リクエスト属性名: 例外ハンドリング済みのエラー (AutoFlashFilter でセット、リクエストのエラー件数に計上) */
+	public static final String ERROR = Metrics.class.getName() + ".ERROR";
+
+	private static final int MAX_SERIES = 200;
+	private static final double[] QUANTILES = {0.5, 0.95, 0.99};
+	private static final List<Metric> metrics = new CopyOnWriteArrayList<>(); // 下記の Metric より先に初期化
+
+	/** Servlet パスごとのリクエスト処理時間 (非同期の場合は完了まで) */
+	public static final Metric REQUEST = new Metric("app_request_seconds", "path", "Servlet パスごとのリクエスト処理時間");
+
+	/** フィルターごとの処理時間 (後続のフィルター、Servlet を除く、PipelineFilter で計測) */
+	public static final Metric FILTER = new Metric("app_filter_seconds", "filter", "フィルターごとの処理時間 (後続処理を除く)");
+
+	/** SQL 種別 (query、update、batch) ごとの実行時間 */
+	public static final Metric DB = new Metric("app_db_seconds", "type", "SQL 種別ごとの実行時間");
+
+	/** 接続プールからの接続取得の待機時間 */
+	public static final Metric DB_CONNECTION = new Metric("app_db_connection_wait_seconds", null, "接続プールからの接続取得時間");
+
+	/** パスワードハッシュ (Argon2) の処理時間 */
+	public static final Metric HASH = new Metric("app_password_hash_seconds", null, "パスワードハッシュの処理時間 (待機を含まない)");
+
+	/**
+	 * ラベル値ごとのヒストグラムを持つメトリクスです。
+	 */
+	public static class Metric {
+
+		private final String name;
+		private final String labelName;
+		private final String help;
+		private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+		/**
+		 * メトリクスを作成して出力対象に登録します。
+		 * @param name メトリクス名
+		 * @param labelName ラベル名 (ラベルなしの場合は null)
+		 * @param help 説明
+		 */
+		public Metric(String name, String labelName, String help) {
+			this.name = name;
+			this.labelName = labelName;
+			this.help = help;
+			metrics.add(this);
+		}
+
+		/**
+		 * ラベル値のヒストグラムを取得します (無い場合は作成)。
+		 * @param labelValue ラベル値 (ラベルなしのメトリクスでは無視)
+		 * @return ヒストグラム
+		 */
+		public LatencyHistogram histogram(String labelValue) {
+			String key = labelName == null ? "" : labelValue;
+			LatencyHistogram histogram = histograms.get(key);
+			if (histogram != null) return histogram;
+			if (histograms.size() >= MAX_SERIES) key = "other";
+			return histograms.computeIfAbsent(key, k -> new LatencyHistogram());
+		}
+
+		/**
+		 * 処理を実行して処理時間を記録します (例外の場合はエラーとして記録して再スロー)。
+		 * @param labelValue ラベル値
+		 * @param action 処理
+		 */
+		@SneakyThrows
+		public void time(String labelValue, RequestContextFilter.ContextAction action) {
+			long startNanos = System.nanoTime();
+			boolean isError = true;
+			try {
+				action.run();
+				isError = false;
+			} finally {
+				histogram(labelValue).record(System.nanoTime() - startNanos, isError);
+			}
+		}
+
+		/** @return ラベルなしのヒストグラム */
+		public LatencyHistogram histogram() {
+			return histogram("");
+		}
+
+		/** summary (quantile、_sum、_count) と、最大値 (gauge)、エラー件数 (counter) を別のメトリクスとして出力 */
+		private void write(PrintWriter out) {
+			String baseName = name.replaceFirst("_seconds$", "");
+			out.printf("# HELP %s %s\n", name, help);
+			out.printf("# TYPE %s summary\n", name);
+			histograms.forEach((labelValue, histogram) -> {
+				for (double quantile : QUANTILES) {
+					out.printf("%s%s %s\n", name, labels(labelValue, "quantile=\"" + quantile + "\""), 
+							seconds(histogram.percentileNanos(quantile)));
+				}
+				out.printf("%s_sum%s %s\n", name, labels(labelValue, null), seconds(histogram.sumNanos()));
+				out.printf("%s_count%s %d\n", name, labels(labelValue, null), histogram.count());
+			});
+			out.printf("# HELP %s_max_seconds %s (最大値)\n", baseName, help);
+			out.printf("# TYPE %s_max_seconds gauge\n", baseName);
+			histograms.forEach((labelValue, histogram) -> {
+				out.printf("%s_max_seconds%s %s\n", baseName, labels(labelValue, null), seconds(histogram.maxNanos()));
+			});
+			out.printf("# HELP %s_errors_total %s (エラー件数)\n", baseName, help);
+			out.printf("# TYPE %s_errors_total counter\n", baseName);
+			histograms.forEach((labelValue, histogram) -> {
+				out.printf("%s_errors_total%s %d\n", baseName, labels(labelValue, null), histogram.errorCount());
+			});
+		}
+		
+		private String labels(String labelValue, String extraLabel) {
+			String label = labelName == null ? null : labelName + "=\"" + escape(labelValue) + "\"";
+			if (label == null && extraLabel == null) return "";
+			if (label == null) return "{" + extraLabel + "}";
+			return extraLabel == null ? "{" + label + "}" : "{" + label + "," + extraLabel + "}";
+		}
+	}
+
+	/**
+	 * すべてのメトリクスを Prometheus テキスト形式で出力します。
+	 * @param out 出力先
+	 */
+	public static void writePrometheus(PrintWriter out) {
+		for (Metric metric : metrics) {
+			metric.write(out);
+		}
+	}
+
+	/**
+	 * ゲージ (現在値) を Prometheus テキスト形式で出力します。
+	 * @param out 出力先
+	 * @param name メトリクス名
+	 * @param help 説明
+	 * @param value 値
+	 */
+	public static void writeGauge(PrintWriter out, String name, String help, long value) {
+		out.printf("# HELP %s %s\n", name, help);
+		out.printf("# TYPE %s gauge\n", name);
+		out.printf("%s %d\n", name, value);
+	}
+
+	private static String seconds(long nanos) {
+		return Double.toString(nanos / 1e9);
+	}
+
+	private static String escape(String labelValue) {
+		return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+}
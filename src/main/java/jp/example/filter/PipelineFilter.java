@@ -0,0 +1,182 @@
+package jp.example.filter;
+
+import static java.util.stream.Collectors.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import org.apache.commons.lang3.StringUtils;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.FilterConfig;
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import jakarta.servlet.http.HttpFilter;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jp.example.filter.RequestRoute.Stage;
+import jp.example.filter.RequestRoute.Type;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * ローカルフィルターを 1 つにまとめたフィルターパイプラインです。
+ * <pre>
+ * RequestContextFilter から LoginAuthFilter までの各段階 (RequestRoute.Stage) のフィルターを内部に保持し、
+ * 起動時に RequestRoute の種別ごとの段階の表から、種別ごとに実行するフィルターの配列を作成します。
+ * リクエストごとに 1 回だけ分類した種別の配列のフィルターのみを順に呼び出すため、段階が不要なフィルターは
+ * コンテナーのフィルターチェーンを経由せず、呼び出されません。各フィルターの処理自体は個別に定義した場合と同じです。
+ * 各段階の処理時間は、後続の段階と Servlet の時間を除いてここで 1 回だけ計測します (Metrics.FILTER、ラベルはフィルター名)。
+ * 段階ごとの時間の合計がフィルター全体の時間になり、リクエスト全体の時間は Metrics.REQUEST で計測します。
+ *
+ * web.xml の init-param で以下を指定できます (省略時はデフォルト値)。
+ *
+ * stages                  実行する段階 (デフォルト: すべて、例: CONTEXT, TRANSACTION, FLASH)
+ * フィルター名.パラメーター名  各フィルターの init-param (例: AdmissionFilter.keyupPaths)
+ *
+ * このフィルターは REQUEST と FORWARD ディスパッチにマッピングしてください (FORWARD は jsp の CSRF トークン埋め込みのみ)。
+ * 各フィルターを web.xml に個別に定義する場合は、このフィルターは定義しないでください。
+ * </pre>
+ * @author New Gradle Project Wizard (c) Pleiades MIT
+ */
+@Slf4j
+public class PipelineFilter extends HttpFilter {
+
+	private final List<HttpFilter> filters = new ArrayList<>();
+	private final HttpFilter[][] requestFilters = new HttpFilter[Type.values().length][];
+	private final HttpFilter[][] forwardFilters = new HttpFilter[Type.values().length][];
+
+	/** 段階ごとのフィルターの作成と初期化、種別ごとのフィルター配列の作成 */
+	@Override @SneakyThrows
+	public void init() {
+		String stagesParam = getInitParameter("stages");
+		Set<Stage> stages = StringUtils.isBlank(stagesParam) ? EnumSet.allOf(Stage.class) :
+			Stream.of(StringUtils.split(stagesParam, ", \n\t")).map(Stage::valueOf).collect(toCollection(() -> EnumSet.noneOf(Stage.class)));
+
+		for (Stage stage : stages) { // EnumSet は宣言順 (実行順)
+			HttpFilter filter = stage.filterClass().getDeclaredConstructor().newInstance();
+			filter.init(new StageFilterConfig(stage.filterClass().getSimpleName()));
+			filters.add(filter);
+		}
+		List<Stage> stageList = List.copyOf(stages);
+		for (Type type : Type.values()) {
+			requestFilters[type.ordinal()] = filtersOf(stageList, type::runs);
+			forwardFilters[type.ordinal()] = filtersOf(stageList, stage -> type.runs(stage) && stage.runsOnForward());
+			log.info("フィルターパイプライン {} {}", type,
+				Stream.of(requestFilters[type.ordinal()]).map(HttpFilter::getFilterName).toList());
+		}
+	}
+
+	/** 条件に一致する段階のフィルター配列 */
+	private HttpFilter[] filtersOf(List<Stage> stageList, Predicate<Stage> condition) {
+		List<HttpFilter> matched = new ArrayList<>();
+		for (int i = 0; i < stageList.size(); i++) {
+			if (condition.test(stageList.get(i))) matched.add(filters.get(i));
+		}
+		return matched.toArray(HttpFilter[]::new);
+	}
+
+	/** 各フィルターの終了 (初期化の逆順) */
+	@Override
+	public void destroy() {
+		List<HttpFilter> reversed = new ArrayList<>(filters);
+		Collections.reverse(reversed);
+		reversed.forEach(HttpFilter::destroy);
+	}
+
+	/** 種別のフィルター配列を順に呼び出した後、コンテナーのフィルターチェーンに進む */
+	@Override @SneakyThrows
+	protected void doFilter(HttpServletRequest req, HttpServletResponse res, FilterChain chain) {
+		HttpFilter[][] table = switch (req.getDispatcherType()) {
+			case REQUEST -> requestFilters;
+			case FORWARD -> forwardFilters;
+			default -> null;
+		};
+		HttpFilter[] routeFilters = table == null ? null : table[RequestRoute.of(req).type().ordinal()];
+		if (routeFilters == null || routeFilters.length == 0) {
+			chain.doFilter(req, res);
+		} else {
+			new StageChain(routeFilters, chain).doFilter(req, res);
+		}
+	}
+
+	/** リクエストごとのフィルター呼び出し位置と、段階ごとの処理時間 (後続を除く) を計測するチェーン */
+	private static class StageChain implements FilterChain {
+
+		private final HttpFilter[] filters;
+		private final FilterChain chain;
+		private int position;
+		private long nestedNanos; // 直前に戻った後続の処理 (次の段階、または Servlet) の時間
+
+		StageChain(HttpFilter[] filters, FilterChain chain) {
+			this.filters = filters;
+			this.chain = chain;
+		}
+
+		@Override @SneakyThrows
+		public void doFilter(ServletRequest req, ServletResponse res) {
+			long startNanos = System.nanoTime();
+			if (position == filters.length) {
+				try {
+					chain.doFilter(req, res);
+				} finally {
+					nestedNanos = System.nanoTime() - startNanos;
+				}
+				return;
+			}
+			HttpFilter filter = filters[position++];
+			nestedNanos = 0; // 後続を呼び出さずに戻った場合 (拒否、リダイレクトなど)
+			boolean isError = true;
+			try {
+				filter.doFilter(req, res, this);
+				isError = false;
+			} finally {
+				long elapsedNanos = System.nanoTime() - startNanos;
+				Metrics.FILTER.histogram(filter.getFilterName()).record(elapsedNanos - nestedNanos, isError);
+				nestedNanos = elapsedNanos;
+			}
+		}
+	}
+
+	/** 各フィルターの設定 (init-param は "フィルター名." で始まるパラメーターから取得) */
+	private class StageFilterConfig implements FilterConfig {
+
+		private final String filterName;
+		private final String prefix;
+
+		StageFilterConfig(String filterName) {
+			this.filterName = filterName;
+			this.prefix = filterName + ".";
+		}
+
+		@Override
+		public String getFilterName() {
+			return filterName;
+		}
+
+		@Override
+		public ServletContext getServletContext() {
+			return PipelineFilter.this.getServletContext();
+		}
+
+		@Override
+		public String getInitParameter(String name) {
+			return PipelineFilter.this.getInitParameter(prefix + name);
+		}
+
+		@Override
+		public Enumeration<String> getInitParameterNames() {
+			return Collections.enumeration(Collections.list(PipelineFilter.this.getInitParameterNames()).stream()
+				.filter(name -> name.startsWith(prefix))
+				.map(name -> name.substring(prefix.length()))
+				.toList());
+		}
+	}
+}
@@ -6,6 +6,8 @@ import java.util.function.Supplier;
 import org.apache.commons.lang3.ObjectUtils;
 import org.apache.commons.lang3.StringUtils;
 
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
 import jakarta.servlet.FilterChain;
 import jakarta.servlet.http.HttpFilter;
 import jakarta.servlet.http.HttpServletRequest;
@@ -16,6 +18,27 @@ import lombok.SneakyThrows;
  * リクエストコンテキストフィルターです。
  * <pre>
  * 各フィルターは基本的に独立していますが、このフィルターは唯一、他のフィルターから参照されています。
+ * リクエストの種別 (静的ファイル、html、AJAX など) は RequestRoute で 1 回だけ分類し、各フィルターで共有します。
+ * 
+ * リクエスト、レスポンス、トランザクションは不変のコンテキストオブジェクト 1 つにまとめ、スレッドに 1 つだけ保持します。
+ * コンテキストは runWith のスコープ内でのみ有効で、スコープ終了時に呼び出し前の状態に戻ります (ScopedValue と同じ形)。
+ * 別スレッドで実行するタスクには inheritContext でコンテキストを引き継ぐことができます。
+ * 
+ * 仮想スレッドでの実行 (このプロジェクトでは構成していません)
+ * 
+ * このプロジェクトのビルドは Java 17 で、コネクターの設定は war に含まれない Tomcat の server.xml のため、仮想スレッドの
+ * コネクターの設定と、プラットフォームスレッドとの比較の負荷試験は含まれていません。Java 21 以降の Tomcat 10.1 で
+ * 有効にする場合は、server.xml で opt-in し、実際の構成で同時接続数ごとのスループットとレイテンシを計測してください。
+ * 
+ *     &lt;Connector port="8080" protocol="HTTP/1.1" useVirtualThreads="true" ... /&gt;
+ * 
+ * 仮想スレッドでは JDBC や Argon2 の待機でキャリアスレッドを占有しないように、フィルターでは synchronized を使用していません。
+ * Java 21 に移行する場合は、contextHolder を ScopedValue に置き換えることで、他のクラスを変更せずに移行できます。
+ * 
+ * 外部セッションストア (スティッキーセッションなしでの複数ノード構成、任意)
+ * 
+ * init-param sessionStore に SessionStore の実装クラス (参照実装は JdbcSessionStore) を指定すると、
+ * 後続のフィルターや Servlet、JSP の getSession がストアのセッションを返します (SessionStoreManager)。
  * </pre>
  * @author New Gradle Project Wizard (c) Pleiades MIT
  */
@@ -35,7 +58,7 @@ public class RequestContextFilter extends HttpFilter {
 	public static <T> T $(String name) {
 		return (T) ObjectUtils.getFirstNonNull(
 			() -> request().getAttribute(name),
-			() -> request().getSession().getAttribute(name),
+			() -> request().getSession(false) == null ? null : request().getSession(false).getAttribute(name), // セッションは作成しない
 			() -> request().getServletContext().getAttribute(name));
 	}
 	
@@ -66,8 +89,28 @@ public class RequestContextFilter extends HttpFilter {
 	 * @return getRequestURI + "?" + getQueryString (パラメータが無い場合はリクエスト URI のみ)
 	 */
 	public static String getQueryUri() {
-		String params = StringUtils.defaultIfBlank(request().getQueryString(), null);
-		return request().getRequestURI() + (params == null ? "" : "?" + params);
+		return queryUri(request());
+	}
+	
+	/** リクエストのクエリ文字列付き URI (リクエストコンテキスト外の AsyncListener などから使用) */
+	static String queryUri(HttpServletRequest req) {
+		String params = StringUtils.defaultIfBlank(req.getQueryString(), null);
+		return req.getRequestURI() + (params == null ? "" : "?" + params);
+	}
+	
+	/**
+	 * 現在のリクエストコンテキストを引き継いで実行するタスクを作成します。
+	 * <pre>
+	 * リクエストスレッド以外 (ExecutorService や非同期処理など) で $() や dao() などを使用する場合に使用します。
+	 * タスクは元のリクエストと同じリクエスト、レスポンス、トランザクションを参照するため、
+	 * 元のリクエストの処理が終了した後に実行する場合は、AsyncContext などでリクエストを継続させる必要があります。
+	 * </pre>
+	 * @param task 別スレッドで実行するタスク
+	 * @return 実行時に現在のリクエストコンテキストを設定するタスク
+	 */
+	public static Runnable inheritContext(Runnable task) {
+		RequestContext context = contextHolder.get();
+		return () -> runWith(context, task::run);
 	}
 	
 	//-------------------------------------------------------------------------
@@ -75,45 +118,139 @@ public class RequestContextFilter extends HttpFilter {
 	//-------------------------------------------------------------------------
 	
 	static HttpServletRequest request() {
-		return contextThreadLocal.get().req;
+		return contextHolder.get().req;
 	}
 	
 	static HttpServletResponse response() {
-		return contextThreadLocal.get().res;
+		return contextHolder.get().res;
+	}
+	
+	static RequestContext current() {
+		return contextHolder.get();
 	}
 	
-	static void set(HttpServletRequest req, HttpServletResponse res) {
-		contextThreadLocal.set(new RequestContext(req, res));
+	/**
+	 * 指定したコンテキストを現在のコンテキストとして処理を実行し、終了後に元のコンテキストに戻します。
+	 * @param context 処理中に有効にするコンテキスト
+	 * @param action 処理
+	 */
+	@SneakyThrows
+	static void runWith(RequestContext context, ContextAction action) {
+		RequestContext previous = contextHolder.get();
+		contextHolder.set(context);
+		try {
+			action.run();
+		} finally {
+			if (previous == null) {
+				contextHolder.remove();
+			} else {
+				contextHolder.set(previous);
+			}
+		}
 	}
 	
 	static boolean isAjax() {
-		return "XMLHttpRequest".equals(request().getHeader("X-Requested-With")) || // jQuery、prototype.js
-				StringUtils.contains(request().getHeader("Accept"), "/json"); // axios
+		return RequestRoute.of(request()).isAjax(); // jQuery、prototype.js、axios、EventSource
+	}
+	
+	/** コンテキストのスコープ内で実行する処理 */
+	@FunctionalInterface
+	interface ContextAction {
+		void run() throws Exception;
+	}
+	
+	/**
+	 * リクエストコンテキストです。変更する場合は with メソッドで新しいコンテキストを作成して runWith します。
+	 * @param req HTTP サーブレットリクエスト
+	 * @param res HTTP サーブレットレスポンス
+	 * @param transaction トランザクション (AutoTransactionFilter 以降で有効、それ以外は null)
+	 */
+	record RequestContext (
+		HttpServletRequest req,
+		HttpServletResponse res,
+		AutoTransactionFilter.Transaction transaction
+	) {
+		RequestContext withRequest(HttpServletRequest req, HttpServletResponse res) {
+			return new RequestContext(req, res, transaction);
+		}
+		
+		RequestContext withTransaction(AutoTransactionFilter.Transaction transaction) {
+			return new RequestContext(req, res, transaction);
+		}
 	}
 	
 	//-------------------------------------------------------------------------
 	// Servlet フィルター処理
 	//-------------------------------------------------------------------------
 
-	private static final ThreadLocal<RequestContext> contextThreadLocal = new ThreadLocal<>();
+	private static final ThreadLocal<RequestContext> contextHolder = new ThreadLocal<>();
+	private SessionStoreManager sessionStoreManager; // 外部セッションストアを使用しない場合は null
 	
-	private record RequestContext (
-		HttpServletRequest req,
-		HttpServletResponse res
-	) {}
+	/**
+	 * 外部セッションストアの設定。
+	 * <pre>
+	 * web.xml の init-param で以下を指定できます (省略時はコンテナーのセッションを使用)。
+	 * 
+	 * sessionStore  SessionStore の実装クラス名 (例: jp.example.filter.JdbcSessionStore)
+	 * </pre>
+	 */
+	@Override @SneakyThrows
+	public void init() {
+		String storeClassName = getInitParameter("sessionStore");
+		if (StringUtils.isBlank(storeClassName)) return;
+		SessionStore store = (SessionStore) Class.forName(storeClassName.trim()).getDeclaredConstructor().newInstance();
+		store.init(getFilterConfig());
+		sessionStoreManager = new SessionStoreManager(store, getServletContext());
+	}
+	
+	/** 外部セッションストアの終了 */
+	@Override
+	public void destroy() {
+		if (sessionStoreManager != null) sessionStoreManager.destroy();
+	}
 
 	@Override @SneakyThrows
 	protected void doFilter(HttpServletRequest req, HttpServletResponse res, FilterChain chain) {
-		String uri = req.getRequestURI();
-		if (uri.contains(".") && !uri.endsWith(".html")) { // css js など
+		if (!RequestRoute.of(req).runs(RequestRoute.Stage.CONTEXT)) { // css js など
 			super.doFilter(req, res, chain); 
 			return;
 		}
+		long startNanos = System.nanoTime();
+		HttpServletRequest request = sessionStoreManager == null ? req : sessionStoreManager.wrap(req, res);
 		try {
-			contextThreadLocal.set(new RequestContext(req, res));
-			super.doFilter(req, res, chain);
+			runWith(new RequestContext(request, res, null), () -> super.doFilter(request, res, chain));
 		} finally {
-			contextThreadLocal.remove();
+			if (req.isAsyncStarted()) {
+				req.getAsyncContext().addListener(new AsyncListener() {
+					@Override public void onComplete(AsyncEvent event) {
+						endRequest(request, res, startNanos);
+					}
+					@Override public void onTimeout(AsyncEvent event) {}
+					@Override public void onError(AsyncEvent event) {}
+					@Override public void onStartAsync(AsyncEvent event) {}
+				});
+			} else {
+				endRequest(request, res, startNanos);
+			}
 		}
 	}
+	
+	/** 外部セッションストアへの変更の保存 (1 リクエスト 1 回) と、処理時間の記録 */
+	private static void endRequest(HttpServletRequest req, HttpServletResponse res, long startNanos) {
+		try {
+			if (req instanceof SessionStoreManager.StoreSessionRequest storeSessionRequest) {
+				storeSessionRequest.commit();
+			}
+		} finally {
+			recordRequest(req, res, startNanos);
+		}
+	}
+	
+	/** Servlet パスごとの処理時間を記録 (存在しないパスは 1 つにまとめる) */
+	private static void recordRequest(HttpServletRequest req, HttpServletResponse res, long startNanos) {
+		int status = res.getStatus();
+		String path = status == HttpServletResponse.SC_NOT_FOUND ? "not_found" : req.getServletPath();
+		boolean isError = status >= HttpServletResponse.SC_INTERNAL_SERVER_ERROR || req.getAttribute(Metrics.ERROR) != null;
+		Metrics.REQUEST.histogram(path).record(System.nanoTime() - startNanos, isError);
+	}
 }
@@ -0,0 +1,142 @@
+package jp.example.filter;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+import org.apache.commons.lang3.StringUtils;
+
+import jakarta.servlet.DispatcherType;
+import jakarta.servlet.http.HttpFilter;
+import jakarta.servlet.http.HttpServletRequest;
+
+/**
+ * リクエストの種別 (ルート) です。
+ * <pre>
+ * 各フィルターが URI の拡張子や Accept ヘッダーをそれぞれ判定していた処理を、リクエストごとに 1 回だけ分類して
+ * リクエスト属性に保持し、各フィルターは種別ごとに事前に決めた段階 (Stage) の表を参照して処理の要否を判定します。
+ * 種別と AJAX 判定の組み合わせはクラス初期化時にすべて作成済みのため、リクエストごとにインスタンスは作成しません。
+ *
+ * 種別          例                          実行する段階
+ * STATIC        css js 画像など               AUTH
+ * HTML          .html の直接アクセス           CONTEXT CSRF AUTH
+ * JSP           Servlet からの .jsp フォワード  CSRF AUTH
+ * EVENT_STREAM  SSE (Accept: text/event-stream) CONTEXT CSRF TRANSACTION FLASH AUTH (ADMISSION は対象外)
+ * AJAX          axios、jQuery などの API        すべて
+ * PAGE          画面遷移                      すべて
+ *
+ * 分類は最初に呼び出したフィルターで行うため、web.xml からどのフィルターをコメントアウトしても同じ結果になります。
+ * PipelineFilter はこの表から起動時に種別ごとのフィルター配列を作成し、必要な段階のフィルターのみを呼び出します。
+ * FORWARD などのディスパッチでは URI が変わるため保持せずに分類します (ドットを含む Servlet マッピングはサポートしない)。
+ * </pre>
+ * @param type 種別
+ * @param isAjax AJAX リクエストの場合は true (X-Requested-With、Accept の json または text/event-stream)
+ * @author New Gradle Project Wizard (c) Pleiades MIT
+ */
+record RequestRoute(Type type, boolean isAjax) {
+
+	/** フィルターの処理段階 (宣言順はフィルターの実行順) */
+	enum Stage {
+		/** RequestContextFilter のリクエストコンテキスト */
+		CONTEXT(RequestContextFilter.class, false),
+		/** AdmissionFilter の流入制御 */
+		ADMISSION(AdmissionFilter.class, false),
+		/** AutoCsrfFilter のトークンチェック、埋め込み (jsp フォワード時も実行) */
+		CSRF(AutoCsrfFilter.class, true),
+		/** AutoTransactionFilter のトランザクション */
+		TRANSACTION(AutoTransactionFilter.class, false),
+		/** AutoFlashFilter のフラッシュ、例外処理 */
+		FLASH(AutoFlashFilter.class, false),
+		/** LoginAuthFilter のログイン認証 */
+		AUTH(LoginAuthFilter.class, false);
+
+		private final Class<? extends HttpFilter> filterClass;
+		private final boolean runsOnForward;
+
+		Stage(Class<? extends HttpFilter> filterClass, boolean runsOnForward) {
+			this.filterClass = filterClass;
+			this.runsOnForward = runsOnForward;
+		}
+
+		/** @return 段階を処理するフィルターのクラス */
+		Class<? extends HttpFilter> filterClass() {
+			return filterClass;
+		}
+
+		/** @return FORWARD ディスパッチでも実行する場合は true (それ以外は REQUEST のみ) */
+		boolean runsOnForward() {
+			return runsOnForward;
+		}
+	}
+
+	/** リクエストの種別と、実行する段階の表 */
+	enum Type {
+		STATIC(Stage.AUTH),
+		HTML(Stage.CONTEXT, Stage.CSRF, Stage.AUTH),
+		JSP(Stage.CSRF, Stage.AUTH),
+		EVENT_STREAM(Stage.CONTEXT, Stage.CSRF, Stage.TRANSACTION, Stage.FLASH, Stage.AUTH),
+		AJAX(Stage.values()),
+		PAGE(Stage.values());
+
+		private final Set<Stage> stages;
+
+		Type(Stage... stages) {
+			this.stages = EnumSet.of(stages[0], stages);
+		}
+
+		/**
+		 * 段階を実行するか判定します。
+		 * @param stage 段階
+		 * @return 実行する場合は true
+		 */
+		boolean runs(Stage stage) {
+			return stages.contains(stage);
+		}
+	}
+
+	private static final String ATTRIBUTE = RequestRoute.class.getName();
+	private static final RequestRoute[] ROUTES = new RequestRoute[Type.values().length * 2];
+	static {
+		for (Type type : Type.values()) {
+			ROUTES[type.ordinal() * 2] = new RequestRoute(type, false);
+			ROUTES[type.ordinal() * 2 + 1] = new RequestRoute(type, true);
+		}
+	}
+
+	/**
+	 * リクエストの種別を取得します (REQUEST ディスパッチの場合は初回のみ分類してリクエスト属性に保持)。
+	 * @param req HTTP サーブレットリクエスト
+	 * @return リクエストの種別
+	 */
+	static RequestRoute of(HttpServletRequest req) {
+		boolean isRequest = req.getDispatcherType() == DispatcherType.REQUEST;
+		if (isRequest && req.getAttribute(ATTRIBUTE) instanceof RequestRoute route) return route;
+		RequestRoute route = classify(req);
+		if (isRequest) req.setAttribute(ATTRIBUTE, route);
+		return route;
+	}
+
+	/**
+	 * 段階を実行するか判定します。
+	 * @param stage 段階
+	 * @return 実行する場合は true
+	 */
+	boolean runs(Stage stage) {
+		return type.runs(stage);
+	}
+
+	/** URI の拡張子と Accept、X-Requested-With ヘッダーから分類 */
+	private static RequestRoute classify(HttpServletRequest req) {
+		String uri = req.getRequestURI();
+		String accept = req.getHeader("Accept");
+		boolean isAjax = "XMLHttpRequest".equals(req.getHeader("X-Requested-With")) || // jQuery、prototype.js
+				StringUtils.containsAny(accept, "/json", "text/event-stream"); // axios、EventSource
+		Type type;
+		if (uri.endsWith(".jsp")) type = Type.JSP;
+		else if (uri.endsWith(".html")) type = Type.HTML;
+		else if (uri.contains(".")) type = Type.STATIC;
+		else if (StringUtils.contains(accept, "text/event-stream")) type = Type.EVENT_STREAM;
+		else if (isAjax) type = Type.AJAX;
+		else type = Type.PAGE;
+		return ROUTES[type.ordinal() * 2 + (isAjax ? 1 : 0)];
+	}
+}
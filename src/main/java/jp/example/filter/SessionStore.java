@@ -0,0 +1,91 @@
+package jp.example.filter;
+
+import java.util.Map;
+import java.util.Set;
+
+import jakarta.servlet.FilterConfig;
+
+/**
+ * セッションの外部ストア (SPI) です。
+ * <pre>
+ * web.xml の RequestContextFilter の init-param sessionStore に実装クラス名を指定すると、
+ * コンテナーのセッションの代わりに、このストアに保存したセッションが HttpServletRequest#getSession で返されます。
+ * 複数ノードで同じストアを参照することで、スティッキーセッションなしでラウンドロビンの負荷分散ができます。
+ *
+ * ノード内のニアキャッシュ、変更された属性の追跡、リクエスト終了時の一括書き込みは SessionStoreManager が行うため、
+ * 実装クラスはシリアライズ済みの属性値の読み書きのみを行います。実装はスレッドセーフである必要があります。
+ *
+ * 参照実装: JdbcSessionStore
+ * </pre>
+ * @author New Gradle Project Wizard (c) Pleiades MIT
+ */
+public interface SessionStore {
+
+	/**
+	 * ストアから読み込んだセッションです。
+	 * @param version バージョン (保存ごとに増加)
+	 * @param creationTime 作成日時 (エポックミリ秒)
+	 * @param lastAccessedTime 最終アクセス日時 (エポックミリ秒)
+	 * @param maxInactiveInterval タイムアウト秒数 (0 以下の場合は無期限)
+	 * @param attributes 属性名とシリアライズ済みの属性値
+	 */
+	record StoredSession(
+		long version,
+		long creationTime,
+		long lastAccessedTime,
+		int maxInactiveInterval,
+		Map<String, byte[]> attributes
+	) {}
+
+	/**
+	 * ストアを初期化します (RequestContextFilter の init から呼び出し)。
+	 * @param filterConfig RequestContextFilter のフィルター設定 (init-param の参照用)
+	 */
+	default void init(FilterConfig filterConfig) {}
+
+	/**
+	 * ストアを終了します (RequestContextFilter の destroy から呼び出し)。
+	 */
+	default void destroy() {}
+
+	/**
+	 * セッションのバージョンを取得します (ニアキャッシュの検証用、属性は読み込まない)。
+	 * @param id セッション ID
+	 * @return バージョン。存在しないか、タイムアウトしている場合は -1。
+	 */
+	long version(String id);
+
+	/**
+	 * セッションを読み込みます。
+	 * @param id セッション ID
+	 * @return セッション。存在しないか、タイムアウトしている場合は null。
+	 */
+	StoredSession load(String id);
+
+	/**
+	 * 変更された属性のみを保存し、バージョンを増加します (セッションが無い場合は作成)。
+	 * @param id セッション ID
+	 * @param creationTime 作成日時 (作成時のみ使用)
+	 * @param lastAccessedTime 最終アクセス日時
+	 * @param maxInactiveInterval タイムアウト秒数 (0 以下の場合は無期限)
+	 * @param changedAttributes 追加または変更された属性名とシリアライズ済みの属性値
+	 * @param removedNames 削除された属性名
+	 * @return 保存後のバージョン
+	 */
+	long save(String id, long creationTime, long lastAccessedTime, int maxInactiveInterval,
+			Map<String, byte[]> changedAttributes, Set<String> removedNames);
+
+	/**
+	 * 最終アクセス日時のみを更新します (バージョンは変更しない)。
+	 * @param id セッション ID
+	 * @param lastAccessedTime 最終アクセス日時
+	 * @param maxInactiveInterval タイムアウト秒数 (0 以下の場合は無期限)
+	 */
+	void touch(String id, long lastAccessedTime, int maxInactiveInterval);
+
+	/**
+	 * セッションを削除します。
+	 * @param id セッション ID
+	 */
+	void delete(String id);
+}
@@ -0,0 +1,344 @@
+package jp.example.filter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.NotSerializableException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.lang3.StringUtils;
+
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.http.Cookie;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpSession;
+import jp.example.filter.SessionStore.StoredSession;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * SessionStore に保存するセッションを、HttpServletRequest#getSession で提供します。
+ * <pre>
+ * RequestContextFilter の init-param sessionStore を指定した場合に、リクエストをラップして使用されます。
+ *
+ * ・ニアキャッシュ: 復元したセッションをノード内に保持し、リクエストごとにストアのバージョンのみを確認
+ *   (他のノードで更新された場合のみ、属性を読み込んでデシリアライズ)
+ * ・変更の追跡: setAttribute、removeAttribute された属性のみをシリアライズして保存
+ *   (属性値のオブジェクトの中身を変更した場合は、再度 setAttribute してください)
+ * ・一括書き込み: 変更はリクエスト終了時 (非同期の場合は完了時) に 1 回だけ保存し、
+ *   変更が無い場合は最終アクセス日時のみを 1 分に 1 回まで更新
+ *
+ * セッション ID は Cookie SESSION で受け渡します (URL リライティング、セッションリスナーは非対応)。
+ * 属性値は Serializable である必要があり、シリアライズできない属性はノード内のみで保持されます。
+ * </pre>
+ * @author New Gradle Project Wizard (c) Pleiades MIT
+ */
+@Slf4j
+class SessionStoreManager {
+
+	static final String SESSION_COOKIE = "SESSION";
+	private static final int MAX_CACHE_SIZE = 10_000;
+	private static final long TOUCH_INTERVAL_MILLIS = 60_000;
+	private static final ObjectInputFilter deserializeFilter = ObjectInputFilter.Config.createFilter("java.**;jp.example.**;!*");
+	private static final SecureRandom random = new SecureRandom();
+
+	private final SessionStore store;
+	private final ServletContext servletContext;
+	private final Map<String, CachedSession> nearCache = new ConcurrentHashMap<>();
+
+	SessionStoreManager(SessionStore store, ServletContext servletContext) {
+		this.store = store;
+		this.servletContext = servletContext;
+	}
+
+	/** ストアの終了 */
+	void destroy() {
+		store.destroy();
+		nearCache.clear();
+	}
+
+	/**
+	 * ストアのセッションを使用するリクエストラッパーを作成します。
+	 * @param req リクエスト
+	 * @param res レスポンス (セッション Cookie の書き込み用)
+	 * @return リクエストラッパー (終了時に commit を呼び出す)
+	 */
+	StoreSessionRequest wrap(HttpServletRequest req, HttpServletResponse res) {
+		return new StoreSessionRequest(req, res);
+	}
+
+	/** ノード内でキャッシュする復元済みのセッション (同じセッションの並行リクエストで共有) */
+	private static class CachedSession {
+
+		private final String id;
+		private final long creationTime;
+		private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+		private volatile long version;
+		private volatile long lastAccessedTime;
+		private volatile long storedAccessedTime;
+		private volatile int maxInactiveInterval;
+
+		CachedSession(String id, long creationTime, int maxInactiveInterval) {
+			this.id = id;
+			this.creationTime = creationTime;
+			this.lastAccessedTime = creationTime;
+			this.maxInactiveInterval = maxInactiveInterval;
+		}
+	}
+
+	/**
+	 * ストアのセッションを返すリクエストラッパーです。
+	 */
+	class StoreSessionRequest extends HttpServletRequestWrapper {
+
+		private final HttpServletResponse res;
+		private StoreSession session;
+		private boolean isResolved;
+
+		StoreSessionRequest(HttpServletRequest req, HttpServletResponse res) {
+			super(req);
+			this.res = res;
+		}
+
+		@Override
+		public HttpSession getSession() {
+			return getSession(true);
+		}
+
+		@Override
+		public HttpSession getSession(boolean create) {
+			if (!isResolved) {
+				isResolved = true;
+				CachedSession cached = resolve(getRequestedSessionId());
+				if (cached != null) session = new StoreSession(cached, false);
+			}
+			if ((session == null || session.isInvalidated) && create) {
+				int maxInactiveInterval = servletContext.getSessionTimeout() * 60;
+				session = new StoreSession(new CachedSession(generateId(), System.currentTimeMillis(), maxInactiveInterval), true);
+				writeCookie(session.data.id);
+			}
+			return session == null || session.isInvalidated ? null : session;
+		}
+
+		@Override
+		public String changeSessionId() {
+			StoreSession oldSession = (StoreSession) getSession(false);
+			if (oldSession == null) throw new IllegalStateException("セッションがありません。");
+			CachedSession data = new CachedSession(generateId(), oldSession.data.creationTime, oldSession.data.maxInactiveInterval);
+			data.attributes.putAll(oldSession.data.attributes);
+			oldSession.invalidate();
+			session = new StoreSession(data, false);
+			session.changedNames.addAll(data.attributes.keySet()); // 新しい ID ですべての属性を保存
+			writeCookie(data.id);
+			return data.id;
+		}
+
+		@Override
+		public String getRequestedSessionId() {
+			Cookie[] cookies = getCookies();
+			if (cookies == null) return null;
+			for (Cookie cookie : cookies) {
+				if (cookie.getName().equals(SESSION_COOKIE)) return cookie.getValue();
+			}
+			return null;
+		}
+
+		@Override
+		public boolean isRequestedSessionIdValid() {
+			HttpSession current = getSession(false);
+			return current != null && current.getId().equals(getRequestedSessionId());
+		}
+
+		@Override
+		public boolean isRequestedSessionIdFromCookie() {
+			return getRequestedSessionId() != null;
+		}
+
+		@Override
+		public boolean isRequestedSessionIdFromURL() {
+			return false;
+		}
+
+		/** リクエスト終了時に、変更された属性のみをストアに保存 */
+		void commit() {
+			if (session == null || session.isInvalidated) return;
+			CachedSession data = session.data;
+			long now = System.currentTimeMillis();
+			data.lastAccessedTime = now;
+			if (!session.isNew && !session.isIntervalChanged && session.changedNames.isEmpty() && session.removedNames.isEmpty()) {
+				if (now - data.storedAccessedTime >= TOUCH_INTERVAL_MILLIS) {
+					store.touch(data.id, now, data.maxInactiveInterval);
+					data.storedAccessedTime = now;
+				}
+				return;
+			}
+			Map<String, byte[]> changedAttributes = new HashMap<>();
+			for (String name : session.changedNames) {
+				Object value = data.attributes.get(name);
+				byte[] bytes = value == null ? null : serialize(name, value);
+				if (bytes != null) changedAttributes.put(name, bytes);
+			}
+			long expectedVersion = session.startVersion + 1;
+			long version = store.save(data.id, data.creationTime, now, data.maxInactiveInterval, changedAttributes, session.removedNames);
+			data.storedAccessedTime = now;
+			if (version == expectedVersion) {
+				data.version = version;
+				cache(data);
+			} else {
+				nearCache.remove(data.id); // 他のリクエストでも更新されたため、次回はストアから読み込み
+			}
+		}
+
+		private void writeCookie(String id) {
+			Cookie cookie = new Cookie(SESSION_COOKIE, id);
+			cookie.setPath(StringUtils.defaultIfEmpty(getContextPath(), "/"));
+			cookie.setHttpOnly(true);
+			cookie.setSecure(isSecure());
+			cookie.setAttribute("SameSite", "Lax");
+			res.addCookie(cookie);
+		}
+	}
+
+	/**
+	 * ストアに保存するセッションです (リクエストごとに作成し、属性はノード内で共有)。
+	 */
+	private class StoreSession implements HttpSession {
+
+		private final CachedSession data;
+		private final boolean isNew;
+		private final long startVersion;
+		private final Set<String> changedNames = new HashSet<>();
+		private final Set<String> removedNames = new HashSet<>();
+		private boolean isInvalidated;
+		private boolean isIntervalChanged;
+
+		StoreSession(CachedSession data, boolean isNew) {
+			this.data = data;
+			this.isNew = isNew;
+			this.startVersion = data.version;
+		}
+
+		@Override public long getCreationTime() { return data.creationTime; }
+		@Override public String getId() { return data.id; }
+		@Override public long getLastAccessedTime() { return data.lastAccessedTime; }
+		@Override public ServletContext getServletContext() { return servletContext; }
+		@Override public int getMaxInactiveInterval() { return data.maxInactiveInterval; }
+		@Override public boolean isNew() { return isNew; }
+
+		@Override
+		public void setMaxInactiveInterval(int interval) {
+			data.maxInactiveInterval = interval;
+			isIntervalChanged = true;
+		}
+
+		@Override
+		public Object getAttribute(String name) {
+			return data.attributes.get(name);
+		}
+
+		@Override
+		public Enumeration<String> getAttributeNames() {
+			return Collections.enumeration(Set.copyOf(data.attributes.keySet()));
+		}
+
+		@Override
+		public void setAttribute(String name, Object value) {
+			if (value == null) {
+				removeAttribute(name);
+				return;
+			}
+			data.attributes.put(name, value);
+			changedNames.add(name);
+			removedNames.remove(name);
+		}
+
+		@Override
+		public void removeAttribute(String name) {
+			if (data.attributes.remove(name) == null && !changedNames.contains(name)) return;
+			changedNames.remove(name);
+			removedNames.add(name);
+		}
+
+		@Override
+		public void invalidate() {
+			if (isInvalidated) throw new IllegalStateException("セッションは無効化されています。");
+			isInvalidated = true;
+			nearCache.remove(data.id);
+			if (!isNew) store.delete(data.id);
+		}
+	}
+
+	/** セッション ID からセッションを取得 (ニアキャッシュはバージョンが一致する場合のみ使用) */
+	private CachedSession resolve(String id) {
+		if (id == null) return null;
+		CachedSession cached = nearCache.get(id);
+		if (cached != null) {
+			long version = store.version(id);
+			if (version == cached.version) return cached;
+			nearCache.remove(id);
+			if (version == -1) return null;
+		}
+		StoredSession stored = store.load(id);
+		if (stored == null) return null;
+		CachedSession data = new CachedSession(id, stored.creationTime(), stored.maxInactiveInterval());
+		data.version = stored.version();
+		data.lastAccessedTime = stored.lastAccessedTime();
+		data.storedAccessedTime = stored.lastAccessedTime();
+		stored.attributes().forEach((name, bytes) -> {
+			Object value = deserialize(name, bytes);
+			if (value != null) data.attributes.put(name, value);
+		});
+		cache(data);
+		return data;
+	}
+
+	/** ニアキャッシュに追加 (上限の場合は最終アクセスから 1 分以上経過したものを削除、それでも上限の場合は追加しない) */
+	private void cache(CachedSession data) {
+		if (nearCache.size() >= MAX_CACHE_SIZE && !nearCache.containsKey(data.id)) {
+			long threshold = System.currentTimeMillis() - TOUCH_INTERVAL_MILLIS;
+			nearCache.values().removeIf(cached -> cached.lastAccessedTime < threshold);
+			if (nearCache.size() >= MAX_CACHE_SIZE) return;
+		}
+		nearCache.put(data.id, data);
+	}
+
+	private static String generateId() {
+		byte[] bytes = new byte[24];
+		random.nextBytes(bytes);
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+	}
+
+	@SneakyThrows
+	private static byte[] serialize(String name, Object value) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(value);
+		} catch (NotSerializableException e) {
+			log.warn("シリアライズできないため、セッション属性 {} はノード内のみで保持します。 {}", name, e.getMessage());
+			return null;
+		}
+		return bytes.toByteArray();
+	}
+
+	private static Object deserialize(String name, byte[] bytes) {
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+			in.setObjectInputFilter(deserializeFilter);
+			return in.readObject();
+		} catch (Exception e) {
+			log.warn("セッション属性 {} を復元できないため無視します。 {}", name, e.toString());
+			return null;
+		}
+	}
+}
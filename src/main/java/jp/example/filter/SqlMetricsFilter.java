@@ -0,0 +1,220 @@
+package jp.example.filter;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import jp.co.future.uroborosql.context.SqlContext;
+import jp.co.future.uroborosql.filter.AbstractSqlFilter;
+import jp.co.future.uroborosql.parameter.Parameter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * SQL の実行時間と SQL ごとの統計を収集する uroboroSQL の SQL フィルターです。
+ * <pre>
+ * AutoTransactionFilter で SqlConfig に登録され、SQL ログのレベルに関係なく常に動作します。
+ *
+ * ・実行時間: PreparedStatement の作成から executeQuery、executeUpdate、executeBatch の完了まで (Metrics.DB)
+ * ・SQL ごとの統計: SQL ファイル名または 2Way SQL のテンプレート単位に、件数、合計・最大時間、行数
+ *   (検索の行数は ResultSet の読み込み件数で、クローズ時に加算)
+ * ・スロークエリログ: 実行時間が閾値以上の場合に、バインドパラメーターと Servlet パスを WARN で出力
+ *
+ * 統計は sqlStats() で取得でき、MetricsServlet の /metrics/sql で json として参照できます。
+ * uroboroSQL を経由せずに JDBC で実行する SqlTemplate#stream の SQL は、recordJdbc で同じ統計に記録されます。
+ * </pre>
+ * @author New Gradle Project Wizard (c) Pleiades MIT
+ */
+@Slf4j
+public class SqlMetricsFilter extends AbstractSqlFilter {
+
+	/**
+	 * SQL ごとの統計です。
+	 * @param sql SQL ファイル名または SQL テンプレート (空白は 1 つに正規化)
+	 * @param count 実行回数
+	 * @param totalMillis 合計実行時間 (ミリ秒)
+	 * @param avgMillis 平均実行時間 (ミリ秒)
+	 * @param maxMillis 最大実行時間 (ミリ秒)
+	 * @param rows 合計行数 (検索は取得行数、更新は更新行数)
+	 * @param slowCount スロークエリ閾値以上の実行回数
+	 */
+	public record SqlStat(
+		String sql,
+		long count,
+		double totalMillis,
+		double avgMillis,
+		double maxMillis,
+		long rows,
+		long slowCount
+	) {}
+
+	/**
+	 * SQL ごとの統計を合計実行時間の降順で取得します。
+	 * @return SQL ごとの統計リスト
+	 */
+	public static List<SqlStat> sqlStats() {
+		return stats.entrySet().stream()
+				.map(e -> e.getValue().toSqlStat(e.getKey()))
+				.sorted(Comparator.comparingDouble(SqlStat::totalMillis).reversed())
+				.toList();
+	}
+
+	private static final int MAX_SQL_COUNT = 1000;
+	private static final String START_NANOS = SqlMetricsFilter.class.getName() + ".START_NANOS";
+	private static final Map<String, Stat> stats = new ConcurrentHashMap<>();
+	private static volatile long jdbcSlowQueryNanos = 500_000_000;
+	private final long slowQueryNanos;
+
+	/**
+	 * SQL フィルターを作成します。
+	 * @param slowQueryMillis スロークエリとしてログ出力する実行時間の閾値 (ミリ秒)
+	 */
+	public SqlMetricsFilter(long slowQueryMillis) {
+		this.slowQueryNanos = slowQueryMillis * 1_000_000;
+	}
+
+	/**
+	 * recordJdbc のスロークエリの閾値を設定します (AutoTransactionFilter の初期化時に SQL フィルターと同じ値を設定)。
+	 * @param slowQueryMillis スロークエリとしてログ出力する実行時間の閾値 (ミリ秒)
+	 */
+	public static void setJdbcSlowQueryMillis(long slowQueryMillis) {
+		jdbcSlowQueryNanos = slowQueryMillis * 1_000_000;
+	}
+
+	/**
+	 * uroboroSQL を経由せずに JDBC で実行した検索の実行時間、統計、スロークエリを記録します。
+	 * @param sqlName SQL 名 (統計のキー)
+	 * @param executableSql 実行した SQL (スロークエリログ用)
+	 * @param elapsedNanos PreparedStatement の作成から executeQuery の完了までの時間
+	 * @param rows 取得行数
+	 * @param params バインドパラメーター (スロークエリログ用)
+	 */
+	public static void recordJdbc(String sqlName, String executableSql, long elapsedNanos, long rows, Map<String, ?> params) {
+		Metrics.DB.histogram("query").record(elapsedNanos);
+		Stat stat = stat(sqlName);
+		stat.record(elapsedNanos, rows);
+		if (elapsedNanos >= jdbcSlowQueryNanos) {
+			stat.slowCount.increment();
+			log.warn("スロークエリ {}ms [{}] {} {}", elapsedNanos / 1_000_000, servletPath(), executableSql.strip().replaceAll("\\s+", " "), params);
+		}
+	}
+
+	/** SQL ごとの集計値 (ロックフリー) */
+	private static class Stat {
+
+		private final LongAdder count = new LongAdder();
+		private final LongAdder totalNanos = new LongAdder();
+		private final AtomicLong maxNanos = new AtomicLong();
+		private final LongAdder rows = new LongAdder();
+		private final LongAdder slowCount = new LongAdder();
+
+		void record(long elapsedNanos, long rows) {
+			count.increment();
+			totalNanos.add(elapsedNanos);
+			if (elapsedNanos > maxNanos.get()) maxNanos.accumulateAndGet(elapsedNanos, Math::max);
+			this.rows.add(rows);
+		}
+
+		SqlStat toSqlStat(String sql) {
+			long n = count.sum();
+			long total = totalNanos.sum();
+			return new SqlStat(sql, n, total / 1e6, n == 0 ? 0 : total / 1e6 / n, maxNanos.get() / 1e6, rows.sum(), slowCount.sum());
+		}
+	}
+
+	@Override
+	public PreparedStatement doPreparedStatement(SqlContext sqlContext, PreparedStatement preparedStatement) {
+		sqlContext.contextAttrs().put(START_NANOS, System.nanoTime());
+		return preparedStatement;
+	}
+
+	@Override
+	public ResultSet doQuery(SqlContext sqlContext, PreparedStatement preparedStatement, ResultSet resultSet) {
+		Stat stat = record(sqlContext, "query", 0);
+		return stat == null ? resultSet : countRows(resultSet, stat);
+	}
+
+	@Override
+	public int doUpdate(SqlContext sqlContext, PreparedStatement preparedStatement, int result) {
+		record(sqlContext, "update", result);
+		return result;
+	}
+
+	@Override
+	public int[] doBatch(SqlContext sqlContext, PreparedStatement preparedStatement, int[] result) {
+		long rows = 0;
+		for (int count : result) {
+			if (count > 0) rows += count;
+		}
+		record(sqlContext, "batch", rows);
+		return result;
+	}
+
+	/** 実行時間、統計、スロークエリを記録 */
+	private Stat record(SqlContext sqlContext, String type, long rows) {
+		Object startNanos = sqlContext.contextAttrs().remove(START_NANOS);
+		if (startNanos == null) return null;
+		long elapsedNanos = System.nanoTime() - (Long) startNanos;
+		Metrics.DB.histogram(type).record(elapsedNanos);
+
+		Stat stat = stat(sqlContext.getSqlName() != null ? sqlContext.getSqlName() : sqlContext.getSql().strip().replaceAll("\\s+", " "));
+		stat.record(elapsedNanos, rows);
+		if (elapsedNanos >= slowQueryNanos) {
+			stat.slowCount.increment();
+			log.warn("スロークエリ {}ms [{}] {} {}", elapsedNanos / 1_000_000, servletPath(),
+					sqlContext.getExecutableSql().strip().replaceAll("\\s+", " "), bindParams(sqlContext));
+		}
+		return stat;
+	}
+
+	/** SQL ごとの集計値 (SQL の種類が上限に達した場合は other に集計) */
+	private static Stat stat(String sql) {
+		Stat stat = stats.get(sql);
+		if (stat == null) {
+			if (stats.size() >= MAX_SQL_COUNT) sql = "other";
+			stat = stats.computeIfAbsent(sql, k -> new Stat());
+		}
+		return stat;
+	}
+
+	/** ResultSet#next で true を返した回数を、クローズ時に行数として加算 */
+	private static ResultSet countRows(ResultSet resultSet, Stat stat) {
+		long[] rows = {0};
+		return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] {ResultSet.class},
+			(proxy, method, args) -> {
+				try {
+					Object result = method.invoke(resultSet, args);
+					if (method.getName().equals("next") && Boolean.TRUE.equals(result)) {
+						rows[0]++;
+					} else if (method.getName().equals("close") && rows[0] > 0) {
+						stat.rows.add(rows[0]);
+						rows[0] = 0;
+					}
+					return result;
+				} catch (InvocationTargetException e) {
+					throw e.getCause();
+				}
+			});
+	}
+
+	private static Map<String, Object> bindParams(SqlContext sqlContext) {
+		Map<String, Object> params = new LinkedHashMap<>();
+		for (String name : sqlContext.getBindNames()) {
+			Parameter param = sqlContext.getParam(name);
+			params.put(name, param == null ? null : param.getValue());
+		}
+		return params;
+	}
+
+	private static String servletPath() {
+		RequestContextFilter.RequestContext context = RequestContextFilter.current();
+		return context == null || context.req() == null ? "-" : context.req().getServletPath(); // バッチなどリクエスト外は "-"
+	}
+}
@@ -0,0 +1,80 @@
+package jp.example.form;
+
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.ClassUtils;
+
+import lombok.SneakyThrows;
+
+/** 
+ * フォームとエンティティなど、2 つのクラス間で同名プロパティをコピーするコピー機です。
+ * <pre>
+ * BeanUtils.copyProperties と同じく、コピー元で読み取り可能、コピー先で書き込み可能な同名プロパティをコピーします。
+ * コピー対象のプロパティと getter、setter の MethodHandle は、クラスの組み合わせごとに 1 回だけ解決します。
+ * 型が異なる場合は、文字列を経由して FormBinder と同じ変換を行います (変換できない型の組み合わせは対象外)。
+ * </pre>
+ * @param <S> コピー元の型
+ * @param <T> コピー先の型
+ * @author New Gradle Project Wizard (c) Pleiades MIT
+ */
+public class BeanCopier<S, T> {
+	
+	private final List<Property> properties = new ArrayList<>();
+	
+	/** コピー対象プロパティの getter、setter と変換関数 (型が同じ場合は null) */
+	private record Property(MethodHandle getter, MethodHandle setter, Function<String, Object> converter, boolean isPrimitive) {}
+	
+	/**
+	 * コピー機を構築します (クラスの static 初期化時などに 1 回だけ構築してください)。
+	 * @param sourceClass コピー元のクラス
+	 * @param targetClass コピー先のクラス
+	 */
+	@SneakyThrows
+	public BeanCopier(Class<S> sourceClass, Class<T> targetClass) {
+		Map<String, PropertyDescriptor> sourceProperties = List.of(
+				Introspector.getBeanInfo(sourceClass, Object.class).getPropertyDescriptors()).stream()
+				.filter(pd -> pd.getReadMethod() != null)
+				.collect(Collectors.toMap(PropertyDescriptor::getName, pd -> pd));
+		for (PropertyDescriptor targetPd : Introspector.getBeanInfo(targetClass, Object.class).getPropertyDescriptors()) {
+			PropertyDescriptor sourcePd = sourceProperties.get(targetPd.getName());
+			if (sourcePd == null || targetPd.getWriteMethod() == null) continue;
+			Class<?> targetType = targetPd.getPropertyType();
+			boolean isSameType = ClassUtils.isAssignable(sourcePd.getPropertyType(), targetType, true);
+			Function<String, Object> converter = isSameType ? null : FormBinder.converters.get(targetType);
+			if (!isSameType && converter == null) continue;
+			properties.add(new Property(
+				MethodHandles.publicLookup().unreflect(sourcePd.getReadMethod())
+					.asType(MethodType.methodType(Object.class, Object.class)),
+				MethodHandles.publicLookup().unreflect(targetPd.getWriteMethod())
+					.asType(MethodType.methodType(void.class, Object.class, Object.class)),
+				converter,
+				targetType.isPrimitive()));
+		}
+	}
+	
+	/**
+	 * コピー元のプロパティをコピー先に上書きコピーします。
+	 * @param source コピー元
+	 * @param target コピー先
+	 * @return 引数のコピー先
+	 */
+	@SneakyThrows
+	public T copy(S source, T target) {
+		for (Property property : properties) {
+			Object value = (Object) property.getter.invokeExact((Object) source);
+			if (value != null && property.converter != null) value = property.converter.apply(value.toString());
+			if (value == null && property.isPrimitive) continue;
+			property.setter.invokeExact((Object) target, value);
+		}
+		return target;
+	}
+}
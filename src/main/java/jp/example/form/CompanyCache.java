@@ -0,0 +1,127 @@
+package jp.example.form;
+
+import static jp.example.filter.AutoTransactionFilter.*;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import jp.example.entity.Company;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * ほとんど変更されない会社マスタの、コピーオンライト (スナップショット差し替え) 方式のインメモリキャッシュです。
+ * <pre>
+ * 会社の全件を不変のスナップショットとして保持し、参照はロックなしで volatile のスナップショットから行います。
+ * ・select タグの選択肢: スナップショットのリストを返却 (SQL なし)
+ * ・一覧の会社名: item と company を JOIN せずに、id 昇順の long 配列の二分探索で名前を取得 (ボクシングなし)
+ *
+ * 初回参照時に読み込み、以降は table_version の company のバージョン (AutoTransactionFilter#tableVersion、
+ * ノード内のメモリで SQL なし) がスナップショット作成時と異なる場合に再読み込みして差し替えます。
+ * 再読み込みは 1 スレッドのみが行い (シングルフライト)、同時に参照したスレッドはロックを保持せずに読み込み結果を待機します。
+ * 会社を変更する処理では touchTables("company") を呼び出してください。
+ * スナップショットの Company は共有されるため、呼び出し側で変更しないでください。
+ * </pre>
+ * @author New Gradle Project Wizard (c) Pleiades MIT
+ */
+@Slf4j
+public class CompanyCache {
+
+	private static final String TABLE_NAME = "company";
+
+	private final Supplier<List<Company>> loader;
+	private volatile Snapshot snapshot;
+
+	/** 読み込み中のスナップショット (読み込み中でない場合は null) */
+	private final AtomicReference<CompletableFuture<Snapshot>> loading = new AtomicReference<>();
+
+	/**
+	 * 会社の不変のスナップショットです。
+	 */
+	public static class Snapshot {
+
+		private final long tableVersion;
+		private final List<Company> companies;
+		private final long[] ids;
+		private final String[] names;
+
+		private Snapshot(long tableVersion, List<Company> companies) {
+			this.tableVersion = tableVersion;
+			this.companies = companies.stream().sorted(Comparator.comparingLong(Company::getId)).toList();
+			this.ids = this.companies.stream().mapToLong(Company::getId).toArray();
+			this.names = this.companies.stream().map(Company::getCompanyName).toArray(String[]::new);
+		}
+
+		/** @return 会社リスト (id 昇順、変更不可) */
+		public List<Company> companies() {
+			return companies;
+		}
+
+		/**
+		 * 会社名を取得します。
+		 * @param id 会社 id
+		 * @return 会社名。存在しない場合は null (LEFT JOIN と同じ)。
+		 */
+		public String name(long id) {
+			int index = Arrays.binarySearch(ids, id);
+			return index < 0 ? null : names[index];
+		}
+	}
+
+	/**
+	 * キャッシュを構築します (読み込みは初回参照時)。
+	 * @param loader 会社の全件の取得処理 (トランザクション内で呼び出し、レプリカの遅延したデータを保持しないようにプライマリから取得)
+	 */
+	public CompanyCache(Supplier<List<Company>> loader) {
+		this.loader = loader;
+	}
+
+	/**
+	 * 現在のスナップショットを取得します。テーブルが変更されている場合は再読み込みします。
+	 * 一覧のストリームなど、複数回参照する場合は取得したスナップショットを使用してください。
+	 * @return スナップショット
+	 */
+	@SneakyThrows
+	public Snapshot snapshot() {
+		long version = tableVersion(TABLE_NAME);
+		while (true) {
+			Snapshot current = snapshot;
+			if (current != null && current.tableVersion >= version) return current;
+			CompletableFuture<Snapshot> future = loading.get();
+			if (future == null) {
+				future = new CompletableFuture<>();
+				if (loading.compareAndSet(null, future)) return load(version, future);
+				continue;
+			}
+			try {
+				// 他のスレッドの読み込みを待機 (読み込み開始後にバージョンが変わった場合は、もう一度読み込み)
+				current = future.join();
+			} catch (CompletionException e) {
+				throw e.getCause();
+			}
+			if (current.tableVersion >= version) return current;
+		}
+	}
+
+	/** このスレッドのトランザクションで読み込み、待機中のスレッドに結果 (エラーを含む) を通知 */
+	private Snapshot load(long version, CompletableFuture<Snapshot> future) {
+		try {
+			// 読み込み中の変更は、読み込み前のバージョンで保持するため次回参照時に再読み込み
+			Snapshot current = new Snapshot(version, loader.get());
+			snapshot = current;
+			future.complete(current);
+			log.debug("会社キャッシュ読み込み {} 件 (バージョン {})", current.ids.length, version);
+			return current;
+		} catch (RuntimeException | Error e) {
+			future.completeExceptionally(e);
+			throw e;
+		} finally {
+			loading.set(null);
+		}
+	}
+}
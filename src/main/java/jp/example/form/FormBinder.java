@@ -0,0 +1,88 @@
+package jp.example.form;
+
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import org.apache.commons.lang3.math.NumberUtils;
+
+import lombok.SneakyThrows;
+
+/** 
+ * リクエストパラメーターをフォームのプロパティにセットするバインダーです。
+ * <pre>
+ * BeanUtils.populate と同じ型変換を、クラスごとに 1 回だけ解決した setter の MethodHandle と変換関数で行います。
+ * リクエストごとのリフレクションによるプロパティ検索や、BeanUtils のコンバーター検索を行いません。
+ * 
+ * ・String: そのまま (複数値の場合は最初の値)
+ * ・long、int (ラッパー含む): 数値に変換、変換できない場合はプリミティブは 0、ラッパーは null
+ * ・boolean (ラッパー含む): true、yes、y、on、1 は true (大文字小文字区別なし)、それ以外は false
+ * ・上記以外の型のプロパティは対象外
+ * </pre>
+ * @param <T> フォームの型
+ * @author New Gradle Project Wizard (c) Pleiades MIT
+ */
+public class FormBinder<T> {
+	
+	/** 型ごとの文字列からの変換関数 */
+	static final Map<Class<?>, Function<String, Object>> converters = Map.of(
+		String.class, s -> s,
+		long.class, s -> NumberUtils.toLong(s.trim()),
+		Long.class, s -> NumberUtils.createLong(NumberUtils.isCreatable(s.trim()) ? s.trim() : null),
+		int.class, s -> NumberUtils.toInt(s.trim()),
+		Integer.class, s -> NumberUtils.createInteger(NumberUtils.isCreatable(s.trim()) ? s.trim() : null),
+		boolean.class, FormBinder::toBoolean,
+		Boolean.class, FormBinder::toBoolean
+	);
+	
+	private static final Set<String> TRUE_STRINGS = Set.of("true", "yes", "y", "on", "1");
+	
+	private final Map<String, Setter> setters = new LinkedHashMap<>();
+	
+	/** プロパティの setter と変換関数 */
+	private record Setter(MethodHandle handle, Function<String, Object> converter) {}
+	
+	/**
+	 * 指定したクラスのバインダーを構築します (クラスの static 初期化時などに 1 回だけ構築してください)。
+	 * @param formClass フォームのクラス
+	 */
+	@SneakyThrows
+	public FormBinder(Class<T> formClass) {
+		for (PropertyDescriptor pd : Introspector.getBeanInfo(formClass, Object.class).getPropertyDescriptors()) {
+			Function<String, Object> converter = converters.get(pd.getPropertyType());
+			if (pd.getWriteMethod() == null || converter == null) continue;
+			MethodHandle handle = MethodHandles.publicLookup().unreflect(pd.getWriteMethod())
+					.asType(MethodType.methodType(void.class, Object.class, Object.class));
+			setters.put(pd.getName(), new Setter(handle, converter));
+		}
+	}
+	
+	/**
+	 * リクエストパラメーターをフォームにセットします。
+	 * @param form セット先のフォーム
+	 * @param parameterMap リクエストパラメーター (HttpServletRequest#getParameterMap)
+	 * @return 引数のフォーム
+	 */
+	@SneakyThrows
+	public T populate(T form, Map<String, String[]> parameterMap) {
+		for (Map.Entry<String, String[]> param : parameterMap.entrySet()) {
+			Setter setter = setters.get(param.getKey());
+			String[] values = param.getValue();
+			if (setter == null || values == null || values.length == 0) continue;
+			Object value = values[0] == null ? null : setter.converter.apply(values[0]);
+			if (value == null && setter.handle.type().parameterType(1).isPrimitive()) continue;
+			setter.handle.invokeExact((Object) form, value);
+		}
+		return form;
+	}
+	
+	private static Object toBoolean(String s) {
+		return TRUE_STRINGS.contains(s.trim().toLowerCase());
+	}
+}
@@ -0,0 +1,152 @@
+package jp.example.form;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import lombok.SneakyThrows;
+
+/**
+ * アイテムフォームの CSV (RFC 4180) の読み書きです。
+ * <pre>
+ * エクスポートとインポートで同じ列 (ヘッダー行はフォームのプロパティ名) を使用します。
+ * 書き込み、読み込みともに 1 行ずつ処理し、ファイル全体をメモリに保持しません。
+ *
+ *   id,name,releaseDate,faceAuth,companyId,companyName
+ *   1,iPhone 14 Pro Docomo版,2022-09-11,true,1,Apple
+ *
+ * 値にカンマ、ダブルクォート、改行を含む場合はダブルクォートで囲み、ダブルクォートは 2 つ重ねます。
+ * </pre>
+ * @author New Gradle Project Wizard (c) Pleiades MIT
+ */
+public class ItemCsv {
+
+	/** ヘッダー行の列名 (フォームのプロパティ名) */
+	public static final List<String> COLUMNS = List.of("id", "name", "releaseDate", "faceAuth", "companyId", "companyName");
+
+	private static final FormBinder<ItemForm> binder = new FormBinder<>(ItemForm.class);
+
+	/**
+	 * ヘッダー行を書き込みます。
+	 * @param out 書き込み先
+	 */
+	@SneakyThrows
+	public static void writeHeader(Writer out) {
+		out.write(String.join(",", COLUMNS));
+		out.write("\r\n");
+	}
+
+	/**
+	 * フォームを 1 行として書き込みます。
+	 * @param out 書き込み先
+	 * @param form アイテムフォーム
+	 */
+	@SneakyThrows
+	public static void writeRow(Writer out, ItemForm form) {
+		out.write(Long.toString(form.id));
+		out.write(',');
+		writeValue(out, form.name);
+		out.write(',');
+		writeValue(out, form.releaseDate);
+		out.write(',');
+		out.write(Boolean.toString(form.faceAuth));
+		out.write(',');
+		out.write(Long.toString(form.companyId));
+		out.write(',');
+		writeValue(out, form.companyName);
+		out.write("\r\n");
+	}
+
+	private static void writeValue(Writer out, String value) throws IOException {
+		if (value == null) return;
+		if (value.indexOf(',') == -1 && value.indexOf('"') == -1 && value.indexOf('\n') == -1 && value.indexOf('\r') == -1) {
+			out.write(value);
+			return;
+		}
+		out.write('"');
+		out.write(value.replace("\"", "\"\""));
+		out.write('"');
+	}
+
+	/**
+	 * CSV を 1 行ずつフォームに変換するイテレーターを作成します。
+	 * <pre>
+	 * 1 行目はヘッダー行として、列名 (COLUMNS のプロパティ名) と列位置の対応に使用します。
+	 * 列名が無い列は無視し、列が足りない行は不足分をセットしません。
+	 * </pre>
+	 * @param in 読み込み元 (BufferedReader など、バッファリングされていること)
+	 * @return フォームのイテレーター (空行はスキップ)
+	 */
+	@SneakyThrows
+	public static Iterator<ItemForm> reader(Reader in) {
+		List<String> header = readRecord(in);
+		if (header == null) return Collections.emptyIterator();
+		header.replaceAll(column -> column.replace("\uFEFF", "").trim()); // Excel などの BOM を除去
+		return new Iterator<>() {
+			private List<String> next = readRecord(in);
+
+			@Override public boolean hasNext() {
+				return next != null;
+			}
+
+			@Override @SneakyThrows public ItemForm next() {
+				if (next == null) throw new NoSuchElementException();
+				Map<String, String[]> values = new HashMap<>();
+				for (int i = 0; i < Math.min(header.size(), next.size()); i++) {
+					values.put(header.get(i), new String[] {next.get(i)});
+				}
+				next = readRecord(in);
+				return binder.populate(new ItemForm(), values);
+			}
+		};
+	}
+
+	/** 1 レコードを読み込み (クォート内の改行を含む、空行はスキップ、終端の場合は null) */
+	private static List<String> readRecord(Reader in) throws IOException {
+		List<String> record = new ArrayList<>();
+		StringBuilder value = new StringBuilder();
+		boolean isQuoted = false;
+		boolean hasValue = false;
+		int c;
+		while ((c = in.read()) != -1) {
+			if (isQuoted) {
+				if (c == '"') {
+					in.mark(1);
+					if (in.read() == '"') {
+						value.append('"');
+					} else {
+						in.reset();
+						isQuoted = false;
+					}
+				} else {
+					value.append((char) c);
+				}
+			} else if (c == '"') {
+				isQuoted = true;
+				hasValue = true;
+			} else if (c == ',') {
+				record.add(value.toString());
+				value.setLength(0);
+				hasValue = true;
+			} else if (c == '\r') {
+				continue;
+			} else if (c == '\n') {
+				if (!hasValue && value.length() == 0) continue; // 空行
+				break;
+			} else {
+				value.append((char) c);
+				hasValue = true;
+			}
+		}
+		if (c == -1 && !hasValue && value.length() == 0) return null;
+		record.add(value.toString());
+		return record;
+	}
+}
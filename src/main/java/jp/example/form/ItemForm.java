@@ -4,18 +4,32 @@ import static jp.example.filter.AutoFlashFilter.*;
 import static jp.example.filter.AutoTransactionFilter.*;
 import static org.apache.commons.lang3.StringUtils.*;
 
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
 
 import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 
-import org.apache.commons.beanutils.BeanUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
 
 import jp.example.entity.Company;
 import jp.example.entity.Item;
+import jp.example.filter.EventStreamHub;
 import lombok.Data;
 import lombok.NoArgsConstructor;
-import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 
 /** 
@@ -38,13 +52,105 @@ public class ItemForm {
 	public long companyId;
 	public String companyName;
 	
+	/** 楽観ロック用のバージョン (編集画面の hidden で往復し、変更時に DB の値と一致する場合のみ更新) */
+	public long version;
+	
+	/** リクエストパラメーター → フォーム、フォーム ⇔ エンティティの変換 (クラス初期化時に 1 回だけ構築) */
+	private static final FormBinder<ItemForm> requestBinder = new FormBinder<>(ItemForm.class);
+	private static final BeanCopier<ItemForm, Item> toEntityCopier = new BeanCopier<>(ItemForm.class, Item.class);
+	private static final BeanCopier<Item, ItemForm> toFormCopier = new BeanCopier<>(Item.class, ItemForm.class);
+	
+	/** 件数キャッシュ (検索文字列の onkeyup ごとの件数取得用、登録・更新・削除で無効化) */
+	private static final QueryResultCache<CountCondition, Long> countCache = new QueryResultCache<>(1000, Duration.ofSeconds(30));
+	
+	/** 名前の部分一致検索用インデックス (登録・更新・削除のコミット後に更新、他のノードでの変更はテーブルバージョンで検知して再構築) */
+	private static final ItemNameIndex nameIndex = new ItemNameIndex();
+	
+	/** 会社キャッシュ (select タグの選択肢と一覧の会社名、company テーブルの変更時に再読み込み) */
+	private static final CompanyCache companyCache = new CompanyCache(() -> primaryDao().query(Company.class).collect());
+	
+	/** 変更イベントの配信 (登録・変更・削除のコミット後に SSE で一覧画面に配信) */
+	private static final EventStreamHub changeEvents = new EventStreamHub("item");
+	
+	/** 一覧、件数の SQL (クラス初期化時に条件の組み合わせごとに展開、条件の順序は stream メソッドの真偽値の引数) */
+	private static final SqlTemplate findListSql = new SqlTemplate("item/find_list", "ids != null", "nameLike != null", "releaseDate != null");
+	private static final SqlTemplate countSql = new SqlTemplate("item/count", "ids != null", "nameLike != null", "releaseDate != null");
+	
+	/** 一覧のデフォルトの取得件数 */
+	public static final int DEFAULT_PAGE_SIZE = 100;
+	
+	/** 一覧の 1 ページの最大取得件数 (ストリームで取得する場合は制限なし) */
+	public static final int MAX_PAGE_SIZE = 1000;
+	
+	/** 非同期 (DB 専用スレッド) でストリームとして返却する 1 リクエストの最大件数 (全件はコンテナーのスレッドでエクスポート) */
+	public static final int MAX_STREAM_SIZE = 10_000;
+	
+	/** インデックスで特定した id を IN 条件で SQL に渡す最大件数 (超える場合は LIKE で検索、IN 句のパディングの上限) */
+	private static final int MAX_INDEX_IDS = 1000;
+	
+	/**
+	 * 一括処理 (executeBatch) の 1 リクエストの最大件数です。
+	 * <pre>
+	 * 採番された id の取得 (fetchGeneratedIds) と相関チェックは 1 回の IN 句で行うため、IN 句の要素数の上限
+	 * (Oracle の 1000、SqlTemplate#paddingInList のパディングの上限) に合わせます。
+	 * 1 件 150 バイト程度の json で約 150KB のリクエストとなり、1 トランザクションの行ロックの保持も 1 秒未満を想定します。
+	 * これを超える件数は CSV のインポート (IMPORT_BATCH_SIZE 件ごとにコミット) を使用してください。
+	 * </pre>
+	 */
+	public static final int MAX_BATCH_SIZE = 1000;
+	
+	/** インポートで 1 回の JDBC バッチ、コミットにまとめる件数 */
+	public static final int IMPORT_BATCH_SIZE = 1000;
+	
+	/** インポート結果に含めるエラーメッセージの最大件数 (件数は全件カウント) */
+	private static final int MAX_IMPORT_ERRORS = 100;
+	
+	/** 登録 SQL (一括処理、インポート共通) */
+	private static final String INSERT_SQL = """
+			INSERT INTO item (name, release_date, face_auth, company_id)
+			VALUES (/*name*/'iPhone', /*releaseDate*/'2022-09-11', /*faceAuth*/true, /*companyId*/1)
+		""";
+	
+	/**
+	 * 変更イベント (SSE のイベント名 item の data、一覧画面の行の差分更新用)。
+	 * 一括処理やインポートなど多数の変更はイベント名 reset (data なし) で配信し、クライアントは再検索します。
+	 * @param op 操作種別 (insert、update、delete)
+	 * @param id アイテム id
+	 * @param name 製品名 (delete の場合は null)
+	 * @param releaseDate 発売日
+	 * @param faceAuth 顔認証
+	 * @param companyId 会社 id
+	 * @param companyName 会社名
+	 * @param version 変更後のバージョン
+	 */
+	public record ItemChange(
+		Operation op,
+		long id,
+		String name,
+		String releaseDate,
+		boolean faceAuth,
+		long companyId,
+		String companyName,
+		long version
+	) {}
+	
+	/**
+	 * 件数キャッシュのキー (空白のみの条件は SQL の IF と同じく条件なしとして正規化)。
+	 * 他のノードでの変更は無効化されないため、item のテーブルバージョンをキーに含めます。
+	 */
+	private record CountCondition(String name, String releaseDate, long tableVersion) {
+		CountCondition {
+			name = defaultIfBlank(name, "");
+			releaseDate = defaultIfBlank(releaseDate, "");
+		}
+	}
+	
 	/**
 	 * リクエストパラメーターからフォームを構築します。
 	 * @param req コピー元となる HTTP サーブレットリクエスト
 	 */
-	@SneakyThrows
 	public ItemForm(HttpServletRequest req) {
-		BeanUtils.populate(this, req.getParameterMap());
+		requestBinder.populate(this, req.getParameterMap());
 		log.debug("リクエスト {}", this);
 		// hidden の id をセキュアにする場合はセッション保持や暗号化が必要
 	}
@@ -59,13 +165,7 @@ public class ItemForm {
 		
 		// エラーの場合は例外がスローされるため、画面に再表示する入力値を先にセット
 		req.setAttribute("form", this);
-		
-		// 形式チェック
-		valid(!name.isBlank(), "製品名は必須です。");
-		valid(name.matches("[^<>]+"), "製品名に <> は使用できません。(%d 文字目)", StringUtils.indexOfAny(name, "<>"));
-		valid(name.matches(".{10,25}"), "製品名は 10 〜 25 文字で入力してください。(現在 %d 文字)", name.length());
-		valid(!(name.matches("(?i).*iphone.*") && !faceAuth), "iPhone は顔認証を有効にしてください。");
-		valid(releaseDate.matches(".+1."), "発売日の日は 10 〜 19 日の範囲で入力してください。");
+		validateFormat();
 		
 		// DB 相関チェック (id: 変更時は自身を除外、登録時は 0 で DB に存在しないため実質 name 条件のみ)
 		dao().query(Item.class).notEqual("id", id).equal("name", name).exists(() -> {
@@ -75,18 +175,62 @@ public class ItemForm {
 	}
 	
 	/**
-	 * このフォームのデータを DB に新規登録します。
+	 * 登録、変更共通の入力値の形式をチェックします (DB にアクセスしない)。
+	 * @throws IllegalStateException 入力チェックエラーが発生した場合
+	 */
+	private void validateFormat() {
+		valid(name != null && !name.isBlank(), "製品名は必須です。");
+		valid(name.matches("[^<>]+"), "製品名に <> は使用できません。(%d 文字目)", StringUtils.indexOfAny(name, "<>"));
+		valid(name.matches(".{10,25}"), "製品名は 10 〜 25 文字で入力してください。(現在 %d 文字)", name.length());
+		valid(!(name.matches("(?i).*iphone.*") && !faceAuth), "iPhone は顔認証を有効にしてください。");
+		valid(releaseDate != null && isDate(releaseDate), "発売日は yyyy-MM-dd 形式の日付で入力してください。");
+		valid(releaseDate.matches(".+1."), "発売日の日は 10 〜 19 日の範囲で入力してください。");
+	}
+	
+	/** yyyy-MM-dd 形式の存在する日付か判定 (DB の DATE 型に変換できない値をインポートなどで登録しないように) */
+	private static boolean isDate(String value) {
+		try {
+			LocalDate.parse(value);
+			return true;
+		} catch (DateTimeParseException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * このフォームのデータを DB に新規登録し、採番された id をこのフォームにセットします。
 	 */
 	public void insert() {
-		dao().insert(copyTo(new Item()));
+		Item item = copyTo(new Item());
+		dao().insert(item);
+		id = item.id;
+		invalidateCache(id != 0 ? Collections.singletonMap(id, name) : fetchGeneratedIds(List.of(this)));
+		ItemChange change = toChange(Operation.insert, id, 0);
+		afterCommit(() -> changeEvents.publish("item", change));
 	}
 	
 	/**
-	 * このフォームの id を持つデータを DB から取得して、フォームの値をセットして更新します。
-	 * @throws Error DB に存在しない場合
+	 * このフォームの id と version が一致するデータを、1 回の UPDATE で更新します (楽観ロック)。
+	 * 事前の SELECT は行わず、更新件数が 0 件の場合は削除済みか、編集画面の表示後に変更されたものとします。
+	 * @throws Error DB に存在しないか、バージョンが一致しない場合
 	 */
 	public void update() {
-		dao().update(copyTo(findEntityById()));
+		int count = dao().updateWith("""
+				UPDATE item SET
+					name = /*name*/'iPhone',
+					release_date = /*releaseDate*/'2022-09-11',
+					face_auth = /*faceAuth*/true,
+					company_id = /*companyId*/1,
+					version = version + 1
+				WHERE id = /*id*/1 AND version = /*version*/0
+			""")
+			.param("id", id).param("name", name).param("releaseDate", releaseDate)
+			.param("faceAuth", faceAuth).param("companyId", companyId).param("version", version)
+			.count();
+		if (count == 0) throw new Error("指定された製品は、すでに削除されているか、別のユーザーにより変更されています。");
+		invalidateCache(Collections.singletonMap(id, name));
+		ItemChange change = toChange(Operation.update, id, version + 1);
+		afterCommit(() -> changeEvents.publish("item", change));
 	}
 	
 	/**
@@ -94,6 +238,362 @@ public class ItemForm {
 	 */
 	public void delete() {
 		dao().delete(copyTo(new Item()));
+		invalidateCache(Collections.singletonMap(id, null));
+		afterCommit(() -> changeEvents.publish("item", new ItemChange(Operation.delete, id, null, null, false, 0, null, 0)));
+	}
+	
+	/** 変更イベントを作成 (会社名はキャッシュから取得するため、コミット前のトランザクション内で呼び出し) */
+	private ItemChange toChange(Operation op, long itemId, long newVersion) {
+		return new ItemChange(op, itemId, name, releaseDate, faceAuth, companyId, 
+				companyCache.snapshot().name(companyId), newVersion);
+	}
+	
+	/**
+	 * 変更イベントの購読を開始します (Server-Sent Events、リクエストは非同期モードで継続)。
+	 * @param req HTTP サーブレットリクエスト (Last-Event-ID ヘッダーがある場合は以降のイベントを再送)
+	 * @param res HTTP サーブレットレスポンス
+	 */
+	public static void subscribeChanges(HttpServletRequest req, HttpServletResponse res) {
+		changeEvents.subscribe(req, res);
+	}
+	
+	/** 一括処理の操作種別 */
+	public enum Operation { insert, update, delete }
+	
+	/**
+	 * 一括処理の 1 件分の操作です。
+	 * @param op 操作種別
+	 * @param item 対象のフォーム (update、delete は id 必須)
+	 */
+	public record BatchOperation(
+		Operation op,
+		ItemForm item
+	) {}
+	
+	/**
+	 * 一括処理の 1 件分の結果です。
+	 * @param index リクエスト配列内の位置 (0 始まり)
+	 * @param op 操作種別
+	 * @param id 対象の id (登録は採番された id、エラーで登録しなかった場合は 0)
+	 * @param message エラーメッセージ (正常に処理された場合は null)
+	 */
+	public record BatchResult(
+		int index,
+		Operation op,
+		long id,
+		String message
+	) {}
+	
+	/**
+	 * 登録、変更、削除の操作をまとめて 1 トランザクションで実行します。
+	 * <pre>
+	 * 1. 各操作の形式をチェック (validate と同じ条件)。
+	 * 2. 変更、削除対象の存在とバージョン、製品名の重複を、バッチ全体で 1 回の SQL でチェック (バッチ内の前の操作も考慮)。
+	 * 3. エラーの無い操作を、削除、変更、登録の順に JDBC バッチで実行 (各 SQL 1 回のラウンドトリップ)。
+	 * 
+	 * エラーの操作はスキップし、結果の message にエラー内容をセットします (他の操作は実行)。
+	 * 登録の結果の id は採番された id で、フォームの id にもセットします (クライアントは続けて変更、削除が可能)。
+	 * 変更は findEntityById を経由せずに、フォームの値で直接更新します (作成日などフォームに無い列は変更しない)。
+	 * 変更は update と同じく item.version が DB のバージョンと一致する場合のみ実行し、一致しない操作は競合として
+	 * スキップします (結果の id は競合した id)。同じ id を続けて変更する場合は、前の変更で増加したバージョンを指定します。
+	 * 対象の行はチェックの SELECT でロック (FOR UPDATE) するため、チェック後にコミットまでの間に変更されることはありません。
+	 * </pre>
+	 * @param operations 操作リスト (最大 MAX_BATCH_SIZE 件)
+	 * @return 操作ごとの結果リスト (リクエストと同じ順序)
+	 * @throws IllegalStateException 件数が上限を超えた場合
+	 */
+	public static List<BatchResult> executeBatch(List<BatchOperation> operations) {
+		valid(operations.size() <= MAX_BATCH_SIZE, "一括処理は %d 件以内で指定してください。(現在 %d 件)", MAX_BATCH_SIZE, operations.size());
+		
+		// 形式チェック
+		String[] messages = new String[operations.size()];
+		Set<Long> targetIds = new LinkedHashSet<>();
+		Set<String> names = new LinkedHashSet<>();
+		for (int i = 0; i < operations.size(); i++) {
+			BatchOperation operation = operations.get(i);
+			try {
+				valid(operation.op() != null && operation.item() != null, "op と item は必須です。");
+				ItemForm form = operation.item();
+				if (operation.op() != Operation.delete) form.validateFormat();
+				if (operation.op() != Operation.insert) targetIds.add(form.id);
+				if (operation.op() != Operation.delete) names.add(form.name);
+			} catch (IllegalStateException e) {
+				messages[i] = e.getMessage();
+			}
+		}
+		
+		// DB 相関チェック (対象 id の存在、バージョンと製品名の重複を 1 回の SQL で取得し、バッチ内の操作順に状態を反映)
+		Map<Long, String> idToName = new HashMap<>();
+		Map<Long, Long> idToVersion = new HashMap<>();
+		Map<String, Long> nameToId = new HashMap<>();
+		if (!targetIds.isEmpty() || !names.isEmpty()) {
+			String sql = """
+					SELECT id, name, version
+					FROM item
+					WHERE 1 = 0
+						/*IF !ids.isEmpty()*/
+							OR id IN /*ids*/(1, 2)
+						/*END*/
+						/*IF !names.isEmpty()*/
+							OR name IN /*names*/('a', 'b')
+						/*END*/
+					FOR UPDATE
+				""";
+			try (Stream<Item> itemStream = dao().queryWith(sql)
+					.param("ids", List.copyOf(targetIds)).param("names", List.copyOf(names)).stream(Item.class)) {
+				itemStream.forEach(item -> {
+					if (targetIds.contains(item.id)) {
+						idToName.put(item.id, item.name);
+						idToVersion.put(item.id, item.version);
+					}
+					if (names.contains(item.name)) nameToId.put(item.name, item.id);
+				});
+			}
+		}
+		List<ItemForm> inserts = new ArrayList<>();
+		List<ItemForm> updates = new ArrayList<>();
+		List<ItemForm> deletes = new ArrayList<>();
+		for (int i = 0; i < operations.size(); i++) {
+			if (messages[i] != null) continue;
+			ItemForm form = operations.get(i).item();
+			long newId = -(i + 1); // 登録予定の仮 id (バッチ内の重複チェック用)
+			try {
+				switch (operations.get(i).op()) {
+				case insert -> {
+					valid(!nameToId.containsKey(form.name), "指定された製品名は、別の製品で使用されています。");
+					nameToId.put(form.name, newId);
+					inserts.add(form);
+				}
+				case update -> {
+					valid(idToName.containsKey(form.id), "指定された製品は、すでに削除されています。");
+					valid(idToVersion.get(form.id) == form.version, "指定された製品は、別のユーザーにより変更されています。");
+					Long ownerId = nameToId.get(form.name);
+					valid(ownerId == null || ownerId == form.id, "指定された製品名は、別の製品で使用されています。");
+					nameToId.remove(idToName.put(form.id, form.name), form.id);
+					nameToId.put(form.name, form.id);
+					idToVersion.put(form.id, form.version + 1);
+					updates.add(form);
+				}
+				case delete -> {
+					valid(idToName.containsKey(form.id), "指定された製品は、すでに削除されています。");
+					nameToId.remove(idToName.remove(form.id), form.id);
+					updates.removeIf(update -> update.id == form.id); // 削除を先に実行するため、前の変更は実行しない
+					deletes.add(form);
+				}
+				}
+			} catch (IllegalStateException e) {
+				messages[i] = e.getMessage();
+			}
+		}
+		
+		// JDBC バッチ実行 (同一 id への操作は検証済みのため、削除 → 変更 → 登録の順にまとめても結果は同じ)
+		executeBatch("DELETE FROM item WHERE id = /*id*/1", deletes);
+		int updatedCount = executeBatch("""
+				UPDATE item SET
+					name = /*name*/'iPhone',
+					release_date = /*releaseDate*/'2022-09-11',
+					face_auth = /*faceAuth*/true,
+					company_id = /*companyId*/1,
+					version = version + 1
+				WHERE id = /*id*/1 AND version = /*version*/0
+			""", updates);
+		if (updatedCount != updates.size()) { // ロック済みのため通常は発生しない (ロールバック)
+			throw new IllegalStateException("一括処理の変更が競合しました。(更新 " + updatedCount + " / " + updates.size() + " 件)");
+		}
+		executeBatch(INSERT_SQL, inserts);
+		if (!(inserts.isEmpty() && updates.isEmpty() && deletes.isEmpty())) {
+			Map<Long, String> changes = new HashMap<>(); // 実行順 (削除 → 変更 → 登録) と同じく、削除を優先
+			updates.forEach(form -> changes.put(form.id, form.name));
+			deletes.forEach(form -> changes.put(form.id, null));
+			changes.putAll(fetchGeneratedIds(inserts));
+			invalidateCache(changes);
+			afterCommit(() -> changeEvents.publish("reset", null)); // 件数が多い場合があるため、行単位ではなく再検索を通知
+		}
+		
+		List<BatchResult> results = new ArrayList<>(operations.size());
+		for (int i = 0; i < operations.size(); i++) {
+			BatchOperation operation = operations.get(i);
+			boolean isNotInserted = operation.op() == Operation.insert && messages[i] != null;
+			long id = operation.item() == null || isNotInserted ? 0 : operation.item().id; // 登録は fetchGeneratedIds でセット済み
+			results.add(new BatchResult(i, operation.op(), id, messages[i]));
+		}
+		log.debug("一括処理 登録 {} 変更 {} 削除 {} エラー {}", inserts.size(), updates.size(), deletes.size(), 
+				operations.size() - inserts.size() - updates.size() - deletes.size());
+		return results;
+	}
+	
+	/**
+	 * インポート結果です。
+	 * @param insertedCount 登録件数
+	 * @param errorCount エラー件数
+	 * @param errors エラーメッセージ (先頭から最大 MAX_IMPORT_ERRORS 件)
+	 */
+	public record ImportResult(
+		long insertedCount,
+		long errorCount,
+		List<String> errors
+	) {}
+	
+	/**
+	 * フォームを逐次読み込みながら、IMPORT_BATCH_SIZE 件ごとに JDBC バッチで登録してコミットします。
+	 * <pre>
+	 * 保持するのは 1 バッチ分のフォームのみのため、件数に関係なくメモリ使用量は一定です。
+	 * 各行は validate と同じ形式チェックと、製品名の重複チェック (バッチごとに 1 回の SQL とバッチ内) を行い、
+	 * エラーの行はスキップして結果にエラーメッセージを追加します。
+	 * DB の登録でエラーになった場合は、そのバッチをロールバックして 1 件ずつ登録し、エラーの行を結果に追加します。
+	 * バッチごとにコミットするため、途中で読み込みエラーなどが発生した場合も、それまでのバッチは登録されます。
+	 * コミットごとに item のテーブルバージョンを増加 (ETag の変更) し、件数キャッシュを無効化、名前インデックスに
+	 * 登録した行を差分で反映して、一覧画面に再検索を通知します。
+	 * </pre>
+	 * @param forms 登録するフォームのイテレーター (CSV、NDJSON などのパーサー)
+	 * @return インポート結果
+	 */
+	public static ImportResult importForms(Iterator<ItemForm> forms) {
+		long rowNumber = 0;
+		long insertedCount = 0;
+		ImportErrors errors = new ImportErrors();
+		List<ItemForm> batch = new ArrayList<>(IMPORT_BATCH_SIZE);
+		List<Long> batchRowNumbers = new ArrayList<>(IMPORT_BATCH_SIZE);
+		while (true) {
+			try {
+				if (!forms.hasNext()) break;
+				batch.add(forms.next());
+				batchRowNumbers.add(++rowNumber);
+			} catch (RuntimeException e) {
+				errors.add(rowNumber + 1, "読み込みを中断しました。" + e.getMessage());
+				break;
+			}
+			if (batch.size() == IMPORT_BATCH_SIZE) {
+				insertedCount += importBatch(batch, batchRowNumbers, errors);
+			}
+		}
+		insertedCount += importBatch(batch, batchRowNumbers, errors);
+		log.debug("インポート 登録 {} エラー {}", insertedCount, errors.count);
+		return new ImportResult(insertedCount, errors.count, errors.messages);
+	}
+	
+	/** 1 バッチ分を検証して登録、コミット (引数のリストはクリア) */
+	private static int importBatch(List<ItemForm> batch, List<Long> batchRowNumbers, ImportErrors errors) {
+		if (batch.isEmpty()) return 0;
+		Set<String> names = new HashSet<>();
+		for (ItemForm form : batch) {
+			if (form.name != null) names.add(form.name);
+		}
+		Set<String> existingNames = new HashSet<>();
+		if (!names.isEmpty()) {
+			try (Stream<Item> itemStream = dao().queryWith("SELECT name FROM item WHERE name IN /*names*/('a', 'b')")
+					.param("names", List.copyOf(names)).stream(Item.class)) {
+				itemStream.forEach(item -> existingNames.add(item.name));
+			}
+		}
+		List<ItemForm> inserts = new ArrayList<>(batch.size());
+		List<Long> insertRowNumbers = new ArrayList<>(batch.size());
+		for (int i = 0; i < batch.size(); i++) {
+			ItemForm form = batch.get(i);
+			try {
+				form.validateFormat();
+				valid(existingNames.add(form.name), "指定された製品名は、別の製品で使用されています。");
+				inserts.add(form);
+				insertRowNumbers.add(batchRowNumbers.get(i));
+			} catch (IllegalStateException e) {
+				errors.add(batchRowNumbers.get(i), e.getMessage());
+			}
+		}
+		batch.clear();
+		batchRowNumbers.clear();
+		if (inserts.isEmpty()) return 0;
+		try {
+			insertAndCommit(inserts);
+			return inserts.size();
+		} catch (RuntimeException e) {
+			rollback();
+			log.debug("インポート バッチ登録エラーのため 1 件ずつ登録 {}", e.toString());
+		}
+		
+		// JDBC バッチのいずれかの行が DB でエラーになった場合は、1 件ずつ登録してエラーの行を特定
+		int insertedCount = 0;
+		for (int i = 0; i < inserts.size(); i++) {
+			try {
+				insertAndCommit(List.of(inserts.get(i)));
+				insertedCount++;
+			} catch (RuntimeException e) {
+				rollback();
+				String cause = ExceptionUtils.getRootCauseMessage(e);
+				errors.add(insertRowNumbers.get(i), "登録できませんでした。" + StringUtils.substringBefore(cause, "\n"));
+			}
+		}
+		return insertedCount;
+	}
+	
+	/**
+	 * 登録して item の変更を記録し、コミットします。
+	 * コミット後に件数キャッシュを無効化、名前インデックスに差分で反映し、一覧画面に再検索を通知します。
+	 */
+	private static void insertAndCommit(List<ItemForm> forms) {
+		executeBatch(INSERT_SQL, forms);
+		invalidateCache(fetchGeneratedIds(forms));
+		afterCommit(() -> changeEvents.publish("reset", null));
+		commit();
+	}
+	
+	/** インポートのエラー (件数は全件、メッセージは最大 MAX_IMPORT_ERRORS 件) */
+	private static class ImportErrors {
+		
+		private final List<String> messages = new ArrayList<>();
+		private long count;
+		
+		void add(long rowNumber, String message) {
+			count++;
+			if (messages.size() < MAX_IMPORT_ERRORS) messages.add(rowNumber + " 件目: " + message);
+		}
+	}
+	
+	/**
+	 * 登録したフォームに採番された id をセットします。
+	 * JDBC バッチでは生成キーを取得できないため、登録後の同じトランザクションで製品名から 1 回の SQL で取得します。
+	 * 製品名は登録前に重複をチェック済みのため一意ですが、同時に同じ製品名が登録された場合は最大の id をセットします。
+	 * @param forms 登録したフォーム (最大 MAX_BATCH_SIZE 件)
+	 * @return 採番された id と製品名 (名前インデックスの差分更新用)
+	 */
+	private static Map<Long, String> fetchGeneratedIds(List<ItemForm> forms) {
+		if (forms.isEmpty()) return Collections.emptyMap();
+		Map<String, ItemForm> nameToForm = new HashMap<>();
+		forms.forEach(form -> nameToForm.put(form.name, form));
+		Map<Long, String> generatedIds = new HashMap<>();
+		try (Stream<Item> itemStream = dao().queryWith("SELECT id, name FROM item WHERE name IN /*names*/('a', 'b') ORDER BY id")
+				.param("names", SqlTemplate.paddingInList(List.copyOf(nameToForm.keySet()), MAX_BATCH_SIZE)).stream(Item.class)) {
+			itemStream.forEach(item -> {
+				nameToForm.get(item.name).id = item.id;
+				generatedIds.put(item.id, item.name);
+			});
+		}
+		return generatedIds;
+	}
+	
+	private static int executeBatch(String sql, List<ItemForm> forms) {
+		if (forms.isEmpty()) return 0;
+		return dao().batchWith(sql).paramStream(forms.stream().map(form -> {
+			Map<String, Object> params = new HashMap<>(); // 削除では id 以外が null の場合がある
+			params.put("id", form.id);
+			params.put("name", form.name);
+			params.put("releaseDate", form.releaseDate);
+			params.put("faceAuth", form.faceAuth);
+			params.put("companyId", form.companyId);
+			params.put("version", form.version);
+			return params;
+		})).count();
+	}
+	
+	/**
+	 * 更新系処理後にキャッシュを無効化し、item のテーブルバージョンを増加します (ETag の変更)。
+	 * コミットまでの間に他のリクエストが更新前の件数をキャッシュする可能性があるため、コミット後にも無効化します。
+	 * 名前インデックスは、コミット後に変更後のテーブルバージョンで差分更新します。
+	 * @param changes アイテム id と変更後のアイテム名 (削除の場合は null)
+	 */
+	private static void invalidateCache(Map<Long, String> changes) {
+		touchTable("item", version -> nameIndex.update(version, changes));
+		countCache.invalidate();
+		afterCommit(countCache::invalidate);
 	}
 	
 	/**
@@ -101,10 +601,8 @@ public class ItemForm {
 	 * @param targetEntity コピー先となるエンティティ
 	 * @return 引数のエンティティ
 	 */
-	@SneakyThrows
 	private Item copyTo(Item targetEntity) {
-		BeanUtils.copyProperties(targetEntity, this);
-		return targetEntity;
+		return toEntityCopier.copy(this, targetEntity);
 	}
 	
 	/**
@@ -121,60 +619,136 @@ public class ItemForm {
 	 * @return このフォーム
 	 * @throws Error DB に存在しない場合
 	 */
-	@SneakyThrows
 	public ItemForm findFormById() {
-		BeanUtils.copyProperties(this, findEntityById());
-		return this;
+		return toFormCopier.copy(findEntityById(), this);
 	}
 	
 	/**
-	 * このフォームを条件としてアイテムフォームリストを取得します。
-	 * @return アイテムフォームリスト
+	 * このフォームを条件としてアイテムフォームリストの先頭ページを取得します。
+	 * @return アイテムフォームリスト (id 昇順、最大 DEFAULT_PAGE_SIZE 件)
 	 */
 	public List<ItemForm> findFormList() {
-		String sql = """
-				SELECT item.*, company.company_name
-				FROM item
-				LEFT JOIN company ON item.company_id = company.id
-				WHERE 1 = 1
-					/*IF SF.isNotBlank(name)*/
-						AND name LIKE /*SF.contains(name)*/'Pro' escape /*#ESC_CHAR*/'$'
-					/*END*/
-					/*IF SF.isNotBlank(releaseDate)*/
-						AND release_date = /*releaseDate*/'2022-09-11'
-					/*END*/
-				LIMIT 100
-			""";
-		List<ItemForm> itemList = dao().queryWith(sql).paramBean(this).collect(ItemForm.class);
-		log.debug("WHERE name={} releaseDate={} \n{}", name, releaseDate, joinWith("\n", itemList.toArray()));
-		return itemList;
+		return findFormList(0, DEFAULT_PAGE_SIZE);
+	}
+	
+	/**
+	 * このフォームを条件としてアイテムフォームリストを取得します (id をカーソルとしたキーセットページング)。
+	 * @param afterId カーソル。この id より大きいアイテムを取得 (先頭ページは 0、次ページは前ページ最後の id)
+	 * @param limit 取得件数 (最大 MAX_PAGE_SIZE 件)
+	 * @return アイテムフォームリスト (id 昇順)
+	 */
+	public List<ItemForm> findFormList(long afterId, int limit) {
+		try (Stream<ItemForm> itemStream = streamFormList(afterId, Math.min(limit, MAX_PAGE_SIZE))) {
+			List<ItemForm> itemList = itemStream.toList();
+			log.debug("WHERE name={} releaseDate={} afterId={} \n{}", name, releaseDate, afterId, joinWith("\n", itemList.toArray()));
+			return itemList;
+		}
+	}
+	
+	/**
+	 * このフォームを条件としてアイテムフォームを JDBC カーソルから逐次取得するストリームを取得します。
+	 * <pre>
+	 * 全件をリストとしてメモリに保持せずに、レスポンスへ逐次書き込む場合などに使用します。
+	 * 製品名の部分一致は、可能な場合は名前インデックスで id を特定して検索します。
+	 * 戻り値のストリームは JDBC の ResultSet を保持しているため、try-with-resources などで必ずクローズしてください。
+	 * </pre>
+	 * @param afterId カーソル。この id より大きいアイテムを取得 (先頭は 0)
+	 * @param limit 取得件数の上限
+	 * @return アイテムフォームのストリーム (id 昇順)
+	 */
+	public Stream<ItemForm> streamFormList(long afterId, long limit) {
+		long[] ids = searchNameIndex();
+		if (ids != null) ids = Arrays.stream(ids).filter(id -> id > afterId).toArray();
+		if (ids != null && ids.length == 0) return Stream.empty();
+		List<Long> idList = null;
+		if (ids != null) {
+			// 製品名のみが条件の場合は先頭 limit 件、発売日も条件の場合は全候補 (上限を超える場合は LIKE で検索)
+			long idCount = isBlank(releaseDate) ? Math.min(limit, ids.length) : ids.length;
+			if (idCount <= MAX_INDEX_IDS) idList = toList(ids, (int) idCount);
+		}
+		String nameLike = idList == null ? nameLike() : null;
+		Map<String, Object> params = conditionParams(idList, nameLike);
+		params.put("afterId", afterId);
+		params.put("limit", limit);
+		CompanyCache.Snapshot companies = companyCache.snapshot(); // 会社名は JOIN せずにキャッシュから取得
+		return findListSql.stream(dao(), params, resultSet -> {
+			ItemForm form = new ItemForm();
+			form.id = resultSet.getLong("id");
+			form.name = resultSet.getString("name");
+			form.releaseDate = resultSet.getString("release_date");
+			form.faceAuth = resultSet.getBoolean("face_auth");
+			form.companyId = resultSet.getLong("company_id");
+			form.companyName = companies.name(form.companyId);
+			form.version = resultSet.getLong("version");
+			return form;
+		}, idList != null, nameLike != null, isNotBlank(releaseDate));
 	}
 	
 	/**
 	 * このフォームを条件としてアイテム件数を取得します。
+	 * 同じ条件の件数はキャッシュされ、同時に同じ条件で呼び出された場合は 1 回のみ SQL を実行します。
+	 * 製品名のみが条件の場合は、名前インデックスから SQL を実行せずに件数を取得します。
 	 * @return 件数
 	 */
 	public long count() {
-		String sql = """
-				SELECT COUNT(*)
-				FROM item
-				WHERE 1 = 1
-					/*IF SF.isNotBlank(name)*/
-						AND name LIKE /*SF.contains(name)*/'Pro' escape /*#ESC_CHAR*/'$'
-					/*END*/
-					/*IF SF.isNotBlank(releaseDate)*/
-						AND release_date = /*releaseDate*/'2022-09-11'
-					/*END*/
-			""";
-		return dao().queryWith(sql).paramBean(this).one(long.class);
+		return countCache.get(new CountCondition(name, releaseDate, tableVersion("item")), this::countFromDb);
+	}
+	
+	private long countFromDb() {
+		long[] ids = searchNameIndex();
+		if (ids != null && (ids.length == 0 || isBlank(releaseDate))) return ids.length;
+		List<Long> idList = ids != null && ids.length <= MAX_INDEX_IDS ? toList(ids, ids.length) : null;
+		String nameLike = idList == null ? nameLike() : null;
+		try (Stream<Long> countStream = countSql.stream(dao(), conditionParams(idList, nameLike), resultSet -> resultSet.getLong(1),
+				idList != null, nameLike != null, isNotBlank(releaseDate))) {
+			return countStream.findFirst().orElseThrow();
+		}
+	}
+	
+	/** 一覧、件数の SQL の検索条件のバインド変数 (IN 句の要素数は PreparedStatement キャッシュのために揃える) */
+	private Map<String, Object> conditionParams(List<Long> idList, String nameLike) {
+		Map<String, Object> params = new HashMap<>();
+		params.put("ids", SqlTemplate.paddingInList(idList, MAX_INDEX_IDS));
+		params.put("nameLike", nameLike);
+		params.put("releaseDate", releaseDate);
+		return params;
+	}
+	
+	/**
+	 * 製品名の部分一致の LIKE パターンを取得します (SQL ファイルの ESCAPE '$' でエスケープ)。
+	 * @return LIKE パターン。製品名の条件が無い場合は null。
+	 */
+	private String nameLike() {
+		if (isBlank(name)) return null;
+		return "%" + name.replace("$", "$$").replace("%", "$%").replace("_", "$_") + "%";
+	}
+	
+	/**
+	 * 製品名の部分一致をインデックスで検索します。
+	 * インデックスが未構築か、item のテーブルバージョンが変わっている場合は、プライマリから読み込んで構築します
+	 * (GET でレプリカを使用している場合も、遅延したデータでインデックスを構築しないように)。
+	 * @return 製品名を含むアイテムの昇順 id 配列。製品名の条件が無い場合やインデックスで検索できない場合
+	 *         (他のリクエストで構築中の場合を含む) は null。
+	 */
+	private long[] searchNameIndex() {
+		if (isBlank(name)) return null;
+		if (!nameIndex.buildIfNeeded(tableVersion("item"), () -> primaryDao().queryWith("SELECT id, name FROM item").stream(Item.class))) {
+			return null;
+		}
+		return nameIndex.search(name);
+	}
+	
+	private static List<Long> toList(long[] ids, int limit) {
+		return Arrays.stream(ids).limit(limit).boxed().toList();
 	}
 	
 	/**
 	 * 会社 select タグ選択肢を取得します。
 	 * JSP EL からも ${form.companySelectOptions} で参照できるように get プレフィックスを使用しています。
-	 * @return 会社 select タグ選択肢
+	 * 会社キャッシュから取得するため、company テーブルが変更されていない場合は SQL を実行しません。
+	 * @return 会社 select タグ選択肢 (id 昇順、変更不可)
 	 */
 	public List<Company> getCompanySelectOptions() {
-		return dao().query(Company.class).asc("id").collect();
+		return companyCache.snapshot().companies();
 	}
 }
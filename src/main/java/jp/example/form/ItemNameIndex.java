@@ -0,0 +1,191 @@
+package jp.example.form;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import jp.example.entity.Item;
+import lombok.extern.slf4j.Slf4j;
+
+/** 
+ * アイテム名の部分一致 (LIKE '%term%') 検索用の N-gram 転置インデックスです。
+ * <pre>
+ * 前方一致以外の LIKE では DB のインデックス ix__item__name が使用されずに全件走査となるため、アプリ内に
+ * 2 文字単位 (bigram) の転置インデックスを保持し、検索文字列を含むアイテムの id を DB にアクセスせずに特定します。
+ * 文字単位のため、日本語などのマルチバイト文字も同様に検索できます。
+ * 
+ * ・初回検索時に item テーブルから構築し、以降は登録、変更、削除 (一括処理、インポートを含む) のコミット後に更新します。
+ *   構築はロックの外で行い、完了後に置き換えます。構築中に他のスレッドから検索した場合は、構築を待機せずに
+ *   呼び出し側で LIKE 検索します (構築中も、最新のバージョンのインデックスでの検索と差分更新は待機しない)。
+ * ・構築時の item のテーブルバージョン (AutoTransactionFilter#tableVersion) を保持し、現在のバージョンと異なる場合は
+ *   次回検索時に再構築します (他のノードでの変更は、テーブルバージョンの取り込み後に反映)。
+ *   このノードでの変更は、変更後のバージョンが保持しているバージョンの次の場合のみ差分で反映し、それ以外は再構築します。
+ * ・候補 id は保持している名前で String#contains により再確認するため、検索結果は LIKE と同じです。
+ *   (H2 のデフォルトと同じく大文字小文字を区別、照合順序で区別しない DB の場合は正規化が必要)
+ * ・検索文字列が 1 文字の場合は対象外です (呼び出し側で LIKE 検索)。
+ * ・変更、削除された名前の古いエントリは検索時に除外され、一定量を超えると次回検索時に再構築します。
+ * </pre>
+ * @author New Gradle Project Wizard (c) Pleiades MIT
+ */
+@Slf4j
+public class ItemNameIndex {
+	
+	private static final int N = 2;
+	
+	/** 構築済みのインデックス (未構築の場合は null、差分更新は lock の書き込みロックで反映) */
+	private volatile Snapshot snapshot;
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private final ReentrantLock buildLock = new ReentrantLock();
+	
+	/**
+	 * インデックスが未構築か、構築時より item のテーブルバージョンが新しい場合は構築します。
+	 * <pre>
+	 * 構築はロックの外で新しいインデックスに読み込み、完了後に置き換えます (構築中も検索と差分更新は待機しない)。
+	 * 同時に呼び出された場合は 1 スレッドのみが構築し、他のスレッドは待機せずに false を返します。
+	 * </pre>
+	 * @param version 現在の item のテーブルバージョン (ストリームの取得前に取得した値)
+	 * @param itemStreamSupplier id と name を持つ全アイテムのストリーム (クローズはこのメソッドで行う)
+	 * @return version 以降のインデックスで検索できる場合は true。他のスレッドが構築中の場合は false (呼び出し側で LIKE 検索)。
+	 */
+	public boolean buildIfNeeded(long version, Supplier<Stream<Item>> itemStreamSupplier) {
+		if (isBuilt(version)) return true;
+		if (!buildLock.tryLock()) return false;
+		try {
+			if (isBuilt(version)) return true;
+			long startMillis = System.currentTimeMillis();
+			Snapshot built = new Snapshot(version); // 読み込み中の変更は、読み込み前のバージョンで保持するため次回検索時に再構築
+			try (Stream<Item> items = itemStreamSupplier.get()) {
+				items.forEach(item -> built.add(item.id, item.name));
+			}
+			lock.writeLock().lock();
+			try {
+				Snapshot current = snapshot;
+				if (current == null || current.version < version) snapshot = built; // 構築中に差分更新で新しくなった場合は破棄
+			} finally {
+				lock.writeLock().unlock();
+			}
+			log.info("アイテム名インデックス構築 {} 件 {} gram {}ms (バージョン {})", 
+					built.names.size(), built.postings.size(), System.currentTimeMillis() - startMillis, version);
+			return isBuilt(version);
+		} finally {
+			buildLock.unlock();
+		}
+	}
+	
+	private boolean isBuilt(long version) {
+		Snapshot current = snapshot;
+		return current != null && current.version >= version;
+	}
+	
+	/**
+	 * 名前に検索文字列を含むアイテムの id を取得します。
+	 * @param term 検索文字列
+	 * @return 昇順の id 配列。インデックスで検索できない場合 (未構築、検索文字列が N 文字未満) は null。
+	 */
+	public long[] search(String term) {
+		if (term == null || term.length() < N) return null;
+		lock.readLock().lock();
+		try {
+			Snapshot current = snapshot;
+			if (current == null) return null;
+			
+			// 最も出現数が少ない N-gram の候補を、名前の部分一致で確認
+			LongList candidates = null;
+			for (int i = 0; i + N <= term.length(); i++) {
+				LongList posting = current.postings.get(term.substring(i, i + N));
+				if (posting == null) return new long[0];
+				if (candidates == null || posting.size < candidates.size) candidates = posting;
+			}
+			long[] ids = new long[candidates.size];
+			int count = 0;
+			for (int i = 0; i < candidates.size; i++) {
+				String name = current.names.get(candidates.values[i]);
+				if (name != null && name.contains(term)) ids[count++] = candidates.values[i];
+			}
+			ids = Arrays.copyOf(ids, count);
+			Arrays.sort(ids);
+			return Arrays.stream(ids).distinct().toArray(); // 変更で同じ N-gram に重複登録された id を除外
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * 1 つのトランザクションでの登録、変更、削除を反映します (コミット後に呼び出し)。
+	 * <pre>
+	 * version が構築済みのバージョンの次の場合のみ反映し、構築済みのバージョンを version にします。
+	 * 構築済みのバージョン以前の場合は反映済み (構築時に読み込み済み) として無視し、
+	 * 間に他の変更 (他のノードや、コミット後処理の順序が前後した変更) がある場合は次回検索時に再構築します。
+	 * </pre>
+	 * @param version 変更後の item のテーブルバージョン (AutoTransactionFilter#touchTable のコミット後処理の引数)
+	 * @param changes アイテム id と変更後のアイテム名 (削除の場合は null)
+	 */
+	public void update(long version, Map<Long, String> changes) {
+		lock.writeLock().lock();
+		try {
+			Snapshot current = snapshot;
+			if (current == null || version <= current.version) return;
+			if (version != current.version + 1) {
+				snapshot = null;
+				return;
+			}
+			changes.forEach((id, name) -> {
+				String oldName = name == null ? current.names.remove(id) : current.names.get(id);
+				if (oldName != null && !Objects.equals(oldName, name)) current.staleCount++;
+				if (name != null && !Objects.equals(oldName, name)) current.add(id, name);
+			});
+			current.version = version;
+			if (current.staleCount > 1000 && current.staleCount > current.names.size() / 2) {
+				snapshot = null; // 次回検索時に再構築 (それまでは呼び出し側で LIKE 検索)
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * インデックスを破棄し、次回検索時に再構築します。
+	 */
+	public void invalidate() {
+		snapshot = null;
+	}
+	
+	/** 構築したインデックス (変更は構築スレッド、または lock の書き込みロック中のみ) */
+	private static class Snapshot {
+		
+		final Map<Long, String> names = new HashMap<>();
+		final Map<String, LongList> postings = new HashMap<>();
+		volatile long version;
+		long staleCount;
+		
+		Snapshot(long version) {
+			this.version = version;
+		}
+		
+		void add(long id, String name) {
+			if (name == null) return;
+			names.put(id, name);
+			for (int i = 0; i + N <= name.length(); i++) {
+				postings.computeIfAbsent(name.substring(i, i + N), k -> new LongList()).add(id);
+			}
+		}
+	}
+	
+	/** long の可変長配列 (Long のボクシングを避けるため) */
+	private static class LongList {
+		
+		long[] values = new long[4];
+		int size;
+		
+		void add(long value) {
+			if (size == values.length) values = Arrays.copyOf(values, size * 2);
+			values[size++] = value;
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package jp.example.form;
+
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import lombok.SneakyThrows;
+
+/** 
+ * 件数上限と有効期限を持つ、検索結果用の単純なインメモリキャッシュです。
+ * <pre>
+ * 同じキーの取得が同時に発生した場合は、最初の 1 リクエストのみが値を取得し、他はその結果を待機します (single-flight)。
+ * 件数上限を超えた場合は、期限切れまたは無効化済みのエントリ、それでも超える場合は古いエントリから、上限の 3/4 まで一括で削除します。
+ * 更新時は invalidate で無効化します。無効化前に取得を開始した値はキャッシュに残りません。
+ * </pre>
+ * @param <K> キーの型 (equals、hashCode を実装した不変オブジェクト)
+ * @param <V> 値の型
+ * @author New Gradle Project Wizard (c) Pleiades MIT
+ */
+public class QueryResultCache<K, V> {
+	
+	private final int maxSize;
+	private final long ttlNanos;
+	private final Map<K, Entry<V>> map = new ConcurrentHashMap<>();
+	private final AtomicLong generation = new AtomicLong();
+	private final ReentrantLock evictLock = new ReentrantLock();
+	
+	private record Entry<V> (
+		CompletableFuture<V> future,
+		long createdNanos,
+		long generation
+	) {}
+	
+	/**
+	 * キャッシュを構築します。
+	 * @param maxSize 最大エントリ数
+	 * @param ttl 有効期限
+	 */
+	public QueryResultCache(int maxSize, Duration ttl) {
+		this.maxSize = maxSize;
+		this.ttlNanos = ttl.toNanos();
+	}
+	
+	/**
+	 * キャッシュから値を取得します。存在しない場合は loader で取得してキャッシュします。
+	 * @param key キー
+	 * @param loader 値の取得処理 (同じキーで同時に実行されるのは 1 つのみ)
+	 * @return 値
+	 */
+	@SneakyThrows
+	public V get(K key, Supplier<V> loader) {
+		long now = System.nanoTime();
+		Entry<V> newEntry = new Entry<>(new CompletableFuture<>(), now, generation.get());
+		Entry<V> entry = map.merge(key, newEntry, (old, neu) -> isValid(old, now) ? old : neu);
+		if (entry != newEntry) {
+			try {
+				return entry.future.get(); // 他のリクエストで取得中または取得済み
+			} catch (ExecutionException e) {
+				return loader.get(); // 取得したリクエストでのエラーは、このリクエストで取得し直す
+			}
+		}
+		try {
+			V value = loader.get();
+			newEntry.future.complete(value);
+			if (newEntry.generation != generation.get()) map.remove(key, newEntry); // 取得中に無効化された
+			evictIfOverflow(now);
+			return value;
+		} catch (Throwable e) {
+			map.remove(key, newEntry);
+			newEntry.future.completeExceptionally(e);
+			throw e;
+		}
+	}
+	
+	/**
+	 * キャッシュをすべて無効化します。
+	 */
+	public void invalidate() {
+		generation.incrementAndGet();
+		map.clear();
+	}
+	
+	private boolean isValid(Entry<V> entry, long now) {
+		return entry.generation == generation.get() && now - entry.createdNanos < ttlNanos
+				&& !entry.future.isCompletedExceptionally();
+	}
+	
+	/**
+	 * 件数上限を超えた場合に、上限の 3/4 まで一括で削除します。
+	 * 1 回の走査で上限の 1/4 件を削除するため、走査は上限の 1/4 件の登録ごとに 1 回となり、登録ごとに全件を走査しません。
+	 * 同時に上限を超えた場合は 1 スレッドのみが削除します (他のスレッドは待機せずに戻る)。
+	 */
+	private void evictIfOverflow(long now) {
+		if (map.size() <= maxSize || !evictLock.tryLock()) return;
+		try {
+			map.values().removeIf(entry -> entry.future.isDone() && !isValid(entry, now));
+			int targetSize = maxSize - Math.max(1, maxSize / 4);
+			if (map.size() <= targetSize) return;
+			List<Map.Entry<K, Entry<V>>> oldestFirst = map.entrySet().stream()
+				.filter(e -> e.getValue().future.isDone()) // 取得中のエントリは削除しない
+				.sorted(Comparator.comparingLong(e -> e.getValue().createdNanos))
+				.toList();
+			for (int i = 0; i < oldestFirst.size() && map.size() > targetSize; i++) {
+				map.remove(oldestFirst.get(i).getKey(), oldestFirst.get(i).getValue());
+			}
+		} finally {
+			evictLock.unlock();
+		}
+	}
+}
@@ -0,0 +1,315 @@
+package jp.example.form;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import jp.co.future.uroborosql.SqlAgent;
+import jp.example.filter.SqlMetricsFilter;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 起動時に 1 回だけ解析して、条件の組み合わせごとの SQL に展開済みの 2Way SQL テンプレートです。
+ * <pre>
+ * src/main/resources/sql の SQL ファイルを読み込み、IF ELIF ELSE END の条件式を、コンストラクターで指定した
+ * 条件式の文字列と対応する真偽値として、すべての組み合わせの SQL を事前に展開します。
+ * 実行時は Java で判定した真偽値から展開済みの SQL を配列で選択するだけで、条件式は OGNL で評価されません。
+ * 指定されていない条件式がファイルにある場合は、クラス初期化時 (起動時) にエラーになります。
+ *
+ * 展開済みの SQL は条件の組み合わせごとに固定の文字列になるため、context.xml の poolPreparedStatements による
+ * 接続ごとの PreparedStatement キャッシュが有効に機能します。IN 句の要素数は paddingInList で揃えてください。
+ * SQL ファイルは IF の条件式を含めて uroboroSQL の 2Way SQL と同じ構文のため、そのまま DB ツールでも実行できます。
+ *
+ * uroboroSQL の queryWith は、同じ SQL でも実行ごとに 2Way SQL を解析するため、検索のように頻繁に実行する SQL は
+ * stream で実行してください。展開済みの SQL のバインド変数 (直後のダミー値を含む) を起動時に JDBC の ? に変換しておき、
+ * 実行時は解析せずに PreparedStatement に値をセットするだけです (SqlTemplateBenchmark で queryWith と比較)。
+ * </pre>
+ * @author New Gradle Project Wizard (c) Pleiades MIT
+ */
+@Slf4j
+public class SqlTemplate {
+
+	private static final Pattern DIRECTIVE = Pattern.compile("/\\*(?:(IF|ELIF)\\s+(.+?)|(ELSE|END))\\*/");
+
+	/** バインド変数と直後のダミー値 (IN 句のリスト、文字列、数値、真偽値) */
+	private static final Pattern BIND = Pattern.compile("/\\*(\\w+)\\*/\\s*(\\([^)]*\\)|'(?:[^']|'')*'|[\\w.+-]+)");
+
+	private final String sqlName;
+	private final List<String> conditions;
+	private final String[] sqls;
+	private final JdbcSql[] jdbcSqls;
+
+	/** IN 句の要素数ごとの JDBC の SQL (条件のビットマスクと要素数をキーにキャッシュ、要素数は paddingInList で揃える) */
+	private final Map<String, String> inListSqls = new ConcurrentHashMap<>();
+
+	/**
+	 * SQL ファイルを読み込み、条件の組み合わせごとの SQL に展開します。
+	 * @param sqlName SQL 名 (src/main/resources/sql からの相対パス、拡張子 .sql なし)
+	 * @param conditions ファイル内の IF、ELIF の条件式 (sql メソッドの引数の順序)
+	 * @throws IllegalArgumentException ファイルが無い場合や、指定されていない条件式がある場合
+	 */
+	public SqlTemplate(String sqlName, String... conditions) {
+		this.sqlName = sqlName;
+		this.conditions = List.of(conditions);
+		String template = read(sqlName);
+		this.sqls = new String[1 << conditions.length];
+		this.jdbcSqls = new JdbcSql[sqls.length];
+		for (int mask = 0; mask < sqls.length; mask++) {
+			sqls[mask] = expand(template, mask);
+			jdbcSqls[mask] = JdbcSql.of(sqls[mask]);
+		}
+	}
+
+	/**
+	 * 条件の真偽値に対応する展開済みの SQL を取得します。
+	 * @param conditionValues 条件式の真偽値 (コンストラクターで指定した条件式の順序)
+	 * @return 展開済みの SQL (IF ELIF ELSE END を含まない 2Way SQL)
+	 */
+	public String sql(boolean... conditionValues) {
+		return sqls[mask(conditionValues)];
+	}
+
+	/**
+	 * 条件の真偽値に対応する展開済みの SQL を、uroboroSQL で解析せずに JDBC で実行します。
+	 * <pre>
+	 * 接続とフェッチサイズは agent (現在のトランザクションの dao()) から取得し、接続はクローズしません。
+	 * 結果は ResultSet から逐次取得するため、ストリームは必ずクローズしてください (try-with-resources)。
+	 * 実行時間と行数は、ストリームのクローズ時に SqlMetricsFilter の統計に SQL 名 (sqlName) で記録します。
+	 * </pre>
+	 * @param <T> 行の型
+	 * @param agent 現在のトランザクションの SqlAgent
+	 * @param params バインド変数名と値 (IN 句は paddingInList で要素数を揃えたリスト、条件が偽の変数は不要)
+	 * @param rowMapper 行の変換 (ResultSet の現在行から取得)
+	 * @param conditionValues 条件式の真偽値 (コンストラクターで指定した条件式の順序)
+	 * @return 行のストリーム
+	 */
+	@SneakyThrows
+	public <T> Stream<T> stream(SqlAgent agent, Map<String, ?> params, RowMapper<T> rowMapper, boolean... conditionValues) {
+		int mask = mask(conditionValues);
+		JdbcSql jdbcSql = jdbcSqls[mask];
+		long startNanos = System.nanoTime();
+		String sql = jdbcSql.sql(mask, params, inListSqls);
+		PreparedStatement statement = agent.getConnection().prepareStatement(sql);
+		ResultSet resultSet;
+		try {
+			if (agent.getFetchSize() > 0) statement.setFetchSize(agent.getFetchSize());
+			jdbcSql.bind(statement, params);
+			resultSet = statement.executeQuery();
+		} catch (Exception e) {
+			statement.close();
+			throw e;
+		}
+		long elapsedNanos = System.nanoTime() - startNanos;
+		long[] rows = {0};
+		Spliterator<T> spliterator = new Spliterators.AbstractSpliterator<T>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+			@Override @SneakyThrows
+			public boolean tryAdvance(Consumer<? super T> action) {
+				if (!resultSet.next()) return false;
+				rows[0]++;
+				action.accept(rowMapper.map(resultSet));
+				return true;
+			}
+		};
+		return StreamSupport.stream(spliterator, false).onClose(() -> {
+			try (statement; resultSet) {
+				SqlMetricsFilter.recordJdbc(sqlName, sql, elapsedNanos, rows[0], params);
+			} catch (SQLException e) {
+				log.warn("{} のクローズに失敗しました。 {}", sqlName, e.toString());
+			}
+		});
+	}
+
+	/**
+	 * ResultSet の現在行の変換です。
+	 * @param <T> 行の型
+	 */
+	@FunctionalInterface
+	public interface RowMapper<T> {
+		T map(ResultSet resultSet) throws SQLException;
+	}
+
+	/** 条件の真偽値のビットマスク */
+	private int mask(boolean... conditionValues) {
+		if (conditionValues.length != conditions.size()) {
+			throw new IllegalArgumentException(sqlName + " の条件は " + conditions + " です。");
+		}
+		int mask = 0;
+		for (int i = 0; i < conditionValues.length; i++) {
+			if (conditionValues[i]) mask |= 1 << i;
+		}
+		return mask;
+	}
+
+	/**
+	 * 展開済みの SQL をバインド変数の位置で分割した JDBC の SQL です (起動時に 1 回だけ作成)。
+	 * @param texts バインド変数の前後の SQL (バインド変数の数 + 1)
+	 * @param bindNames バインド変数名 (出現順)
+	 * @param inLists IN 句のリストの場合は true (要素数分の ? に展開)
+	 */
+	private record JdbcSql(String[] texts, String[] bindNames, boolean[] inLists) {
+
+		static JdbcSql of(String sql) {
+			List<String> texts = new ArrayList<>();
+			List<String> bindNames = new ArrayList<>();
+			List<Boolean> inLists = new ArrayList<>();
+			Matcher m = BIND.matcher(sql);
+			int pos = 0;
+			while (m.find()) {
+				texts.add(sql.substring(pos, m.start()));
+				bindNames.add(m.group(1));
+				inLists.add(m.group(2).startsWith("("));
+				pos = m.end();
+			}
+			texts.add(sql.substring(pos));
+			boolean[] inListArray = new boolean[inLists.size()];
+			for (int i = 0; i < inListArray.length; i++) inListArray[i] = inLists.get(i);
+			return new JdbcSql(texts.toArray(String[]::new), bindNames.toArray(String[]::new), inListArray);
+		}
+
+		/** ? に変換した SQL (条件のビットマスクと IN 句の要素数ごとに 1 回だけ作成してキャッシュ) */
+		String sql(int mask, Map<String, ?> params, Map<String, String> cache) {
+			StringBuilder key = new StringBuilder().append(mask);
+			for (int i = 0; i < bindNames.length; i++) {
+				if (inLists[i]) key.append(':').append(inList(params, bindNames[i]).size());
+			}
+			return cache.computeIfAbsent(key.toString(), k -> {
+				StringBuilder sql = new StringBuilder(texts[0]);
+				for (int i = 0; i < bindNames.length; i++) {
+					sql.append(inLists[i] ? "(" + String.join(", ", Collections.nCopies(inList(params, bindNames[i]).size(), "?")) + ")" : "?");
+					sql.append(texts[i + 1]);
+				}
+				return sql.toString();
+			});
+		}
+
+		void bind(PreparedStatement statement, Map<String, ?> params) throws SQLException {
+			int index = 1;
+			for (int i = 0; i < bindNames.length; i++) {
+				if (inLists[i]) {
+					for (Object value : inList(params, bindNames[i])) statement.setObject(index++, value);
+				} else {
+					statement.setObject(index++, params.get(bindNames[i]));
+				}
+			}
+		}
+
+		private static List<?> inList(Map<String, ?> params, String name) {
+			if (!(params.get(name) instanceof List<?> list) || list.isEmpty()) {
+				throw new IllegalArgumentException("IN 句のバインド変数 " + name + " に空でないリストを指定してください。");
+			}
+			return list;
+		}
+	}
+
+	/**
+	 * IN 句に渡すリストの要素数を 2 のべき乗に揃えます (最後の要素で埋める)。
+	 * 要素数ごとに SQL が変わると PreparedStatement キャッシュが効かないため、SQL の種類を log2(最大件数) 程度に抑えます。
+	 * 2 のべき乗が maxSize を超える場合は maxSize に揃えます (DB のバインドパラメーター数の上限などを超えないように)。
+	 * @param <T> 要素の型
+	 * @param list IN 句に渡すリスト (null の場合は null)
+	 * @param maxSize 揃える要素数の上限 (呼び出し側で list の要素数をこの件数以下に制限すること)
+	 * @return 要素数を揃えたリスト
+	 * @throws IllegalArgumentException list の要素数が maxSize を超える場合
+	 */
+	public static <T> List<T> paddingInList(List<T> list, int maxSize) {
+		if (list == null || list.size() <= 1) return list;
+		if (list.size() > maxSize) {
+			throw new IllegalArgumentException("IN 句の要素数 " + list.size() + " が上限 " + maxSize + " を超えています。");
+		}
+		int size = Math.min(Integer.highestOneBit(list.size() - 1) << 1, maxSize);
+		if (size == list.size()) return list;
+		List<T> padded = new ArrayList<>(size);
+		padded.addAll(list);
+		T last = list.get(list.size() - 1);
+		while (padded.size() < size) padded.add(last);
+		return padded;
+	}
+
+	@SneakyThrows
+	private static String read(String sqlName) {
+		try (InputStream in = SqlTemplate.class.getClassLoader().getResourceAsStream("sql/" + sqlName + ".sql")) {
+			if (in == null) throw new IllegalArgumentException("SQL ファイル sql/" + sqlName + ".sql がありません。");
+			return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+		}
+	}
+
+	/** IF ブロックのネスト状態 (親が有効か、分岐済みか、現在の分岐が有効か) */
+	private static class Block {
+		boolean parentActive;
+		boolean taken;
+		boolean active;
+	}
+
+	/** 条件のビットマスクで IF ELIF ELSE END を展開し、行コメントと空行を除去 */
+	private String expand(String template, int mask) {
+		StringBuilder sb = new StringBuilder();
+		Deque<Block> stack = new ArrayDeque<>();
+		boolean active = true;
+		Matcher m = DIRECTIVE.matcher(template);
+		int pos = 0;
+		while (m.find()) {
+			if (active) sb.append(template, pos, m.start());
+			pos = m.end();
+			String directive = m.group(1) != null ? m.group(1) : m.group(3);
+			Block block = stack.peek();
+			switch (directive) {
+			case "IF" -> {
+				block = new Block();
+				block.parentActive = active;
+				block.active = active && evaluate(m.group(2), mask);
+				block.taken = block.active;
+				stack.push(block);
+			}
+			case "ELIF" -> {
+				if (block == null) throw syntaxError("IF の無い ELIF");
+				block.active = block.parentActive && !block.taken && evaluate(m.group(2), mask);
+				block.taken |= block.active;
+			}
+			case "ELSE" -> {
+				if (block == null) throw syntaxError("IF の無い ELSE");
+				block.active = block.parentActive && !block.taken;
+				block.taken = true;
+			}
+			default -> {
+				if (block == null) throw syntaxError("IF の無い END");
+				stack.pop();
+				block = stack.peek();
+			}
+			}
+			active = block == null ? true : block.active;
+		}
+		if (!stack.isEmpty()) throw syntaxError("END の無い IF");
+		sb.append(template.substring(pos));
+		return Arrays.stream(sb.toString().split("\r?\n"))
+				.filter(line -> !line.isBlank() && !line.strip().startsWith("--"))
+				.reduce((a, b) -> a + "\n" + b).orElse("");
+	}
+
+	private boolean evaluate(String condition, int mask) {
+		int index = conditions.indexOf(condition.strip());
+		if (index == -1) throw syntaxError("条件式 " + condition + " が " + conditions + " にありません");
+		return (mask & 1 << index) != 0;
+	}
+
+	private IllegalArgumentException syntaxError(String message) {
+		return new IllegalArgumentException("sql/" + sqlName + ".sql: " + message + "。");
+	}
+}
@@ -1,15 +1,37 @@
 package jp.example.servlet;
 
 import static jp.example.filter.AutoFlashFilter.*;
+import static jp.example.filter.AutoTransactionFilter.*;
 import static jp.example.filter.RequestContextFilter.*;
 
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+import jakarta.servlet.annotation.MultipartConfig;
 import jakarta.servlet.annotation.WebServlet;
 import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.Part;
 
+import jp.example.form.ItemCsv;
 import jp.example.form.ItemForm;
 import lombok.Data;
+import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 
 /**
@@ -48,12 +70,27 @@ public class JspCrudServlet {
 		/** 検索一覧画面の表示 */
 		protected void doGet(HttpServletRequest req, HttpServletResponse res) {
 			log.debug("検索して list.jsp にフォワード");
-			req.setAttribute("itemList", new ItemForm(req).findFormList());
-			req.getSession().setAttribute("lastQueryUri", getQueryUri()); // PRG リダイレクト先保存
+			long afterId = NumberUtils.toLong(req.getParameter("afterId")); // 次ページは前ページ最後の id
+			List<ItemForm> itemList = new ItemForm(req).findFormList(afterId, ItemForm.DEFAULT_PAGE_SIZE);
+			req.setAttribute("itemList", itemList);
+			if (itemList.size() == ItemForm.DEFAULT_PAGE_SIZE) {
+				req.setAttribute("nextAfterId", itemList.get(itemList.size() - 1).id); // 次ページのカーソル
+			}
+			saveState("lastQueryUri", getQueryUri()); // PRG リダイレクト先保存 (フォワード前)
 			forward("list.jsp");
 		}
 	}
 	
+	/** 一覧画面への変更イベント配信 Servlet (Server-Sent Events) */
+	@WebServlet(urlPatterns = "/item/events", asyncSupported = true)
+	public static class EventsServlet extends HttpServlet {
+		
+		/** 一覧画面の EventSource → 非同期で接続を維持し、登録、変更、削除をコミット後に配信 */
+		protected void doGet(HttpServletRequest req, HttpServletResponse res) {
+			ItemForm.subscribeChanges(req, res);
+		}
+	}
+	
 	/** CRUD の C: Create 登録 Servlet */
 	@WebServlet("/item/create")
 	public static class CreateServlet extends HttpServlet {
@@ -117,4 +154,78 @@ public class JspCrudServlet {
 			new ItemForm(req).validate(req); // レスポンス: 正常時はなし、例外スロー時は text エラーメッセージ文字列
 		}
 	}
+	
+	/** エクスポート Servlet */
+	@WebServlet("/item/export")
+	public static class ExportServlet extends HttpServlet {
+		
+		/** JDBC ドライバーが結果をまとめて取得する行数 (全件をメモリに読み込むドライバーでも一定のメモリで読み込む) */
+		private static final int FETCH_SIZE = 1000;
+		
+		/** 一覧画面のエクスポートリンク → 検索条件に一致するアイテムを CSV (format=ndjson の場合は NDJSON) でダウンロード */
+		@SneakyThrows
+		protected void doGet(HttpServletRequest req, HttpServletResponse res) {
+			dao().setFetchSize(FETCH_SIZE);
+			Stream<ItemForm> itemStream = new ItemForm(req).streamFormList(0, Long.MAX_VALUE); // 前方向のカーソルから逐次取得
+			if ("ndjson".equals(req.getParameter("format"))) {
+				res.setHeader("Content-Disposition", "attachment; filename=\"item.ndjson\"");
+				returnsStream(itemStream);
+			}
+			res.setContentType("text/csv");
+			res.setHeader("Content-Disposition", "attachment; filename=\"item.csv\"");
+			long count = 0;
+			try (itemStream) {
+				PrintWriter out = res.getWriter(); // コンテナーのバッファ単位でチャンク転送
+				ItemCsv.writeHeader(out);
+				for (Iterator<ItemForm> it = itemStream.iterator(); it.hasNext();) {
+					ItemCsv.writeRow(out, it.next());
+					count++;
+				}
+			}
+			log.debug("エクスポート CSV {} 件", count);
+		}
+	}
+	
+	/** インポート Servlet */
+	@WebServlet("/item/import")
+	@MultipartConfig(fileSizeThreshold = 1024 * 1024) // 超える場合は一時ファイル
+	public static class ImportServlet extends HttpServlet {
+		
+		/**
+		 * 一覧画面にフラッシュで表示するエラーメッセージの最大件数と、1 件あたりの最大文字数です。
+		 * フラッシュは Cookie 保存 (上限 3072 文字) の場合もあるため、日本語 (UTF-8 の Base64 で 1 文字 4 バイト) で
+		 * 5 件 × 80 文字 = 約 1600 文字に抑えます。全件は Accept: application/json の API 呼び出しで取得できます。
+		 */
+		private static final int MAX_FLASH_ERRORS = 5;
+		private static final int MAX_FLASH_ERROR_LENGTH = 80;
+		
+		/** NDJSON の 1 行 1 フォームの読み取り (フォームに無い項目は無視) */
+		private static final ObjectReader ndjsonReader = new ObjectMapper()
+				.disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES)
+				.readerFor(ItemForm.class);
+		
+		/** 一覧画面のインポートボタン → CSV または NDJSON (拡張子 .ndjson .jsonl) を登録して一覧画面へリダイレクト */
+		@SneakyThrows
+		protected void doPost(HttpServletRequest req, HttpServletResponse res) {
+			Part part = req.getPart("file");
+			valid(part != null && part.getSize() > 0, "インポートするファイルを指定してください。");
+			ItemForm.ImportResult result;
+			try (InputStream in = part.getInputStream()) {
+				Iterator<ItemForm> forms = StringUtils.endsWithAny(part.getSubmittedFileName(), ".ndjson", ".jsonl")
+						? ndjsonReader.readValues(in)
+						: ItemCsv.reader(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)));
+				result = ItemForm.importForms(forms);
+			}
+			if (StringUtils.contains(req.getHeader("Accept"), "/json")) {
+				returns(result); // バッチなどの API 呼び出し: json インポート結果
+			}
+			List<String> flashErrors = result.errors().stream().limit(MAX_FLASH_ERRORS)
+					.map(error -> StringUtils.abbreviate(error, MAX_FLASH_ERROR_LENGTH)).collect(Collectors.toList());
+			if (result.errorCount() > flashErrors.size()) {
+				flashErrors.add("他 %d 件のエラーは表示されません。".formatted(result.errorCount() - flashErrors.size()));
+			}
+			req.setAttribute("importErrors", flashErrors);
+			redirect($("lastQueryUri"), "ℹ️ %d 件インポートしました。(エラー %d 件)".formatted(result.insertedCount(), result.errorCount()));
+		}
+	}
 }
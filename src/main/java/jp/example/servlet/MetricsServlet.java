@@ -0,0 +1,117 @@
+package jp.example.servlet;
+
+import static jp.example.filter.AutoFlashFilter.*;
+import static jp.example.filter.AutoTransactionFilter.*;
+import static jp.example.filter.LoginAuthFilter.*;
+
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+
+import jakarta.servlet.annotation.WebServlet;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jp.example.filter.AdmissionFilter;
+import jp.example.filter.AutoTransactionFilter.TransactionStats;
+import jp.example.filter.LoginAuthFilter.HashStats;
+import jp.example.filter.Metrics;
+import jp.example.filter.SqlMetricsFilter;
+import lombok.SneakyThrows;
+
+/**
+ * 内部向けのメトリクス Servlet です。
+ * <pre>
+ * Prometheus のテキスト形式で、Servlet パス、フィルター、SQL、接続取得、パスワードハッシュの処理時間
+ * (p50 p95 p99、合計、件数、最大、エラー件数) と、スレッドプールの待機数などの現在値を返します。
+ * 
+ * /metrics/sql は SQL ごとの統計 (件数、合計・平均・最大時間、行数、スロークエリ件数) を
+ * 合計時間の降順に json で返します。
+ * 
+ * ログイン認証の対象外のため、ループバックと init-param allowAddresses に指定したアドレス以外からのアクセスは 404 とします。
+ * (同じプライベートネットワークの他のサーバーも認証なしで参照できるため、プライベートアドレス全体は許可しない)
+ * リバースプロキシ経由の場合は、RemoteIpFilter により x-forwarded-for のアドレスで判定されます。
+ * 
+ * web.xml の servlet-name MetricsServlet の init-param で以下を指定できます (省略時はループバックのみ)。
+ * 
+ * allowAddresses  許可するアドレスまたは CIDR (カンマ区切り、例: 10.0.1.5, 10.0.2.0/24)
+ * </pre>
+ * @author New Gradle Project Wizard (c) Pleiades MIT
+ */
+@WebServlet(name = "MetricsServlet", urlPatterns = {"/metrics", "/metrics/sql"})
+public class MetricsServlet extends HttpServlet {
+
+	/** ループバック以外に許可するアドレス範囲 */
+	private List<AddressRange> allowRanges = List.of();
+
+	@Override
+	public void init() {
+		allowRanges = Arrays.stream(StringUtils.split(StringUtils.defaultString(getInitParameter("allowAddresses")), ", \n\t"))
+				.map(AddressRange::parse).toList();
+	}
+
+	@Override @SneakyThrows
+	protected void doGet(HttpServletRequest req, HttpServletResponse res) {
+		if (!isAllowed(req.getRemoteAddr())) {
+			res.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		if (req.getServletPath().equals("/metrics/sql")) {
+			returns(SqlMetricsFilter.sqlStats());
+		}
+		res.setContentType("text/plain; version=0.0.4");
+		PrintWriter out = res.getWriter();
+		Metrics.writePrometheus(out);
+		
+		TransactionStats transactionStats = transactionStats();
+		Metrics.writeGauge(out, "app_db_async_queue_depth", "非同期 DB スレッドプールの待機数", transactionStats.asyncQueueDepth());
+		Metrics.writeGauge(out, "app_db_async_active_threads", "非同期 DB スレッドプールの実行中スレッド数", transactionStats.asyncActiveCount());
+		Metrics.writeGauge(out, "app_db_async_rejected", "非同期 DB スレッドプールの拒否件数 (累計)", transactionStats.asyncRejectedCount());
+		HashStats hashStats = hashStats();
+		Metrics.writeGauge(out, "app_password_hash_queue_depth", "パスワードハッシュスレッドプールの待機数", hashStats.queueDepth());
+		Metrics.writeGauge(out, "app_password_hash_rejected", "パスワードハッシュスレッドプールの拒否件数 (累計)", hashStats.rejectedCount());
+		Metrics.writeGauge(out, "app_admission_rejected", "流入制御による HTTP 429 の件数 (累計)", AdmissionFilter.rejectedCount());
+	}
+
+	/**
+	 * メトリクスの参照を許可するアドレスか判定します。
+	 * @param remoteAddr クライアントの IP アドレス文字列
+	 * @return ループバックまたは allowAddresses の範囲内の場合は true
+	 */
+	@SneakyThrows
+	boolean isAllowed(String remoteAddr) {
+		InetAddress address = InetAddress.getByName(remoteAddr); // IP アドレス文字列のため名前解決なし
+		return address.isLoopbackAddress() || allowRanges.stream().anyMatch(range -> range.contains(address));
+	}
+
+	/**
+	 * アドレス範囲 (CIDR、プレフィックス長の省略時は単一のアドレス) です。
+	 * @param network ネットワークアドレス
+	 * @param prefixLength プレフィックス長 (ビット数)
+	 */
+	record AddressRange(byte[] network, int prefixLength) {
+
+		@SneakyThrows
+		static AddressRange parse(String cidr) {
+			byte[] network = InetAddress.getByName(StringUtils.substringBefore(cidr, "/")).getAddress();
+			int prefixLength = cidr.contains("/") ? Integer.parseInt(StringUtils.substringAfter(cidr, "/")) : network.length * 8;
+			if (prefixLength < 0 || prefixLength > network.length * 8) {
+				throw new IllegalArgumentException("allowAddresses のプレフィックス長が不正です: " + cidr);
+			}
+			return new AddressRange(network, prefixLength);
+		}
+
+		boolean contains(InetAddress address) {
+			byte[] bytes = address.getAddress();
+			if (bytes.length != network.length) return false; // IPv4 と IPv6 は別
+			for (int bit = 0; bit < prefixLength; bit += 8) {
+				int mask = 0xff << (8 - Math.min(8, prefixLength - bit)) & 0xff;
+				if ((bytes[bit / 8] & mask) != (network[bit / 8] & mask)) return false;
+			}
+			return true;
+		}
+	}
+}
@@ -3,6 +3,14 @@ package jp.example.servlet;
 import static jp.example.filter.AutoFlashFilter.*;
 import static jp.example.filter.RequestContextFilter.*;
 
+import java.util.List;
+
+import org.apache.commons.lang3.math.NumberUtils;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
 import jakarta.servlet.annotation.WebServlet;
 import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
@@ -17,7 +25,20 @@ import jp.example.form.ItemForm;
  * クライアント非依存の REST API のみで構成されているため、フロントエンド技術の差し替えが容易です。
  * JSP と異なり、コントローラーはクライアント側になり、サンプルでは React Router と Vue Router を使用しています。
  * レスポンスに書き込み無し (returns していない) かつ例外無しの場合は、レスポンス body は空で HTTP 200 になります。
+ * 検索はパラメーター afterId (前ページ最後の id) と limit でページング、format=ndjson で 1 行 1 json で逐次返却できます。
+ * format=ndjson の limit は最大 ItemForm.MAX_STREAM_SIZE 件 (省略時も同じ) で、DB 専用スレッドを占有し続けないように、
+ * それ以上はクライアントが最後の行の id を afterId に指定して続けて取得します (全件はエクスポートを使用)。
  * Servlet でスローされた例外は AutoFlashFilter で例外メッセージがレスポンスに書き込まれ HTTP 200 または 202 になります。
+ * 
+ * DB を使用する API は returnsAsync で非同期 (asyncSupported) に実行し、JDBC の処理中はコンテナーのスレッドを保持しません。
+ * トランザクション、CSRF チェック、例外メッセージの返却は同期の場合と同じです。
+ * 
+ * 参照 API (search、count、select、select-company) は ETag を返し、テーブルが変更されていない場合は
+ * SQL を実行せずに HTTP 304 を返します (checkNotModified)。
+ * 
+ * 大量の登録、変更、削除は /spa/batch に json 配列でまとめて送信することで、1 リクエスト 1 トランザクションで処理できます。
+ * 
+ * /spa/events は他のユーザーを含む登録、変更、削除を Server-Sent Events で配信し、一覧は再検索せずに行を差分更新します。
  * </pre>
  * <p>
  * 本来 REST API は HTTP 動詞として get、post、put、delete などを使用し、エンドポイントは名詞を使用しますが、Servlet
@@ -35,59 +56,107 @@ public class SpaCrudServlet {
 		}
 	}
 
-	@WebServlet("/spa/search")
+	@WebServlet(urlPatterns = "/spa/search", asyncSupported = true)
 	public static class SearchServlet extends HttpServlet {
 		protected void doGet(HttpServletRequest req, HttpServletResponse res) {
-			returns(new ItemForm(req).findFormList());
+			long afterId = NumberUtils.toLong(req.getParameter("afterId")); // 次ページは前ページ最後の id
+			checkNotModified("item", "company");
+			if ("ndjson".equals(req.getParameter("format"))) {
+				int limit = NumberUtils.toInt(req.getParameter("limit"), ItemForm.MAX_STREAM_SIZE);
+				returnsAsync(() -> { // 1 行 1 json で逐次返却
+					returnsStream(new ItemForm(req).streamFormList(afterId, Math.min(limit, ItemForm.MAX_STREAM_SIZE)));
+					return null;
+				});
+			}
+			int limit = NumberUtils.toInt(req.getParameter("limit"), ItemForm.DEFAULT_PAGE_SIZE);
+			returnsAsync(() -> new ItemForm(req).findFormList(afterId, limit));
 		}
 	}
 
-	@WebServlet("/spa/count")
+	@WebServlet(urlPatterns = "/spa/events", asyncSupported = true)
+	public static class EventsServlet extends HttpServlet {
+		protected void doGet(HttpServletRequest req, HttpServletResponse res) {
+			ItemForm.subscribeChanges(req, res); // 非同期で接続を維持し、コンテナーのスレッドはすぐに解放
+		}
+	}
+
+	@WebServlet(urlPatterns = "/spa/count", asyncSupported = true)
 	public static class CountServlet extends HttpServlet {
 		protected void doGet(HttpServletRequest req, HttpServletResponse res) {
-			returns("結果予想件数: " + new ItemForm(req).count() + " 件 (Enter または検索ボタンを押してください)");
+			checkNotModified("item");
+			returnsAsync(() -> "結果予想件数: " + new ItemForm(req).count() + " 件 (Enter または検索ボタンを押してください)");
 		}
 	}
 	
-	@WebServlet("/spa/delete")
+	@WebServlet(urlPatterns = "/spa/delete", asyncSupported = true)
 	public static class DeleteServlet extends HttpServlet {
 		protected void doPost(HttpServletRequest req, HttpServletResponse res) {
-			new ItemForm(req).delete();
+			returnsAsync(() -> {
+				new ItemForm(req).delete();
+				return null;
+			});
 		}
 	}
 	
-	@WebServlet("/spa/select")
+	@WebServlet(urlPatterns = "/spa/select", asyncSupported = true)
 	public static class SelectServlet extends HttpServlet {
 		protected void doGet(HttpServletRequest req, HttpServletResponse res) {
-			returns(new ItemForm(req).findFormById());
+			checkNotModified("item", "company");
+			returnsAsync(() -> new ItemForm(req).findFormById());
 		}
 	}
 	
-	@WebServlet("/spa/select-company")
+	@WebServlet(urlPatterns = "/spa/select-company", asyncSupported = true)
 	public static class SelectCompanyServlet extends HttpServlet {
 		protected void doGet(HttpServletRequest req, HttpServletResponse res) {
-			returns(new ItemForm().getCompanySelectOptions());
+			checkNotModified("company");
+			returnsAsync(() -> new ItemForm().getCompanySelectOptions());
 		}
 	}
 
-	@WebServlet("/spa/validate")
+	@WebServlet(urlPatterns = "/spa/validate", asyncSupported = true)
 	public static class ValidateServlet extends HttpServlet {
 		protected void doPost(HttpServletRequest req, HttpServletResponse res) {
-			new ItemForm(req).validate(req);
+			returnsAsync(() -> {
+				new ItemForm(req).validate(req);
+				return null;
+			});
 		}
 	}
 	
-	@WebServlet("/spa/insert")
+	@WebServlet(urlPatterns = "/spa/insert", asyncSupported = true)
 	public static class InsertServlet extends HttpServlet {
 		protected void doPost(HttpServletRequest req, HttpServletResponse res) {
-			new ItemForm(req).validate(req).insert();
+			returnsAsync(() -> {
+				new ItemForm(req).validate(req).insert();
+				return null;
+			});
 		}
 	}
 	
-	@WebServlet("/spa/update")
+	@WebServlet(urlPatterns = "/spa/update", asyncSupported = true)
 	public static class UpdateServlet extends HttpServlet {
 		protected void doPost(HttpServletRequest req, HttpServletResponse res) {
-			new ItemForm(req).validate(req).update();
+			returnsAsync(() -> {
+				new ItemForm(req).validate(req).update();
+				return null;
+			});
+		}
+	}
+	
+	@WebServlet(urlPatterns = "/spa/batch", asyncSupported = true)
+	public static class BatchServlet extends HttpServlet {
+		
+		/** リクエスト body の json 配列 [{"op":"insert","item":{...}}, ...] の読み取り (フォームに無い項目は無視) */
+		private static final ObjectReader batchReader = new ObjectMapper()
+				.disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES)
+				.readerForListOf(ItemForm.BatchOperation.class);
+		
+		protected void doPost(HttpServletRequest req, HttpServletResponse res) {
+			returnsAsync(() -> {
+				List<ItemForm.BatchOperation> operations = batchReader.readValue(req.getInputStream());
+				return ItemForm.executeBatch(operations);
+			});
 		}
 	}
 }
@@ -26,6 +26,7 @@ CREATE TABLE item (
 	face_auth BOOLEAN,
 	company_id BIGINT,
 	created_date DATE DEFAULT CURRENT_DATE(),
+	version BIGINT DEFAULT 0 NOT NULL, -- 楽観ロック用 (更新ごとに増加、ItemForm#update)
 	PRIMARY KEY (id)
 );
 CREATE INDEX ix__item__name ON item (name);
@@ -47,3 +48,37 @@ INSERT INTO company (id, company_name) VALUES
 	(1,'Apple'),
 	(2,'Sony')
 ;
+
+-- ----------------------------------------------------------------------------
+-- テーブルバージョン (テーブルの更新ごとに増加、AutoTransactionFilter#touchTables)
+-- 初期値は起動時刻 (インメモリ DB の再起動後に、再起動前の ETag と一致しないようにする)
+-- ----------------------------------------------------------------------------
+CREATE TABLE table_version (
+	table_name VARCHAR(64),
+	version BIGINT,
+	PRIMARY KEY (table_name)
+);
+INSERT INTO table_version (table_name, version) VALUES 
+	('item', CAST(EXTRACT(EPOCH FROM CURRENT_TIMESTAMP) * 1000 AS BIGINT)),
+	('company', CAST(EXTRACT(EPOCH FROM CURRENT_TIMESTAMP) * 1000 AS BIGINT))
+;
+
+-- ----------------------------------------------------------------------------
+-- セッション (RequestContextFilter の init-param sessionStore に JdbcSessionStore を指定した場合)
+-- ----------------------------------------------------------------------------
+CREATE TABLE app_session (
+	id VARCHAR(64),
+	version BIGINT,
+	creation_time BIGINT,
+	last_accessed_time BIGINT,
+	max_inactive_interval INT,
+	expiry_time BIGINT,
+	PRIMARY KEY (id)
+);
+CREATE INDEX ix__app_session__expiry_time ON app_session (expiry_time);
+CREATE TABLE app_session_attribute (
+	session_id VARCHAR(64),
+	attribute_name VARCHAR(256),
+	attribute_value BLOB,
+	PRIMARY KEY (session_id, attribute_name)
+);
@@ -0,0 +1,15 @@
+-- ============================================================================
+-- アイテム件数 (ItemForm#count)
+-- 起動時に SqlTemplate で条件の組み合わせごとの SQL に展開 (条件は Java で判定)
+-- ============================================================================
+SELECT COUNT(*)
+FROM item
+WHERE 1 = 1
+	/*IF ids != null*/
+		AND id IN /*ids*/(1, 2)
+	/*ELIF nameLike != null*/
+		AND name LIKE /*nameLike*/'%Pro%' ESCAPE '$'
+	/*END*/
+	/*IF releaseDate != null*/
+		AND release_date = /*releaseDate*/'2022-09-11'
+	/*END*/
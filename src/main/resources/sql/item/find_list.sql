@@ -0,0 +1,18 @@
+-- ============================================================================
+-- アイテム一覧 (ItemForm#streamFormList)
+-- 起動時に SqlTemplate で条件の組み合わせごとの SQL に展開 (条件は Java で判定)
+-- ============================================================================
+-- 会社名は JOIN せずに CompanyCache から取得
+SELECT *
+FROM item
+WHERE id > /*afterId*/0
+	/*IF ids != null*/
+		AND id IN /*ids*/(1, 2)
+	/*ELIF nameLike != null*/
+		AND name LIKE /*nameLike*/'%Pro%' ESCAPE '$'
+	/*END*/
+	/*IF releaseDate != null*/
+		AND release_date = /*releaseDate*/'2022-09-11'
+	/*END*/
+ORDER BY id
+LIMIT /*limit*/100
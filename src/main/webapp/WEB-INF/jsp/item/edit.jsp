@@ -31,6 +31,7 @@
  	<div class="alert mb-0" id="id_message" style="min-height:4rem">${fn:escapeXml(MESSAGE)}</div>
 	<form id="id_form" method="post" onsubmit="id_submit_button.disabled = true">
 		<input type="hidden" name="id" value="${form.id}"/>
+		<input type="hidden" name="version" value="${form.version}"/>
 		<div class="mb-3">
 			<label class="form-label">製品名</label> <span class="badge bg-danger">必須</span>
 			<input class="form-control" type="text" name="name" value="${fn:escapeXml(form.name)}"
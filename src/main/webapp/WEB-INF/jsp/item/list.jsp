@@ -43,6 +43,28 @@
 		<button formaction="list" class="btn btn-secondary px-5">検索</button>
 		<button formaction="create" class="btn btn-secondary px-5 ms-auto">新規登録</button>
 	</form>
+	<%-- インポートエラー (リダイレクト時に自動フラッシュ) --%>
+	<c:if test="${not empty importErrors}">
+		<ul class="text-warning small mt-3 mb-0">
+		<c:forEach var="error" items="${importErrors}">
+			<li>${fn:escapeXml(error)}</li>
+		</c:forEach>
+		</ul>
+	</c:if>
+	<%-- エクスポート (検索条件に一致する全件) とインポート (CSV または NDJSON、_csrf hidden が自動追加される) --%>
+	<div class="d-sm-flex align-items-center mt-4">
+		<c:url var="exportUrl" value="export">
+			<c:param name="name" value="${param.name}"/>
+			<c:param name="releaseDate" value="${param.releaseDate}"/>
+		</c:url>
+		<a href="${fn:escapeXml(exportUrl)}" class="btn btn-outline-secondary btn-sm me-2">CSV エクスポート</a>
+		<a href="${fn:escapeXml(exportUrl)}${fn:contains(exportUrl, '?') ? '&amp;' : '?'}format=ndjson"
+			class="btn btn-outline-secondary btn-sm me-sm-4">NDJSON エクスポート</a>
+		<form method="post" action="import" enctype="multipart/form-data" class="d-flex ms-sm-auto mt-2 mt-sm-0">
+			<input class="form-control form-control-sm me-2" type="file" name="file" accept=".csv,.ndjson,.jsonl" required>
+			<button class="btn btn-outline-secondary btn-sm text-nowrap">インポート</button>
+		</form>
+	</div>
 	<p class="text-end mt-4 me-1 mb-2">検索結果 ${itemList.size()} 件</p>
 	<table class="table table-striped table-dark">
 		<thead>
@@ -56,7 +78,7 @@
 		</thead>
 		<tbody>
 	<c:forEach var="item" items="${itemList}">
-			<tr>
+			<tr data-id="${item.id}">
 				<td>${fn:escapeXml(item.name)}</td>
 				<td>${fn:escapeXml(item.releaseDate)}</td>
 				<td class="text-center">${item.faceAuth ? '○' : ''}</td>
@@ -72,6 +94,17 @@
 	</c:forEach>
 		</tbody>
 	</table>
+	<%-- 次ページ (id をカーソルとしたキーセットページング) --%>
+	<c:if test="${not empty nextAfterId}">
+		<c:url var="nextUrl" value="list">
+			<c:param name="name" value="${param.name}"/>
+			<c:param name="releaseDate" value="${param.releaseDate}"/>
+			<c:param name="afterId" value="${nextAfterId}"/>
+		</c:url>
+		<div class="text-end mb-5 pb-5">
+			<a href="${fn:escapeXml(nextUrl)}" class="btn btn-secondary px-5">次へ</a>
+		</div>
+	</c:if>
 </div>
 <%-- ========== フッター ========== --%>
 <footer class="footer fixed-bottom py-3 text-center bg-dark">
@@ -89,5 +122,22 @@ const handleChange = async() => {
 	const { data } = await axios.get('api?' + params(id_form));
 	id_message.textContent = data.countMessage || data; <%-- 正常時は json、例外時は文字列 --%>
 };
+<%-- 他のユーザーを含む変更イベント (SSE) → 表示中の行を差分更新 (登録や一括処理は行の CSRF トークンが無いため検索を案内) --%>
+listenChanges('events', change => {
+	if (change.op == 'insert') {
+		id_message.textContent = 'ℹ️ 製品が登録されました。検索すると表示されます。';
+		return;
+	}
+	const row = document.querySelector('tr[data-id="' + change.id + '"]');
+	if (!row) return;
+	if (change.op == 'delete') {
+		row.remove();
+		return;
+	}
+	row.cells[0].textContent = change.name;
+	row.cells[1].textContent = change.releaseDate;
+	row.cells[2].textContent = change.faceAuth ? '○' : '';
+	row.cells[3].textContent = change.companyName;
+}, () => id_message.textContent = 'ℹ️ 製品が変更されました。検索すると最新の状態が表示されます。');
 </script>
 </html>
@@ -58,6 +58,7 @@ const ReactEdit = () => {
 <HashRouter>
 	<form onSubmit={handleSubmit} id="id_form" method="post">
 		<input type="hidden" name="id" defaultValue={item.id}/>
+		<input type="hidden" name="version" defaultValue={item.version}/>
 		<div className="mb-3">
 			<label className="form-label">製品名</label> <span className="badge bg-danger">必須</span>
 			<input className="form-control" type="text" name="name" defaultValue={item.name} id="id_name"
@@ -4,6 +4,10 @@ const ReactList = () => {
 	const savedForm = window._ReactSearchForm ??= {name:'', releaseDate:''}; // 一覧戻り時表示用の条件保存 (null 合体代入)
 	const [itemList, setItemList] = useState([]); // ステートフックで jsx で使用する値を定義 (set は setter を使う)
 	useEffect(() => {handleInit()}, []); // レンダー後の処理 (第2引数は検知対象で空配列の場合はこのコンポーネント本体のみ)
+	useEffect(() => {
+		const changeSource = listenChanges('events', handleItemChange, handleSearch);
+		return () => changeSource.close(); // アンマウント時にクローズ
+	}, []);
 
 	// 初期表示 → 検索 API 呼び出し   
 	const handleInit = async() => {
@@ -19,6 +23,11 @@ const ReactList = () => {
 		const { data } = await axios.get('search?' + params(id_form));
 		typeof data === 'string' ? id_message.textContent = data : setItemList(data);
   	};
+
+	// 他のユーザーを含む変更イベント → 再検索せずに一覧の行を差分更新 (set に関数を渡して最新の一覧に反映)
+	const handleItemChange = (change) => {
+		setItemList(list => applyChange(list, change, Object.fromEntries(params(id_form))));
+  	};
   	
   	// 検索ボタンクリック、フォーム Enter → 検索 API 呼び出し
 	const handleSubmit = async(e) => {
@@ -2,14 +2,46 @@
 // JSP、React、Vue 共通
 //-----------------------------------------------------------------------------
 
+/**
+ * API ごと (クエリ文字列を除く URL) の最新のリクエスト設定 (流入制御の後勝ち判定用)。
+ */
+const latestRequests = {};
+const apiOf = config => config.url?.split('?')[0];
+
+/**
+ * 流入制御 (AdmissionFilter) で拒否されたキー入力ごとの API (keyup) を再送する最大回数。
+ */
+const MAX_KEYUP_RETRIES = 5;
+
+axios.interceptors.request.use(config => {
+	latestRequests[apiOf(config)] = config;
+	return config;
+});
+
 /**
  * axios 2xx 以外の共通エラー処理をインターセプターに設定します。
+ * 流入制御のキー入力ごとの API (HTTP 429、X-Admission: keyup) は後勝ちとし、同じ API の新しいリクエストがある場合は
+ * 結果を無視 (Promise を完了しない)、最新の場合は少し待って再送します (最後のキー入力の結果を表示するため)。
+ * 登録や更新など、それ以外の 429 はエラーメッセージを表示します。
  */
 axios.interceptors.response.use(
 	res => res,
-	error => {
+	async error => {
+		const config = error.config;
+		const isSuperseded = () => latestRequests[apiOf(config)] !== config;
+		if (error.response?.status == 429 && error.response.headers['x-admission'] == 'keyup') {
+			if (isSuperseded()) return new Promise(() => {});
+			const retryCount = (config.keyupRetryCount || 0) + 1;
+			if (retryCount <= MAX_KEYUP_RETRIES) {
+				await new Promise(resolve => setTimeout(resolve, 300 * retryCount));
+				if (isSuperseded()) return new Promise(() => {});
+				return axios({...config, keyupRetryCount: retryCount});
+			}
+		}
 		id_message.textContent = (error.response?.status == 401)
 			? `❌ セッションが切れました。ページを更新してください。`
+			: (error.response?.status == 429)
+			? `❌ 混雑しているため処理できませんでした。しばらくしてから再度実行してください。`
 			: `❌ 処理できませんでした。 [${error.message}] ${error.config?.url}`;
 		return Promise.reject(error);
 	}
@@ -23,3 +55,36 @@ axios.interceptors.response.use(
  *	axios get の場合は第 1 引数の URL に + で連結、post の場合はそのまま第 2 引数に渡します。
  */
 const params = htmlForm => new URLSearchParams(new FormData(htmlForm));
+
+/**
+ * 他のユーザーを含む item の変更イベント (Server-Sent Events) を購読します。
+ * 接続が切れた場合は EventSource が自動で再接続し、未受信のイベントはサーバーから再送されます。
+ * @param {string} url イベント配信 URL
+ * @param {function} onChange item イベントの処理 (引数は変更内容 {op, id, name, releaseDate, ...})
+ * @param {function} onReset reset イベントの処理 (一括処理や、再送できない場合に再検索する)
+ * @return {EventSource} 画面の終了時に close する EventSource
+ */
+const listenChanges = (url, onChange, onReset) => {
+	const source = new EventSource(url);
+	source.addEventListener('item', e => onChange(JSON.parse(e.data)));
+	source.addEventListener('reset', () => onReset());
+	return source;
+};
+
+/**
+ * 変更イベントを一覧に反映した新しい配列を作成します (React、Vue 共通)。
+ * 削除や検索条件に一致しなくなった行は削除、変更は置換、検索条件に一致する登録は末尾 (id 昇順) に追加します。
+ * @param {Array} itemList 一覧
+ * @param {object} change 変更内容
+ * @param {object} conditions 検索条件 {name, releaseDate}
+ * @return {Array} 変更を反映した一覧
+ */
+const applyChange = (itemList, change, conditions) => {
+	const isMatch = change.op != 'delete'
+		&& (!conditions.name?.trim() || change.name.includes(conditions.name))
+		&& (!conditions.releaseDate || change.releaseDate == conditions.releaseDate);
+	const isListed = itemList.some(item => item.id == change.id);
+	if (!isMatch) return isListed ? itemList.filter(item => item.id != change.id) : itemList;
+	if (!isListed) return change.op == 'insert' ? [...itemList, change] : itemList;
+	return itemList.map(item => item.id == change.id ? change : item);
+};
@@ -0,0 +1,167 @@
+package jp.example.filter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import jakarta.servlet.DispatcherType;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpSession;
+
+/**
+ * AdmissionFilter のレート制限 (GCRA)、種別ごとの同時実行数、後勝ち、アイドル状態の削除のテストです。
+ * <pre>
+ * フィルターの現在時刻はテストで進める値を使用し、keyup は 1 秒あたり 10 件 (100 ミリ秒ごとに 1 件補充)、
+ * 連続 3 件、同時実行数は keyup、interactive ともに 1 件です。
+ * </pre>
+ * @author New Gradle Project Wizard (c) Pleiades MIT
+ */
+class AdmissionFilterTest {
+
+	private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final FilterChain OK = (req, res) -> {};
+
+	private final long[] now = {System.nanoTime()};
+	private final AdmissionFilter filter = new AdmissionFilter(() -> now[0]);
+	private final HttpSession session = ServletFakes.session();
+
+	AdmissionFilterTest() throws Exception {
+		filter.init(ServletFakes.filterConfig("AdmissionFilter", Map.of(
+			"keyupPaths", "/spa/count, /spa/validate",
+			"keyupRatePerSecond", "10",
+			"keyupBurst", "3",
+			"keyupConcurrency", "1",
+			"interactiveConcurrency", "1")));
+	}
+
+	@AfterEach
+	void destroy() {
+		filter.destroy();
+	}
+
+	@Test
+	void doFilter_keyupは連続許可数まで受け付け超えた場合は429とRetryAfter() throws Exception {
+		for (int i = 0; i < 3; i++) {
+			assertEquals(HttpServletResponse.SC_OK, keyup(session, OK).getStatus());
+		}
+		long rejected = AdmissionFilter.rejectedCount();
+		boolean[] isCalled = {false};
+		HttpServletResponse res = keyup(session, (req, r) -> isCalled[0] = true);
+		assertEquals(429, res.getStatus());
+		assertEquals("1", res.getHeader("Retry-After"));
+		assertEquals("keyup", res.getHeader("X-Admission"));
+		assertFalse(isCalled[0]); // 後続の処理は行わない
+		assertEquals(rejected + 1, AdmissionFilter.rejectedCount());
+
+		assertEquals(HttpServletResponse.SC_OK, keyup(ServletFakes.session(), OK).getStatus()); // セッションごと
+		assertEquals(HttpServletResponse.SC_OK, interactive(session, OK).getStatus()); // interactive はレート制限なし
+	}
+
+	@Test
+	void doFilter_keyupは経過時間に応じてトークンを補充() throws Exception {
+		for (int i = 0; i < 3; i++) keyup(session, OK);
+		assertEquals(429, keyup(session, OK).getStatus());
+
+		now[0] += 99 * MILLIS;
+		assertEquals(429, keyup(session, OK).getStatus());
+		now[0] += 1 * MILLIS;
+		assertEquals(HttpServletResponse.SC_OK, keyup(session, OK).getStatus()); // 100 ミリ秒で 1 件
+		assertEquals(429, keyup(session, OK).getStatus());
+
+		now[0] += 10_000 * MILLIS; // 補充は連続許可数まで
+		for (int i = 0; i < 3; i++) {
+			assertEquals(HttpServletResponse.SC_OK, keyup(session, OK).getStatus());
+		}
+		assertEquals(429, keyup(session, OK).getStatus());
+	}
+
+	@Test
+	void doFilter_種別ごとの同時実行数を超えた場合は429() throws Exception {
+		HttpServletResponse[] nested = new HttpServletResponse[3];
+		HttpServletResponse res = keyup(session, (req, r) -> {
+			nested[0] = keyup(ServletFakes.session(), OK);
+			nested[1] = interactive(session, (req2, r2) -> nested[2] = interactive(ServletFakes.session(), OK));
+		});
+		assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+		assertEquals(429, nested[0].getStatus()); // keyup の実行中の keyup
+		assertEquals("keyup", nested[0].getHeader("X-Admission"));
+		assertEquals(HttpServletResponse.SC_OK, nested[1].getStatus()); // 種別ごとに制限
+		assertEquals(429, nested[2].getStatus()); // interactive の実行中の interactive
+		assertNull(nested[2].getHeader("X-Admission")); // クライアントは再送せずにエラーを表示
+
+		assertEquals(HttpServletResponse.SC_OK, keyup(ServletFakes.session(), OK).getStatus()); // 完了後に解放
+		assertEquals(HttpServletResponse.SC_OK, interactive(session, OK).getStatus());
+	}
+
+	@Test
+	void doFilter_非同期の場合は完了まで同時実行数を保持() throws Exception {
+		HttpServletRequest[] asyncReq = {null};
+		interactive(session, (req, res) -> {
+			asyncReq[0] = (HttpServletRequest) req;
+			req.startAsync();
+		});
+		assertEquals(429, interactive(session, OK).getStatus());
+		asyncReq[0].getAsyncContext().complete();
+		assertEquals(HttpServletResponse.SC_OK, interactive(session, OK).getStatus());
+	}
+
+	@Test
+	void doFilter_同じセッションとパスの新しいkeyupで前のリクエストは無効() throws Exception {
+		HttpServletRequest[] first = {null};
+		boolean[] isSuperseded = new boolean[3];
+		keyup(session, (req, res) -> {
+			first[0] = (HttpServletRequest) req;
+			isSuperseded[0] = AdmissionFilter.isSuperseded(first[0]);
+		});
+		filter.doFilter(request(session, "/spa/validate"), ServletFakes.response(), OK); // 別のパス
+		isSuperseded[1] = AdmissionFilter.isSuperseded(first[0]);
+		keyup(session, OK);
+		isSuperseded[2] = AdmissionFilter.isSuperseded(first[0]);
+		assertArrayEquals(new boolean[] {false, false, true}, isSuperseded);
+		assertFalse(AdmissionFilter.isSuperseded(ServletFakes.request("GET", "/item/list"))); // keyup 以外
+	}
+
+	@Test
+	void sweepIdleClients_アイドル時間を超えた状態を削除() throws Exception {
+		keyup(session, OK);
+		keyup(null, OK); // セッションが無い場合は IP アドレスごと
+		assertEquals(2, filter.clientCount());
+
+		now[0] += TimeUnit.MINUTES.toNanos(4);
+		keyup(session, OK);
+		now[0] += TimeUnit.MINUTES.toNanos(2);
+		filter.sweepIdleClients();
+		assertEquals(1, filter.clientCount()); // 5 分以上アクセスの無い IP アドレスの状態のみ削除
+
+		now[0] += TimeUnit.MINUTES.toNanos(5);
+		filter.sweepIdleClients();
+		assertEquals(0, filter.clientCount());
+	}
+
+	/** keyup (/spa/count) の AJAX リクエストを実行 */
+	private HttpServletResponse keyup(HttpSession session, FilterChain chain) throws IOException, ServletException {
+		HttpServletResponse res = ServletFakes.response();
+		filter.doFilter(request(session, "/spa/count"), res, chain);
+		return res;
+	}
+
+	/** interactive (/spa/update) の AJAX リクエストを実行 */
+	private HttpServletResponse interactive(HttpSession session, FilterChain chain) throws IOException, ServletException {
+		HttpServletResponse res = ServletFakes.response();
+		filter.doFilter(request(session, "/spa/update"), res, chain);
+		return res;
+	}
+
+	/** AJAX リクエスト (セッションが null の場合は getSession(false) で null) */
+	private static HttpServletRequest request(HttpSession session, String path) {
+		return ServletFakes.request(DispatcherType.REQUEST, "GET", path, session, "X-Requested-With", "XMLHttpRequest");
+	}
+}
@@ -0,0 +1,195 @@
+package jp.example.filter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import jakarta.servlet.DispatcherType;
+import jakarta.servlet.http.Cookie;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpSession;
+
+/**
+ * AutoCsrfFilter のトークン生成とトークンチェックのテストです。
+ * <pre>
+ * 並行生成のスループットはテストではなく CsrfTokenBenchmark で計測します (実行環境のコア数や負荷に依存するため)。
+ * flashStore=cookie の場合は、トークンを署名付き Cookie の状態に保存するため、レスポンスの Cookie を次のリクエストで送信します。
+ * </pre>
+ * @author New Gradle Project Wizard (c) Pleiades MIT
+ */
+class AutoCsrfFilterTest {
+
+	@Test
+	void generateToken_URLセーフBase64の22文字() {
+		String token = AutoCsrfFilter.generateToken();
+		assertEquals(22, token.length());
+		assertTrue(token.matches("[A-Za-z0-9_-]{22}"), token);
+	}
+
+	@Test
+	void generateToken_並行生成で重複しない() throws Exception {
+		int threads = 16;
+		int perThread = 10_000;
+		Set<String> tokens = ConcurrentHashMap.newKeySet();
+		generateTokens(threads, perThread, tokens);
+		assertEquals(threads * perThread, tokens.size());
+	}
+
+	@Test
+	void notMatchToken_画面遷移ごとにトークンを生成し直す() {
+		HttpSession session = ServletFakes.session();
+		String first = navigate(session);
+		String second = navigate(session);
+		assertNotNull(first);
+		assertNotEquals(first, second);
+	}
+
+	@Test
+	void notMatchToken_AJAXはセッションのトークンを維持() {
+		HttpSession session = ServletFakes.session();
+		String token = navigate(session);
+
+		HttpServletResponse res = ServletFakes.response();
+		assertFalse(notMatchToken(ServletFakes.request(DispatcherType.REQUEST, "GET", "/spa/list", session,
+			"Accept", "application/json"), res));
+		assertEquals(token, session.getAttribute("_csrf"));
+		assertEquals("XSRF-TOKEN=" + token + ";SameSite=Strict;", res.getHeader("Set-Cookie"));
+
+		assertFalse(notMatchToken(ServletFakes.request(DispatcherType.REQUEST, "POST", "/spa/update", session,
+			"Accept", "application/json", "X-XSRF-TOKEN", token), ServletFakes.response()));
+		assertEquals(token, session.getAttribute("_csrf")); // AJAX 後の画面からの POST もエラーにならない
+	}
+
+	@Test
+	void notMatchToken_一致するPOSTの画面遷移はトークンを生成し直す() {
+		HttpSession session = ServletFakes.session();
+		String token = navigate(session);
+		assertFalse(notMatchToken(ServletFakes.request(DispatcherType.REQUEST, "POST", "/item/update", session,
+			"X-CSRF-TOKEN", token), ServletFakes.response()));
+		assertNotEquals(token, session.getAttribute("_csrf")); // 同じトークンでの再送信 (二重送信) はエラー
+	}
+
+	@Test
+	void notMatchToken_トークンが無いか一致しないPOSTはエラー() {
+		HttpSession session = ServletFakes.session();
+		String token = navigate(session);
+		for (String[] headers : new String[][] {{}, {"X-XSRF-TOKEN", token + "x"}, {"X-CSRF-TOKEN", ""}}) {
+			HttpServletResponse res = ServletFakes.response();
+			assertTrue(notMatchToken(ServletFakes.request(DispatcherType.REQUEST, "POST", "/spa/update", session, headers), res));
+			assertNull(res.getHeader("Set-Cookie"));
+		}
+		assertEquals(token, session.getAttribute("_csrf")); // エラーの場合はトークンを変更しない
+	}
+
+	@Test
+	void notMatchToken_セッションにトークンが無いPOSTはエラー() {
+		assertTrue(notMatchToken(ServletFakes.request("POST", "/spa/update", "X-XSRF-TOKEN", "null"), ServletFakes.response()));
+	}
+
+	@Test
+	void notMatchToken_Cookie保存でも画面遷移ごとにトークンを生成し直しセッションは変更しない() throws Exception {
+		AutoFlashFilterTest.useStateCookie();
+		try {
+			HttpSession session = ServletFakes.session();
+			Cookie[] cookie = {null};
+			String first = navigate(session, cookie);
+			String second = navigate(session, cookie);
+			assertNotNull(first);
+			assertNotEquals(first, second);
+			assertNull(session.getAttribute("_csrf"));
+
+			assertTrue(notMatchToken(postWith(session, cookie[0], first), ServletFakes.response())); // 古いトークン
+			HttpServletResponse res = ServletFakes.response();
+			assertFalse(notMatchToken(postWith(session, cookie[0], second), res));
+			assertNotNull(ServletFakes.cookie(res, "_flash")); // 一致した画面遷移の POST もトークンを生成し直す
+		} finally {
+			new AutoFlashFilter().init(ServletFakes.filterConfig("AutoFlashFilter", Map.of()));
+		}
+	}
+
+	@Test
+	void notMatchToken_Cookie保存で他のセッションで発行されたトークンはエラー() throws Exception {
+		AutoFlashFilterTest.useStateCookie();
+		try {
+			Cookie[] cookie = {null};
+			String token = navigate(ServletFakes.session(), cookie);
+			assertTrue(notMatchToken(postWith(ServletFakes.session(), cookie[0], token), ServletFakes.response()));
+		} finally {
+			new AutoFlashFilter().init(ServletFakes.filterConfig("AutoFlashFilter", Map.of()));
+		}
+	}
+
+	/** Cookie 保存で画面遷移の GET を実行して、リクエストのトークンを返す (cookie は送信、受信する状態 Cookie) */
+	private static String navigate(HttpSession session, Cookie[] cookie) {
+		HttpServletRequest req = cookie[0] == null
+			? ServletFakes.request(DispatcherType.REQUEST, "GET", "/item/list", session)
+			: ServletFakes.request(DispatcherType.REQUEST, "GET", "/item/list", session, "Cookie", "_flash=" + cookie[0].getValue());
+		HttpServletResponse res = ServletFakes.response();
+		assertFalse(notMatchToken(req, res));
+		cookie[0] = ServletFakes.cookie(res, "_flash");
+		String token = (String) req.getAttribute("_csrf");
+		assertEquals("XSRF-TOKEN=" + token + ";SameSite=Strict;", res.getHeader("Set-Cookie"));
+		return token;
+	}
+
+	/** 状態 Cookie とトークンを送信する画面遷移の POST */
+	private static HttpServletRequest postWith(HttpSession session, Cookie cookie, String token) {
+		return ServletFakes.request(DispatcherType.REQUEST, "POST", "/item/update", session,
+			"Cookie", "_flash=" + cookie.getValue(), "X-CSRF-TOKEN", token);
+	}
+
+	/** 画面遷移の GET を実行して、セッションのトークンを返す */
+	private static String navigate(HttpSession session) {
+		HttpServletResponse res = ServletFakes.response();
+		assertFalse(notMatchToken(ServletFakes.request(DispatcherType.REQUEST, "GET", "/item/list", session), res));
+		String token = (String) session.getAttribute("_csrf");
+		assertEquals("XSRF-TOKEN=" + token + ";SameSite=Strict;", res.getHeader("Set-Cookie"));
+		assertTrue(res.getHeader("Cache-Control").contains("no-store")); // bfcache 無効化
+		return token;
+	}
+
+	/** リクエストコンテキスト内でトークンをチェック */
+	private static boolean notMatchToken(HttpServletRequest req, HttpServletResponse res) {
+		boolean[] result = new boolean[1];
+		RequestContextFilter.runWith(new RequestContextFilter.RequestContext(req, res, null), () -> {
+			result[0] = new AutoCsrfFilter().notMatchToken(req, res);
+		});
+		return result[0];
+	}
+
+	/** 各スレッドで同時にトークンを生成 */
+	private static void generateTokens(int threads, int perThread, Set<String> tokens) throws Exception {
+		CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int i = 0; i < threads; i++) {
+				futures.add(executor.submit(() -> {
+					start.await();
+					for (int j = 0; j < perThread; j++) {
+						tokens.add(AutoCsrfFilter.generateToken());
+					}
+					return null;
+				}));
+			}
+			start.countDown();
+			for (Future<?> future : futures) {
+				future.get(30, TimeUnit.SECONDS);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
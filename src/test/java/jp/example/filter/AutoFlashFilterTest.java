@@ -0,0 +1,335 @@
+package jp.example.filter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import jakarta.servlet.DispatcherType;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import jakarta.servlet.http.Cookie;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpSession;
+
+/**
+ * AutoFlashFilter#returnsAsync の非同期境界 (コンテナースレッドから DB 専用スレッドへの引き継ぎ)、
+ * checkNotModified の ETag と 304、flashStore=cookie の署名付き Cookie によるフラッシュの保存、復元のテストです。
+ * <pre>
+ * AJAX のリクエストで AutoFlashFilter (POST は AutoCsrfFilter も) を呼び出し、Servlet の代わりの FilterChain で
+ * returnsAsync を実行します。DB は TestDatabase を使用し、コミット、ロールバックは login_user の一意なユーザー名で確認します。
+ * Cookie のテストは、レスポンスの Cookie を次のリクエストの Cookie ヘッダーに指定してリダイレクト先の画面遷移を再現します。
+ * 署名鍵はクラスで共通のため、各テストの後にセッション保存 (デフォルト) に戻します。
+ * </pre>
+ * @author New Gradle Project Wizard (c) Pleiades MIT
+ */
+class AutoFlashFilterTest {
+
+	@Test
+	void returnsAsync_DB専用スレッドで同じリクエストコンテキストを使用しコミット() throws Exception {
+		String username = "async-commit-" + System.nanoTime();
+		HttpServletRequest req = ajaxRequest("POST", "/spa/async");
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		HttpServletResponse res = ServletFakes.response(body);
+		Thread containerThread = Thread.currentThread();
+		Object[] taskContext = new Object[3];
+
+		filter(req, res, false, () -> {
+			taskContext[0] = Thread.currentThread();
+			taskContext[1] = RequestContextFilter.request();
+			taskContext[2] = RequestContextFilter.response();
+			insertUser(username);
+			return "登録しました";
+		});
+		assertTrue(ServletFakes.awaitAsyncComplete(req));
+
+		assertNotSame(containerThread, taskContext[0]);
+		assertSame(req, taskContext[1]);
+		assertSame(res, taskContext[2]);
+		assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+		assertEquals("登録しました", body.toString(StandardCharsets.UTF_8));
+		assertEquals(1, countUser(username));
+	}
+
+	@Test
+	void returnsAsync_システムエラーはロールバックして202でメッセージを返す() throws Exception {
+		String username = "async-rollback-" + System.nanoTime();
+		HttpServletRequest req = ajaxRequest("POST", "/spa/async");
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		HttpServletResponse res = ServletFakes.response(body);
+
+		filter(req, res, false, () -> {
+			insertUser(username);
+			throw new UnsupportedOperationException("非同期エラー");
+		});
+		assertTrue(ServletFakes.awaitAsyncComplete(req));
+
+		assertEquals(HttpServletResponse.SC_ACCEPTED, res.getStatus());
+		assertEquals("❌ 非同期エラー", body.toString(StandardCharsets.UTF_8));
+		assertEquals("❌ 非同期エラー", req.getAttribute(AutoFlashFilter.MESSAGE)); // 完了時のログで参照
+		assertEquals(0, countUser(username));
+	}
+
+	@Test
+	void returnsAsync_アプリエラーはロールバックして200でメッセージを返す() throws Exception {
+		String username = "async-app-error-" + System.nanoTime();
+		HttpServletRequest req = ajaxRequest("POST", "/spa/async");
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		HttpServletResponse res = ServletFakes.response(body);
+
+		filter(req, res, false, () -> {
+			insertUser(username);
+			throw new IllegalStateException("入力エラー");
+		});
+		assertTrue(ServletFakes.awaitAsyncComplete(req));
+
+		assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+		assertEquals("❌ 入力エラー", body.toString(StandardCharsets.UTF_8));
+		assertEquals(0, countUser(username));
+	}
+
+	@Test
+	void returnsAsync_トークンが一致しないPOSTは非同期を開始せずに403() throws Exception {
+		String username = "async-csrf-" + System.nanoTime();
+		HttpSession session = ServletFakes.session();
+		session.setAttribute("_csrf", "valid-token");
+		HttpServletRequest req = ServletFakes.request(DispatcherType.REQUEST, "POST", "/spa/async", session,
+			"Accept", "application/json", "X-XSRF-TOKEN", "invalid-token");
+		HttpServletResponse res = ServletFakes.response();
+		boolean[] isCalled = {false};
+
+		filter(req, res, true, () -> {
+			isCalled[0] = true;
+			insertUser(username);
+			return null;
+		});
+
+		assertEquals(HttpServletResponse.SC_FORBIDDEN, res.getStatus());
+		assertFalse(req.isAsyncStarted());
+		assertFalse(isCalled[0]);
+		assertEquals(0, countUser(username));
+	}
+
+	@Test
+	void returnsAsync_トークンが一致するPOSTは非同期で実行() throws Exception {
+		String username = "async-csrf-ok-" + System.nanoTime();
+		HttpSession session = ServletFakes.session();
+		session.setAttribute("_csrf", "valid-token");
+		HttpServletRequest req = ServletFakes.request(DispatcherType.REQUEST, "POST", "/spa/async", session,
+			"Accept", "application/json", "X-XSRF-TOKEN", "valid-token");
+		HttpServletResponse res = ServletFakes.response();
+
+		filter(req, res, true, () -> {
+			insertUser(username);
+			return null;
+		});
+		assertTrue(ServletFakes.awaitAsyncComplete(req));
+
+		assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+		assertEquals(1, countUser(username));
+	}
+
+	@Test
+	void checkNotModified_ETagが一致する場合は304で返却しない() {
+		TestDatabase.read(() -> {}); // table_version の作成
+		HttpServletRequest req = ajaxRequest("GET", "/spa/select-company");
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		HttpServletResponse res = ServletFakes.response(body);
+		filter(req, res, false, AutoFlashFilterTest::selectCompany);
+		String eTag = res.getHeader("ETag");
+		assertEquals("W/\"" + Long.toHexString(AutoTransactionFilter.tableVersion("company")) + "\"", eTag);
+		assertEquals("private, no-cache", res.getHeader("Cache-Control"));
+		assertEquals("会社一覧", body.toString(StandardCharsets.UTF_8));
+
+		for (String ifNoneMatch : new String[] {eTag, eTag.substring(2), "W/\"0\", " + eTag, "*"}) {
+			body.reset();
+			res = ServletFakes.response(body);
+			filter(ServletFakes.request("GET", "/spa/select-company", "Accept", "application/json", "If-None-Match", ifNoneMatch),
+				res, false, AutoFlashFilterTest::selectCompany);
+			assertEquals(HttpServletResponse.SC_NOT_MODIFIED, res.getStatus(), ifNoneMatch);
+			assertEquals(eTag, res.getHeader("ETag"));
+			assertEquals("", body.toString(StandardCharsets.UTF_8));
+		}
+	}
+
+	@Test
+	void checkNotModified_テーブルの変更のコミット後はETagが変わり200で返却() {
+		TestDatabase.read(() -> {});
+		HttpServletResponse res = ServletFakes.response();
+		filter(ajaxRequest("GET", "/spa/select-company"), res, false, AutoFlashFilterTest::selectCompany);
+		String eTag = res.getHeader("ETag");
+
+		TestDatabase.write(() -> AutoTransactionFilter.touchTables("company"));
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		res = ServletFakes.response(body);
+		filter(ServletFakes.request("GET", "/spa/select-company", "Accept", "application/json", "If-None-Match", eTag),
+			res, false, AutoFlashFilterTest::selectCompany);
+		assertEquals(HttpServletResponse.SC_OK, res.getStatus());
+		assertNotEquals(eTag, res.getHeader("ETag"));
+		assertEquals("会社一覧", body.toString(StandardCharsets.UTF_8));
+	}
+
+	/** ETag を返す参照 API (SpaCrudServlet の select-company と同じ) */
+	private static void selectCompany(ServletRequest req, ServletResponse res) {
+		AutoFlashFilter.checkNotModified("company");
+		AutoFlashFilter.returns("会社一覧");
+	}
+
+	@Test
+	void cookie_リダイレクト先でフラッシュを復元しセッションを作成しない() throws Exception {
+		useStateCookie();
+		HttpServletRequest req = ServletFakes.request("POST", "/item/update");
+		HttpServletResponse res = ServletFakes.response();
+		filter(req, res, false, (servletReq, servletRes) -> {
+			servletReq.setAttribute("form", Map.of("name", "iPhone"));
+			AutoFlashFilter.redirect("/item/list", "更新しました");
+		});
+		assertEquals("/item/list", res.getHeader("Location"));
+		Cookie cookie = ServletFakes.cookie(res, AutoFlashFilter.STATE_COOKIE);
+		assertTrue(cookie.isHttpOnly());
+		assertTrue(cookie.getValue().matches("[\\w-]+\\.\\d+\\.[\\w-]+"), cookie.getValue());
+
+		HttpServletRequest redirected = navigate("/item/list", cookie);
+		assertEquals("更新しました", redirected.getAttribute(AutoFlashFilter.MESSAGE));
+		assertEquals(Map.of("name", "iPhone"), redirected.getAttribute("form"));
+		assertEquals("/item/list", redirected.getAttribute(AutoFlashFilter.SYS_ERROR_REDIRECT_URL));
+		assertNull(req.getSession(false));
+		assertNull(redirected.getSession(false));
+	}
+
+	@Test
+	void cookie_改ざんされたCookieは無視() throws Exception {
+		useStateCookie();
+		String value = AutoFlashFilter.encodeState(flashState("更新しました"), System.currentTimeMillis() / 1000);
+		String tampered = AutoFlashFilter.encodeState(flashState("改ざん"), System.currentTimeMillis() / 1000);
+		String forged = tampered.substring(0, tampered.lastIndexOf('.')) + value.substring(value.lastIndexOf('.'));
+
+		assertEquals("更新しました", navigate("/item/list", new Cookie("_flash", value)).getAttribute(AutoFlashFilter.MESSAGE));
+		assertNull(navigate("/item/list", new Cookie("_flash", forged)).getAttribute(AutoFlashFilter.MESSAGE));
+		assertNull(navigate("/item/list", new Cookie("_flash", "abc")).getAttribute(AutoFlashFilter.MESSAGE));
+	}
+
+	@Test
+	void cookie_有効期間を過ぎたCookieは無視() throws Exception {
+		useStateCookie();
+		long now = System.currentTimeMillis() / 1000;
+		Cookie expired = new Cookie("_flash", AutoFlashFilter.encodeState(flashState("古い"), now - 1801));
+		Cookie future = new Cookie("_flash", AutoFlashFilter.encodeState(flashState("未来"), now + 3600));
+		Cookie valid = new Cookie("_flash", AutoFlashFilter.encodeState(flashState("有効"), now - 1700));
+
+		assertNull(navigate("/item/list", expired).getAttribute(AutoFlashFilter.MESSAGE));
+		assertNull(navigate("/item/list", future).getAttribute(AutoFlashFilter.MESSAGE));
+		assertEquals("有効", navigate("/item/list", valid).getAttribute(AutoFlashFilter.MESSAGE));
+	}
+
+	@Test
+	void cookie_有効期間の半分を過ぎたCookieは発行し直す() throws Exception {
+		useStateCookie();
+		long now = System.currentTimeMillis() / 1000;
+		Map<String, Object> state = Map.of(AutoFlashFilter.SYS_ERROR_REDIRECT_URL, "/item/list");
+
+		HttpServletResponse res = ServletFakes.response();
+		navigate(ServletFakes.request("GET", "/item/list", "Cookie", "_flash=" + AutoFlashFilter.encodeState(state, now - 10)), res);
+		assertNull(ServletFakes.cookie(res, AutoFlashFilter.STATE_COOKIE));
+
+		res = ServletFakes.response();
+		navigate(ServletFakes.request("GET", "/item/list", "Cookie", "_flash=" + AutoFlashFilter.encodeState(state, now - 1000)), res);
+		Cookie refreshed = ServletFakes.cookie(res, AutoFlashFilter.STATE_COOKIE);
+		assertEquals("/item/list", navigate("/item/list", refreshed).getAttribute(AutoFlashFilter.SYS_ERROR_REDIRECT_URL));
+		long issuedAt = Long.parseLong(refreshed.getValue().split("\\.")[1]);
+		assertTrue(issuedAt >= now, "発行日時 " + issuedAt);
+	}
+
+	@Test
+	void cookie_サイズ超過のフラッシュはMESSAGEのみに縮小() throws Exception {
+		useStateCookie();
+		HttpServletResponse res = ServletFakes.response();
+		filter(ServletFakes.request("POST", "/item/update"), res, false, (servletReq, servletRes) -> {
+			servletReq.setAttribute("large", "x".repeat(AutoFlashFilter.MAX_STATE_COOKIE_LENGTH));
+			AutoFlashFilter.redirect("/item/list", "更新しました");
+		});
+		Cookie cookie = ServletFakes.cookie(res, AutoFlashFilter.STATE_COOKIE);
+		assertTrue(cookie.getValue().length() <= AutoFlashFilter.MAX_STATE_COOKIE_LENGTH);
+
+		HttpServletRequest redirected = navigate("/item/list", cookie);
+		assertEquals("更新しました", redirected.getAttribute(AutoFlashFilter.MESSAGE));
+		assertNull(redirected.getAttribute("large"));
+		assertEquals("/item/list", redirected.getAttribute(AutoFlashFilter.SYS_ERROR_REDIRECT_URL));
+	}
+
+	@AfterEach
+	void useSession() throws Exception {
+		new AutoFlashFilter().init(ServletFakes.filterConfig("AutoFlashFilter", Map.of()));
+	}
+
+	/** フラッシュと画面遷移の状態を署名付き Cookie に保存 */
+	static void useStateCookie() throws Exception {
+		new AutoFlashFilter().init(ServletFakes.filterConfig("AutoFlashFilter",
+			Map.of("flashStore", "cookie", "flashSecret", "test-secret")));
+	}
+
+	/** フラッシュメッセージのみの状態 */
+	private static Map<String, Object> flashState(String message) {
+		return Map.of(AutoFlashFilter.FLASH, Map.of(AutoFlashFilter.MESSAGE, message));
+	}
+
+	/** Cookie を送信して画面遷移の GET を実行し、Servlet 呼び出し時のリクエストを返す */
+	private static HttpServletRequest navigate(String uri, Cookie cookie) {
+		return navigate(ServletFakes.request("GET", uri, "Cookie", cookie.getName() + "=" + cookie.getValue()),
+			ServletFakes.response());
+	}
+
+	private static HttpServletRequest navigate(HttpServletRequest req, HttpServletResponse res) {
+		HttpServletRequest[] servletReq = {null};
+		filter(req, res, false, (chainReq, chainRes) -> servletReq[0] = (HttpServletRequest) chainReq);
+		return servletReq[0];
+	}
+
+	/** AJAX のリクエスト (Accept: application/json) */
+	private static HttpServletRequest ajaxRequest(String method, String uri) {
+		return ServletFakes.request(method, uri, "Accept", "application/json");
+	}
+
+	/**
+	 * AutoTransactionFilter と同じリクエストコンテキストで、AutoCsrfFilter (isCsrf の場合)、AutoFlashFilter を経由して
+	 * Servlet の代わりに resTask を returnsAsync で実行します (非同期の場合はコンテナースレッドの処理終了まで)。
+	 */
+	private static void filter(HttpServletRequest req, HttpServletResponse res, boolean isCsrf, Callable<?> resTask) {
+		filter(req, res, isCsrf, (servletReq, servletRes) -> AutoFlashFilter.returnsAsync(resTask));
+	}
+
+	/** AutoTransactionFilter と同じリクエストコンテキストで、AutoCsrfFilter (isCsrf の場合)、AutoFlashFilter を経由して servlet を実行 */
+	private static void filter(HttpServletRequest req, HttpServletResponse res, boolean isCsrf, FilterChain servlet) {
+		AutoTransactionFilter.Transaction transaction = TestDatabase.transaction("GET".equals(req.getMethod()));
+		FilterChain flash = (flashReq, flashRes) -> new AutoFlashFilter().doFilter(req, res, servlet);
+		try {
+			RequestContextFilter.runWith(new RequestContextFilter.RequestContext(req, res, transaction), () -> {
+				if (isCsrf) new AutoCsrfFilter().doFilter(req, res, flash);
+				else flash.doFilter(req, res);
+				if (!req.isAsyncStarted()) transaction.commit();
+			});
+		} finally {
+			if (!req.isAsyncStarted()) transaction.close(); // 非同期の場合は DB 専用スレッドでクローズ
+		}
+	}
+
+	private static void insertUser(String username) {
+		AutoTransactionFilter.dao().updateWith("INSERT INTO login_user (username, password) VALUES (/*username*/'', '')")
+			.param("username", username).count();
+	}
+
+	private static int countUser(String username) {
+		int[] count = new int[1];
+		TestDatabase.read(() -> count[0] = AutoTransactionFilter.dao()
+			.queryWith("SELECT COUNT(*) FROM login_user WHERE username = /*username*/''")
+			.param("username", username).one(Integer.class));
+		return count[0];
+	}
+}
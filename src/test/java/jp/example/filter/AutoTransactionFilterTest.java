@@ -0,0 +1,199 @@
+package jp.example.filter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import jp.co.future.uroborosql.UroboroSQL;
+import jp.co.future.uroborosql.config.SqlConfig;
+
+/**
+ * AutoTransactionFilter のトランザクションの接続先 (プライマリ、レプリカ) と、コミット後処理、テーブルバージョンのテストです。
+ * <pre>
+ * プライマリとレプリカを別のインメモリ H2 にして、接続先ごとに異なる値を返すテーブルで接続先を判定します。
+ * テーブルバージョンは create_table.sql を実行した TestDatabase を使用します。
+ * </pre>
+ * @author New Gradle Project Wizard (c) Pleiades MIT
+ */
+class AutoTransactionFilterTest {
+
+	private static SqlConfig primary;
+	private static SqlConfig replica;
+	private static SqlConfig downReplica;
+
+	@BeforeAll
+	static void createDatabases() throws Exception {
+		primary = UroboroSQL.builder(createDatabase("jdbc:h2:mem:tx_primary;DB_CLOSE_DELAY=-1", "primary")).build();
+		replica = UroboroSQL.builder(createDatabase("jdbc:h2:mem:tx_replica;DB_CLOSE_DELAY=-1", "replica")).build();
+		downReplica = UroboroSQL.builder(dataSource("jdbc:h2:file:./build/tx_no_replica;IFEXISTS=TRUE")).build(); // 接続エラー
+	}
+
+	@Test
+	void agent_GETはレプリカを使用() {
+		AutoTransactionFilter.Transaction transaction = new AutoTransactionFilter.Transaction(primary, replica, true);
+		try {
+			assertEquals("replica", nodeName(transaction));
+		} finally {
+			transaction.close();
+		}
+	}
+
+	@Test
+	void agent_レプリカに接続できない場合はプライマリ() {
+		AutoTransactionFilter.Transaction transaction = new AutoTransactionFilter.Transaction(primary, downReplica, true);
+		try {
+			assertEquals("primary", nodeName(transaction));
+		} finally {
+			transaction.close();
+		}
+	}
+
+	@Test
+	void agent_レプリカ未定義の場合はプライマリ() {
+		AutoTransactionFilter.Transaction transaction = new AutoTransactionFilter.Transaction(primary, null, true);
+		try {
+			assertEquals("primary", nodeName(transaction));
+		} finally {
+			transaction.close();
+		}
+	}
+
+	@Test
+	void agent_更新はレプリカがあってもプライマリ() {
+		AutoTransactionFilter.Transaction transaction = new AutoTransactionFilter.Transaction(primary, replica, false);
+		try {
+			assertEquals("primary", nodeName(transaction));
+		} finally {
+			transaction.close();
+		}
+	}
+
+	@Test
+	void usePrimary_接続前に呼び出すとGETでもプライマリ() {
+		AutoTransactionFilter.Transaction transaction = new AutoTransactionFilter.Transaction(primary, replica, true);
+		try {
+			transaction.usePrimary();
+			assertEquals("primary", nodeName(transaction));
+		} finally {
+			transaction.close();
+		}
+	}
+
+	@Test
+	void usePrimary_レプリカに接続済みの場合は閉じてプライマリに接続し直す() {
+		AutoTransactionFilter.Transaction transaction = new AutoTransactionFilter.Transaction(primary, replica, true);
+		try {
+			assertEquals("replica", nodeName(transaction));
+			transaction.usePrimary();
+			assertEquals("primary", nodeName(transaction));
+		} finally {
+			transaction.close();
+		}
+	}
+
+	@Test
+	void primaryAgent_レプリカに接続済みの場合は別にプライマリに接続() {
+		AutoTransactionFilter.Transaction transaction = new AutoTransactionFilter.Transaction(primary, replica, true);
+		try {
+			assertEquals("replica", nodeName(transaction));
+			assertEquals("primary", transaction.primaryAgent().queryWith("SELECT name FROM node").one(String.class));
+			assertEquals("replica", nodeName(transaction)); // dao() はレプリカのまま
+		} finally {
+			transaction.close();
+		}
+	}
+
+	@Test
+	void commit_コミット後処理はコミット時に1回だけ実行しロールバックでは破棄() {
+		AutoTransactionFilter.Transaction transaction = new AutoTransactionFilter.Transaction(primary, replica, false);
+		StringBuilder executed = new StringBuilder();
+		try {
+			RequestContextFilter.runWith(new RequestContextFilter.RequestContext(null, null, transaction), () -> {
+				AutoTransactionFilter.afterCommit(() -> executed.append("a"));
+				AutoTransactionFilter.commit();
+				AutoTransactionFilter.afterCommit(() -> executed.append("b"));
+				AutoTransactionFilter.rollback();
+				AutoTransactionFilter.commit();
+			});
+		} finally {
+			transaction.close();
+		}
+		assertEquals("a", executed.toString());
+	}
+
+	@Test
+	void touchTable_コミット後にノード内のバージョンに反映しロールバックでは増加しない() {
+		TestDatabase.read(() -> {}); // table_version の作成
+		long before = AutoTransactionFilter.tableVersion("company");
+		List<Long> versions = new ArrayList<>();
+		TestDatabase.write(() -> {
+			AutoTransactionFilter.touchTable("company", versions::add);
+			AutoTransactionFilter.touchTable("company", versions::add);
+			assertEquals(before, AutoTransactionFilter.tableVersion("company")); // コミット前は反映しない
+			assertEquals(List.of(), versions);
+		});
+		assertEquals(List.of(before + 1, before + 2), versions); // 変更ごとに連続したバージョン
+		assertEquals(before + 2, AutoTransactionFilter.tableVersion("company"));
+
+		assertThrows(IllegalStateException.class, () -> TestDatabase.write(() -> {
+			AutoTransactionFilter.touchTable("company", versions::add);
+			throw new IllegalStateException();
+		}));
+		assertEquals(before + 2, AutoTransactionFilter.tableVersion("company"));
+		assertEquals(2, versions.size());
+		assertEquals(before + 2, dbVersion("company"));
+	}
+
+	@Test
+	void touchTable_トランザクション中はtable_versionをロックせず他のトランザクションの更新を待機させない() {
+		TestDatabase.read(() -> {});
+		long before = dbVersion("company");
+		long[] outerVersion = new long[1];
+		TestDatabase.write(() -> {
+			AutoTransactionFilter.touchTable("company", version -> outerVersion[0] = version);
+			TestDatabase.write(() -> AutoTransactionFilter.touchTables("company")); // 先にコミットする別のトランザクション
+			assertEquals(before + 1, dbVersion("company"));
+		});
+		assertEquals(before + 2, outerVersion[0]); // コミットした順のバージョン
+		assertEquals(before + 2, dbVersion("company"));
+		assertEquals(before + 2, AutoTransactionFilter.tableVersion("company"));
+	}
+
+	/** DB の table_version のバージョン (別のトランザクションで取得) */
+	private static long dbVersion(String tableName) {
+		long[] version = new long[1];
+		TestDatabase.read(() -> version[0] = AutoTransactionFilter.dao()
+			.queryWith("SELECT version FROM table_version WHERE table_name = /*tableName*/''")
+			.param("tableName", tableName).one(long.class));
+		return version[0];
+	}
+
+	private static String nodeName(AutoTransactionFilter.Transaction transaction) {
+		return transaction.agent().queryWith("SELECT name FROM node").one(String.class);
+	}
+
+	private static DataSource createDatabase(String url, String nodeName) throws Exception {
+		DataSource dataSource = dataSource(url);
+		try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+			statement.execute("CREATE TABLE node (name VARCHAR(30))");
+			statement.execute("INSERT INTO node VALUES ('" + nodeName + "')");
+		}
+		return dataSource;
+	}
+
+	private static DataSource dataSource(String url) {
+		JdbcDataSource dataSource = new JdbcDataSource();
+		dataSource.setURL(url);
+		dataSource.setUser("sa");
+		return dataSource;
+	}
+}
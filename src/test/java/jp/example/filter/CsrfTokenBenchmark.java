@@ -0,0 +1,77 @@
+package jp.example.filter;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * CSRF トークン生成の並行スループットを計測する JMH ベンチマークです。
+ * <pre>
+ * AutoCsrfFilter#generateToken (スレッドごとの DRBG) と、JVM 共通の SecureRandom を使用する UUID.randomUUID、
+ * 全スレッドで共有する 1 つの SecureRandom を、1 スレッドと CPU コア数のスレッドで比較します。
+ * 共通のロックで競合する場合は、コア数のスレッドでも合計のスループットが 1 スレッドとほぼ変わりません。
+ *
+ * 実行方法 (結果は全スレッド合計の 1 マイクロ秒あたりの生成数)
+ *
+ *     gradle jmh -PjmhArgs="CsrfTokenBenchmark"
+ * </pre>
+ * @author New Gradle Project Wizard (c) Pleiades MIT
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CsrfTokenBenchmark {
+
+	private final SecureRandom sharedRandom = new SecureRandom();
+
+	@Benchmark @Threads(1)
+	public String perThreadDrbg_1() {
+		return AutoCsrfFilter.generateToken();
+	}
+
+	@Benchmark @Threads(Threads.MAX)
+	public String perThreadDrbg_max() {
+		return AutoCsrfFilter.generateToken();
+	}
+
+	@Benchmark @Threads(1)
+	public String uuid_1() {
+		return UUID.randomUUID().toString();
+	}
+
+	@Benchmark @Threads(Threads.MAX)
+	public String uuid_max() {
+		return UUID.randomUUID().toString();
+	}
+
+	@Benchmark @Threads(1)
+	public String sharedSecureRandom_1() {
+		return sharedToken();
+	}
+
+	@Benchmark @Threads(Threads.MAX)
+	public String sharedSecureRandom_max() {
+		return sharedToken();
+	}
+
+	private String sharedToken() {
+		byte[] bytes = new byte[16];
+		sharedRandom.nextBytes(bytes);
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+	}
+}
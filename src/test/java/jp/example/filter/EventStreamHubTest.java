@@ -0,0 +1,209 @@
+package jp.example.filter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.jupiter.api.Test;
+
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * EventStreamHub のファンアウト、送信が遅い購読者と切断された購読者の除外、再接続時の再送のテストです。
+ * <pre>
+ * 購読者の出力ストリームは、isReady (書き込み可能) と書き込みエラーを切り替えられるテスト用の実装です。
+ * 配信は配信スレッドで非同期に行われるため、レスポンスボディや購読者数が期待値になるまで待機して検証します。
+ * コミット後にのみ配信されることは、ItemForm の変更イベントとして ItemFormTest で検証します。
+ * </pre>
+ * @author New Gradle Project Wizard (c) Pleiades MIT
+ */
+class EventStreamHubTest {
+
+	@Test
+	void publish_すべての購読者に同じイベントを配信() throws Exception {
+		EventStreamHub hub = new EventStreamHub("test");
+		Subscription first = subscribe(hub);
+		Subscription second = subscribe(hub);
+		assertEquals(2, hub.subscriberCount());
+
+		for (int i = 1; i <= 3; i++) hub.publish("item", new int[] {i});
+		for (Subscription subscription : new Subscription[] {first, second}) {
+			await(() -> subscription.out.text().contains("data: [3]"));
+			assertEquals("retry: 3000\n\n" + frame(first, 1, "[1]") + frame(first, 2, "[2]") + frame(first, 3, "[3]"),
+				subscription.out.text());
+		}
+		first.complete();
+		second.complete();
+		assertEquals(0, hub.subscriberCount());
+	}
+
+	@Test
+	void publish_送信が遅い購読者は未送信の上限を超えた場合に切断() throws Exception {
+		EventStreamHub hub = new EventStreamHub("test");
+		Subscription fast = subscribe(hub);
+		Subscription slow = subscribe(hub);
+		slow.out.isReady = false;
+
+		for (int i = 1; i <= 10; i++) hub.publish("item", i);
+		await(() -> fast.out.text().contains("data: 10\n"));
+		assertFalse(slow.out.text().contains("data: 1\n")); // 書き込み可能になるまで待機
+		slow.out.resume();
+		await(() -> slow.out.text().contains("data: 10\n")); // 上限以内は書き込み可能になった時点で送信
+		assertEquals(10, StringUtils.countMatches(slow.out.text(), "event: item"));
+
+		slow.out.isReady = false;
+		for (int i = 11; i <= 10 + EventStreamHub.MAX_QUEUED_EVENTS + 1; i++) hub.publish("item", i);
+		assertTrue(ServletFakes.awaitAsyncComplete(slow.req));
+		await(() -> hub.subscriberCount() == 1);
+		int last = 10 + EventStreamHub.MAX_QUEUED_EVENTS + 1;
+		await(() -> fast.out.text().contains("data: " + last + "\n")); // 他の購読者には影響しない
+		assertEquals(last, StringUtils.countMatches(fast.out.text(), "event: item"));
+		fast.complete();
+	}
+
+	@Test
+	void publish_切断された購読者は書き込みエラーで除外() throws Exception {
+		EventStreamHub hub = new EventStreamHub("test");
+		Subscription alive = subscribe(hub);
+		Subscription disconnected = subscribe(hub);
+		disconnected.out.isBroken = true;
+
+		hub.publish("item", 1);
+		assertTrue(ServletFakes.awaitAsyncComplete(disconnected.req));
+		await(() -> hub.subscriberCount() == 1);
+		hub.publish("item", 2);
+		await(() -> alive.out.text().contains("data: 2\n"));
+		assertEquals(2, StringUtils.countMatches(alive.out.text(), "event: item"));
+		alive.complete();
+	}
+
+	@Test
+	void subscribe_再接続時はLastEventID以降を再送し範囲外の場合はreset() throws Exception {
+		EventStreamHub hub = new EventStreamHub("test");
+		Subscription first = subscribe(hub);
+		for (int i = 1; i <= 3; i++) hub.publish("item", i);
+		await(() -> first.out.text().contains("data: 3\n"));
+		first.complete();
+
+		String lastEventId = StringUtils.substringBetween(first.out.text(), "id: ", "\nevent: item\ndata: 1\n");
+		Subscription resumed = subscribe(hub, "Last-Event-ID", lastEventId);
+		await(() -> resumed.out.text().contains("data: 3\n"));
+		assertEquals("retry: 3000\n\n" + frame(first, 2, "2") + frame(first, 3, "3"), resumed.out.text());
+
+		Subscription restarted = subscribe(hub, "Last-Event-ID", "other-1"); // 再起動前のイベント id
+		await(() -> restarted.out.text().contains("event: reset"));
+		assertFalse(restarted.out.text().contains("event: item"));
+		resumed.complete();
+		restarted.complete();
+	}
+
+	@Test
+	void subscribe_購読者数が上限の場合は503() {
+		EventStreamHub hub = new EventStreamHub("test");
+		List<HttpServletRequest> reqs = new ArrayList<>();
+		for (int i = 0; i < EventStreamHub.MAX_SUBSCRIBERS; i++) {
+			reqs.add(ServletFakes.request("GET", "/item/events"));
+			hub.subscribe(reqs.get(i), ServletFakes.response());
+		}
+		HttpServletResponse res = ServletFakes.response();
+		hub.subscribe(ServletFakes.request("GET", "/item/events"), res);
+		assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, res.getStatus());
+		assertEquals("10", res.getHeader("Retry-After"));
+		assertEquals(EventStreamHub.MAX_SUBSCRIBERS, hub.subscriberCount());
+		reqs.forEach(req -> req.getAsyncContext().complete());
+		assertEquals(0, hub.subscriberCount());
+	}
+
+	/** 購読を開始し、最初のフレーム (retry) の送信まで待機 (以降の publish は配信対象) */
+	private static Subscription subscribe(EventStreamHub hub, String... headerNameValues) throws InterruptedException {
+		HttpServletRequest req = ServletFakes.request("GET", "/item/events", headerNameValues);
+		TestOutputStream out = new TestOutputStream();
+		hub.subscribe(req, new HttpServletResponseWrapper(ServletFakes.response()) {
+			@Override
+			public ServletOutputStream getOutputStream() {
+				return out;
+			}
+		});
+		await(() -> out.text().startsWith("retry: 3000\n\n"));
+		return new Subscription(req, out);
+	}
+
+	/** 購読者が受信したイベントのフレーム (id の接頭辞はハブの起動 id) */
+	private static String frame(Subscription subscription, long sequence, String json) {
+		String bootId = StringUtils.substringBetween(subscription.out.text(), "id: ", "-");
+		return "id: " + bootId + "-" + sequence + "\nevent: item\ndata: " + json + "\n\n";
+	}
+
+	private static void await(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (!condition.getAsBoolean()) {
+			assertTrue(System.nanoTime() < deadline, "10 秒以内に条件を満たしませんでした。");
+			Thread.sleep(10);
+		}
+	}
+
+	/** 購読中のリクエストと出力ストリーム */
+	private record Subscription(HttpServletRequest req, TestOutputStream out) {
+
+		/** クライアントの切断 (コンテナーによる非同期の完了) */
+		void complete() throws InterruptedException {
+			req.getAsyncContext().complete();
+			assertTrue(ServletFakes.awaitAsyncComplete(req));
+		}
+	}
+
+	/** isReady と書き込みエラーを切り替えられる出力ストリーム */
+	private static class TestOutputStream extends ServletOutputStream {
+
+		private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		private volatile WriteListener writeListener;
+		volatile boolean isReady = true;
+		volatile boolean isBroken;
+
+		@Override
+		public boolean isReady() {
+			return isReady;
+		}
+
+		@Override
+		public void setWriteListener(WriteListener writeListener) {
+			this.writeListener = writeListener;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (isBroken) throw new IOException("接続がリセットされました。");
+			synchronized (body) {
+				body.write(b);
+			}
+		}
+
+		/** 書き込み可能にして、コンテナーと同じく onWritePossible を通知 */
+		void resume() {
+			isReady = true;
+			try {
+				writeListener.onWritePossible();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		String text() {
+			synchronized (body) {
+				return body.toString(StandardCharsets.UTF_8);
+			}
+		}
+	}
+}
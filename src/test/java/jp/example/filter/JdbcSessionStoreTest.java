@@ -0,0 +1,191 @@
+package jp.example.filter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.Test;
+
+import jakarta.servlet.FilterConfig;
+import jakarta.servlet.http.Cookie;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpSession;
+
+/**
+ * JdbcSessionStore と SessionStoreManager (ニアキャッシュ、変更の一括書き込み) のテストです。
+ * <pre>
+ * TestDatabase のインメモリ H2 (create_table.sql の app_session、app_session_attribute) を共有するストアを使用し、
+ * 同じストアを参照する 2 つの SessionStoreManager を 2 つのノードとして、レスポンスの Cookie SESSION を次のリクエストで送信します。
+ * セッション ID はテストごとに生成されるため、DB はテストごとに分けません。
+ * </pre>
+ * @author New Gradle Project Wizard (c) Pleiades MIT
+ */
+class JdbcSessionStoreTest {
+
+	@Test
+	void save_変更された属性のみを保存しバージョンを増加() {
+		H2SessionStore store = new H2SessionStore();
+		String id = "store-" + System.nanoTime();
+		assertEquals(-1, store.version(id));
+		assertNull(store.load(id));
+
+		assertEquals(1, store.save(id, 1000, 2000, 1800, Map.of("a", new byte[] {1}, "b", new byte[] {2}), Set.of()));
+		assertEquals(2, store.save(id, 1000, 3000, 1800, Map.of("a", new byte[] {3}), Set.of("b")));
+		SessionStore.StoredSession stored = store.load(id);
+		assertEquals(2, stored.version());
+		assertEquals(1000, stored.creationTime());
+		assertEquals(3000, stored.lastAccessedTime());
+		assertEquals(List.of("a"), List.copyOf(stored.attributes().keySet()));
+		assertArrayEquals(new byte[] {3}, stored.attributes().get("a"));
+
+		store.delete(id);
+		assertEquals(-1, store.version(id));
+	}
+
+	@Test
+	void save_タイムアウトしたセッションは読み込まない() {
+		H2SessionStore store = new H2SessionStore();
+		String id = "store-expired-" + System.nanoTime();
+		long lastAccessedTime = System.currentTimeMillis() - 2000;
+		store.save(id, lastAccessedTime, lastAccessedTime, 1, Map.of(), Set.of());
+		assertEquals(-1, store.version(id));
+		assertNull(store.load(id));
+	}
+
+	@Test
+	void getSession_他のノードで作成したセッションをストアから読み込みニアキャッシュで再利用() {
+		H2SessionStore store = new H2SessionStore();
+		SessionStoreManager node1 = new SessionStoreManager(store, ServletFakes.context());
+		SessionStoreManager node2 = new SessionStoreManager(store, ServletFakes.context());
+		ArrayList<String> cart = new ArrayList<>(List.of("iPhone"));
+		Cookie cookie = request(node1, null, session -> session.setAttribute("cart", cart));
+
+		int loads = store.loads.get();
+		Object[] restored = new Object[2];
+		request(node2, cookie, session -> restored[0] = session.getAttribute("cart"));
+		request(node2, cookie, session -> restored[1] = session.getAttribute("cart"));
+		assertEquals(cart, restored[0]);
+		assertNotSame(cart, restored[0]); // ストアからデシリアライズ
+		assertSame(restored[0], restored[1]); // 2 回目はバージョンのみ確認してニアキャッシュを使用
+		assertEquals(loads + 1, store.loads.get());
+	}
+
+	@Test
+	void getSession_他のノードで変更された場合はニアキャッシュを破棄して読み込み() {
+		H2SessionStore store = new H2SessionStore();
+		SessionStoreManager node1 = new SessionStoreManager(store, ServletFakes.context());
+		SessionStoreManager node2 = new SessionStoreManager(store, ServletFakes.context());
+		Cookie cookie = request(node1, null, session -> session.setAttribute("user", "user1"));
+		request(node2, cookie, session -> assertEquals("user1", session.getAttribute("user")));
+
+		request(node2, cookie, session -> session.setAttribute("user", "user2"));
+		Object[] user = new Object[1];
+		request(node1, cookie, session -> user[0] = session.getAttribute("user"));
+		assertEquals("user2", user[0]);
+
+		request(node1, cookie, HttpSession::invalidate);
+		HttpServletRequest req = ServletFakes.request("GET", "/item/list", "Cookie", cookie.getName() + "=" + cookie.getValue());
+		assertNull(node2.wrap(req, ServletFakes.response()).getSession(false));
+	}
+
+	@Test
+	void getSession_変更が無いリクエストは属性を保存しない() {
+		H2SessionStore store = new H2SessionStore();
+		SessionStoreManager node = new SessionStoreManager(store, ServletFakes.context());
+		Cookie cookie = request(node, null, session -> session.setAttribute("user", "user1"));
+		long version = store.version(cookie.getValue());
+
+		request(node, cookie, session -> session.getAttribute("user"));
+		assertEquals(version, store.version(cookie.getValue()));
+		request(node, cookie, session -> session.setAttribute("user", "user2"));
+		assertEquals(version + 1, store.version(cookie.getValue()));
+	}
+
+	@Test
+	void doFilter_非同期の場合は完了時に保存() throws Exception {
+		H2SessionStore store = new H2SessionStore();
+		RequestContextFilter filter = new RequestContextFilter();
+		filter.init(ServletFakes.filterConfig("RequestContextFilter", Map.of("sessionStore", H2SessionStore.class.getName())));
+		try {
+			HttpServletRequest req = ServletFakes.request("GET", "/item/list");
+			HttpServletResponse res = ServletFakes.response();
+			CountDownLatch saved = new CountDownLatch(1);
+			filter.doFilter(req, res, (chainReq, chainRes) -> {
+				HttpSession session = ((HttpServletRequest) chainReq).getSession();
+				chainReq.startAsync();
+				new Thread(() -> {
+					try {
+						assertTrue(saved.await(10, TimeUnit.SECONDS));
+						session.setAttribute("user", "async");
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} finally {
+						req.getAsyncContext().complete();
+					}
+				}).start();
+			});
+			String id = ServletFakes.cookie(res, SessionStoreManager.SESSION_COOKIE).getValue();
+			assertEquals(-1, store.version(id)); // コンテナースレッドの終了時には保存しない
+
+			saved.countDown();
+			assertTrue(ServletFakes.awaitAsyncComplete(req));
+			assertEquals(1, store.version(id));
+			assertTrue(store.load(id).attributes().containsKey("user"));
+		} finally {
+			filter.destroy();
+		}
+	}
+
+	/** セッションを操作するリクエストを実行して commit し、セッション Cookie (新規作成の場合はレスポンスの Cookie) を返す */
+	private static Cookie request(SessionStoreManager node, Cookie cookie, SessionTask task) {
+		HttpServletRequest req = cookie == null ? ServletFakes.request("GET", "/item/list")
+			: ServletFakes.request("GET", "/item/list", "Cookie", cookie.getName() + "=" + cookie.getValue());
+		HttpServletResponse res = ServletFakes.response();
+		SessionStoreManager.StoreSessionRequest storeReq = node.wrap(req, res);
+		task.run(storeReq.getSession());
+		storeReq.commit();
+		Cookie created = ServletFakes.cookie(res, SessionStoreManager.SESSION_COOKIE);
+		return created == null ? cookie : created;
+	}
+
+	@FunctionalInterface
+	private interface SessionTask {
+		void run(HttpSession session);
+	}
+
+	/** TestDatabase の H2 を参照し、load の呼び出し回数を数えるストア (init-param sessionStore からも作成) */
+	public static class H2SessionStore extends JdbcSessionStore {
+
+		final AtomicInteger loads = new AtomicInteger();
+
+		public H2SessionStore() {
+			super(dataSource());
+		}
+
+		@Override
+		public void init(FilterConfig filterConfig) {
+		}
+
+		@Override
+		public StoredSession load(String id) {
+			loads.incrementAndGet();
+			return super.load(id);
+		}
+
+		private static JdbcDataSource dataSource() {
+			TestDatabase.read(() -> {}); // テーブルの作成
+			JdbcDataSource dataSource = new JdbcDataSource();
+			dataSource.setURL("jdbc:h2:mem:test;DB_CLOSE_DELAY=-1");
+			dataSource.setUser("sa");
+			return dataSource;
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package jp.example.filter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * LatencyHistogram のパーセンタイル、集計値、並行記録のテストです。
+ * <pre>
+ * パーセンタイルはバケットの中央値による近似のため、対数線形バケットの相対誤差 (約 6%) の範囲で検証します。
+ * </pre>
+ * @author New Gradle Project Wizard (c) Pleiades MIT
+ */
+class LatencyHistogramTest {
+
+	@Test
+	void percentileNanos_記録が無い場合は0() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.percentileNanos(0.5));
+		assertEquals(0, histogram.percentileNanos(0.99));
+	}
+
+	@Test
+	void percentileNanos_一様分布のパーセンタイルを相対誤差の範囲で近似() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long millis = 1; millis <= 1000; millis++) {
+			histogram.record(TimeUnit.MILLISECONDS.toNanos(millis));
+		}
+		assertNear(TimeUnit.MILLISECONDS.toNanos(500), histogram.percentileNanos(0.5));
+		assertNear(TimeUnit.MILLISECONDS.toNanos(950), histogram.percentileNanos(0.95));
+		assertNear(TimeUnit.MILLISECONDS.toNanos(990), histogram.percentileNanos(0.99));
+		assertNear(TimeUnit.MILLISECONDS.toNanos(1000), histogram.percentileNanos(1.0));
+		assertTrue(histogram.percentileNanos(1.0) <= histogram.maxNanos());
+	}
+
+	@Test
+	void percentileNanos_16ナノ秒未満は正確な値で最大値を超えない() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(3);
+		histogram.record(7);
+		histogram.record(-5); // 時刻の逆行は 0 として記録
+		assertEquals(3, histogram.percentileNanos(0.5));
+		assertEquals(7, histogram.percentileNanos(0.99));
+		assertEquals(0, histogram.percentileNanos(0.1));
+
+		LatencyHistogram single = new LatencyHistogram();
+		single.record(1 << 20);
+		assertEquals(1 << 20, single.percentileNanos(0.5)); // バケットの下限の値 (中央値より最大値が小さい場合は最大値)
+	}
+
+	@Test
+	void percentileNanos_上限を超える値は最後のバケット() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(Long.MAX_VALUE);
+		assertTrue(histogram.percentileNanos(0.5) > 1L << 42);
+		assertEquals(Long.MAX_VALUE, histogram.maxNanos());
+	}
+
+	@Test
+	void record_件数と合計と最大とエラー件数() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(100);
+		histogram.record(300, true);
+		histogram.record(200, false);
+		assertEquals(3, histogram.count());
+		assertEquals(600, histogram.sumNanos());
+		assertEquals(300, histogram.maxNanos());
+		assertEquals(1, histogram.errorCount());
+	}
+
+	@Test
+	void record_並行記録で件数と合計が一致() throws Exception {
+		LatencyHistogram histogram = new LatencyHistogram();
+		int threads = 8;
+		int perThread = 100_000;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int i = 0; i < threads; i++) {
+				futures.add(executor.submit(() -> {
+					for (int j = 1; j <= perThread; j++) {
+						histogram.record(j);
+					}
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get(30, TimeUnit.SECONDS);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals((long) threads * perThread, histogram.count());
+		assertEquals((long) threads * perThread * (perThread + 1) / 2, histogram.sumNanos());
+		assertEquals(perThread, histogram.maxNanos());
+	}
+
+	/** バケットの相対誤差 (1/16) の範囲内 */
+	private static void assertNear(long expected, long actual) {
+		assertTrue(Math.abs(actual - expected) <= expected / 16, () -> "expected " + expected + " actual " + actual);
+	}
+}
@@ -0,0 +1,97 @@
+package jp.example.filter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Metrics の Prometheus テキスト形式の出力と、ラベル値の上限、処理時間の記録のテストです。
+ * <pre>
+ * メトリクスは static に登録されるため、テストごとに一意な名前のメトリクスを作成して、その行のみを検証します。
+ * </pre>
+ * @author New Gradle Project Wizard (c) Pleiades MIT
+ */
+class MetricsTest {
+
+	@Test
+	void writePrometheus_summaryと最大値とエラー件数を出力() {
+		Metrics.Metric metric = new Metrics.Metric("test_format_seconds", "path", "形式テスト");
+		metric.histogram("/item/list").record(2_000_000_000L);
+		metric.histogram("/item/list").record(1_000_000_000L, true);
+
+		List<String> lines = lines("test_format");
+		assertNotEquals(seconds(metric, 0.5), seconds(metric, 0.95)); // 1 秒と 2 秒のバケット
+		assertEquals(List.of(
+			"# HELP test_format_seconds 形式テスト",
+			"# TYPE test_format_seconds summary",
+			"test_format_seconds{path=\"/item/list\",quantile=\"0.5\"} " + seconds(metric, 0.5),
+			"test_format_seconds{path=\"/item/list\",quantile=\"0.95\"} " + seconds(metric, 0.95),
+			"test_format_seconds{path=\"/item/list\",quantile=\"0.99\"} " + seconds(metric, 0.99),
+			"test_format_seconds_sum{path=\"/item/list\"} 3.0",
+			"test_format_seconds_count{path=\"/item/list\"} 2",
+			"# HELP test_format_max_seconds 形式テスト (最大値)",
+			"# TYPE test_format_max_seconds gauge",
+			"test_format_max_seconds{path=\"/item/list\"} 2.0",
+			"# HELP test_format_errors_total 形式テスト (エラー件数)",
+			"# TYPE test_format_errors_total counter",
+			"test_format_errors_total{path=\"/item/list\"} 1"), lines);
+	}
+
+	@Test
+	void writePrometheus_ラベルなしとラベル値のエスケープ() {
+		Metrics.Metric noLabel = new Metrics.Metric("test_nolabel_seconds", null, "ラベルなし");
+		noLabel.histogram("無視される").record(1_000_000L);
+		assertTrue(lines("test_nolabel").contains("test_nolabel_seconds_count 1"));
+		assertTrue(lines("test_nolabel").contains("test_nolabel_seconds{quantile=\"0.5\"} " + seconds(noLabel.histogram(), 0.5)));
+
+		Metrics.Metric escaped = new Metrics.Metric("test_escape_seconds", "path", "エスケープ");
+		escaped.histogram("/a\"b\\c\nd").record(1);
+		assertTrue(lines("test_escape").contains("test_escape_seconds_count{path=\"/a\\\"b\\\\c\\nd\"} 1"));
+	}
+
+	@Test
+	void histogram_ラベル値の上限を超えた場合はotherに集約() {
+		Metrics.Metric metric = new Metrics.Metric("test_series_seconds", "path", "上限テスト");
+		for (int i = 0; i < 200; i++) {
+			metric.histogram("/path" + i).record(1);
+		}
+		metric.histogram("/path200").record(1);
+		metric.histogram("/path201").record(1);
+		assertSame(metric.histogram("/path0"), metric.histogram("/path0")); // 既存のラベル値は上限後も個別
+		assertSame(metric.histogram("other"), metric.histogram("/path202"));
+		assertEquals(2, metric.histogram("other").count());
+		assertEquals(201, lines("test_series_seconds_count").size());
+	}
+
+	@Test
+	void time_処理時間を記録し例外はエラーとして再スロー() {
+		Metrics.Metric metric = new Metrics.Metric("test_time_seconds", "filter", "計測テスト");
+		metric.time("ok", () -> Thread.sleep(5));
+		assertThrows(IllegalStateException.class, () -> metric.time("ng", () -> {
+			throw new IllegalStateException();
+		}));
+		assertEquals(1, metric.histogram("ok").count());
+		assertTrue(metric.histogram("ok").maxNanos() >= 5_000_000L);
+		assertEquals(0, metric.histogram("ok").errorCount());
+		assertEquals(1, metric.histogram("ng").errorCount());
+	}
+
+	/** Prometheus 出力のうち、指定した文字列を含む行 */
+	private static List<String> lines(String name) {
+		StringWriter out = new StringWriter();
+		Metrics.writePrometheus(new PrintWriter(out));
+		return out.toString().lines().filter(line -> line.contains(name)).toList();
+	}
+
+	private static String seconds(Metrics.Metric metric, double quantile) {
+		return seconds(metric.histogram("/item/list"), quantile);
+	}
+
+	private static String seconds(LatencyHistogram histogram, double quantile) {
+		return Double.toString(histogram.percentileNanos(quantile) / 1e9);
+	}
+}
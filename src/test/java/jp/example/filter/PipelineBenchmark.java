@@ -0,0 +1,167 @@
+package jp.example.filter;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.Context;
+import javax.naming.NameNotFoundException;
+import javax.naming.spi.InitialContextFactory;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import jakarta.servlet.DispatcherType;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import jakarta.servlet.http.HttpFilter;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpSession;
+import jp.example.filter.RequestRoute.Stage;
+import lombok.SneakyThrows;
+
+/**
+ * ローカルフィルター全体のリクエストごとのオーバーヘッドを計測する JMH ベンチマークです。
+ * <pre>
+ * 静的ファイル (STATIC)、画面遷移 (PAGE)、API (AJAX) のリクエストについて、PipelineFilter (pipeline) と
+ * web.xml に各フィルターを個別に定義した場合と同じ順にすべてのフィルターを呼び出すチェーン (separate) を比較します。
+ * Servlet は何もしないため、DB 接続は取得されません (ログイン済みのセッションを使用)。
+ *
+ * 実行方法 (結果は 1 リクエストあたりのナノ秒)
+ *
+ *     gradle jmh -PjmhArgs="PipelineBenchmark"
+ *     gradle jmh -PjmhArgs="PipelineBenchmark -prof gc"   (1 リクエストあたりの割り当てバイト数)
+ * </pre>
+ * @author New Gradle Project Wizard (c) Pleiades MIT
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipelineBenchmark {
+
+	/** リクエストの種別 */
+	@Param({"STATIC", "PAGE", "API"})
+	public String route;
+
+	/** フィルターの構成 */
+	@Param({"pipeline", "separate"})
+	public String chain;
+
+	private static final FilterChain servlet = (req, res) -> {};
+	private static final Map<String, String> initParams = Map.of(
+		"AdmissionFilter.interactiveConcurrency", "100000",
+		"LoginAuthFilter.userEntityClass", "jp.example.entity.LoginUser",
+		"LoginAuthFilter.hashThreads", "1",
+		"LoginAuthFilter.hashTargetMillis", "1");
+
+	private HttpFilter filter;
+	private HttpSession session;
+	private String uri;
+	private String[] headers;
+
+	@Setup
+	public void setup() throws Exception {
+		System.setProperty(Context.INITIAL_CONTEXT_FACTORY, H2ContextFactory.class.getName());
+		filter = chain.equals("pipeline") ? new PipelineFilter() : new SeparateFilters();
+		filter.init(ServletFakes.filterConfig(filter.getClass().getSimpleName(), initParams));
+		session = ServletFakes.session();
+		session.setAttribute("USER", "benchmark");
+		switch (route) {
+			case "STATIC" -> {
+				uri = "/static/app.css";
+				headers = new String[] {"Accept", "text/css,*/*;q=0.1"};
+			}
+			case "PAGE" -> {
+				uri = "/item/list";
+				headers = new String[] {"Accept", "text/html,application/xhtml+xml"};
+			}
+			default -> {
+				uri = "/spa/list";
+				headers = new String[] {"Accept", "application/json, text/plain, */*"};
+			}
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		filter.destroy();
+	}
+
+	@Benchmark
+	public HttpServletResponse doFilter() throws Exception {
+		HttpServletRequest req = ServletFakes.request(DispatcherType.REQUEST, "GET", uri, session, headers);
+		HttpServletResponse res = ServletFakes.response();
+		filter.doFilter(req, res, servlet);
+		return res;
+	}
+
+	/** web.xml に各フィルターを個別に定義した場合と同様に、すべてのフィルターを順に呼び出すフィルター */
+	public static class SeparateFilters extends HttpFilter {
+
+		private final HttpFilter[] filters = new HttpFilter[Stage.values().length];
+
+		@Override @SneakyThrows
+		public void init() {
+			for (Stage stage : Stage.values()) {
+				String name = stage.filterClass().getSimpleName();
+				Map<String, String> params = new HashMap<>();
+				initParams.forEach((key, value) -> {
+					if (key.startsWith(name + ".")) params.put(key.substring(name.length() + 1), value);
+				});
+				filters[stage.ordinal()] = stage.filterClass().getDeclaredConstructor().newInstance();
+				filters[stage.ordinal()].init(ServletFakes.filterConfig(name, params));
+			}
+		}
+
+		@Override
+		public void destroy() {
+			for (HttpFilter f : filters) f.destroy();
+		}
+
+		@Override @SneakyThrows
+		protected void doFilter(HttpServletRequest req, HttpServletResponse res, FilterChain chain) {
+			new FilterChain() {
+				private int position;
+				@Override @SneakyThrows
+				public void doFilter(ServletRequest request, ServletResponse response) {
+					if (position < filters.length) filters[position++].doFilter(request, response, this);
+					else chain.doFilter(request, response);
+				}
+			}.doFilter(req, res);
+		}
+	}
+
+	/** AutoTransactionFilter の JNDI 参照 jdbc/main をインメモリ H2 にする (jdbc/replica は未定義) */
+	public static class H2ContextFactory implements InitialContextFactory {
+
+		@Override
+		public Context getInitialContext(Hashtable<?, ?> environment) {
+			JdbcDataSource dataSource = new JdbcDataSource();
+			dataSource.setURL("jdbc:h2:mem:benchmark;DB_CLOSE_DELAY=-1");
+			dataSource.setUser("sa");
+			return (Context) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {Context.class}, (proxy, method, args) -> {
+				if (method.getName().equals("lookup") && "java:comp/env/jdbc/main".equals(String.valueOf(args[0]))) return dataSource;
+				if (method.getName().equals("lookup")) throw new NameNotFoundException(String.valueOf(args[0]));
+				return null;
+			});
+		}
+	}
+}
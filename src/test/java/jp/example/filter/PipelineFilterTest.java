@@ -0,0 +1,128 @@
+package jp.example.filter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import jakarta.servlet.DispatcherType;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * PipelineFilter の種別ごとの段階実行のテストです。
+ * <pre>
+ * DB 接続 (JNDI) と Argon2 の反復回数の算出が必要な TRANSACTION、AUTH、ADMISSION を除いた段階で確認します。
+ * </pre>
+ * @author New Gradle Project Wizard (c) Pleiades MIT
+ */
+class PipelineFilterTest {
+
+	private PipelineFilter pipeline;
+	private final List<RequestContextFilter.RequestContext> contexts = new ArrayList<>();
+	private final FilterChain chain = (req, res) -> contexts.add(RequestContextFilter.current());
+
+	@BeforeEach
+	void init() throws Exception {
+		pipeline = new PipelineFilter();
+		pipeline.init(ServletFakes.filterConfig("PipelineFilter", Map.of("stages", "CONTEXT, CSRF, FLASH")));
+	}
+
+	@AfterEach
+	void destroy() {
+		pipeline.destroy();
+	}
+
+	@Test
+	void doFilter_静的ファイルはコンテキストもセッションも作成しない() throws Exception {
+		HttpServletRequest req = ServletFakes.request("GET", "/static/app.css");
+		pipeline.doFilter(req, ServletFakes.response(), chain);
+		assertEquals(1, contexts.size());
+		assertNull(contexts.get(0));
+		assertNull(req.getSession(false));
+	}
+
+	@Test
+	void doFilter_画面遷移はすべての段階を実行してコンテキストを復元() throws Exception {
+		HttpServletRequest req = ServletFakes.request("GET", "/item/list");
+		HttpServletResponse res = ServletFakes.response();
+		pipeline.doFilter(req, res, chain);
+		assertEquals(1, contexts.size());
+		assertNotNull(contexts.get(0));
+		assertNotSame(req, contexts.get(0).req()); // AutoFlashFilter のフラッシュ用ラッパー
+		assertNotNull(req.getSession(false).getAttribute("_csrf"));
+		assertTrue(res.getHeader("Set-Cookie").startsWith("XSRF-TOKEN="));
+		assertNull(RequestContextFilter.current());
+	}
+
+	@Test
+	void doFilter_段階ごとの処理時間を後続を除いて1回だけ計測() throws Exception {
+		List<String> names = List.of("RequestContextFilter", "AutoCsrfFilter", "AutoFlashFilter");
+		List<Long> counts = names.stream().map(name -> Metrics.FILTER.histogram(name).count()).toList();
+		List<Long> sums = names.stream().map(name -> Metrics.FILTER.histogram(name).sumNanos()).toList();
+		long sleepNanos = TimeUnit.MILLISECONDS.toNanos(200);
+		pipeline.doFilter(ServletFakes.request("GET", "/item/list"), ServletFakes.response(), (req, res) -> {
+			try {
+				Thread.sleep(TimeUnit.NANOSECONDS.toMillis(sleepNanos)); // Servlet の処理時間
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		for (int i = 0; i < names.size(); i++) {
+			LatencyHistogram histogram = Metrics.FILTER.histogram(names.get(i));
+			assertEquals(counts.get(i) + 1, histogram.count(), names.get(i));
+			assertTrue(histogram.sumNanos() - sums.get(i) < sleepNanos, names.get(i)); // 後続の Servlet を含まない
+		}
+	}
+
+	@Test
+	void doFilter_トークンなしのAJAX_POSTはCSRF段階で403() throws Exception {
+		HttpServletResponse res = ServletFakes.response();
+		pipeline.doFilter(ServletFakes.request("POST", "/spa/insert", "Accept", "application/json"), res, chain);
+		assertTrue(contexts.isEmpty());
+		assertEquals(HttpServletResponse.SC_FORBIDDEN, res.getStatus());
+	}
+
+	@Test
+	void doFilter_jspフォワードはCSRF段階のみ実行() throws Exception {
+		HttpServletRequest req = ServletFakes.request(DispatcherType.FORWARD, "GET", "/WEB-INF/jsp/item/list.jsp", ServletFakes.session());
+		List<Object> responses = new ArrayList<>();
+		pipeline.doFilter(req, ServletFakes.response(), (request, response) -> responses.add(response));
+		assertEquals(1, responses.size());
+		assertInstanceOf(HttpServletResponseWrapper.class, responses.get(0)); // トークン埋め込み
+		assertNull(RequestContextFilter.current());
+	}
+
+	@Test
+	void doFilter_段階に含まれないディスパッチはそのまま後続へ() throws Exception {
+		HttpServletRequest req = ServletFakes.request(DispatcherType.ERROR, "GET", "/item/list", null);
+		pipeline.doFilter(req, ServletFakes.response(), chain);
+		assertEquals(1, contexts.size());
+		assertNull(contexts.get(0));
+		assertNull(req.getSession(false));
+	}
+
+	@Test
+	void init_フィルター名で始まるinitParamを各フィルターに渡す() throws Exception {
+		PipelineFilter cookiePipeline = new PipelineFilter();
+		try {
+			cookiePipeline.init(ServletFakes.filterConfig("PipelineFilter", Map.of(
+				"stages", "CONTEXT, FLASH",
+				"AutoFlashFilter.flashStore", "cookie",
+				"AutoFlashFilter.flashSecret", "test")));
+			assertTrue(AutoFlashFilter.isStateCookie());
+		} finally {
+			cookiePipeline.destroy();
+			init(); // フラッシュの保存先をセッションに戻す
+		}
+		assertFalse(AutoFlashFilter.isStateCookie());
+	}
+}
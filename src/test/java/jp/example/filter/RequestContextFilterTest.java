@@ -0,0 +1,145 @@
+package jp.example.filter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import jakarta.servlet.DispatcherType;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpSession;
+import jp.example.filter.RequestContextFilter.RequestContext;
+
+/**
+ * RequestContextFilter のリクエストコンテキストのスコープと、別スレッドへの引き継ぎのテストです。
+ * @author New Gradle Project Wizard (c) Pleiades MIT
+ */
+class RequestContextFilterTest {
+
+	private static ExecutorService executor;
+
+	@BeforeAll
+	static void createExecutor() {
+		executor = Executors.newSingleThreadExecutor();
+	}
+
+	@AfterAll
+	static void shutdownExecutor() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	void runWith_終了後に呼び出し前のコンテキストに戻す() {
+		RequestContext outer = context("/outer");
+		RequestContext inner = context("/inner");
+		RequestContextFilter.runWith(outer, () -> {
+			assertSame(outer, RequestContextFilter.current());
+			RequestContextFilter.runWith(inner, () -> {
+				assertSame(inner.req(), RequestContextFilter.request());
+				assertSame(inner.res(), RequestContextFilter.response());
+			});
+			assertSame(outer, RequestContextFilter.current());
+		});
+		assertNull(RequestContextFilter.current());
+	}
+
+	@Test
+	void runWith_例外の場合も呼び出し前のコンテキストに戻す() {
+		RequestContext outer = context("/outer");
+		RequestContextFilter.runWith(outer, () -> {
+			assertThrows(IllegalStateException.class, () -> RequestContextFilter.runWith(context("/inner"), () -> {
+				throw new IllegalStateException();
+			}));
+			assertSame(outer, RequestContextFilter.current());
+		});
+		assertNull(RequestContextFilter.current());
+	}
+
+	@Test
+	void inheritContext_別スレッドで作成時のコンテキストを使用() throws Exception {
+		RequestContext context = context("/parent");
+		AtomicReference<RequestContext> taskContext = new AtomicReference<>();
+		Runnable[] task = new Runnable[1];
+		RequestContextFilter.runWith(context, () -> {
+			task[0] = RequestContextFilter.inheritContext(() -> taskContext.set(RequestContextFilter.current()));
+		});
+
+		executor.submit(task[0]).get(10, TimeUnit.SECONDS);
+		assertSame(context, taskContext.get());
+
+		// 実行後はスレッドにコンテキストを残さない (スレッドプールの次のタスクに漏れない)
+		executor.submit(() -> taskContext.set(RequestContextFilter.current())).get(10, TimeUnit.SECONDS);
+		assertNull(taskContext.get());
+	}
+
+	@Test
+	void inheritContext_コンテキスト外で作成した場合はコンテキスト無し() throws Exception {
+		AtomicReference<RequestContext> taskContext = new AtomicReference<>(context("/dummy"));
+		Runnable task = RequestContextFilter.inheritContext(() -> taskContext.set(RequestContextFilter.current()));
+		RequestContextFilter.runWith(context("/caller"), () -> executor.submit(task).get(10, TimeUnit.SECONDS));
+		assertNull(taskContext.get());
+	}
+
+	@Test
+	void $_リクエストセッションアプリケーションの順に属性を検索() {
+		HttpSession session = ServletFakes.session();
+		HttpServletRequest req = ServletFakes.request(DispatcherType.REQUEST, "GET", "/item/list", session);
+		req.setAttribute("a", "request");
+		session.setAttribute("a", "session");
+		session.setAttribute("b", "session");
+		ServletFakes.context().setAttribute("a", "application");
+		ServletFakes.context().setAttribute("c", "application");
+		try {
+			RequestContextFilter.runWith(new RequestContext(req, ServletFakes.response(), null), () -> {
+				assertEquals("request", RequestContextFilter.$("a"));
+				assertEquals("session", RequestContextFilter.$("b"));
+				assertEquals("application", RequestContextFilter.$("c"));
+				assertNull(RequestContextFilter.$("d"));
+				assertEquals("default", RequestContextFilter.$("d", "default"));
+				assertEquals("supplied", RequestContextFilter.$("d", () -> "supplied"));
+			});
+		} finally {
+			ServletFakes.context().removeAttribute("a");
+			ServletFakes.context().removeAttribute("c");
+		}
+	}
+
+	@Test
+	void $_セッションを作成しない() {
+		HttpServletRequest req = ServletFakes.request("GET", "/item/list");
+		RequestContextFilter.runWith(new RequestContext(req, ServletFakes.response(), null), () -> {
+			assertNull(RequestContextFilter.$("a"));
+		});
+		assertNull(req.getSession(false));
+	}
+
+	@Test
+	void doFilter_後続の処理の間だけコンテキストを設定() throws Exception {
+		RequestContextFilter filter = new RequestContextFilter();
+		filter.init(ServletFakes.filterConfig("RequestContextFilter", Map.of()));
+		HttpServletRequest req = ServletFakes.request("GET", "/item/list", "Accept", "text/html");
+		HttpServletResponse res = ServletFakes.response();
+		AtomicReference<RequestContext> servletContext = new AtomicReference<>();
+		filter.doFilter(req, res, (request, response) -> servletContext.set(RequestContextFilter.current()));
+		assertSame(req, servletContext.get().req());
+		assertSame(res, servletContext.get().res());
+		assertNull(servletContext.get().transaction());
+		assertNull(RequestContextFilter.current());
+
+		HttpServletRequest staticReq = ServletFakes.request("GET", "/static/app.css", "Accept", "text/css");
+		filter.doFilter(staticReq, ServletFakes.response(), (request, response) -> servletContext.set(RequestContextFilter.current()));
+		assertNull(servletContext.get()); // 静的ファイルはコンテキスト無し
+	}
+
+	private static RequestContext context(String uri) {
+		return new RequestContext(ServletFakes.request("GET", uri), ServletFakes.response(), null);
+	}
+}
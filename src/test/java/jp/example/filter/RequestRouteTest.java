@@ -0,0 +1,96 @@
+package jp.example.filter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import jakarta.servlet.DispatcherType;
+import jakarta.servlet.http.HttpServletRequest;
+import jp.example.filter.RequestRoute.Stage;
+import jp.example.filter.RequestRoute.Type;
+
+/**
+ * RequestRoute のリクエスト分類のテストです。
+ * @author New Gradle Project Wizard (c) Pleiades MIT
+ */
+class RequestRouteTest {
+
+	@Test
+	void of_拡張子のあるリクエストはSTATICで認証のみ() {
+		RequestRoute route = RequestRoute.of(ServletFakes.request("GET", "/static/app.css"));
+		assertEquals(Type.STATIC, route.type());
+		assertFalse(route.isAjax());
+		assertEquals(EnumSet.of(Stage.AUTH), stagesOf(route));
+	}
+
+	@Test
+	void of_htmlはCONTEXTとCSRFと認証() {
+		RequestRoute route = RequestRoute.of(ServletFakes.request("GET", "/spa/React.html"));
+		assertEquals(Type.HTML, route.type());
+		assertEquals(EnumSet.of(Stage.CONTEXT, Stage.CSRF, Stage.AUTH), stagesOf(route));
+	}
+
+	@Test
+	void of_拡張子のない画面遷移はPAGEですべての段階() {
+		RequestRoute route = RequestRoute.of(ServletFakes.request("GET", "/item/list", "Accept", "text/html"));
+		assertEquals(Type.PAGE, route.type());
+		assertFalse(route.isAjax());
+		assertEquals(EnumSet.allOf(Stage.class), stagesOf(route));
+	}
+
+	@Test
+	void of_AcceptがjsonまたはXRequestedWithの場合はAJAX() {
+		RequestRoute axios = RequestRoute.of(ServletFakes.request("GET", "/spa/list", "Accept", "application/json, text/plain, */*"));
+		assertEquals(Type.AJAX, axios.type());
+		assertTrue(axios.isAjax());
+
+		RequestRoute jquery = RequestRoute.of(ServletFakes.request("POST", "/item/api", "X-Requested-With", "XMLHttpRequest"));
+		assertEquals(Type.AJAX, jquery.type());
+		assertTrue(jquery.isAjax());
+		assertEquals(EnumSet.allOf(Stage.class), stagesOf(jquery));
+	}
+
+	@Test
+	void of_SSEはEVENT_STREAMで流入制御の対象外() {
+		RequestRoute route = RequestRoute.of(ServletFakes.request("GET", "/spa/events", "Accept", "text/event-stream"));
+		assertEquals(Type.EVENT_STREAM, route.type());
+		assertTrue(route.isAjax());
+		assertFalse(route.runs(Stage.ADMISSION));
+		assertTrue(route.runs(Stage.TRANSACTION));
+	}
+
+	@Test
+	void of_REQUESTディスパッチは分類結果を保持して同じインスタンスを返す() {
+		HttpServletRequest req = ServletFakes.request("GET", "/item/list");
+		RequestRoute route = RequestRoute.of(req);
+		assertSame(route, req.getAttribute(RequestRoute.class.getName()));
+		assertSame(route, RequestRoute.of(req));
+		assertSame(route, RequestRoute.of(ServletFakes.request("GET", "/item/edit")));
+	}
+
+	@Test
+	void of_FORWARDディスパッチは保持せずにjspとして分類() {
+		HttpServletRequest req = ServletFakes.request(DispatcherType.FORWARD, "GET", "/WEB-INF/jsp/item/list.jsp", null);
+		RequestRoute route = RequestRoute.of(req);
+		assertEquals(Type.JSP, route.type());
+		assertNull(req.getAttribute(RequestRoute.class.getName()));
+	}
+
+	@Test
+	void stage_FORWARDで実行するのはCSRFのみ() {
+		for (Stage stage : Stage.values()) {
+			assertEquals(stage == Stage.CSRF, stage.runsOnForward(), stage.name());
+		}
+	}
+
+	private static Set<Stage> stagesOf(RequestRoute route) {
+		Set<Stage> stages = EnumSet.noneOf(Stage.class);
+		for (Stage stage : Stage.values()) {
+			if (route.runs(stage)) stages.add(stage);
+		}
+		return stages;
+	}
+}
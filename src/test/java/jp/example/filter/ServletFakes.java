@@ -0,0 +1,321 @@
+package jp.example.filter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.DispatcherType;
+import jakarta.servlet.FilterConfig;
+import jakarta.servlet.ServletConfig;
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.Cookie;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpSession;
+
+/**
+ * テスト、ベンチマーク用の Servlet API の簡易実装です。
+ * <pre>
+ * モックライブラリを使用せずに java.lang.reflect.Proxy で作成し、フィルターが使用するメソッドのみを実装します。
+ * 属性 (getAttribute など) は Map に保持し、それ以外の未実装メソッドは戻り値の型のデフォルト値 (null、false、0) を返します。
+ * リクエストは非同期 (startAsync) に対応し、complete で登録済みの AsyncListener#onComplete を呼び出します。
+ * Cookie はリクエストの Cookie ヘッダーから取得し、レスポンスの addCookie は cookie(res, name) で参照します。
+ * </pre>
+ * @author New Gradle Project Wizard (c) Pleiades MIT
+ */
+public class ServletFakes {
+
+	/** 非同期を開始したリクエストごとの完了待機 (awaitAsyncComplete で使用) */
+	private static final Map<HttpServletRequest, CountDownLatch> asyncCompletes = Collections.synchronizedMap(new WeakHashMap<>());
+
+	/** レスポンスごとの addCookie した Cookie (cookie で使用、同じ名前は後勝ち) */
+	private static final Map<HttpServletResponse, Map<String, Cookie>> addedCookies = Collections.synchronizedMap(new WeakHashMap<>());
+
+	private static final ServletContext servletContext = proxy(ServletContext.class, new ConcurrentHashMap<>(), Map.of(
+		"getContextPath", args -> ""));
+
+	/**
+	 * サーブレットコンテキストを取得します (すべてのリクエストで共通)。
+	 * @return サーブレットコンテキスト
+	 */
+	public static ServletContext context() {
+		return servletContext;
+	}
+
+	/**
+	 * フィルター設定を作成します。
+	 * @param filterName フィルター名
+	 * @param initParams init-param
+	 * @return フィルター設定
+	 */
+	public static FilterConfig filterConfig(String filterName, Map<String, String> initParams) {
+		return proxy(FilterConfig.class, new HashMap<>(), Map.of(
+			"getFilterName", args -> filterName,
+			"getServletContext", args -> servletContext,
+			"getInitParameter", args -> initParams.get((String) args[0]),
+			"getInitParameterNames", args -> Collections.enumeration(initParams.keySet())));
+	}
+
+	/**
+	 * Servlet 設定を作成します。
+	 * @param servletName Servlet 名
+	 * @param initParams init-param
+	 * @return Servlet 設定
+	 */
+	public static ServletConfig servletConfig(String servletName, Map<String, String> initParams) {
+		return proxy(ServletConfig.class, new HashMap<>(), Map.of(
+			"getServletName", args -> servletName,
+			"getServletContext", args -> servletContext,
+			"getInitParameter", args -> initParams.get((String) args[0]),
+			"getInitParameterNames", args -> Collections.enumeration(initParams.keySet())));
+	}
+
+	/**
+	 * セッションを作成します。
+	 * @return セッション
+	 */
+	public static HttpSession session() {
+		String id = "session-" + System.nanoTime();
+		Map<String, Object> attributes = new ConcurrentHashMap<>();
+		return proxy(HttpSession.class, attributes, Map.of(
+			"getId", args -> id,
+			"getServletContext", args -> servletContext,
+			"invalidate", args -> {
+				attributes.clear();
+				return null;
+			}));
+	}
+
+	/**
+	 * REQUEST ディスパッチのリクエストを作成します (セッションは getSession() 時に作成)。
+	 * @param method HTTP メソッド
+	 * @param uri リクエスト URI (コンテキストパスは空)
+	 * @param headerNameValues ヘッダー名と値の繰り返し
+	 * @return リクエスト
+	 */
+	public static HttpServletRequest request(String method, String uri, String... headerNameValues) {
+		return request(DispatcherType.REQUEST, method, uri, null, headerNameValues);
+	}
+
+	/**
+	 * リクエストを作成します。
+	 * @param dispatcherType ディスパッチの種類
+	 * @param method HTTP メソッド
+	 * @param uri リクエスト URI (コンテキストパスは空)
+	 * @param session セッション (null の場合は getSession() 時に作成)
+	 * @param headerNameValues ヘッダー名と値の繰り返し
+	 * @return リクエスト
+	 */
+	public static HttpServletRequest request(DispatcherType dispatcherType, String method, String uri, HttpSession session,
+			String... headerNameValues) {
+		Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+		for (int i = 0; i < headerNameValues.length; i += 2) {
+			headers.put(headerNameValues[i], headerNameValues[i + 1]);
+		}
+		HttpSession[] sessionHolder = {session};
+		Map<String, Function<Object[], Object>> methods = new HashMap<>();
+		methods.put("getDispatcherType", args -> dispatcherType);
+		methods.put("getMethod", args -> method);
+		methods.put("getRequestURI", args -> uri);
+		methods.put("getContextPath", args -> "");
+		methods.put("getServletPath", args -> uri);
+		methods.put("getHeader", args -> headers.get((String) args[0]));
+		methods.put("getCookies", args -> cookies(headers.get("Cookie")));
+		methods.put("getRemoteAddr", args -> "127.0.0.1");
+		methods.put("getServletContext", args -> servletContext);
+		methods.put("getSession", args -> {
+			boolean isCreate = args == null || (boolean) args[0];
+			if (sessionHolder[0] == null && isCreate) sessionHolder[0] = session();
+			return sessionHolder[0];
+		});
+		AsyncContext[] asyncHolder = {null};
+		methods.put("isAsyncSupported", args -> true);
+		methods.put("isAsyncStarted", args -> asyncHolder[0] != null);
+		methods.put("getAsyncContext", args -> {
+			if (asyncHolder[0] == null) throw new IllegalStateException("非同期未開始");
+			return asyncHolder[0];
+		});
+		HttpServletRequest[] reqHolder = {null};
+		methods.put("startAsync", args -> {
+			if (asyncHolder[0] != null) throw new IllegalStateException("非同期開始済み");
+			return asyncHolder[0] = asyncContext(reqHolder[0]);
+		});
+		reqHolder[0] = proxy(HttpServletRequest.class, new ConcurrentHashMap<>(), methods); // 非同期では複数スレッドから参照
+		return reqHolder[0];
+	}
+
+	/** Cookie ヘッダー (name=value; name=value) の Cookie (ヘッダーが無い場合は null) */
+	private static Cookie[] cookies(String cookieHeader) {
+		if (cookieHeader == null) return null;
+		List<Cookie> cookies = new ArrayList<>();
+		for (String pair : cookieHeader.split(";\\s*")) {
+			int eq = pair.indexOf('=');
+			if (eq > 0) cookies.add(new Cookie(pair.substring(0, eq), pair.substring(eq + 1)));
+		}
+		return cookies.toArray(Cookie[]::new);
+	}
+
+	/**
+	 * startAsync で開始した非同期処理の完了 (AsyncContext#complete) を待機します。
+	 * @param req startAsync を呼び出したリクエスト
+	 * @return 10 秒以内に完了した場合は true
+	 */
+	public static boolean awaitAsyncComplete(HttpServletRequest req) throws InterruptedException {
+		CountDownLatch completed = asyncCompletes.get(req);
+		return completed != null && completed.await(10, TimeUnit.SECONDS);
+	}
+
+	/** 非同期コンテキスト (complete は 1 回のみ、2 回目以降は IllegalStateException) */
+	private static AsyncContext asyncContext(HttpServletRequest req) {
+		CountDownLatch completed = new CountDownLatch(1);
+		asyncCompletes.put(req, completed);
+		List<AsyncListener> listeners = new CopyOnWriteArrayList<>();
+		AsyncContext[] holder = {null};
+		holder[0] = proxy(AsyncContext.class, new HashMap<>(), Map.of(
+			"getRequest", args -> req,
+			"addListener", args -> listeners.add((AsyncListener) args[0]),
+			"complete", args -> {
+				if (completed.getCount() == 0) throw new IllegalStateException("非同期完了済み");
+				try {
+					for (AsyncListener listener : listeners) {
+						listener.onComplete(new AsyncEvent(holder[0]));
+					}
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				} finally {
+					completed.countDown();
+				}
+				return null;
+			}));
+		return holder[0];
+	}
+
+	/**
+	 * レスポンスを作成します (ステータスとヘッダーのみ保持し、ボディは出力しない)。
+	 * @return レスポンス
+	 */
+	public static HttpServletResponse response() {
+		return response(new ByteArrayOutputStream());
+	}
+
+	/**
+	 * レスポンスを作成します (ボディは getWriter、getOutputStream ともに UTF-8 で body に書き込み)。
+	 * @param body レスポンスボディの書き込み先
+	 * @return レスポンス
+	 */
+	public static HttpServletResponse response(ByteArrayOutputStream body) {
+		int[] status = {HttpServletResponse.SC_OK};
+		Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+		Function<Object[], Object> putHeader = args -> headers.put((String) args[0], String.valueOf(args[1]));
+		Map<String, Function<Object[], Object>> methods = new HashMap<>();
+		methods.put("getStatus", args -> status[0]);
+		methods.put("setStatus", args -> status[0] = (int) args[0]);
+		methods.put("sendError", args -> status[0] = (int) args[0]);
+		methods.put("sendRedirect", args -> {
+			status[0] = HttpServletResponse.SC_FOUND;
+			return headers.put("Location", (String) args[0]);
+		});
+		methods.put("setHeader", putHeader);
+		methods.put("addHeader", putHeader);
+		methods.put("setIntHeader", putHeader);
+		methods.put("setDateHeader", putHeader);
+		methods.put("getHeader", args -> headers.get((String) args[0]));
+		methods.put("containsHeader", args -> headers.containsKey((String) args[0]));
+		PrintWriter writer = new PrintWriter(new Writer() {
+			@Override public void write(char[] chars, int offset, int length) {
+				synchronized (body) {
+					body.writeBytes(new String(chars, offset, length).getBytes(StandardCharsets.UTF_8));
+				}
+			}
+			@Override public void flush() {}
+			@Override public void close() {}
+		});
+		ServletOutputStream outputStream = new ServletOutputStream() {
+			@Override public void write(int b) {
+				synchronized (body) {
+					body.write(b);
+				}
+			}
+			@Override public boolean isReady() {
+				return true;
+			}
+			@Override public void setWriteListener(WriteListener writeListener) {}
+		};
+		methods.put("getWriter", args -> writer);
+		methods.put("getOutputStream", args -> outputStream);
+		Map<String, Cookie> cookies = new ConcurrentHashMap<>();
+		methods.put("addCookie", args -> cookies.put(((Cookie) args[0]).getName(), (Cookie) args[0]));
+		HttpServletResponse res = proxy(HttpServletResponse.class, new HashMap<>(), methods);
+		addedCookies.put(res, cookies);
+		return res;
+	}
+
+	/**
+	 * レスポンスに addCookie で追加された Cookie を取得します (同じ名前で複数回追加した場合は最後の Cookie)。
+	 * @param res response で作成したレスポンス
+	 * @param name Cookie 名
+	 * @return Cookie (追加されていない場合は null)
+	 */
+	public static Cookie cookie(HttpServletResponse res, String name) {
+		Map<String, Cookie> cookies = addedCookies.get(res);
+		return cookies == null ? null : cookies.get(name);
+	}
+
+	/** メソッド名ごとの実装と属性 Map を持つプロキシを作成 */
+	private static <T> T proxy(Class<T> type, Map<String, Object> attributes, Map<String, Function<Object[], Object>> methods) {
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, (proxy, method, args) -> {
+			Function<Object[], Object> impl = methods.get(method.getName());
+			if (impl != null) {
+				Object result = impl.apply(args);
+				return method.getReturnType() == void.class ? null : result;
+			}
+			switch (method.getName()) {
+				case "getAttribute":
+					return attributes.get((String) args[0]);
+				case "setAttribute":
+					if (args[1] == null) attributes.remove((String) args[0]);
+					else attributes.put((String) args[0], args[1]);
+					return null;
+				case "removeAttribute":
+					attributes.remove((String) args[0]);
+					return null;
+				case "getAttributeNames":
+					return Collections.enumeration(new ArrayList<>(attributes.keySet()));
+				case "equals":
+					return proxy == args[0];
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				case "toString":
+					return "Fake" + type.getSimpleName();
+			}
+			return defaultValue(method.getReturnType());
+		}));
+	}
+
+	/** 未実装メソッドの戻り値 */
+	private static Object defaultValue(Class<?> returnType) {
+		if (returnType == boolean.class) return false;
+		if (returnType == int.class) return 0;
+		if (returnType == long.class) return 0L;
+		return null;
+	}
+}
@@ -0,0 +1,106 @@
+package jp.example.filter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import jp.co.future.uroborosql.SqlAgent;
+import jp.co.future.uroborosql.UroboroSQL;
+import jp.co.future.uroborosql.config.SqlConfig;
+import jp.co.future.uroborosql.filter.SqlFilterManagerImpl;
+
+/**
+ * SqlMetricsFilter の SQL ごとの統計と、スロークエリの判定のテストです。
+ * <pre>
+ * スロークエリの閾値が 0 ミリ秒 (すべてスロークエリ) と 1 分 (スロークエリなし) の SqlConfig を、同じインメモリ H2 に作成します。
+ * 統計は static に集計されるため、テストごとに一意な SQL (列の別名) で検証します。
+ * </pre>
+ * @author New Gradle Project Wizard (c) Pleiades MIT
+ */
+class SqlMetricsFilterTest {
+
+	private static SqlConfig slowConfig;
+	private static SqlConfig normalConfig;
+
+	@BeforeAll
+	static void createDatabase() {
+		JdbcDataSource dataSource = new JdbcDataSource();
+		dataSource.setURL("jdbc:h2:mem:sql_metrics;DB_CLOSE_DELAY=-1");
+		dataSource.setUser("sa");
+		slowConfig = UroboroSQL.builder(dataSource).setSqlFilterManager(filterManager(0)).build();
+		normalConfig = UroboroSQL.builder(dataSource).setSqlFilterManager(filterManager(60_000)).build();
+		try (SqlAgent agent = normalConfig.agent()) {
+			agent.updateWith("CREATE TABLE metrics_item (id BIGINT, name VARCHAR(30))").count();
+			agent.updateWith("INSERT INTO metrics_item VALUES (1, 'a'), (2, 'b'), (3, 'c')").count();
+			agent.commit();
+		}
+	}
+
+	@Test
+	void sqlStats_検索は読み込んだ行数と実行回数を集計() {
+		String sql = "SELECT id AS stats_query_id FROM metrics_item ORDER BY id";
+		long queryCount = Metrics.DB.histogram("query").count();
+		try (SqlAgent agent = normalConfig.agent()) {
+			assertEquals(3, agent.queryWith(sql).collect().size());
+			assertEquals(3, agent.queryWith(sql).collect().size());
+		}
+		SqlMetricsFilter.SqlStat stat = sqlStat(sql);
+		assertEquals(2, stat.count());
+		assertEquals(6, stat.rows());
+		assertEquals(0, stat.slowCount());
+		assertTrue(stat.maxMillis() <= stat.totalMillis());
+		assertEquals(stat.totalMillis() / 2, stat.avgMillis(), 1e-9);
+		assertEquals(queryCount + 2, Metrics.DB.histogram("query").count());
+	}
+
+	@Test
+	void sqlStats_更新とバッチは更新行数を集計しテンプレート単位にまとめる() {
+		String updateSql = "UPDATE metrics_item SET name = /*name*/'x' WHERE id <= /*id*/1";
+		String batchSql = "UPDATE metrics_item SET name = name WHERE id = /*id*/1";
+		try (SqlAgent agent = normalConfig.agent()) {
+			agent.updateWith(updateSql).param("name", "a").param("id", 2).count();
+			agent.updateWith(updateSql).param("name", "b").param("id", 3).count();
+			agent.batchWith(batchSql).paramStream(IntStream.rangeClosed(1, 4).mapToObj(id -> Map.<String, Object>of("id", id))).count();
+			agent.rollback();
+		}
+		assertEquals(2, sqlStat(updateSql).count()); // バインド値が異なっても同じ SQL
+		assertEquals(5, sqlStat(updateSql).rows());
+		assertEquals(1, sqlStat(batchSql).count());
+		assertEquals(3, sqlStat(batchSql).rows()); // id = 4 は 0 件
+	}
+
+	@Test
+	void sqlStats_閾値以上の実行時間はスロークエリとして計上() {
+		String sql = "SELECT id AS slow_query_id FROM metrics_item WHERE id = /*id*/1";
+		try (SqlAgent agent = slowConfig.agent()) {
+			agent.queryWith(sql).param("id", 1).collect();
+			// リクエストコンテキスト内 (Servlet パスをログ出力)、リクエスト外のコンテキスト (TestDatabase など) でも記録
+			RequestContextFilter.runWith(new RequestContextFilter.RequestContext(
+					ServletFakes.request("GET", "/item/list"), ServletFakes.response(), null),
+				() -> agent.queryWith(sql).param("id", 2).collect());
+			RequestContextFilter.runWith(new RequestContextFilter.RequestContext(null, null, null),
+				() -> agent.queryWith(sql).param("id", 3).collect());
+		}
+		assertEquals(3, sqlStat(sql).count());
+		assertEquals(3, sqlStat(sql).slowCount());
+		assertEquals(3, sqlStat(sql).rows());
+	}
+
+	private static SqlMetricsFilter.SqlStat sqlStat(String sql) {
+		List<SqlMetricsFilter.SqlStat> stats = SqlMetricsFilter.sqlStats().stream().filter(stat -> stat.sql().equals(sql)).toList();
+		assertEquals(1, stats.size(), () -> sql + " " + SqlMetricsFilter.sqlStats());
+		return stats.get(0);
+	}
+
+	private static SqlFilterManagerImpl filterManager(long slowQueryMillis) {
+		SqlFilterManagerImpl sqlFilterManager = new SqlFilterManagerImpl();
+		sqlFilterManager.addSqlFilter(new SqlMetricsFilter(slowQueryMillis));
+		return sqlFilterManager;
+	}
+}
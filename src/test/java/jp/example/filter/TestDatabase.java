@@ -0,0 +1,81 @@
+package jp.example.filter;
+
+import org.h2.jdbcx.JdbcDataSource;
+
+import jp.co.future.uroborosql.UroboroSQL;
+import jp.co.future.uroborosql.config.SqlConfig;
+
+/**
+ * フォームなど dao() を使用するクラスのテスト用の DB です。
+ * <pre>
+ * テスト JVM で共通のインメモリ H2 に create_table.sql を 1 回だけ実行し、トランザクションを設定したリクエストコンテキスト
+ * (リクエスト、レスポンスは null) で処理を実行します。ノード内のテーブルバージョンは DB の値に合わせます。
+ * フォームのキャッシュやテーブルバージョンは static のため、テストごとに DB を分けずに、一意な名前のデータで検証してください。
+ * </pre>
+ * @author New Gradle Project Wizard (c) Pleiades MIT
+ */
+public class TestDatabase {
+
+	private static SqlConfig daoConfig;
+
+	/**
+	 * GET リクエストと同じ読み取り専用のトランザクションで処理を実行します。
+	 * @param task 処理
+	 */
+	public static void read(Task task) {
+		run(true, task);
+	}
+
+	/**
+	 * 更新系リクエストと同じトランザクションで処理を実行し、正常終了した場合はコミットします。
+	 * @param task 処理 (例外の場合はロールバック)
+	 */
+	public static void write(Task task) {
+		run(false, task);
+	}
+
+	/**
+	 * このテスト用の DB に接続するトランザクションを作成します (リクエストコンテキストを自分で設定する場合に使用)。
+	 * @param isReadOnly GET リクエストの場合は true
+	 * @return トランザクション (接続は dao() の初回呼び出し時)
+	 */
+	static AutoTransactionFilter.Transaction transaction(boolean isReadOnly) {
+		return new AutoTransactionFilter.Transaction(daoConfig(), null, isReadOnly);
+	}
+
+	private static void run(boolean isReadOnly, Task task) {
+		AutoTransactionFilter.Transaction transaction = transaction(isReadOnly);
+		try {
+			RequestContextFilter.runWith(new RequestContextFilter.RequestContext(null, null, transaction), () -> {
+				task.run();
+				transaction.commit();
+			});
+		} catch (Throwable e) {
+			transaction.rollback();
+			throw e;
+		} finally {
+			transaction.close();
+		}
+	}
+
+	/** DB の作成とテーブルバージョンの読み込み (初回のみ) */
+	private static synchronized SqlConfig daoConfig() {
+		if (daoConfig == null) {
+			JdbcDataSource dataSource = new JdbcDataSource();
+			dataSource.setURL("jdbc:h2:mem:test;DB_CLOSE_DELAY=-1");
+			dataSource.setUser("sa");
+			daoConfig = UroboroSQL.builder(dataSource).build();
+			write(() -> {
+				AutoTransactionFilter.dao().update("create_table").count(); // src/main/resources/sql/create_table.sql
+				AutoTransactionFilter.touchTables("item", "company");
+			});
+		}
+		return daoConfig;
+	}
+
+	/** トランザクション内で実行する処理 */
+	@FunctionalInterface
+	public interface Task {
+		void run() throws Exception;
+	}
+}
@@ -0,0 +1,77 @@
+package jp.example.form;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.beanutils.BeanUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import jp.example.entity.Item;
+
+/**
+ * リクエストパラメーターのバインドと Bean のコピーを、BeanUtils と比較する JMH ベンチマークです。
+ * <pre>
+ * FormBinder#populate と BeanUtils.populate (リクエストパラメーター → ItemForm)、
+ * BeanCopier#copy と BeanUtils.copyProperties (ItemForm → Item) を、ItemForm と同じ 1 リクエスト分の値で比較します。
+ * BeanUtils は呼び出しごとにプロパティの解決と型変換の検索を行い、FormBinder、BeanCopier はクラスごとに 1 回だけ解決します。
+ *
+ * 実行方法 (結果は 1 回あたりのナノ秒)
+ *
+ *     gradle jmh -PjmhArgs="BeanBindingBenchmark"
+ *     gradle jmh -PjmhArgs="BeanBindingBenchmark -prof gc"   (1 回あたりの割り当てバイト数)
+ * </pre>
+ * @author New Gradle Project Wizard (c) Pleiades MIT
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BeanBindingBenchmark {
+
+	private final Map<String, String[]> parameterMap = Map.of(
+		"id", new String[] {"12"},
+		"name", new String[] {"iPhone 15 Pro Docomo版"},
+		"releaseDate", new String[] {"2023-09-12"},
+		"faceAuth", new String[] {"true"},
+		"companyId", new String[] {"1"},
+		"version", new String[] {"3"},
+		"_csrf", new String[] {"3q2-7wUuF2K1l0w2dBvJ4A"});
+
+	private final FormBinder<ItemForm> formBinder = new FormBinder<>(ItemForm.class);
+	private final BeanCopier<ItemForm, Item> beanCopier = new BeanCopier<>(ItemForm.class, Item.class);
+	private final ItemForm form = formBinder.populate(new ItemForm(), parameterMap);
+
+	@Benchmark
+	public ItemForm formBinder_populate() {
+		return formBinder.populate(new ItemForm(), parameterMap);
+	}
+
+	@Benchmark
+	public ItemForm beanUtils_populate() throws Exception {
+		ItemForm target = new ItemForm();
+		BeanUtils.populate(target, parameterMap);
+		return target;
+	}
+
+	@Benchmark
+	public Item beanCopier_copy() {
+		return beanCopier.copy(form, new Item());
+	}
+
+	@Benchmark
+	public Item beanUtils_copyProperties() throws Exception {
+		Item target = new Item();
+		BeanUtils.copyProperties(target, form);
+		return target;
+	}
+}
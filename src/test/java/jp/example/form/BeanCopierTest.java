@@ -0,0 +1,83 @@
+package jp.example.form;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.LocalDate;
+
+import org.junit.jupiter.api.Test;
+
+import jp.example.entity.Item;
+import lombok.Data;
+
+/**
+ * BeanCopier の同名プロパティのコピーと型変換のテストです。
+ * @author New Gradle Project Wizard (c) Pleiades MIT
+ */
+class BeanCopierTest {
+
+	@Test
+	void copy_同名プロパティを上書きコピー() {
+		ItemForm form = new ItemForm();
+		form.id = 1;
+		form.name = "iPhone 15";
+		form.releaseDate = "2023-09-12";
+		form.faceAuth = true;
+		form.companyId = 2;
+		form.companyName = "Apple";
+		form.version = 3;
+		Item item = new Item();
+		item.createdDate = LocalDate.of(2023, 1, 1);
+
+		new BeanCopier<>(ItemForm.class, Item.class).copy(form, item);
+		assertEquals(1, item.id);
+		assertEquals("iPhone 15", item.name);
+		assertEquals("2023-09-12", item.releaseDate);
+		assertTrue(item.faceAuth);
+		assertEquals(2, item.companyId);
+		assertEquals(3, item.version);
+		assertEquals(LocalDate.of(2023, 1, 1), item.createdDate); // コピー元に無いプロパティは変更しない
+	}
+
+	@Test
+	void copy_nullで上書き() {
+		Item item = new Item();
+		ItemForm form = new ItemForm();
+		form.name = "iPhone 15";
+		new BeanCopier<>(Item.class, ItemForm.class).copy(item, form);
+		assertNull(form.name);
+		assertNull(form.companyName); // コピー先のみのプロパティは変更しない
+	}
+
+	@Test
+	void copy_型が異なる場合は文字列を経由して変換() {
+		TextItem text = new TextItem();
+		text.id = " 5 ";
+		text.faceAuth = "yes";
+		text.companyId = null;
+		text.createdDate = "2023-01-01";
+		Item item = new Item();
+		item.companyId = 9;
+
+		new BeanCopier<>(TextItem.class, Item.class).copy(text, item);
+		assertEquals(5, item.id);
+		assertTrue(item.faceAuth);
+		assertEquals(9, item.companyId); // null はプリミティブにコピーしない
+		assertNull(item.createdDate); // 変換できない型の組み合わせは対象外
+
+		item.id = 6;
+		item.companyId = 7;
+		TextItem copied = new BeanCopier<>(Item.class, TextItem.class).copy(item, new TextItem());
+		assertEquals("6", copied.id);
+		assertEquals("7", copied.companyId);
+		assertEquals("true", copied.faceAuth);
+	}
+
+	/** Item の一部のプロパティを文字列で持つクラス */
+	@Data
+	public static class TextItem {
+		public String id;
+		public String faceAuth;
+		public String companyId;
+		public String createdDate;
+	}
+}
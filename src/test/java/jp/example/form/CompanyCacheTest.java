@@ -0,0 +1,110 @@
+package jp.example.form;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import jp.example.entity.Company;
+import jp.example.filter.AutoTransactionFilter;
+import jp.example.filter.TestDatabase;
+
+/**
+ * CompanyCache のテーブルバージョンによる再読み込みと、同時参照時の読み込み (シングルフライト) のテストです。
+ * <pre>
+ * 読み込みは DB を使用せずに、呼び出し回数を数えるローダーで行います。
+ * company のテーブルバージョンは TestDatabase の更新トランザクションで touchTables("company") を呼び出して増加します。
+ * </pre>
+ * @author New Gradle Project Wizard (c) Pleiades MIT
+ */
+class CompanyCacheTest {
+
+	@Test
+	void snapshot_テーブルバージョンが同じ間は再読み込みしない() {
+		TestDatabase.read(() -> {}); // テーブルバージョンの読み込み
+		AtomicInteger loads = new AtomicInteger();
+		CompanyCache cache = new CompanyCache(() -> List.of(company(2, "Sony " + loads.incrementAndGet()), company(1, "Apple")));
+		CompanyCache.Snapshot snapshot = cache.snapshot();
+		assertSame(snapshot, cache.snapshot());
+		assertEquals(1, loads.get());
+		assertEquals(List.of(1L, 2L), snapshot.companies().stream().map(Company::getId).toList()); // id 昇順
+		assertEquals("Sony 1", snapshot.name(2));
+		assertNull(snapshot.name(3));
+
+		long before = AutoTransactionFilter.tableVersion("company");
+		TestDatabase.write(() -> AutoTransactionFilter.touchTables("company"));
+		assertEquals(before + 1, AutoTransactionFilter.tableVersion("company"));
+		CompanyCache.Snapshot reloaded = cache.snapshot();
+		assertNotSame(snapshot, reloaded);
+		assertEquals("Sony 2", reloaded.name(2));
+		assertSame(reloaded, cache.snapshot());
+		assertEquals(2, loads.get());
+	}
+
+	@Test
+	void snapshot_同時に参照した場合は1回だけ読み込みロックを保持せずに待機() throws Exception {
+		AtomicInteger loads = new AtomicInteger();
+		CountDownLatch loading = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		CompanyCache cache = new CompanyCache(() -> {
+			loads.incrementAndGet();
+			loading.countDown();
+			try {
+				assertTrue(release.await(10, TimeUnit.SECONDS));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return List.of(company(1, "Apple"));
+		});
+		CompletableFuture<CompanyCache.Snapshot> first = CompletableFuture.supplyAsync(cache::snapshot);
+		assertTrue(loading.await(10, TimeUnit.SECONDS));
+		CompletableFuture<CompanyCache.Snapshot> second = CompletableFuture.supplyAsync(cache::snapshot);
+		Thread.sleep(100);
+		assertFalse(second.isDone()); // 読み込み中の結果を待機
+
+		release.countDown();
+		assertSame(first.get(10, TimeUnit.SECONDS), second.get(10, TimeUnit.SECONDS));
+		assertEquals(1, loads.get());
+	}
+
+	@Test
+	void snapshot_読み込みエラーは待機中のスレッドにも通知し次回の参照で再読み込み() throws Exception {
+		AtomicInteger loads = new AtomicInteger();
+		CountDownLatch loading = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		CompanyCache cache = new CompanyCache(() -> {
+			if (loads.incrementAndGet() > 1) return List.of(company(1, "Apple"));
+			loading.countDown();
+			try {
+				assertTrue(release.await(10, TimeUnit.SECONDS));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			throw new IllegalStateException("接続エラー");
+		});
+		CompletableFuture<CompanyCache.Snapshot> first = CompletableFuture.supplyAsync(cache::snapshot);
+		assertTrue(loading.await(10, TimeUnit.SECONDS));
+		CompletableFuture<CompanyCache.Snapshot> second = CompletableFuture.supplyAsync(cache::snapshot);
+		Thread.sleep(100);
+
+		release.countDown();
+		for (CompletableFuture<CompanyCache.Snapshot> future : List.of(first, second)) {
+			Exception e = assertThrows(Exception.class, () -> future.get(10, TimeUnit.SECONDS));
+			assertEquals("接続エラー", e.getCause().getMessage());
+		}
+		assertEquals("Apple", cache.snapshot().name(1));
+		assertEquals(2, loads.get());
+	}
+
+	private static Company company(long id, String companyName) {
+		Company company = new Company();
+		company.id = id;
+		company.companyName = companyName;
+		return company;
+	}
+}
@@ -0,0 +1,127 @@
+package jp.example.form;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.beanutils.BeanUtils;
+import org.junit.jupiter.api.Test;
+
+import lombok.Data;
+
+/**
+ * FormBinder のリクエストパラメーターの型変換とセットのテストです。
+ * @author New Gradle Project Wizard (c) Pleiades MIT
+ */
+class FormBinderTest {
+
+	private final FormBinder<ItemForm> itemBinder = new FormBinder<>(ItemForm.class);
+	private final FormBinder<WrapperForm> wrapperBinder = new FormBinder<>(WrapperForm.class);
+
+	@Test
+	void populate_プロパティの型に変換() {
+		ItemForm form = itemBinder.populate(new ItemForm(), Map.of(
+			"id", new String[] {" 12 "},
+			"name", new String[] {" iPhone 15 "},
+			"releaseDate", new String[] {"2023-09-12"},
+			"faceAuth", new String[] {"on"},
+			"companyId", new String[] {"1"},
+			"unknown", new String[] {"x"}));
+		assertEquals(12, form.id);
+		assertEquals(" iPhone 15 ", form.name); // String はそのまま
+		assertEquals("2023-09-12", form.releaseDate);
+		assertTrue(form.faceAuth);
+		assertEquals(1, form.companyId);
+	}
+
+	@Test
+	void populate_BeanUtilsのpopulateと同じ値() throws Exception {
+		Map<String, String[]> params = Map.of(
+			"id", new String[] {"12"},
+			"name", new String[] {"iPhone 15 Pro Docomo版"},
+			"releaseDate", new String[] {"2023-09-12"},
+			"faceAuth", new String[] {"on"},
+			"companyId", new String[] {"1"},
+			"version", new String[] {"3"});
+		ItemForm expected = new ItemForm();
+		BeanUtils.populate(expected, params); // BeanBindingBenchmark の比較対象
+		assertEquals(expected, itemBinder.populate(new ItemForm(), params));
+	}
+
+	@Test
+	void populate_複数値は最初の値() {
+		ItemForm form = itemBinder.populate(new ItemForm(), Map.of("name", new String[] {"a", "b"}));
+		assertEquals("a", form.name);
+	}
+
+	@Test
+	void populate_booleanの変換() {
+		for (String value : new String[] {"true", "TRUE", "yes", "Y", "on", "1", " on "}) {
+			assertTrue(itemBinder.populate(new ItemForm(), Map.of("faceAuth", new String[] {value})).faceAuth, value);
+		}
+		for (String value : new String[] {"false", "no", "off", "0", "", "x"}) {
+			ItemForm form = new ItemForm();
+			form.faceAuth = true;
+			assertFalse(itemBinder.populate(form, Map.of("faceAuth", new String[] {value})).faceAuth, value);
+		}
+	}
+
+	@Test
+	void populate_数値に変換できない場合はプリミティブは0() {
+		ItemForm form = new ItemForm();
+		form.id = 9;
+		form.companyId = 9;
+		itemBinder.populate(form, Map.of("id", new String[] {"abc"}, "companyId", new String[] {""}));
+		assertEquals(0, form.id);
+		assertEquals(0, form.companyId);
+	}
+
+	@Test
+	void populate_値が無いパラメーターは変更しない() {
+		ItemForm form = new ItemForm();
+		form.id = 9;
+		form.name = "iPhone";
+		Map<String, String[]> params = new HashMap<>();
+		params.put("id", new String[] {null});
+		params.put("name", new String[0]);
+		params.put("releaseDate", null);
+		itemBinder.populate(form, params);
+		assertEquals(9, form.id);
+		assertEquals("iPhone", form.name);
+		assertNull(form.releaseDate);
+	}
+
+	@Test
+	void populate_ラッパー型は変換できない場合null() {
+		WrapperForm form = wrapperBinder.populate(new WrapperForm(), Map.of(
+			"longValue", new String[] {" 3000000000 "},
+			"intValue", new String[] {"7"},
+			"booleanValue", new String[] {"yes"},
+			"intValue2", new String[] {"x"}));
+		assertEquals(3000000000L, form.longValue);
+		assertEquals(7, form.intValue);
+		assertEquals(true, form.booleanValue);
+		assertNull(form.intValue2);
+
+		form.longValue = 1L;
+		wrapperBinder.populate(form, Map.of("longValue", new String[] {"1.5.0"}));
+		assertNull(form.longValue);
+	}
+
+	@Test
+	void populate_対象外の型は無視() {
+		WrapperForm form = wrapperBinder.populate(new WrapperForm(), Map.of("decimalValue", new String[] {"1.5"}));
+		assertNull(form.decimalValue);
+	}
+
+	/** ラッパー型と対象外の型のプロパティを持つフォーム */
+	@Data
+	public static class WrapperForm {
+		public Long longValue;
+		public Integer intValue;
+		public Integer intValue2;
+		public Boolean booleanValue;
+		public java.math.BigDecimal decimalValue;
+	}
+}
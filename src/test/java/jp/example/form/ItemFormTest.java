@@ -0,0 +1,413 @@
+package jp.example.form;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import jakarta.servlet.http.HttpServletRequest;
+
+import jp.example.filter.AutoTransactionFilter;
+import jp.example.filter.ServletFakes;
+import jp.example.filter.TestDatabase;
+
+/**
+ * ItemForm の検索、件数、変更 (楽観ロック)、インポート、一括処理のテストです (インメモリ H2)。
+ * <pre>
+ * create_table.sql の初期データ (iPhone 2 件、Xperia 1 件) を使用します。
+ * DB は他のテストと共通のため、変更するテストは一意な名前のデータを使用するか、元に戻してください。
+ * </pre>
+ * @author New Gradle Project Wizard (c) Pleiades MIT
+ */
+class ItemFormTest {
+
+	@Test
+	void findFormList_名前の部分一致はインデックスで検索() {
+		TestDatabase.read(() -> {
+			assertEquals(List.of("iPhone 14 Pro Docomo版", "iPhone 14 Pro Max Docomo版"), names(search("Docomo", null)));
+			assertEquals(List.of("iPhone 14 Pro Max Docomo版"), names(search("Docomo", "2022-12-15")));
+			assertEquals(List.of(), names(search("Docomo", "2022-07-12")));
+			assertEquals(List.of(), names(search("Pro Pro", null)));
+		});
+	}
+
+	@Test
+	void findFormList_1文字の名前はLIKEで検索() {
+		TestDatabase.read(() -> {
+			List<String> names = names(search("X", null));
+			assertTrue(names.contains("Xperia 1 V 国内版"), names::toString);
+			assertTrue(names.stream().allMatch(name -> name.contains("X")), names::toString);
+			assertEquals(List.of(), names(search("%", null))); // LIKE のワイルドカードはエスケープ
+		});
+	}
+
+	@Test
+	void findFormList_afterIdより大きいidを昇順でlimit件取得() {
+		importRows("ページング試験 行%05d", 4);
+		TestDatabase.read(() -> {
+			List<ItemForm> page1 = search("ページング試験", 0, 2);
+			List<ItemForm> page2 = search("ページング試験", lastId(page1), 2);
+			assertEquals(List.of("ページング試験 行00001", "ページング試験 行00002"), names(page1));
+			assertEquals(List.of("ページング試験 行00003", "ページング試験 行00004"), names(page2));
+			assertTrue(page1.get(1).id < page2.get(0).id);
+			assertEquals(List.of(), search("ページング試験", lastId(page2), 2)); // 最終ページがちょうど limit 件の場合は次ページが空
+			
+			List<ItemForm> page = search("ページング試験", 0, 3);
+			assertEquals(3, page.size());
+			assertEquals(List.of("ページング試験 行00004"), names(search("ページング試験", lastId(page), 3)));
+			assertEquals(List.of("ページング試験 行00003", "ページング試験 行00004"),
+				names(search("ページング試験", page.get(1).id, 100))); // afterId と同じ id は含まない
+		});
+	}
+
+	@Test
+	void findFormList_取得件数はMAX_PAGE_SIZE件が上限() {
+		importRows("ページ上限試験 行%05d", ItemForm.MAX_PAGE_SIZE + 1);
+		TestDatabase.read(() -> {
+			List<ItemForm> page = search("ページ上限試験", 0, Integer.MAX_VALUE);
+			assertEquals(ItemForm.MAX_PAGE_SIZE, page.size());
+			assertEquals(List.of(String.format("ページ上限試験 行%05d", ItemForm.MAX_PAGE_SIZE + 1)),
+				names(search("ページ上限試験", lastId(page), Integer.MAX_VALUE)));
+		});
+	}
+
+	@Test
+	void count_検索結果の件数と一致() {
+		TestDatabase.read(() -> {
+			assertEquals(2, count("Docomo", null));
+			assertEquals(1, count("Docomo", "2022-12-15"));
+			assertEquals(0, count("Pro Pro", null));
+			assertEquals(0, count("%", null));
+			for (String name : new String[] {"X", "Pro", "国内", "版"}) {
+				assertEquals(search(name, null).size(), count(name, null), name);
+			}
+		});
+	}
+
+	@Test
+	void insert_採番されたidをセットしてコミット後に名前で検索() {
+		ItemForm form = form("登録試験 製品C01", "2023-07-10");
+		try {
+			TestDatabase.write(form::insert);
+			assertNotEquals(0, form.id);
+			TestDatabase.read(() -> assertEquals(List.of(form.id), search("登録試験", null).stream().map(item -> item.id).toList()));
+		} finally {
+			TestDatabase.write(form::delete);
+		}
+		TestDatabase.read(() -> assertEquals(0, count("登録試験", null)));
+	}
+
+	@Test
+	void insert_変更イベントはコミット後にのみ配信() throws Exception {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		HttpServletRequest req = ServletFakes.request("GET", "/spa/events", "Accept", "text/event-stream");
+		ItemForm.subscribeChanges(req, ServletFakes.response(body));
+		ItemForm rolledBack = form("変更通知試験 製品J01", "2023-07-11");
+		ItemForm committed = form("変更通知試験 製品J02", "2023-07-11");
+		try {
+			assertThrows(IllegalStateException.class, () -> TestDatabase.write(() -> {
+				rolledBack.insert();
+				throw new IllegalStateException("後続の処理でエラー");
+			}));
+			TestDatabase.write(() -> {
+				committed.insert();
+				Thread.sleep(100);
+				assertFalse(text(body).contains("製品J02"), () -> text(body)); // コミット前は配信しない
+			});
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+			while (!text(body).contains("製品J02") && System.nanoTime() < deadline) Thread.sleep(10);
+			assertTrue(text(body).contains("\"op\":\"insert\",\"id\":" + committed.id + ","), () -> text(body));
+			assertFalse(text(body).contains("製品J01"), () -> text(body)); // ロールバックした変更は配信しない
+		} finally {
+			TestDatabase.write(committed::delete);
+			req.getAsyncContext().complete();
+		}
+	}
+
+	@Test
+	void update_コミット後に変更後の名前で検索() {
+		ItemForm form = new ItemForm();
+		TestDatabase.read(() -> {
+			form.id = search("Xperia 1 V 国内版", null).get(0).id;
+			form.findFormById();
+		});
+		String originalName = form.name;
+		try {
+			form.name = "Xperia 1 V 索引試験版";
+			TestDatabase.write(form::update);
+			TestDatabase.read(() -> {
+				assertEquals(List.of("Xperia 1 V 索引試験版"), names(search("索引試験", null)));
+				assertEquals(1, count("索引試験", null));
+				assertEquals(0, count("国内", null));
+			});
+		} finally {
+			TestDatabase.read(form::findFormById);
+			form.name = originalName;
+			TestDatabase.write(form::update);
+		}
+		TestDatabase.read(() -> assertEquals(List.of("Xperia 1 V 国内版"), names(search("国内", null))));
+	}
+
+	@Test
+	void update_編集画面の表示後に変更された場合はエラーで変更しない() {
+		importRows("楽観ロック試験 製品G%02d", 1);
+		ItemForm stale = new ItemForm();
+		TestDatabase.read(() -> {
+			stale.id = search("楽観ロック試験", null).get(0).id;
+			stale.findFormById();
+		});
+		ItemForm other = new ItemForm();
+		TestDatabase.read(() -> {
+			other.id = stale.id;
+			other.findFormById();
+		});
+		other.name = "楽観ロック試験 製品G11";
+		TestDatabase.write(other::update);
+
+		stale.name = "楽観ロック試験 製品G21";
+		Error e = assertThrows(Error.class, () -> TestDatabase.write(stale::update));
+		assertEquals("指定された製品は、すでに削除されているか、別のユーザーにより変更されています。", e.getMessage());
+		TestDatabase.read(() -> {
+			List<ItemForm> forms = search("楽観ロック試験", null);
+			assertEquals(List.of("楽観ロック試験 製品G11"), names(forms));
+			assertEquals(stale.version + 1, forms.get(0).version);
+		});
+	}
+
+	@Test
+	void importForms_エラーの行をスキップして登録() {
+		ItemForm.ImportResult[] result = new ItemForm.ImportResult[1];
+		TestDatabase.write(() -> result[0] = ItemForm.importForms(List.of(
+			form("インポート試験 製品A01", "2023-04-10"),
+			form("短い製品名", "2023-04-10"),
+			form("インポート試験 製品A01", "2023-04-11"), // ファイル内の重複
+			form("Xperia 1 V 国内版", "2023-04-12"), // DB に存在
+			form("インポート試験 製品A02", "2023-02-30"),
+			form("インポート試験 製品A03", "2023-04-13")).iterator()));
+
+		assertEquals(2, result[0].insertedCount());
+		assertEquals(4, result[0].errorCount());
+		assertEquals(List.of("2 件目", "3 件目", "4 件目", "5 件目"),
+			result[0].errors().stream().map(message -> message.substring(0, message.indexOf(':'))).toList());
+		TestDatabase.read(() -> assertEquals(
+			List.of("インポート試験 製品A01", "インポート試験 製品A03"), names(search("インポート試験", null))));
+	}
+
+	@Test
+	void importForms_読み込みエラーの場合はそれまでの行を登録() {
+		Iterator<ItemForm> rows = List.of(
+			form("インポート中断 製品B01", "2023-05-10"),
+			form("インポート中断 製品B02", "2023-05-11")).iterator();
+		Iterator<ItemForm> failingRows = new Iterator<>() {
+			@Override
+			public boolean hasNext() {
+				return true;
+			}
+			@Override
+			public ItemForm next() {
+				if (rows.hasNext()) return rows.next();
+				throw new IllegalArgumentException("CSV の形式が不正です。");
+			}
+		};
+		ItemForm.ImportResult[] result = new ItemForm.ImportResult[1];
+		TestDatabase.write(() -> result[0] = ItemForm.importForms(failingRows));
+
+		assertEquals(2, result[0].insertedCount());
+		assertEquals(List.of("3 件目: 読み込みを中断しました。CSV の形式が不正です。"), result[0].errors());
+		TestDatabase.read(() -> assertEquals(2, count("インポート中断", null)));
+	}
+
+	@Test
+	void importForms_コミットごとにテーブルバージョンを増加して件数を再取得() {
+		List<ItemForm> forms = new ArrayList<>();
+		for (int i = 1; i <= ItemForm.IMPORT_BATCH_SIZE + 1; i++) {
+			forms.add(form(String.format("一括インポート 行%05d", i), "2023-06-10"));
+		}
+		TestDatabase.read(() -> assertEquals(0, count("一括インポート", null))); // 件数をキャッシュ
+		long before = AutoTransactionFilter.tableVersion("item");
+
+		ItemForm.ImportResult[] result = new ItemForm.ImportResult[1];
+		TestDatabase.write(() -> result[0] = ItemForm.importForms(forms.iterator()));
+
+		assertEquals(ItemForm.IMPORT_BATCH_SIZE + 1, result[0].insertedCount());
+		assertEquals(before + 2, AutoTransactionFilter.tableVersion("item")); // 2 バッチ = 2 コミット
+		TestDatabase.read(() -> {
+			assertEquals(ItemForm.IMPORT_BATCH_SIZE + 1, count("一括インポート", null));
+			assertEquals(List.of("一括インポート 行01001"), names(search("行01001", null)));
+		});
+	}
+
+	@Test
+	void executeBatch_登録変更削除をまとめて実行し登録は採番されたidを返す() {
+		importRows("一括処理試験 製品D%02d", 2);
+		List<ItemForm> existing = new ArrayList<>();
+		TestDatabase.read(() -> existing.addAll(search("一括処理試験", null)));
+		ItemForm inserted = form("一括処理試験 製品D03", "2023-09-10");
+		ItemForm updated = form("一括処理試験 製品D11", "2023-09-11");
+		updated.id = existing.get(0).id;
+		updated.version = existing.get(0).version;
+		List<ItemForm.BatchResult> results = executeBatch(
+			new ItemForm.BatchOperation(ItemForm.Operation.insert, inserted),
+			new ItemForm.BatchOperation(ItemForm.Operation.update, updated),
+			new ItemForm.BatchOperation(ItemForm.Operation.delete, existing.get(1)));
+
+		assertEquals(List.of(ItemForm.Operation.insert, ItemForm.Operation.update, ItemForm.Operation.delete),
+			results.stream().map(ItemForm.BatchResult::op).toList());
+		assertTrue(results.stream().allMatch(result -> result.message() == null), results::toString);
+		assertNotEquals(0, results.get(0).id());
+		assertEquals(inserted.id, results.get(0).id());
+		assertEquals(List.of(existing.get(0).id, existing.get(1).id), List.of(results.get(1).id(), results.get(2).id()));
+		TestDatabase.read(() -> {
+			List<ItemForm> forms = search("一括処理試験", null);
+			assertEquals(List.of("一括処理試験 製品D11", "一括処理試験 製品D03"), names(forms));
+			assertEquals(List.of(updated.id, inserted.id), forms.stream().map(form -> form.id).toList());
+		});
+	}
+
+	@Test
+	void executeBatch_エラーの操作のみスキップしてメッセージを返す() {
+		ItemForm missing = form("一括エラー試験 製品E02", "2023-09-12");
+		missing.id = Long.MAX_VALUE;
+		List<ItemForm.BatchResult> results = executeBatch(
+			new ItemForm.BatchOperation(ItemForm.Operation.insert, form("一括エラー試験 製品E01", "2023-09-12")),
+			new ItemForm.BatchOperation(ItemForm.Operation.insert, form("短い製品名", "2023-09-12")),
+			new ItemForm.BatchOperation(ItemForm.Operation.insert, form("一括エラー試験 製品E01", "2023-09-13")), // バッチ内の重複
+			new ItemForm.BatchOperation(ItemForm.Operation.update, missing),
+			new ItemForm.BatchOperation(ItemForm.Operation.delete, null));
+
+		assertNull(results.get(0).message());
+		assertNotEquals(0, results.get(0).id());
+		assertEquals("製品名は 10 〜 25 文字で入力してください。(現在 5 文字)", results.get(1).message());
+		assertEquals("指定された製品名は、別の製品で使用されています。", results.get(2).message());
+		assertEquals("指定された製品は、すでに削除されています。", results.get(3).message());
+		assertEquals("op と item は必須です。", results.get(4).message());
+		assertEquals(List.of(0L, 0L, 0L), List.of(results.get(1).id(), results.get(2).id(), results.get(4).id())); // 登録しなかった場合は 0
+		TestDatabase.read(() -> assertEquals(List.of("一括エラー試験 製品E01"), names(search("一括エラー試験", null))));
+	}
+
+	@Test
+	void executeBatch_バージョンが異なる変更は競合としてスキップし競合したidを返す() {
+		importRows("一括競合試験 製品H%02d", 2);
+		List<ItemForm> existing = new ArrayList<>();
+		TestDatabase.read(() -> existing.addAll(search("一括競合試験", null)));
+		ItemForm first = form("一括競合試験 製品H11", "2023-09-16");
+		first.id = existing.get(0).id;
+		first.version = existing.get(0).version;
+		ItemForm second = form("一括競合試験 製品H12", "2023-09-16");
+		second.id = existing.get(1).id;
+		second.version = existing.get(1).version;
+		assertNull(executeBatch(new ItemForm.BatchOperation(ItemForm.Operation.update, first)).get(0).message());
+
+		ItemForm stale = form("一括競合試験 製品H21", "2023-09-16");
+		stale.id = first.id;
+		stale.version = first.version; // 変更前のバージョン
+		ItemForm again = form("一括競合試験 製品H31", "2023-09-16");
+		again.id = second.id;
+		again.version = second.version + 1; // 同じバッチ内の前の変更後のバージョン
+		List<ItemForm.BatchResult> results = executeBatch(
+			new ItemForm.BatchOperation(ItemForm.Operation.update, stale),
+			new ItemForm.BatchOperation(ItemForm.Operation.update, second),
+			new ItemForm.BatchOperation(ItemForm.Operation.update, again));
+
+		assertEquals("指定された製品は、別のユーザーにより変更されています。", results.get(0).message());
+		assertEquals(first.id, results.get(0).id());
+		assertNull(results.get(1).message());
+		assertNull(results.get(2).message());
+		TestDatabase.read(() -> {
+			List<ItemForm> forms = search("一括競合試験", null);
+			assertEquals(List.of("一括競合試験 製品H11", "一括競合試験 製品H31"), names(forms));
+			assertEquals(List.of(first.version + 1, second.version + 2), forms.stream().map(form -> form.version).toList());
+		});
+	}
+
+	@Test
+	void executeBatch_件数上限を超えた場合は何も実行しない() {
+		List<ItemForm.BatchOperation> operations = new ArrayList<>();
+		for (int i = 1; i <= ItemForm.MAX_BATCH_SIZE + 1; i++) {
+			operations.add(new ItemForm.BatchOperation(ItemForm.Operation.insert, form(String.format("一括上限試験 行%05d", i), "2023-09-14")));
+		}
+		IllegalStateException e = assertThrows(IllegalStateException.class, () -> TestDatabase.write(() -> ItemForm.executeBatch(operations)));
+		assertEquals("一括処理は 1000 件以内で指定してください。(現在 1001 件)", e.getMessage());
+		TestDatabase.read(() -> assertEquals(0, count("一括上限試験", null)));
+	}
+
+	@Test
+	void executeBatch_トランザクションがロールバックされた場合はすべて破棄() {
+		long before = AutoTransactionFilter.tableVersion("item");
+		assertThrows(IllegalStateException.class, () -> TestDatabase.write(() -> {
+			ItemForm.executeBatch(List.of(
+				new ItemForm.BatchOperation(ItemForm.Operation.insert, form("一括取消試験 製品F01", "2023-09-15")),
+				new ItemForm.BatchOperation(ItemForm.Operation.insert, form("一括取消試験 製品F02", "2023-09-15"))));
+			throw new IllegalStateException("後続の処理でエラー");
+		}));
+		assertEquals(before, AutoTransactionFilter.tableVersion("item")); // コミット後処理も破棄
+		TestDatabase.read(() -> {
+			assertEquals(0, count("一括取消試験", null));
+			assertEquals(List.of(), search("一括取消試験", null));
+		});
+	}
+
+	/** 一括処理を実行してコミット */
+	private static List<ItemForm.BatchResult> executeBatch(ItemForm.BatchOperation... operations) {
+		List<ItemForm.BatchResult> results = new ArrayList<>();
+		TestDatabase.write(() -> results.addAll(ItemForm.executeBatch(List.of(operations))));
+		return results;
+	}
+
+	private static List<ItemForm> search(String name, long afterId, int limit) {
+		ItemForm form = new ItemForm();
+		form.name = name;
+		return form.findFormList(afterId, limit);
+	}
+
+	private static long lastId(List<ItemForm> forms) {
+		return forms.get(forms.size() - 1).id;
+	}
+
+	/** 名前の書式 (連番 1 〜 rows) のアイテムを登録 */
+	private static void importRows(String nameFormat, int rows) {
+		List<ItemForm> forms = new ArrayList<>();
+		for (int i = 1; i <= rows; i++) {
+			forms.add(form(String.format(nameFormat, i), "2023-08-10"));
+		}
+		TestDatabase.write(() -> assertEquals(rows, ItemForm.importForms(forms.iterator()).insertedCount()));
+	}
+
+	private static List<ItemForm> search(String name, String releaseDate) {
+		ItemForm form = new ItemForm();
+		form.name = name;
+		form.releaseDate = releaseDate;
+		return form.findFormList();
+	}
+
+	private static long count(String name, String releaseDate) {
+		ItemForm form = new ItemForm();
+		form.name = name;
+		form.releaseDate = releaseDate;
+		return form.count();
+	}
+
+	private static ItemForm form(String name, String releaseDate) {
+		ItemForm form = new ItemForm();
+		form.name = name;
+		form.releaseDate = releaseDate;
+		form.companyId = 2;
+		return form;
+	}
+
+	private static String text(ByteArrayOutputStream body) {
+		synchronized (body) {
+			return body.toString(StandardCharsets.UTF_8);
+		}
+	}
+
+	private static List<String> names(List<ItemForm> forms) {
+		return forms.stream().map(form -> form.name).toList();
+	}
+}
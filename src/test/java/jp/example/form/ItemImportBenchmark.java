@@ -0,0 +1,85 @@
+package jp.example.form;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import jp.example.filter.ServletFakes;
+import jp.example.filter.TestDatabase;
+
+/**
+ * インポート (ItemForm#importForms) の 1 秒あたりの登録件数を計測する JMH ベンチマークです。
+ * <pre>
+ * TestDatabase のインメモリ H2 に、importForms (IMPORT_BATCH_SIZE 件ごとに JDBC バッチで登録してコミット) と、
+ * 画面からの登録と同じ 1 件ずつの insert (入力チェック、登録、コミットを 1 件ごと) で登録します。
+ * 製品名は呼び出しごとに一意な連番のため、計測中に item の件数は増加します (実際のインポートと同じく重複チェックの対象が増加)。
+ *
+ * 実行方法 (結果は 1 秒あたりの登録件数)
+ *
+ *     gradle jmh -PjmhArgs="ItemImportBenchmark"
+ * </pre>
+ * @author New Gradle Project Wizard (c) Pleiades MIT
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ItemImportBenchmark {
+
+	private static final int IMPORT_ROWS = 10_000;
+	private static final int INSERT_ROWS = 100;
+
+	private long sequence;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		TestDatabase.read(() -> {}); // テーブルの作成
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(IMPORT_ROWS)
+	public ItemForm.ImportResult importForms() {
+		List<ItemForm> forms = forms(IMPORT_ROWS);
+		ItemForm.ImportResult[] result = new ItemForm.ImportResult[1];
+		TestDatabase.write(() -> result[0] = ItemForm.importForms(forms.iterator()));
+		return result[0];
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(INSERT_ROWS)
+	public List<ItemForm> insertEach() {
+		List<ItemForm> forms = forms(INSERT_ROWS);
+		for (ItemForm form : forms) {
+			TestDatabase.write(() -> form.validate(ServletFakes.request("POST", "/item/create")).insert());
+		}
+		return forms;
+	}
+
+	/** 一意な製品名のフォーム (例: インポート計測 製品0000123) */
+	private List<ItemForm> forms(int rows) {
+		List<ItemForm> forms = new ArrayList<>(rows);
+		for (int i = 0; i < rows; i++) {
+			ItemForm form = new ItemForm();
+			form.name = String.format("インポート計測 製品%07d", ++sequence);
+			form.releaseDate = "2023-10-10";
+			form.companyId = 2;
+			forms.add(form);
+		}
+		return forms;
+	}
+}
@@ -0,0 +1,131 @@
+package jp.example.form;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.LongStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import jp.example.entity.Item;
+
+/**
+ * 製品名の部分一致検索の、LIKE による全件走査 (scan) と ItemNameIndex (index) を比較する JMH ベンチマークです。
+ * <pre>
+ * インメモリ H2 (ItemForm のテストとは別の DB) に rows 件のアイテムを登録し、ItemForm と同じく ix__item__name を作成します。
+ * scan は LIKE '%term%' で該当する id を取得 (前方一致ではないため全件走査)、index は同じ id を名前インデックスで取得します。
+ * term は該当が少ない検索文字列 (00123: 約 300 件) と多い検索文字列 (Pro: 1/4 の件数) です。
+ * build は全件からの名前インデックスの構築時間です (構築はロックの外で行うため、構築中の検索は待機しない)。
+ *
+ * 実行方法 (結果は 1 回あたりのミリ秒、ヒープは -jvmArgs で指定)
+ *
+ *     gradle jmh -PjmhArgs="ItemNameIndexBenchmark -jvmArgs -Xmx4g"
+ * </pre>
+ * @author New Gradle Project Wizard (c) Pleiades MIT
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ItemNameIndexBenchmark {
+
+	/** アイテム件数 */
+	@Param({"1000000"})
+	public int rows;
+
+	/** 検索文字列 */
+	@Param({"00123", "Pro"})
+	public String term;
+
+	private static final String[] MAKERS = {"iPhone", "Xperia", "Galaxy", "Pixel"};
+	private static final String[] MODELS = {"Pro", "Max", "Lite", "Ultra"};
+
+	private Connection connection;
+	private PreparedStatement likeStatement;
+	private ItemNameIndex index;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		connection = DriverManager.getConnection("jdbc:h2:mem:name_index_benchmark", "sa", "");
+		try (Statement statement = connection.createStatement()) {
+			statement.execute("CREATE TABLE item (id BIGINT PRIMARY KEY, name VARCHAR(30))");
+			statement.execute("CREATE INDEX ix__item__name ON item (name)");
+		}
+		connection.setAutoCommit(false);
+		try (PreparedStatement insert = connection.prepareStatement("INSERT INTO item (id, name) VALUES (?, ?)")) {
+			for (int id = 1; id <= rows; id++) {
+				insert.setLong(1, id);
+				insert.setString(2, name(id));
+				insert.addBatch();
+				if (id % 10_000 == 0) insert.executeBatch();
+			}
+			insert.executeBatch();
+		}
+		connection.commit();
+		likeStatement = connection.prepareStatement("SELECT id FROM item WHERE name LIKE ? ESCAPE '$' ORDER BY id");
+		index = build();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		likeStatement.close();
+		connection.close(); // 最後の接続のクローズで DB を破棄
+	}
+
+	@Benchmark
+	public long[] scan() throws Exception {
+		likeStatement.setString(1, "%" + term + "%");
+		long[] ids = new long[1024];
+		int count = 0;
+		try (ResultSet resultSet = likeStatement.executeQuery()) {
+			while (resultSet.next()) {
+				if (count == ids.length) ids = Arrays.copyOf(ids, count * 2);
+				ids[count++] = resultSet.getLong(1);
+			}
+		}
+		return Arrays.copyOf(ids, count);
+	}
+
+	@Benchmark
+	public long[] index() {
+		return index.search(term);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@Warmup(iterations = 1)
+	@Measurement(iterations = 3)
+	public ItemNameIndex build() {
+		ItemNameIndex built = new ItemNameIndex();
+		built.buildIfNeeded(1, () -> LongStream.rangeClosed(1, rows).mapToObj(id -> {
+			Item item = new Item();
+			item.id = id;
+			item.name = name(id);
+			return item;
+		}));
+		return built;
+	}
+
+	/** 製品名 (例: iPhone Pro 0001234 国内版、最大 25 文字) */
+	private static String name(long id) {
+		return String.format("%s %s %07d 国内版", MAKERS[(int) (id % MAKERS.length)], MODELS[(int) (id / MAKERS.length % MODELS.length)], id);
+	}
+}
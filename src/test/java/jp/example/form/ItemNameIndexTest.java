@@ -0,0 +1,176 @@
+package jp.example.form;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import jp.example.entity.Item;
+
+/**
+ * ItemNameIndex の部分一致検索と、テーブルバージョンによる差分更新、ロック外での再構築のテストです。
+ * @author New Gradle Project Wizard (c) Pleiades MIT
+ */
+class ItemNameIndexTest {
+
+	private ItemNameIndex index;
+
+	@BeforeEach
+	void build() {
+		index = new ItemNameIndex();
+		index.buildIfNeeded(10, () -> Stream.of(
+			item(1, "iPhone 14 Pro Docomo版"),
+			item(2, "iPhone 14 Pro Max Docomo版"),
+			item(3, "Xperia 1 V 国内版")));
+	}
+
+	@Test
+	void search_名前に検索文字列を含むidを昇順で取得() {
+		assertArrayEquals(new long[] {1, 2}, index.search("Pro"));
+		assertArrayEquals(new long[] {2}, index.search("Pro Max"));
+		assertArrayEquals(new long[] {3}, index.search("国内"));
+		assertArrayEquals(new long[] {1, 2}, index.search("o版"));
+		assertArrayEquals(new long[] {}, index.search("Galaxy"));
+		assertArrayEquals(new long[] {}, index.search("Pro Pro")); // N-gram はすべて存在するが名前に含まれない
+	}
+
+	@Test
+	void search_大文字小文字を区別() {
+		assertArrayEquals(new long[] {}, index.search("iphone"));
+	}
+
+	@Test
+	void search_未構築や1文字の場合はnull() {
+		assertNull(index.search("P"));
+		assertNull(index.search(null));
+		assertNull(new ItemNameIndex().search("Pro"));
+	}
+
+	@Test
+	void buildIfNeeded_構築済みのバージョン以前の場合は読み込まない() {
+		AtomicInteger loadCount = new AtomicInteger();
+		index.buildIfNeeded(10, () -> {
+			loadCount.incrementAndGet();
+			return Stream.empty();
+		});
+		assertEquals(0, loadCount.get());
+		assertArrayEquals(new long[] {1, 2}, index.search("Pro"));
+
+		index.buildIfNeeded(11, () -> {
+			loadCount.incrementAndGet();
+			return Stream.of(item(4, "Galaxy S23"));
+		});
+		assertEquals(1, loadCount.get());
+		assertArrayEquals(new long[] {}, index.search("Pro"));
+		assertArrayEquals(new long[] {4}, index.search("Galaxy"));
+	}
+
+	@Test
+	void buildIfNeeded_構築中も構築済みのインデックスで検索して他のスレッドは待機しない() throws Exception {
+		CountDownLatch loading = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<Boolean> building = executor.submit(() -> index.buildIfNeeded(11, () -> {
+				loading.countDown();
+				await(release);
+				return Stream.of(item(4, "Galaxy S23"));
+			}));
+			assertTrue(loading.await(10, TimeUnit.SECONDS));
+			assertArrayEquals(new long[] {1, 2}, index.search("Pro")); // 置き換えまでは構築済みのインデックス
+			assertFalse(index.buildIfNeeded(11, Stream::empty)); // 呼び出し側で LIKE 検索
+			assertTrue(index.buildIfNeeded(10, Stream::empty));
+
+			release.countDown();
+			assertTrue(building.get(10, TimeUnit.SECONDS));
+		} finally {
+			executor.shutdownNow();
+		}
+		assertArrayEquals(new long[] {4}, index.search("Galaxy"));
+	}
+
+	@Test
+	void buildIfNeeded_構築中に差分更新で新しくなった場合は構築結果を破棄() throws Exception {
+		CountDownLatch loading = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<Boolean> building = executor.submit(() -> index.buildIfNeeded(11, () -> {
+				loading.countDown();
+				await(release);
+				return Stream.of(item(1, "iPhone 14 Pro Docomo版")); // 読み込み開始時点のデータ
+			}));
+			assertTrue(loading.await(10, TimeUnit.SECONDS));
+			index.update(11, Collections.singletonMap(4L, "Galaxy S23"));
+
+			release.countDown();
+			assertTrue(building.get(10, TimeUnit.SECONDS));
+		} finally {
+			executor.shutdownNow();
+		}
+		assertArrayEquals(new long[] {4}, index.search("Galaxy"));
+		assertArrayEquals(new long[] {1, 2}, index.search("Pro"));
+	}
+
+	@Test
+	void update_次のバージョンの登録変更削除を差分で反映() {
+		index.update(11, Collections.singletonMap(4L, "Galaxy S23"));
+		assertArrayEquals(new long[] {4}, index.search("Galaxy"));
+
+		index.update(12, Collections.singletonMap(1L, "iPhone 15 Docomo版"));
+		assertArrayEquals(new long[] {2}, index.search("14 Pro")); // 変更前の名前の N-gram は除外
+		assertArrayEquals(new long[] {1}, index.search("15"));
+
+		index.update(13, Collections.singletonMap(2L, null));
+		assertArrayEquals(new long[] {}, index.search("Pro Max"));
+		assertArrayEquals(new long[] {1}, index.search("Docomo"));
+	}
+
+	@Test
+	void update_構築済みのバージョン以前の場合は無視() {
+		index.update(10, Collections.singletonMap(4L, "Galaxy S23"));
+		assertArrayEquals(new long[] {}, index.search("Galaxy"));
+	}
+
+	@Test
+	void update_バージョンが飛んだ場合は次回検索時に再構築() {
+		index.update(12, Collections.singletonMap(4L, "Galaxy S23"));
+		assertNull(index.search("Galaxy"));
+
+		index.buildIfNeeded(12, () -> Stream.of(item(4, "Galaxy S23")));
+		assertArrayEquals(new long[] {4}, index.search("Galaxy"));
+	}
+
+	@Test
+	void invalidate_次回検索時に再構築() {
+		index.invalidate();
+		assertNull(index.search("Pro"));
+
+		index.buildIfNeeded(10, () -> Stream.of(item(1, "iPhone 14 Pro Docomo版")));
+		assertArrayEquals(new long[] {1}, index.search("Pro"));
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			assertTrue(latch.await(10, TimeUnit.SECONDS));
+		} catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static Item item(long id, String name) {
+		Item item = new Item();
+		item.id = id;
+		item.name = name;
+		return item;
+	}
+}
@@ -0,0 +1,135 @@
+package jp.example.form;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * QueryResultCache の single-flight、無効化、有効期限、件数上限のテストです。
+ * @author New Gradle Project Wizard (c) Pleiades MIT
+ */
+class QueryResultCacheTest {
+
+	private final AtomicInteger loadCount = new AtomicInteger();
+
+	@Test
+	void get_取得した値をキャッシュ() {
+		QueryResultCache<String, Integer> cache = new QueryResultCache<>(10, Duration.ofHours(1));
+		assertEquals(1, cache.get("a", this::load));
+		assertEquals(1, cache.get("a", this::load));
+		assertEquals(2, cache.get("b", this::load));
+		assertEquals(2, loadCount.get());
+	}
+
+	@Test
+	void get_同じキーの同時取得はloaderを1回だけ実行() throws Exception {
+		QueryResultCache<String, Integer> cache = new QueryResultCache<>(10, Duration.ofHours(1));
+		CountDownLatch loading = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		int threads = 8;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Integer>> futures = new ArrayList<>();
+			futures.add(executor.submit(() -> cache.get("a", () -> {
+				loading.countDown();
+				await(release);
+				return load();
+			})));
+			loading.await(10, TimeUnit.SECONDS);
+			for (int i = 1; i < threads; i++) {
+				futures.add(executor.submit(() -> cache.get("a", this::load))); // 取得中の値を待機
+			}
+			release.countDown();
+			for (Future<Integer> future : futures) {
+				assertEquals(1, future.get(10, TimeUnit.SECONDS));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(1, loadCount.get());
+	}
+
+	@Test
+	void get_loaderの例外はキャッシュしない() {
+		QueryResultCache<String, Integer> cache = new QueryResultCache<>(10, Duration.ofHours(1));
+		assertThrows(IllegalStateException.class, () -> cache.get("a", () -> {
+			throw new IllegalStateException();
+		}));
+		assertEquals(1, cache.get("a", this::load));
+	}
+
+	@Test
+	void get_有効期限切れは取得し直す() {
+		QueryResultCache<String, Integer> cache = new QueryResultCache<>(10, Duration.ZERO);
+		assertEquals(1, cache.get("a", this::load));
+		assertEquals(2, cache.get("a", this::load));
+	}
+
+	@Test
+	void invalidate_無効化後は取得し直す() {
+		QueryResultCache<String, Integer> cache = new QueryResultCache<>(10, Duration.ofHours(1));
+		assertEquals(1, cache.get("a", this::load));
+		cache.invalidate();
+		assertEquals(2, cache.get("a", this::load));
+		assertEquals(2, cache.get("a", this::load));
+	}
+
+	@Test
+	void invalidate_取得中に無効化された値はキャッシュに残らない() throws Exception {
+		QueryResultCache<String, Integer> cache = new QueryResultCache<>(10, Duration.ofHours(1));
+		CountDownLatch loading = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<Integer> staleLoad = executor.submit(() -> cache.get("a", () -> {
+				loading.countDown();
+				await(release);
+				return load();
+			}));
+			loading.await(10, TimeUnit.SECONDS);
+			cache.invalidate(); // 取得中に更新がコミットされた
+			release.countDown();
+			assertEquals(1, staleLoad.get(10, TimeUnit.SECONDS)); // 取得したリクエストには返す
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(2, cache.get("a", this::load));
+	}
+
+	@Test
+	void get_件数上限を超えた場合は古いエントリから削除() throws Exception {
+		QueryResultCache<Integer, Integer> cache = new QueryResultCache<>(4, Duration.ofHours(1));
+		for (int key = 1; key <= 5; key++) {
+			cache.get(key, this::load);
+			Thread.sleep(1); // 登録日時の順序を確定
+		}
+		assertEquals(5, loadCount.get());
+		assertEquals(5, cache.get(5, this::load)); // 上限の 3/4 (3 件) まで古い順に削除
+		assertEquals(4, cache.get(4, this::load));
+		assertEquals(3, cache.get(3, this::load));
+		assertEquals(5, loadCount.get());
+		assertEquals(6, cache.get(1, this::load));
+	}
+
+	private int load() {
+		return loadCount.incrementAndGet();
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			assertTrue(latch.await(10, TimeUnit.SECONDS));
+		} catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package jp.example.form;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import jp.co.future.uroborosql.SqlAgent;
+import jp.co.future.uroborosql.UroboroSQL;
+
+/**
+ * 一覧の SQL の実行を、uroboroSQL の queryWith と SqlTemplate#stream (解析済みの JDBC の SQL) で比較する JMH ベンチマークです。
+ * <pre>
+ * インメモリ H2 (ItemForm のテストとは別の DB) に create_table.sql を実行し、ROWS 件のアイテムを登録します。
+ * どちらも ItemForm と同じ item/find_list の展開済み SQL (製品名の LIKE、発売日、id カーソル、LIMIT) で 20 件を取得します。
+ * queryWith は実行ごとに 2Way SQL を解析してバインド変数を評価し、stream は起動時に変換した ? の SQL に値をセットするだけです。
+ *
+ * 実行方法 (結果は 1 回あたりのマイクロ秒)
+ *
+ *     gradle jmh -PjmhArgs="SqlTemplateBenchmark"
+ *     gradle jmh -PjmhArgs="SqlTemplateBenchmark -prof gc"   (1 回あたりの割り当てバイト数)
+ * </pre>
+ * @author New Gradle Project Wizard (c) Pleiades MIT
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SqlTemplateBenchmark {
+
+	private static final int ROWS = 10_000;
+
+	private final SqlTemplate findListSql = new SqlTemplate("item/find_list", "ids != null", "nameLike != null", "releaseDate != null");
+	private final Map<String, Object> params = Map.of("nameLike", "%Pro%", "releaseDate", "2023-09-12", "afterId", 0L, "limit", 20L);
+	private SqlAgent agent;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		JdbcDataSource dataSource = new JdbcDataSource();
+		dataSource.setURL("jdbc:h2:mem:sql_template_benchmark;DB_CLOSE_DELAY=-1");
+		dataSource.setUser("sa");
+		agent = UroboroSQL.builder(dataSource).build().agent();
+		agent.update("create_table").count(); // src/main/resources/sql/create_table.sql
+		for (int i = 1; i <= ROWS; i++) {
+			agent.updateWith("INSERT INTO item (name, release_date, face_auth, company_id) VALUES (/*name*/'a', '2023-09-12', true, 1)")
+					.param("name", String.format("iPhone %s %05d", i % 4 == 0 ? "Pro" : "Lite", i)).count();
+		}
+		agent.commit();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		agent.updateWith("DROP ALL OBJECTS").count();
+		agent.close();
+	}
+
+	@Benchmark
+	public List<ItemForm> queryWith() {
+		try (Stream<ItemForm> formStream = agent.queryWith(findListSql.sql(false, true, true))
+				.param("nameLike", params.get("nameLike")).param("releaseDate", params.get("releaseDate"))
+				.param("afterId", params.get("afterId")).param("limit", params.get("limit"))
+				.stream(ItemForm.class)) {
+			return formStream.toList();
+		}
+	}
+
+	@Benchmark
+	public List<ItemForm> stream() {
+		try (Stream<ItemForm> formStream = findListSql.stream(agent, params, resultSet -> {
+			ItemForm form = new ItemForm();
+			form.id = resultSet.getLong("id");
+			form.name = resultSet.getString("name");
+			form.releaseDate = resultSet.getString("release_date");
+			form.faceAuth = resultSet.getBoolean("face_auth");
+			form.companyId = resultSet.getLong("company_id");
+			form.version = resultSet.getLong("version");
+			return form;
+		}, false, true, true)) {
+			return formStream.toList();
+		}
+	}
+}
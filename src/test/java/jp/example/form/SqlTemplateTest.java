@@ -0,0 +1,170 @@
+package jp.example.form;
+
+import static jp.example.filter.AutoTransactionFilter.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+
+import jp.example.filter.SqlMetricsFilter;
+import jp.example.filter.TestDatabase;
+
+/**
+ * SqlTemplate の条件の組み合わせごとの展開と、IN 句の要素数の調整のテストです。
+ * <pre>
+ * src/main/resources/sql の item/count.sql と、src/test/resources/sql/test のテスト用 SQL ファイルを使用します。
+ * stream (JDBC での実行) は TestDatabase のインメモリ H2 に、テストごとに一意な製品名のアイテムを登録して検証します。
+ * </pre>
+ * @author New Gradle Project Wizard (c) Pleiades MIT
+ */
+class SqlTemplateTest {
+
+	private static final String COUNT_SQL = lines("SELECT COUNT(*)", "FROM item", "WHERE 1 = 1");
+	private static final String IDS = "\t\tAND id IN /*ids*/(1, 2)";
+	private static final String NAME_LIKE = "\t\tAND name LIKE /*nameLike*/'%Pro%' ESCAPE '$'";
+	private static final String RELEASE_DATE = "\t\tAND release_date = /*releaseDate*/'2022-09-11'";
+
+	private final SqlTemplate countSql = new SqlTemplate("item/count", "ids != null", "nameLike != null", "releaseDate != null");
+
+	@Test
+	void sql_条件の真偽値に対応する展開済みのSQL() {
+		assertEquals(COUNT_SQL, countSql.sql(false, false, false));
+		assertEquals(lines(COUNT_SQL, IDS), countSql.sql(true, false, false));
+		assertEquals(lines(COUNT_SQL, NAME_LIKE), countSql.sql(false, true, false));
+		assertEquals(lines(COUNT_SQL, RELEASE_DATE), countSql.sql(false, false, true));
+		assertEquals(lines(COUNT_SQL, IDS, RELEASE_DATE), countSql.sql(true, false, true));
+		assertEquals(lines(COUNT_SQL, NAME_LIKE, RELEASE_DATE), countSql.sql(false, true, true));
+	}
+
+	@Test
+	void sql_IFが真の場合はELIFを展開しない() {
+		assertEquals(lines(COUNT_SQL, IDS), countSql.sql(true, true, false));
+		assertEquals(lines(COUNT_SQL, IDS, RELEASE_DATE), countSql.sql(true, true, true));
+	}
+
+	@Test
+	void sql_同じ条件の組み合わせは同じ文字列() {
+		assertSame(countSql.sql(true, false, true), countSql.sql(true, false, true)); // PreparedStatement キャッシュのキー
+	}
+
+	@Test
+	void sql_ネストしたIFとELSE() {
+		SqlTemplate nested = new SqlTemplate("test/nested", "a", "b", "c");
+		String where = lines("SELECT *", "FROM t", "WHERE 1 = 1");
+		assertEquals(lines(where, "\t\tAND a IS NULL"), nested.sql(false, false, false));
+		assertEquals(lines(where, "\t\tAND a IS NULL"), nested.sql(false, true, false)); // 親が偽の場合は子の ELSE も展開しない
+		assertEquals(lines(where, "\t\tAND a = 1", "\t\t\tAND b IS NULL"), nested.sql(true, false, false));
+		assertEquals(lines(where, "\t\tAND a = 1", "\t\t\tAND b = 1"), nested.sql(true, true, true));
+		assertEquals(lines(where, "\t\tAND c = 1"), nested.sql(false, true, true));
+	}
+
+	@Test
+	void sql_条件の数が異なる場合はエラー() {
+		assertThrows(IllegalArgumentException.class, () -> countSql.sql(true));
+	}
+
+	@Test
+	void コンストラクター_ファイルや条件式の誤りは構築時にエラー() {
+		assertThrows(IllegalArgumentException.class, () -> new SqlTemplate("test/none", "a"));
+		assertThrows(IllegalArgumentException.class, () -> new SqlTemplate("item/count", "ids != null", "nameLike != null"));
+		assertThrows(IllegalArgumentException.class, () -> new SqlTemplate("test/unclosed", "a"));
+		assertThrows(IllegalArgumentException.class, () -> new SqlTemplate("test/stray_else", "a"));
+	}
+
+	@Test
+	void stream_展開済みのSQLのバインド変数をJDBCで設定して逐次取得() {
+		String prefix = "SqlTemplate " + System.nanoTime();
+		TestDatabase.write(() -> {
+			for (int i = 1; i <= 3; i++) {
+				dao().updateWith("INSERT INTO item (name, release_date, face_auth, company_id) VALUES (/*name*/'a', /*releaseDate*/'2023-01-01', false, 1)")
+						.param("name", prefix + " 製品" + i).param("releaseDate", i == 3 ? "2023-03-03" : "2023-01-01").count();
+			}
+			touchTables("item");
+		});
+		SqlTemplate findListSql = new SqlTemplate("item/find_list", "ids != null", "nameLike != null", "releaseDate != null");
+		TestDatabase.read(() -> {
+			Map<String, Object> params = new HashMap<>(Map.of("nameLike", prefix + "%", "releaseDate", "2023-01-01", "afterId", 0, "limit", 10));
+			assertEquals(List.of(prefix + " 製品1", prefix + " 製品2"), names(findListSql, params, false, true, true));
+
+			params.put("limit", 1);
+			assertEquals(List.of(prefix + " 製品1"), names(findListSql, params, false, true, false));
+
+			params.put("limit", 10);
+			try (Stream<Long> idStream = findListSql.stream(dao(), params, resultSet -> resultSet.getLong("id"), false, true, false)) {
+				List<Long> all = idStream.toList();
+				params.put("ids", SqlTemplate.paddingInList(all.subList(1, 3), 1000));
+			}
+			assertEquals(List.of(prefix + " 製品2", prefix + " 製品3"), names(findListSql, params, true, false, false));
+			params.put("ids", SqlTemplate.paddingInList(List.of(0L, 0L, 0L), 1000));
+			assertEquals(List.of(), names(findListSql, params, true, false, false)); // 要素数が異なる IN 句
+		});
+	}
+
+	@Test
+	void stream_クローズ時にSQL名で実行回数と行数を記録() {
+		TestDatabase.read(() -> {
+			long[] before = countStat();
+			try (Stream<Long> countStream = countSql.stream(dao(), Map.of(), resultSet -> resultSet.getLong(1), false, false, false)) {
+				assertTrue(countStream.findFirst().orElseThrow() >= 3);
+			}
+			long[] after = countStat();
+			assertEquals(before[0] + 1, after[0]);
+			assertEquals(before[1] + 1, after[1]);
+		});
+	}
+
+	@Test
+	void stream_IN句のリストが無い場合はエラー() {
+		TestDatabase.read(() -> {
+			assertThrows(IllegalArgumentException.class, () -> countSql.stream(dao(), Map.of(), resultSet -> resultSet.getLong(1), true, false, false));
+			assertThrows(IllegalArgumentException.class, () -> countSql.stream(dao(), Map.of("ids", List.of()), resultSet -> resultSet.getLong(1), true, false, false));
+		});
+	}
+
+	@Test
+	void paddingInList_要素数を2のべき乗に揃える() {
+		assertNull(SqlTemplate.paddingInList(null, 1000));
+		List<Integer> one = List.of(1);
+		assertSame(one, SqlTemplate.paddingInList(one, 1000));
+		assertEquals(List.of(1, 2, 3, 3), SqlTemplate.paddingInList(List.of(1, 2, 3), 1000));
+		List<Integer> four = List.of(1, 2, 3, 4);
+		assertSame(four, SqlTemplate.paddingInList(four, 1000));
+		assertEquals(List.of(1, 2, 3, 4, 5, 5, 5, 5), SqlTemplate.paddingInList(List.of(1, 2, 3, 4, 5), 1000));
+	}
+
+	@Test
+	void paddingInList_上限を超える2のべき乗の場合は上限に揃える() {
+		assertEquals(List.of(1, 2, 3, 4, 5, 5), SqlTemplate.paddingInList(List.of(1, 2, 3, 4, 5), 6));
+		assertEquals(1000, SqlTemplate.paddingInList(new ArrayList<>(Collections.nCopies(600, 1)), 1000).size());
+		List<Integer> max = Collections.nCopies(1000, 1);
+		assertSame(max, SqlTemplate.paddingInList(max, 1000));
+	}
+
+	@Test
+	void paddingInList_上限を超える要素数はエラー() {
+		assertThrows(IllegalArgumentException.class, () -> SqlTemplate.paddingInList(Collections.nCopies(1001, 1), 1000));
+	}
+
+	/** 製品名の一覧 (id 昇順) */
+	private static List<String> names(SqlTemplate findListSql, Map<String, Object> params, boolean... conditionValues) {
+		try (Stream<String> nameStream = findListSql.stream(dao(), params, resultSet -> resultSet.getString("name"), conditionValues)) {
+			return nameStream.toList();
+		}
+	}
+
+	/** item/count の実行回数と行数 */
+	private static long[] countStat() {
+		return SqlMetricsFilter.sqlStats().stream().filter(stat -> stat.sql().equals("item/count"))
+				.map(stat -> new long[] {stat.count(), stat.rows()}).findFirst().orElse(new long[2]);
+	}
+
+	private static String lines(String... lines) {
+		return String.join("\n", lines);
+	}
+}
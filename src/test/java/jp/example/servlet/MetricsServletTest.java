@@ -0,0 +1,52 @@
+package jp.example.servlet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import jp.example.filter.ServletFakes;
+
+/**
+ * MetricsServlet のアクセス元アドレスの判定 (init-param allowAddresses) のテストです。
+ * @author New Gradle Project Wizard (c) Pleiades MIT
+ */
+class MetricsServletTest {
+
+	@Test
+	void isAllowed_未指定の場合はループバックのみ() throws Exception {
+		MetricsServlet servlet = servlet(Map.of());
+		assertTrue(servlet.isAllowed("127.0.0.1"));
+		assertTrue(servlet.isAllowed("::1"));
+		assertFalse(servlet.isAllowed("10.0.0.1")); // プライベートアドレスも許可しない
+		assertFalse(servlet.isAllowed("192.168.1.10"));
+		assertFalse(servlet.isAllowed("203.0.113.5"));
+	}
+
+	@Test
+	void isAllowed_指定したアドレスとCIDRの範囲を許可() throws Exception {
+		MetricsServlet servlet = servlet(Map.of("allowAddresses", "10.0.1.5, 10.0.2.0/24\n 172.16.0.0/12, fd00::/8"));
+		assertTrue(servlet.isAllowed("10.0.1.5"));
+		assertFalse(servlet.isAllowed("10.0.1.6"));
+		assertTrue(servlet.isAllowed("10.0.2.0"));
+		assertTrue(servlet.isAllowed("10.0.2.255"));
+		assertFalse(servlet.isAllowed("10.0.3.0"));
+		assertTrue(servlet.isAllowed("172.31.255.255")); // バイト境界以外のプレフィックス長
+		assertFalse(servlet.isAllowed("172.32.0.0"));
+		assertTrue(servlet.isAllowed("fd12:3456::1"));
+		assertFalse(servlet.isAllowed("fe80::1"));
+		assertTrue(servlet.isAllowed("127.0.0.1"));
+	}
+
+	@Test
+	void init_プレフィックス長が不正な場合はエラー() {
+		assertThrows(IllegalArgumentException.class, () -> servlet(Map.of("allowAddresses", "10.0.0.0/33")));
+	}
+
+	private static MetricsServlet servlet(Map<String, String> initParams) throws Exception {
+		MetricsServlet servlet = new MetricsServlet();
+		servlet.init(ServletFakes.servletConfig("MetricsServlet", initParams));
+		return servlet;
+	}
+}
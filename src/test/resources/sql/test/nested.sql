@@ -0,0 +1,16 @@
+-- SqlTemplateTest のネストした IF ELIF ELSE END
+SELECT *
+FROM t
+WHERE 1 = 1
+	/*IF a*/
+		AND a = 1
+		/*IF b*/
+			AND b = 1
+		/*ELSE*/
+			AND b IS NULL
+		/*END*/
+	/*ELIF c*/
+		AND c = 1
+	/*ELSE*/
+		AND a IS NULL
+	/*END*/
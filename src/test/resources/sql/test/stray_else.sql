@@ -0,0 +1,5 @@
+-- SqlTemplateTest の IF の無い ELSE (構文エラー)
+SELECT *
+FROM t
+	/*ELSE*/
+WHERE 1 = 1
@@ -0,0 +1,6 @@
+-- SqlTemplateTest の END の無い IF (構文エラー)
+SELECT *
+FROM t
+WHERE 1 = 1
+	/*IF a*/
+		AND a = 1